@@ -0,0 +1,58 @@
+package com.wework.websitesearcher;
+
+import com.wework.websitesearcher.io.CsvUrlSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the list of URLs: a synthetic CSV laid out like the real one (rank, quoted URL, linking root domains),
+ * parsed and normalized by {@link CsvUrlSource}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvUrlSourceBenchmark {
+
+    @Param({"10000", "1000000"})
+    public int rows;
+
+    private String csv;
+
+    @Setup
+    public void setup() {
+        StringBuilder builder = new StringBuilder(rows * 48);
+        builder.append("\"Rank\",\"URL\",\"Linking Root Domains\"\n");
+        for (int i = 1; i <= rows; i++) {
+            // a few URLs have a scheme or need quoting, like in the real list
+            String url = i % 10 == 0 ? "https://www.site" + i + ".com/" : "site" + i + ".com/";
+            builder.append(i).append(",\"").append(url).append(i % 100 == 0 ? "?a=1,2" : "").append("\",")
+                    .append(rows - i).append('\n');
+        }
+        csv = builder.toString();
+    }
+
+    @Benchmark
+    public int readAll() {
+        int count = 0;
+        CsvUrlSource source = new CsvUrlSource(new StringReader(csv), Integer.MAX_VALUE);
+        while (source.hasNext()) {
+            count += source.next().length();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,107 @@
+package com.wework.websitesearcher;
+
+import com.wework.websitesearcher.matcher.ByteMatchSession;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.matcher.ContentMatcherFactory;
+import com.wework.websitesearcher.matcher.MatchSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching one page, streamed to the matcher in chunks of {@link ContentMatcher#CHUNK_SIZE} chars like the services
+ * do, across page sizes, where the term is in the page and the shape of the search term. {@link #matchBytes()} feeds
+ * the UTF-8 bytes of the page instead, as the services do: decoded first, or matched as they are by the keyword
+ * matcher.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatcherBenchmark {
+
+    /** Where the term is: near the start, at the very end, or nowhere */
+    public enum Position { EARLY, LATE, NONE }
+
+    @Param({"4096", "65536", "1048576"})
+    public int pageChars;
+
+    @Param({"EARLY", "LATE", "NONE"})
+    public Position position;
+
+    /**
+     * Keyword list (run by the keyword matcher), a regex with a required literal (prefiltered) and a regex without
+     * one (always run by java.util.regex).
+     */
+    @Param({"(?s).*(facebook|twitter).*", "(?s).*<a [^>]*href=\"[^\"]*twitter[^\"]*\".*", "(?s).*tw[a-z]{2}ter.*"})
+    public String searchTerm;
+
+    private ContentMatcher matcher;
+    private char[] page;
+    private byte[] pageBytes;
+
+    @Setup
+    public void setup() {
+        matcher = ContentMatcherFactory.getInstance(searchTerm);
+        page = syntheticPage(pageChars, position);
+        pageBytes = new String(page).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public boolean match() {
+        MatchSession session = matcher.newSession();
+        for (int offset = 0; offset < page.length; offset += ContentMatcher.CHUNK_SIZE) {
+            if (session.feed(page, offset, Math.min(ContentMatcher.CHUNK_SIZE, page.length - offset))) {
+                return true;
+            }
+        }
+        return session.finish();
+    }
+
+    @Benchmark
+    public boolean matchBytes() {
+        ByteMatchSession session = matcher.newByteSession(StandardCharsets.UTF_8);
+        for (int offset = 0; offset < pageBytes.length; offset += ContentMatcher.CHUNK_SIZE) {
+            if (session.feed(pageBytes, offset, Math.min(ContentMatcher.CHUNK_SIZE, pageBytes.length - offset))) {
+                return true;
+            }
+        }
+        return session.finish();
+    }
+
+    /**
+     * HTML-like filler with links, with a link to twitter placed according to the position.
+     */
+    static char[] syntheticPage(int chars, Position position) {
+        Random random = new Random(42);
+        String[] words = {"lorem", "ipsum", "dolor", "sit", "amet", "tweet", "face", "book", "<p>", "</p>", "<div>",
+                "</div>", "<a href=\"/about\">about</a>", "<a href=\"https://example.com/x\">x</a>"};
+        String term = "<a href=\"https://twitter.com/wework\">twitter</a>";
+        StringBuilder page = new StringBuilder(chars + 64);
+        page.append("<html><body>");
+        if (position == Position.EARLY) {
+            page.append(term);
+        }
+        while (page.length() < chars - term.length()) {
+            page.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        if (position == Position.LATE) {
+            page.append(term);
+        }
+        return page.toString().toCharArray();
+    }
+}
@@ -0,0 +1,93 @@
+package com.wework.websitesearcher;
+
+import com.wework.websitesearcher.io.UrlReader;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.matcher.ContentMatcherFactory;
+import com.wework.websitesearcher.services.UrlSearchServiceFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end throughput (URLs per second) of the search services against a {@link SyntheticWeb} on localhost, so the
+ * numbers don't depend on the internet. Each operation searches {@link #URLS} pages of about 20KB (log-normal sizes),
+ * one in ten of which contains the term, with 5% of errors and 5% of redirects; the server waits
+ * <code>latencyMillis</code> (plus up to as much again) before answering.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(SearchServiceBenchmark.URLS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SearchServiceBenchmark {
+    static final int URLS = 500;
+
+    @Param({"THREADS", "PIPELINED", "NIO"})
+    public UrlSearchServiceFactory.Mode mode;
+
+    @Param({"20", "50"})
+    public int concurrency;
+
+    @Param({"0", "20"})
+    public int latencyMillis;
+
+    private SyntheticWeb web;
+    private List<String> urls;
+    private int expectedMatches;
+    private ContentMatcher matcher;
+
+    @Setup
+    public void setup() throws IOException {
+        if (!UrlSearchServiceFactory.isAvailable(mode)) {
+            throw new IllegalStateException(mode + " mode isn't available in this build");
+        }
+        web = new SyntheticWeb(URLS, 42);
+        web.setLatency(latencyMillis, latencyMillis);
+        web.setErrorRate(0.05);
+        web.setRedirects(0.05, 2);
+        web.start();
+        urls = web.getUrls();
+        expectedMatches = web.getExpectedMatches().size();
+        matcher = ContentMatcherFactory.getInstance("(?s).*(facebook|twitter).*");
+        // same as WebsiteSearcher: keep as many idle connections as there can be requests to the host
+        UrlReader.setKeepAliveConnectionsPerHost(concurrency);
+    }
+
+    @TearDown
+    public void tearDown() {
+        web.close();
+    }
+
+    @Benchmark
+    public int search() {
+        AtomicInteger matched = new AtomicInteger();
+        // all the URLs are on one host: let it have all the connections
+        UrlSearchServiceFactory.getInstance(mode, concurrency, concurrency).searchUrls(urls.iterator(), matcher,
+                result -> {
+                    if (result.isMatched()) {
+                        matched.incrementAndGet();
+                    }
+                });
+        if (matched.get() != expectedMatches) {
+            throw new IllegalStateException("Expected " + expectedMatches + " matches, got " + matched);
+        }
+        return matched.get();
+    }
+}
@@ -1,8 +1,32 @@
 package com.wework.websitesearcher;
 
+import com.wework.websitesearcher.cluster.Coordinator;
+import com.wework.websitesearcher.cluster.Worker;
+import com.wework.websitesearcher.daemon.SearchDaemon;
+import com.wework.websitesearcher.index.PageIndex;
+import com.wework.websitesearcher.io.CsvUrlSource;
+import com.wework.websitesearcher.io.FetchLimits;
+import com.wework.websitesearcher.io.PageCache;
+import com.wework.websitesearcher.io.ProgressJournal;
+import com.wework.websitesearcher.io.RedirectMap;
+import com.wework.websitesearcher.io.ResultWriter;
+import com.wework.websitesearcher.io.ResultWriter.Format;
+import com.wework.websitesearcher.io.SearchResult;
 import com.wework.websitesearcher.io.UrlReader;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.matcher.ContentMatcherFactory;
+import com.wework.websitesearcher.matcher.MultiTermMatcher;
+import com.wework.websitesearcher.services.UrlSearchService;
 import com.wework.websitesearcher.services.UrlSearchServiceFactory;
+import com.wework.websitesearcher.services.UrlSearchServiceFactory.Mode;
+import com.wework.websitesearcher.util.SearchMetrics;
 import com.wework.websitesearcher.util.Stopwatch;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -10,8 +34,17 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * Main class that is run when executing this JAR.
@@ -20,39 +53,590 @@ public class WebsiteSearcher {
     private static final Logger LOG = LoggerFactory.getLogger(WebsiteSearcher.class);
 
     private static final int DEFAULT_MAX_THREADS = 20;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 500;
+    private static final int MAX_IN_FLIGHT = 5000;
+    private static final int DEFAULT_FETCH_THREADS = 100;
+    private static final int MAX_FETCH_THREADS = 500;
+    private static final int DEFAULT_MIN_CONCURRENCY = 4;
     private static final int DEFAULT_MAX_URLS = 9999;
     private static final String DEFAULT_SEARCH_TERM = "(?s).*(facebook|twitter).*";
     private static final String DEFAULT_URLS_LOCATION = "https://s3.amazonaws.com/fieldlens-public/urls.txt";
+    private static final String JOURNAL_FILE = "results.journal";
 
     private final String urlsLocation;
+    private final Mode mode;
     private final int maxThreads;
+    private final int maxPerHost;
     private final int maxUrls;
     private final String searchTerm;
+    private final Map<String, String> namedTerms;
+    private final Format format;
     private final Stopwatch stopwatch;
+    /** Lowest number of threads (or requests in flight) for an adaptive concurrency, 0 for a fixed one */
+    private int minThreads;
+    /** Max time for the whole search, 0 for no limit */
+    private int jobDeadlineSecs;
+    /** Port to lease the URLs to workers on (0 for any), or -1 to search them in this process */
+    private int coordinatorPort = -1;
+    /** Whether to carry on from the progress journal of a search that stopped half-way */
+    private boolean resume;
 
     public static void main(String[] args) {
         System.out.println("Welcome to Website Searcher. Args: " + Arrays.asList(args));
 
+        Options options = getOptions();
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            printUsage(options);
+            return;
+        }
+        if (cmd.hasOption("help")) {
+            printUsage(options);
+            return;
+        }
+        // the optional positional args: [# of threads] [# of URLs to search] [regex search]
+        args = cmd.getArgs();
+
+        Mode mode;
+        try {
+            mode = Mode.valueOf(cmd.getOptionValue("mode", Mode.THREADS.name()).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown mode: " + cmd.getOptionValue("mode"));
+            printUsage(options);
+            return;
+        }
+        Format format;
+        try {
+            format = Format.valueOf(cmd.getOptionValue("format", Format.TEXT.name()).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown format: " + cmd.getOptionValue("format"));
+            printUsage(options);
+            return;
+        }
+        if (!UrlSearchServiceFactory.isAvailable(mode)) {
+            System.out.println("Mode " + mode + " needs Java 21+ and a build with the jdk21 profile");
+            return;
+        }
+        // in NIO and virtual thread modes the first arg is the max number of requests in flight rather than threads,
+        // in pipelined mode it's the number of fetch threads
+        int defaultConcurrency;
+        int maxConcurrency;
+        switch (mode) {
+            case NIO:
+            case VIRTUAL:
+                defaultConcurrency = DEFAULT_MAX_IN_FLIGHT;
+                maxConcurrency = MAX_IN_FLIGHT;
+                break;
+            case PIPELINED:
+                defaultConcurrency = DEFAULT_FETCH_THREADS;
+                maxConcurrency = MAX_FETCH_THREADS;
+                break;
+            default:
+                defaultConcurrency = DEFAULT_MAX_THREADS;
+                maxConcurrency = DEFAULT_MAX_THREADS;
+        }
+
+        // an adaptive concurrency goes up to the arg if there's one, or as high as the mode allows
+        boolean adaptive = cmd.hasOption("adaptive");
+        if (adaptive) {
+            maxConcurrency = UrlSearchServiceFactory.getMaxConcurrency(mode);
+            defaultConcurrency = maxConcurrency;
+        }
+
         // get max number of threads to use or use the default value if user didn't specify
-        int maxThreads = args.length >= 1 ? convertArgToInt(args[0], DEFAULT_MAX_THREADS) : DEFAULT_MAX_THREADS;
+        int maxThreads = args.length >= 1 ? convertArgToInt(args[0], defaultConcurrency) : defaultConcurrency;
         // make sure user doesn't run with too many threads
-        if (maxThreads > DEFAULT_MAX_THREADS) {
-            maxThreads = DEFAULT_MAX_THREADS;
+        if (maxThreads > maxConcurrency) {
+            maxThreads = maxConcurrency;
+        }
+        int minThreads = 0;
+        if (adaptive) {
+            minThreads = Math.max(1, Math.min(maxThreads, convertArgToInt(cmd.getOptionValue("min-concurrency"),
+                    DEFAULT_MIN_CONCURRENCY)));
         }
         // get max number of URLs to search or use the default value if user didn't specify
         int maxUrls = args.length >= 2 ? convertArgToInt(args[1], DEFAULT_MAX_URLS) : DEFAULT_MAX_URLS;
-        // get search term or use the default value if user didn't specify
-        String searchTerm = args.length == 3 ? args[2] : DEFAULT_SEARCH_TERM;
-        System.out.println("Running with settings: max threads: " + maxThreads +
+        int maxPerHost = Math.max(1, convertArgToInt(cmd.getOptionValue("max-per-host"),
+                UrlSearchServiceFactory.DEFAULT_MAX_PER_HOST));
+        // get search term or use the default value if user didn't specify. A keyword list takes precedence.
+        String searchTerm = args.length >= 3 ? args[2] : DEFAULT_SEARCH_TERM;
+        List<String> keywords = getKeywords(cmd);
+        if (!keywords.isEmpty()) {
+            searchTerm = ContentMatcherFactory.toKeywordSearchTerm(keywords);
+        }
+        // several named terms take precedence over both, and are all searched for in one go
+        Map<String, String> namedTerms;
+        try {
+            namedTerms = getNamedTerms(cmd);
+            if (!namedTerms.isEmpty()) {
+                // fails early on a bad name or regex
+                ContentMatcherFactory.getInstance(namedTerms);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printUsage(options);
+            return;
+        }
+        String urlsLocation = cmd.getOptionValue("urls", DEFAULT_URLS_LOCATION);
+        if (cmd.hasOption("cache-dir")) {
+            if (mode == Mode.NIO) {
+                System.out.println("The page cache isn't used in nio mode");
+            }
+            int cacheMegabytes = Math.max(1, convertArgToInt(cmd.getOptionValue("cache-size"),
+                    (int) (PageCache.DEFAULT_MAX_BYTES / (1024 * 1024))));
+            try {
+                UrlReader.setPageCache(new PageCache(new File(cmd.getOptionValue("cache-dir")),
+                        cacheMegabytes * 1024L * 1024));
+            } catch (IOException e) {
+                System.out.println("Can't open the page cache: " + e);
+                return;
+            }
+        }
+        if (cmd.hasOption("redirect-map")) {
+            if (mode == Mode.NIO) {
+                System.out.println("The redirect map isn't used in nio mode");
+            }
+            try {
+                UrlReader.setRedirectMap(new RedirectMap(new File(cmd.getOptionValue("redirect-map"))));
+            } catch (IOException e) {
+                System.out.println("Can't read the redirect map: " + e);
+                return;
+            }
+        }
+        if (cmd.hasOption("index-dir")) {
+            if (mode == Mode.NIO && !cmd.hasOption("from-index")) {
+                System.out.println("The page index isn't updated in nio mode");
+            }
+            try {
+                UrlReader.setPageIndex(new PageIndex(new File(cmd.getOptionValue("index-dir"))));
+            } catch (IOException e) {
+                System.out.println("Can't open the page index: " + e);
+                return;
+            }
+        }
+        if (cmd.hasOption("from-index")) {
+            if (UrlReader.getPageIndex() == null || keywords.isEmpty()) {
+                System.out.println("Searching the page index needs --index-dir and --keywords (or --keywords-file)");
+                printUsage(options);
+                return;
+            }
+            searchIndex(keywords, format, cmd.hasOption("verify"));
+            return;
+        }
+        FetchLimits limits = new FetchLimits();
+        limits.setMaxBodyBytes(Math.max(1, convertArgToInt(cmd.getOptionValue("max-body"),
+                (int) (FetchLimits.DEFAULT_MAX_BODY_BYTES / 1024))) * 1024L);
+        limits.setDeadlineSecs(Math.max(1, convertArgToInt(cmd.getOptionValue("deadline"),
+                FetchLimits.DEFAULT_DEADLINE_SECS)));
+        limits.setRangeBytes(Math.max(0, convertArgToInt(cmd.getOptionValue("range"), 0)) * 1024L);
+        limits.setTextOnly(!cmd.hasOption("all-types"));
+        limits.setMaxRetries(Math.max(0, convertArgToInt(cmd.getOptionValue("retries"), 0)));
+        if (cmd.hasOption("hedge-percentile")) {
+            try {
+                limits.setHedgePercentile(Double.parseDouble(cmd.getOptionValue("hedge-percentile")));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Bad hedge percentile: " + e.getMessage());
+                printUsage(options);
+                return;
+            }
+        }
+        int jobDeadlineSecs = Math.max(0, convertArgToInt(cmd.getOptionValue("job-deadline"), 0));
+        UrlReader.setFetchLimits(limits);
+        if (cmd.hasOption("worker")) {
+            runWorker(cmd.getOptionValue("worker"), mode, maxThreads, minThreads, maxPerHost);
+            saveRedirectMap();
+            closePageIndex();
+            return;
+        }
+        if (cmd.hasOption("daemon")) {
+            int port = convertArgToInt(cmd.getOptionValue("daemon"), -1);
+            if (port < 0 || port > 0xFFFF) {
+                System.out.println("Bad daemon port: " + cmd.getOptionValue("daemon"));
+                printUsage(options);
+                return;
+            }
+            runDaemon(port, Math.max(1, convertArgToInt(cmd.getOptionValue("max-jobs"),
+                    SearchDaemon.DEFAULT_MAX_JOBS)), maxPerHost, cmd.hasOption("allow-local-files"));
+            return;
+        }
+        System.out.println("Running with settings: mode: " + mode +
+                ", max threads: " + maxThreads + (adaptive ? " (adaptive, from " + minThreads + ")" : "") +
+                ", max per host: " + maxPerHost +
                 ", max URLs to search: " + maxUrls +
-                ", search term: " + searchTerm);
-        LOG.info("Running with settings: max threads: {}, max URLs to search: {}, urls location: {}" +
-                        ", search term: {}",
-                maxThreads, maxUrls, DEFAULT_URLS_LOCATION, searchTerm);
+                ", urls location: " + urlsLocation +
+                (namedTerms.isEmpty() ? ", search term: " + searchTerm : ", search terms: " + namedTerms));
+        LOG.info("Running with settings: mode: {}, max threads: {}, min threads: {}, max per host: {}" +
+                        ", max URLs to search: {}, urls location: {}, search term(s): {}",
+                mode, maxThreads, adaptive ? minThreads : "fixed", maxPerHost, maxUrls, urlsLocation,
+                namedTerms.isEmpty() ? searchTerm : namedTerms);
 
         // initialize and run the tool
-        WebsiteSearcher websiteSearcher = new WebsiteSearcher(DEFAULT_URLS_LOCATION, maxThreads, maxUrls, searchTerm);
+        WebsiteSearcher websiteSearcher = namedTerms.isEmpty()
+                ? new WebsiteSearcher(urlsLocation, mode, maxThreads, maxPerHost, maxUrls, searchTerm, format)
+                : new WebsiteSearcher(urlsLocation, mode, maxThreads, maxPerHost, maxUrls, namedTerms, format);
+        if (adaptive) {
+            websiteSearcher.setAdaptiveConcurrency(minThreads);
+        }
+        if (jobDeadlineSecs > 0) {
+            websiteSearcher.setJobDeadline(jobDeadlineSecs);
+        }
+        if (cmd.hasOption("coordinator")) {
+            int port = convertArgToInt(cmd.getOptionValue("coordinator"), -1);
+            if (port < 0 || port > 0xFFFF) {
+                System.out.println("Bad coordinator port: " + cmd.getOptionValue("coordinator"));
+                printUsage(options);
+                return;
+            }
+            websiteSearcher.setCoordinator(port);
+        }
+        websiteSearcher.setResume(cmd.hasOption("resume"));
         websiteSearcher.run();
+        saveRedirectMap();
+        closePageIndex();
+    }
+
+    private static void saveRedirectMap() {
+        RedirectMap redirects = UrlReader.getRedirectMap();
+        if (redirects == null) {
+            return;
+        }
+        try {
+            redirects.save();
+        } catch (IOException e) {
+            // only the next runs are affected
+            LOG.error("Error saving the redirect map", e);
+            System.out.println("Error saving the redirect map: " + e);
+        }
+    }
+
+    private static void closePageIndex() {
+        PageIndex index = UrlReader.getPageIndex();
+        if (index == null) {
+            return;
+        }
+        try {
+            index.close();
+        } catch (IOException e) {
+            // the pages indexed since the last segment are lost
+            LOG.error("Error writing the page index", e);
+            System.out.println("Error writing the page index: " + e);
+        }
+    }
+
+    /**
+     * Answer a keyword search from the page index (see {@link PageIndex#search}) instead of fetching the pages, and
+     * write the pages found the same way as a search. With verify, the pages found are searched again in the page
+     * cache with the keyword matcher, which drops the ones that only have the keywords in another case or inside
+     * longer words; the pages that aren't cached are kept.
+     *
+     * @param keywords keywords or phrases
+     * @param format
+     * @param verify
+     */
+    private static void searchIndex(List<String> keywords, Format format, boolean verify) {
+        PageIndex index = UrlReader.getPageIndex();
+        String searchTerm = ContentMatcherFactory.toKeywordSearchTerm(keywords);
+        System.out.println("Searching the page index: " + index + ", keywords: " + keywords);
+        LOG.info("Searching the page index: {}, keywords: {}", index, keywords);
+        long start = System.nanoTime();
+        List<String> found = index.search(keywords);
+        long searchMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        ContentMatcher matcher = verify ? ContentMatcherFactory.getInstance(searchTerm) : null;
+        int verified = 0;
+        int notMatching = 0;
+        int notCached = 0;
+        File outputFile = new File(format == Format.JSON ? "results.jsonl" : "results.txt");
+        try (ResultWriter writer = new ResultWriter(outputFile, format, searchTerm)) {
+            for (String url : found) {
+                SearchResult result = new SearchResult(url);
+                if (verify) {
+                    Boolean matched = UrlReader.searchCachedPage(url, matcher, result);
+                    if (matched == null) {
+                        // can't tell, keep what the index found
+                        notCached++;
+                        result = new SearchResult(url);
+                        result.complete(true);
+                    }
+                    else if (!matched) {
+                        notMatching++;
+                        continue;
+                    }
+                    else {
+                        verified++;
+                    }
+                }
+                else {
+                    result.complete(true);
+                }
+                writer.accept(result);
+            }
+        } catch (IOException e) {
+            LOG.error("Error writing output to file " + outputFile);
+            throw new RuntimeException("Error writing output to file " + outputFile, e);
+        }
+        int results = found.size() - notMatching;
+        LOG.info("Index search is complete. Found {} results from {} pages in {} ms", results, index.size(),
+                searchMillis);
+        System.out.println(String.format("Index search is complete. Found %s results from %s pages in %s ms",
+                results, index.size(), searchMillis));
+        if (verify) {
+            LOG.info("Checked against the page cache: {} matched, {} didn't, {} not cached", verified, notMatching,
+                    notCached);
+            System.out.println(String.format("Checked against the page cache: %s matched, %s didn't, %s not cached",
+                    verified, notMatching, notCached));
+        }
+    }
+
+    /**
+     * Command line options. Anything that isn't an option is one of the positional args
+     * <code>[# of threads] [# of URLs to search] [regex search]</code>.
+     *
+     * @return
+     */
+    private static Options getOptions() {
+        Options options = new Options();
+        options.addOption(Option.builder("k").longOpt("keywords").hasArg().argName("k1,k2,...")
+                .desc("search for pages containing any of these comma-separated keywords instead of a regex").build());
+        options.addOption(Option.builder().longOpt("keywords-file").hasArg().argName("file")
+                .desc("search for pages containing any of the keywords in this file (one per line) instead of a regex")
+                .build());
+        options.addOption(Option.builder("t").longOpt("term").hasArg().argName("name=regex")
+                .desc("a named search term; repeat it to search for several terms at once, fetching each page only " +
+                        "once. The results of each term go to results-<name>.txt (or are listed under \"terms\" " +
+                        "with --format json).").build());
+        options.addOption(Option.builder().longOpt("terms-file").hasArg().argName("file")
+                .desc("named search terms, one name=regex per line (lines starting with # are ignored)").build());
+        options.addOption(Option.builder("m").longOpt("mode").hasArg().argName("threads|pipelined|nio|virtual")
+                .desc("how URLs are fetched: a pool of blocking threads (default); blocking fetch threads handing " +
+                        "pages to one match thread per core, where the # of threads arg is the # of fetch threads " +
+                        "(default " + DEFAULT_FETCH_THREADS + ", max " + MAX_FETCH_THREADS + "); non-blocking I/O " +
+                        "or one virtual thread per URL (Java 21+), where the # of threads arg is the max # of " +
+                        "requests in flight (default " + DEFAULT_MAX_IN_FLIGHT + ", max " + MAX_IN_FLIGHT + ")")
+                .build());
+        options.addOption(Option.builder().longOpt("adaptive")
+                .desc("adjust the # of threads (or requests in flight) while searching, from --min-concurrency up to " +
+                        "the # of threads arg (default: as many as the mode allows), backing off when requests " +
+                        "time out, get throttled or slow down").build());
+        options.addOption(Option.builder().longOpt("min-concurrency").hasArg().argName("n")
+                .desc("with --adaptive, the # of threads (or requests in flight) to start with and never go under " +
+                        "(default " + DEFAULT_MIN_CONCURRENCY + ")").build());
+        options.addOption(Option.builder().longOpt("max-per-host").hasArg().argName("n")
+                .desc("max # of parallel requests to the same host (default " +
+                        UrlSearchServiceFactory.DEFAULT_MAX_PER_HOST + ")").build());
+        options.addOption(Option.builder("u").longOpt("urls").hasArg().argName("url|file")
+                .desc("URL or local path of the CSV file listing the URLs to search (default " +
+                        DEFAULT_URLS_LOCATION + ")").build());
+        options.addOption(Option.builder("f").longOpt("format").hasArg().argName("text|json")
+                .desc("results.txt with the URLs that matched (default), or results.jsonl with one JSON object per " +
+                        "URL searched: url, final_url, status, matched, terms, cached, truncated, bytes, started_at, " +
+                        "headers_ms, total_ms, error, incomplete")
+                .build());
+        options.addOption(Option.builder().longOpt("cache-dir").hasArg().argName("dir")
+                .desc("keep the pages in this directory and only revalidate them on the next runs (not in nio mode)")
+                .build());
+        options.addOption(Option.builder().longOpt("cache-size").hasArg().argName("MB")
+                .desc("max size of the page cache (default " + PageCache.DEFAULT_MAX_BYTES / (1024 * 1024) + ")")
+                .build());
+        options.addOption(Option.builder().longOpt("redirect-map").hasArg().argName("file")
+                .desc("remember where URLs are redirected to permanently in this file, and request the targets " +
+                        "right away on the next runs (not in nio mode)").build());
+        options.addOption(Option.builder().longOpt("index-dir").hasArg().argName("dir")
+                .desc("index the words of the pages in this directory as they are read, so --from-index can search " +
+                        "them again without fetching them (not in nio mode)").build());
+        options.addOption(Option.builder().longOpt("from-index")
+                .desc("don't fetch anything: find the pages of --index-dir with any of the --keywords as words or " +
+                        "phrases (ignoring case)").build());
+        options.addOption(Option.builder().longOpt("verify")
+                .desc("with --from-index, search the pages found again in the page cache (--cache-dir) with the " +
+                        "keywords as they are, and drop the ones that don't match").build());
+        options.addOption(Option.builder().longOpt("max-body").hasArg().argName("KB")
+                .desc("search at most this much of each page (default " +
+                        FetchLimits.DEFAULT_MAX_BODY_BYTES / 1024 + ")").build());
+        options.addOption(Option.builder().longOpt("range").hasArg().argName("KB")
+                .desc("only ask the servers for this much of each page, with a Range header").build());
+        options.addOption(Option.builder().longOpt("deadline").hasArg().argName("secs")
+                .desc("max time for a URL, redirects included (default " + FetchLimits.DEFAULT_DEADLINE_SECS + ")")
+                .build());
+        options.addOption(Option.builder().longOpt("job-deadline").hasArg().argName("secs")
+                .desc("max time for the whole search: past it no URL is started, the ones in progress are cut and " +
+                        "reported as incomplete, and the rest of the list isn't searched").build());
+        options.addOption(Option.builder().longOpt("retries").hasArg().argName("n")
+                .desc("try again up to n times, with an exponential backoff, the URLs that time out, can't connect " +
+                        "or get a 429/502/503/504 (default 0)").build());
+        options.addOption(Option.builder().longOpt("hedge-percentile").hasArg().argName("p")
+                .desc("send a second request for the URLs taking longer than this percentile of the others (e.g. " +
+                        "95), for at most 5% of the URLs, and keep whichever answers first").build());
+        options.addOption(Option.builder().longOpt("resume")
+                .desc("carry on a search that stopped half-way: rebuild the results from " + JOURNAL_FILE +
+                        " and only search the URLs it doesn't have").build());
+        options.addOption(Option.builder().longOpt("coordinator").hasArg().argName("port")
+                .desc("don't search the URLs here: lease them to the workers connecting on this port (0 for any) and " +
+                        "merge their results").build());
+        options.addOption(Option.builder().longOpt("worker").hasArg().argName("host:port")
+                .desc("search the URLs leased by the coordinator at this address, with this process's mode, threads " +
+                        "and limits, until it has no more").build());
+        options.addOption(Option.builder().longOpt("daemon").hasArg().argName("port")
+                .desc("stay up and run the search jobs posted to http://localhost:<port>/jobs (as JSON), sharing " +
+                        "the DNS cache, connections and compiled terms between them").build());
+        options.addOption(Option.builder().longOpt("max-jobs").hasArg().argName("n")
+                .desc("max number of daemon jobs run at once, the others wait (default " +
+                        SearchDaemon.DEFAULT_MAX_JOBS + ")").build());
+        options.addOption(Option.builder().longOpt("allow-local-files").desc("let daemon jobs read their list of " +
+                "URLs from a local file (by default only from an http(s) URL)").build());
+        options.addOption(Option.builder().longOpt("all-types").desc("also search the responses that aren't text " +
+                "(by default images, videos, PDFs... are skipped without reading them)").build());
+        options.addOption("h", "help", false, "print this message");
+        return options;
+    }
+
+    private static void printUsage(Options options) {
+        new HelpFormatter().printHelp("java -jar website-searcher-with-deps.jar [options] [# of threads] " +
+                "[# of URLs to search] [regex search]", options);
+    }
+
+    /**
+     * Returns the keywords given with --keywords and/or --keywords-file, or an empty list if there are none.
+     *
+     * @param cmd
+     * @return
+     */
+    private static List<String> getKeywords(CommandLine cmd) {
+        List<String> keywords = new ArrayList<>();
+        if (cmd.hasOption("keywords")) {
+            keywords.addAll(Arrays.asList(StringUtils.split(cmd.getOptionValue("keywords"), ',')));
+        }
+        if (cmd.hasOption("keywords-file")) {
+            File keywordsFile = new File(cmd.getOptionValue("keywords-file"));
+            try {
+                keywords.addAll(FileUtils.readLines(keywordsFile, "UTF-8"));
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading keywords file " + keywordsFile, e);
+            }
+        }
+        return keywords.stream()
+                .map(String::trim)
+                .filter(StringUtils::isNotEmpty)
+                .distinct()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the search terms given with --term and/or --terms-file by name, in the order given, or an empty map if
+     * there are none.
+     *
+     * @param cmd
+     * @return
+     * @throws IllegalArgumentException if a term isn't of the form <code>name=regex</code>
+     */
+    private static Map<String, String> getNamedTerms(CommandLine cmd) {
+        List<String> terms = new ArrayList<>();
+        if (cmd.hasOption("term")) {
+            terms.addAll(Arrays.asList(cmd.getOptionValues("term")));
+        }
+        if (cmd.hasOption("terms-file")) {
+            File termsFile = new File(cmd.getOptionValue("terms-file"));
+            try {
+                for (String line : FileUtils.readLines(termsFile, "UTF-8")) {
+                    if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+                        terms.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading terms file " + termsFile, e);
+            }
+        }
+        Map<String, String> namedTerms = new LinkedHashMap<>();
+        for (String term : terms) {
+            int equals = term.indexOf('=');
+            if (equals <= 0 || equals == term.length() - 1) {
+                throw new IllegalArgumentException("Search terms must be given as name=regex. Term arg: " + term);
+            }
+            String name = term.substring(0, equals).trim();
+            if (namedTerms.put(name, term.substring(equals + 1)) != null) {
+                throw new IllegalArgumentException("Search term names must be unique. Name arg: " + name);
+            }
+        }
+        return namedTerms;
+    }
+
+    /**
+     * Search the URLs leased by a coordinator (see {@link #setCoordinator(int)}) until it has no more.
+     *
+     * @param coordinator <code>host:port</code> of the coordinator
+     * @param mode
+     * @param maxThreads
+     * @param minThreads lowest number of threads for an adaptive concurrency, 0 for a fixed one
+     * @param maxPerHost
+     */
+    private static void runWorker(String coordinator, Mode mode, int maxThreads, int minThreads, int maxPerHost) {
+        int colon = coordinator.lastIndexOf(':');
+        int port = colon > 0 ? convertArgToInt(coordinator.substring(colon + 1), -1) : -1;
+        if (port < 1 || port > 0xFFFF) {
+            System.out.println("Bad coordinator address, expected host:port: " + coordinator);
+            return;
+        }
+        System.out.println("Running as a worker of " + coordinator + ": mode: " + mode +
+                ", max threads: " + maxThreads + (minThreads > 0 ? " (adaptive, from " + minThreads + ")" : "") +
+                ", max per host: " + maxPerHost);
+        LOG.info("Running as a worker of {}: mode: {}, max threads: {}, min threads: {}, max per host: {}",
+                coordinator, mode, maxThreads, minThreads > 0 ? minThreads : "fixed", maxPerHost);
+        Stopwatch stopwatch = new Stopwatch();
+        stopwatch.start();
+        SearchMetrics metrics = SearchMetrics.reset();
+        UrlReader.setKeepAliveConnectionsPerHost(maxPerHost);
+        UrlReader.enableCookies();
+        UrlSearchService service = minThreads > 0
+                ? UrlSearchServiceFactory.getAdaptiveInstance(mode, minThreads, maxThreads, maxPerHost)
+                : UrlSearchServiceFactory.getInstance(mode, maxThreads, maxPerHost);
+        Worker worker = new Worker(coordinator.substring(0, colon), port, service, maxThreads);
+        try {
+            worker.run();
+        } catch (IOException e) {
+            LOG.error("Error working for the coordinator at " + coordinator, e);
+            System.out.println("Error working for the coordinator at " + coordinator + ": " + e);
+            return;
+        }
+        stopwatch.stop();
+        System.out.println(String.format("Worker done: searched %s urls (%s skipped, %s given back) time %s",
+                worker.getSearched(), worker.getSkipped(), worker.getRevoked(),
+                Stopwatch.toHuman(stopwatch.getElapsedTime())));
+        String report = metrics.report();
+        LOG.info("Timings:\n{}", report);
+        System.out.print("Timings:\n" + report);
+    }
+
+    /**
+     * Serve search jobs over HTTP (see {@link SearchDaemon}) until the process is stopped. Returns once the daemon is
+     * listening; its threads keep the JVM running.
+     *
+     * @param port
+     * @param maxJobs max number of jobs run at once
+     * @param maxPerHost idle keep-alive connections kept per host
+     * @param allowLocalFiles whether jobs may read their list of URLs from a local file
+     */
+    private static void runDaemon(int port, int maxJobs, int maxPerHost, boolean allowLocalFiles) {
+        UrlReader.setKeepAliveConnectionsPerHost(maxPerHost);
+        UrlReader.enableCookies();
+        SearchDaemon daemon;
+        try {
+            daemon = new SearchDaemon(port, maxJobs, allowLocalFiles);
+        } catch (IOException e) {
+            LOG.error("Can't listen on port " + port, e);
+            System.out.println("Can't listen on port " + port + ": " + e);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            daemon.close();
+            saveRedirectMap();
+            closePageIndex();
+        }, "daemon_shutdown"));
+        daemon.start();
+        System.out.println("Search daemon listening on http://localhost:" + daemon.getPort() + "/jobs, max jobs at " +
+                "once: " + maxJobs);
     }
 
     /**
@@ -80,37 +664,331 @@ public class WebsiteSearcher {
 
 
     public WebsiteSearcher(String urlsLocation, int maxThreads, int maxUrls, String searchTerm) {
+        this(urlsLocation, Mode.THREADS, maxThreads, maxUrls, searchTerm);
+    }
+
+    public WebsiteSearcher(String urlsLocation, Mode mode, int maxThreads, int maxUrls, String searchTerm) {
+        this(urlsLocation, mode, maxThreads, UrlSearchServiceFactory.DEFAULT_MAX_PER_HOST, maxUrls, searchTerm);
+    }
+
+    public WebsiteSearcher(String urlsLocation, Mode mode, int maxThreads, int maxPerHost, int maxUrls,
+                           String searchTerm) {
+        this(urlsLocation, mode, maxThreads, maxPerHost, maxUrls, searchTerm, Format.TEXT);
+    }
+
+    public WebsiteSearcher(String urlsLocation, Mode mode, int maxThreads, int maxPerHost, int maxUrls,
+                           String searchTerm, Format format) {
+        this(urlsLocation, mode, maxThreads, maxPerHost, maxUrls, searchTerm, null, format);
+    }
+
+    /**
+     * Search for several named terms at once, fetching each URL only once. In the text format the URLs matching each
+     * term are written to <code>results-&lt;name&gt;.txt</code>.
+     */
+    public WebsiteSearcher(String urlsLocation, Mode mode, int maxThreads, int maxPerHost, int maxUrls,
+                           Map<String, String> namedTerms, Format format) {
+        this(urlsLocation, mode, maxThreads, maxPerHost, maxUrls, null, new LinkedHashMap<>(namedTerms), format);
+    }
+
+    private WebsiteSearcher(String urlsLocation, Mode mode, int maxThreads, int maxPerHost, int maxUrls,
+                            String searchTerm, Map<String, String> namedTerms, Format format) {
         this.urlsLocation = urlsLocation;
+        this.mode = mode;
         this.maxThreads = maxThreads;
+        this.maxPerHost = maxPerHost;
         this.maxUrls = maxUrls;
         this.searchTerm = searchTerm;
+        this.namedTerms = namedTerms;
+        this.format = format;
         this.stopwatch = new Stopwatch();
     }
 
+    /**
+     * Adjust the number of threads (or requests in flight) while searching instead of always using
+     * <code>maxThreads</code>: start at <code>minThreads</code> and go up to <code>maxThreads</code> while that helps
+     * (see {@link UrlSearchServiceFactory#getAdaptiveInstance}).
+     *
+     * @param minThreads lowest number of threads (or requests in flight)
+     * @throws IllegalArgumentException if minThreads < 1 or minThreads > maxThreads
+     */
+    public void setAdaptiveConcurrency(int minThreads) {
+        if (minThreads < 1 || minThreads > maxThreads) {
+            throw new IllegalArgumentException("Min threads should be between 1-" + maxThreads +
+                    " (inclusive). Min threads arg: " + minThreads);
+        }
+        this.minThreads = minThreads;
+    }
+
+    /**
+     * Give the whole search a deadline, counted from the start of {@link #run()}: past it no URL is started, the
+     * requests in progress are cut and reported as incomplete, and the rest of the list isn't searched (see
+     * {@link FetchLimits#setJobDeadline(long)}).
+     *
+     * @param jobDeadlineSecs
+     * @throws IllegalArgumentException if jobDeadlineSecs < 1
+     */
+    public void setJobDeadline(int jobDeadlineSecs) {
+        if (jobDeadlineSecs < 1) {
+            throw new IllegalArgumentException("Job deadline must be positive. Job deadline arg: " + jobDeadlineSecs);
+        }
+        this.jobDeadlineSecs = jobDeadlineSecs;
+    }
+
+    /**
+     * Don't search the URLs in this process: lease them to the workers connecting on a port (see
+     * {@link Coordinator}), and write their results. The mode, threads and limits of the search are the workers'.
+     *
+     * @param port TCP port to listen on, or 0 for any free port
+     * @throws IllegalArgumentException if the port is out of range
+     */
+    public void setCoordinator(int port) {
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("Port must be between 0-65535 (inclusive). Port arg: " + port);
+        }
+        this.coordinatorPort = port;
+    }
+
+    /**
+     * Carry on from the progress journal of the same search if there is one: the results it has are written again
+     * and their URLs aren't searched again (see {@link ProgressJournal}). Otherwise the search starts over.
+     *
+     * @param resume
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
     private void run() {
+        File journalFile = new File(JOURNAL_FILE);
+        String job = "urls: " + urlsLocation + (namedTerms != null ? ", search terms: " + namedTerms
+                : ", search term: " + searchTerm);
+        boolean resuming = false;
+        if (resume && !journalFile.exists()) {
+            System.out.println("No progress journal to resume from, starting over");
+        }
+        else if (resume) {
+            String journalJob;
+            try {
+                journalJob = ProgressJournal.readJob(journalFile);
+            } catch (IOException e) {
+                System.out.println("Can't resume: " + e.getMessage());
+                return;
+            }
+            if (!journalJob.equals(job)) {
+                System.out.println("Can't resume: " + journalFile + " is of another search (" + journalJob + ")");
+                return;
+            }
+            resuming = true;
+        }
         stopwatch.start();
+        SearchMetrics metrics = SearchMetrics.reset();
+        if (jobDeadlineSecs > 0) {
+            UrlReader.getFetchLimits().setJobDeadline(System.nanoTime() + TimeUnit.SECONDS.toNanos(jobDeadlineSecs));
+        }
 
-        List<String> urls = UrlReader.getUrlsFromCsvUrl(urlsLocation, maxUrls);
+        // let the JDK keep as many idle connections per host as there can be parallel requests to it
+        UrlReader.setKeepAliveConnectionsPerHost(maxPerHost);
 
         // set cookie handler global property so that more URLs will return 200 responses.
         UrlReader.enableCookies();
 
-        LOG.info("Loaded list of URLs to search ({} urls)", urls.size());
-        List<String> results = UrlSearchServiceFactory.getInstance(maxThreads).searchUrlsForTerm(urls, searchTerm);
+        ContentMatcher matcher = namedTerms != null ? ContentMatcherFactory.getInstance(namedTerms)
+                : ContentMatcherFactory.getInstance(searchTerm);
+        // one text file per term for several terms
+        boolean perTerm = namedTerms != null && format == Format.TEXT;
+        File outputFile = new File(format == Format.JSON ? "results.jsonl" : "results.txt");
+        long matched;
+        int urlCount;
+        LongAdder matchedResults = new LongAdder();
+        // the URLs are searched while the rest of the list is still being read, and the results are written as they
+        // are found
+        try (CsvUrlSource urls = CsvUrlSource.open(urlsLocation, maxUrls)) {
+            if (!urls.hasNext()) {
+                System.out.println("Couldn't load the list of URLs or the list was empty.");
+                LOG.warn("Couldn't load the list of URLs or the list was empty.");
+                return;
+            }
+            LOG.info("Searching the list of URLs as it loads (max {} urls), writing results to {}", maxUrls,
+                    perTerm ? termOutputFile("<name>") : outputFile);
+            Map<String, ResultWriter> writers = new LinkedHashMap<>();
+            ProgressJournal journal = null;
+            try {
+                Consumer<SearchResult> results;
+                if (perTerm) {
+                    for (Map.Entry<String, String> term : namedTerms.entrySet()) {
+                        writers.put(term.getKey(), openResultWriter(termOutputFile(term.getKey()), term.getValue()));
+                    }
+                    results = result -> {
+                        if (result.getMatchedTerms() != null) {
+                            for (String name : result.getMatchedTerms()) {
+                                writers.get(name).accept(result);
+                            }
+                        }
+                    };
+                }
+                else {
+                    ResultWriter writer = openResultWriter(outputFile, searchTerm);
+                    writers.put(null, writer);
+                    results = writer;
+                }
+                // the matches are counted from the results: some come from the journal, and with a coordinator the
+                // matcher isn't used here
+                Consumer<SearchResult> output = results;
+                Consumer<SearchResult> counted = result -> {
+                    if (result.isMatched()) {
+                        matchedResults.increment();
+                    }
+                    output.accept(result);
+                };
+                Iterator<String> remaining = urls;
+                try {
+                    if (resuming) {
+                        ProgressJournal.Progress progress = ProgressJournal.replay(journalFile, job, counted);
+                        System.out.println(String.format("Resuming: %s URLs already done (%s results, %s skipped)",
+                                progress.getDone(), progress.getResults(), progress.getSkipped()));
+                        LOG.info("Resuming: {} URLs already done ({} results, {} skipped)", progress.getDone(),
+                                progress.getResults(), progress.getSkipped());
+                        journal = new ProgressJournal(journalFile, progress);
+                        remaining = progress.remaining(urls);
+                    }
+                    else {
+                        journal = new ProgressJournal(journalFile, job);
+                    }
+                } catch (IOException e) {
+                    LOG.error("Error with the progress journal " + journalFile);
+                    throw new RuntimeException("Error with the progress journal " + journalFile, e);
+                }
+                ProgressJournal journaled = journal;
+                Consumer<SearchResult> recorded = result -> {
+                    journaled.accept(result);
+                    counted.accept(result);
+                };
+                if (coordinatorPort >= 0) {
+                    coordinate(remaining, recorded);
+                }
+                else {
+                    UrlSearchService service = minThreads > 0
+                            ? UrlSearchServiceFactory.getAdaptiveInstance(mode, minThreads, maxThreads, maxPerHost)
+                            : UrlSearchServiceFactory.getInstance(mode, maxThreads, maxPerHost);
+                    service.searchUrls(remaining, matcher, recorded, journal::skipped);
+                }
+            } finally {
+                closeResultWriters(writers, outputFile);
+                closeJournal(journal, journalFile);
+            }
+            matched = matchedResults.sum();
+            urlCount = urls.getCount();
+        } catch (IOException | UncheckedIOException e) {
+            LOG.error("Error reading the list of URLs from " + urlsLocation);
+            throw new RuntimeException("Error reading the list of URLs from " + urlsLocation, e);
+        }
 
-        // now that we have the results, write hte output to file "results.txt"
-        String outputContents = "URLs containing the search term '" + searchTerm + "'\n" + StringUtils.join(results, "\n");
-        File outputFilename = new File("results.txt");
+        stopwatch.stop();
+        long elapsed = stopwatch.getElapsedTime();
+        LOG.info("Website Search is complete. Found {} results from {} urls in {}", matched, urlCount, Stopwatch.toHuman(elapsed));
+        System.out.println(String.format("Website Search is complete. Found %s results from %s urls time %s", matched, urlCount, Stopwatch.toHuman(elapsed)));
+        if (metrics.getUrlsExpired() > 0) {
+            LOG.info("{} URLs not searched before the job deadline", metrics.getUrlsExpired());
+            System.out.println(metrics.getUrlsExpired() + " URLs not searched before the job deadline");
+        }
+        if (coordinatorPort >= 0) {
+            // the matching was done by the workers
+            printTimings(metrics);
+            return;
+        }
+        LOG.info("Matcher: {}, stats: {}", matcher, matcher.getStats());
+        System.out.println("Match stats: " + matcher.getStats());
+        if (matcher instanceof MultiTermMatcher) {
+            LOG.info("Matches by term: {}", ((MultiTermMatcher) matcher).getMatchCounts());
+            System.out.println("Matches by term: " + ((MultiTermMatcher) matcher).getMatchCounts());
+        }
+        if (UrlReader.getPageCache() != null) {
+            LOG.info("{}", UrlReader.getPageCache());
+            System.out.println("Page cache: " + UrlReader.getPageCache());
+        }
+        if (UrlReader.getRedirectMap() != null) {
+            LOG.info("{}", UrlReader.getRedirectMap());
+            System.out.println("Redirects: " + UrlReader.getRedirectMap());
+        }
+        if (UrlReader.getPageIndex() != null) {
+            LOG.info("{}", UrlReader.getPageIndex());
+            System.out.println("Page index: " + UrlReader.getPageIndex());
+        }
+        printTimings(metrics);
+    }
+
+    /**
+     * Lease the URLs to the workers, and hand their results to the consumer.
+     *
+     * @param urls
+     * @param results
+     */
+    private void coordinate(Iterator<String> urls, Consumer<SearchResult> results) {
+        try (Coordinator coordinator = namedTerms != null ? new Coordinator(coordinatorPort, namedTerms)
+                : new Coordinator(coordinatorPort, searchTerm)) {
+            System.out.println("Waiting for workers on port " + coordinator.getPort());
+            LOG.info("Waiting for workers on port {}", coordinator.getPort());
+            coordinator.run(urls, results);
+            System.out.println(String.format("Workers done: %s URLs skipped, %s leased again after a worker was " +
+                    "lost, %s stolen", coordinator.getSkipped(), coordinator.getReassigned(), coordinator.getStolen()));
+        } catch (IOException e) {
+            LOG.error("Can't listen for workers on port " + coordinatorPort);
+            throw new RuntimeException("Can't listen for workers on port " + coordinatorPort, e);
+        }
+    }
+
+    private static void printTimings(SearchMetrics metrics) {
+        String report = metrics.report();
+        LOG.info("Timings:\n{}", report);
+        System.out.print("Timings:\n" + report);
+    }
+
+    private ResultWriter openResultWriter(File outputFile, String searchTerm) {
         try {
-            FileUtils.writeStringToFile(outputFilename, outputContents, "UTF-8");
+            return new ResultWriter(outputFile, format, searchTerm);
         } catch (IOException e) {
-            LOG.error("Error writing output to file " + outputFilename);
-            throw new RuntimeException("Error writing output to file " + outputFilename, e);
+            LOG.error("Error writing output to file " + outputFile);
+            throw new RuntimeException("Error writing output to file " + outputFile, e);
         }
+    }
 
-        stopwatch.stop();
-        long elapsed = stopwatch.getElapsedTime();
-        LOG.info("Website Search is complete. Found {} results from {} urls in {}", results.size(), urls.size(), Stopwatch.toHuman(elapsed));
-        System.out.println(String.format("Website Search is complete. Found %s results from %s urls time %s", results.size(), urls.size(), Stopwatch.toHuman(elapsed)));
+    private static void closeJournal(ProgressJournal journal, File journalFile) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            // the results are written, only resuming is affected
+            LOG.error("Error writing the progress journal " + journalFile + ": " + e);
+        }
+    }
+
+    private static File termOutputFile(String name) {
+        return new File("results-" + name + ".txt");
+    }
+
+    /**
+     * Close all the writers, even if one of them fails.
+     *
+     * @param writers by term name (null for a single file)
+     * @param outputFile where the results go, for the error message
+     */
+    private static void closeResultWriters(Map<String, ResultWriter> writers, File outputFile) {
+        RuntimeException error = null;
+        for (Map.Entry<String, ResultWriter> writer : writers.entrySet()) {
+            File file = writer.getKey() != null ? termOutputFile(writer.getKey()) : outputFile;
+            try {
+                writer.getValue().close();
+            } catch (IOException e) {
+                LOG.error("Error writing output to file " + file);
+                if (error == null) {
+                    error = new RuntimeException("Error writing output to file " + file, e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
     }
 }
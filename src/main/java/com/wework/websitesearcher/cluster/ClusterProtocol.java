@@ -0,0 +1,102 @@
+package com.wework.websitesearcher.cluster;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Line protocol between a {@link Coordinator} and its {@link Worker}s: one message per line, a verb and then (for most
+ * verbs) a JSON argument, over a plain TCP connection in UTF-8.
+ *
+ * Worker to coordinator:
+ * <ul>
+ *     <li><code>HELLO {"name": ..., "concurrency": n}</code>: first line</li>
+ *     <li><code>MORE n</code>: send up to n more URLs</li>
+ *     <li><code>RESULT {...}</code>: a URL has been searched, in the JSON format of
+ *     {@link com.wework.websitesearcher.io.ResultWriter#toJson}</li>
+ *     <li><code>SKIPPED [urls]</code>: URLs dropped without a result, as their host didn't resolve or the job
+ *     deadline passed</li>
+ *     <li><code>REVOKED [urls]</code>: answer to a <code>REVOKE</code>, the URLs given back (maybe none)</li>
+ *     <li><code>PING</code>: every {@link #PING_MILLIS}, so that a silent worker can be told from a dead one</li>
+ * </ul>
+ * Coordinator to worker:
+ * <ul>
+ *     <li><code>JOB {"term": regex}</code> or <code>JOB {"terms": {name: regex, ...}}</code>: answer to HELLO</li>
+ *     <li><code>LEASE [urls]</code>: URLs to search</li>
+ *     <li><code>REVOKE n</code>: give back up to n of the URLs leased that haven't been started, for another
+ *     worker</li>
+ *     <li><code>END</code>: all the URLs have been searched, disconnect</li>
+ * </ul>
+ */
+final class ClusterProtocol {
+    static final String HELLO = "HELLO";
+    static final String MORE = "MORE";
+    static final String RESULT = "RESULT";
+    static final String SKIPPED = "SKIPPED";
+    static final String REVOKED = "REVOKED";
+    static final String PING = "PING";
+    static final String JOB = "JOB";
+    static final String LEASE = "LEASE";
+    static final String REVOKE = "REVOKE";
+    static final String END = "END";
+
+    static final long PING_MILLIS = 5000;
+    /** A worker that sent nothing for this long (a few pings) is taken for dead and its URLs are leased again */
+    static final int DEAD_MILLIS = 15000;
+    /** Max number of URLs per LEASE line */
+    static final int MAX_LEASE = 500;
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private ClusterProtocol() {
+    }
+
+    /**
+     * Write a message and flush it. Several threads can send on the same connection: they synchronize on the writer.
+     *
+     * @param writer
+     * @param verb
+     * @param argument written as JSON (a String is written as it is), or null for none
+     * @throws IOException
+     */
+    static void send(Writer writer, String verb, Object argument) throws IOException {
+        String line = argument == null ? verb
+                : verb + ' ' + (argument instanceof String ? (String) argument : MAPPER.writeValueAsString(argument));
+        synchronized (writer) {
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+
+    /**
+     * @param line
+     * @return the verb of a message
+     */
+    static String verb(String line) {
+        int space = line.indexOf(' ');
+        return space < 0 ? line : line.substring(0, space);
+    }
+
+    /**
+     * @param line
+     * @return the argument of a message, unparsed, or an empty string if there's none
+     */
+    static String argument(String line) {
+        int space = line.indexOf(' ');
+        return space < 0 ? "" : line.substring(space + 1);
+    }
+
+    /**
+     * @param line
+     * @return the argument of a message parsed as JSON, or a null node if there's none
+     * @throws IOException if it isn't JSON
+     */
+    static JsonNode jsonArgument(String line) throws IOException {
+        String argument = argument(line);
+        return argument.isEmpty() ? NullNode.getInstance() : MAPPER.readTree(argument);
+    }
+}
@@ -0,0 +1,551 @@
+package com.wework.websitesearcher.cluster;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.wework.websitesearcher.io.ResultWriter;
+import com.wework.websitesearcher.io.SearchResult;
+import com.wework.websitesearcher.util.SearchMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.wework.websitesearcher.cluster.ClusterProtocol.DEAD_MILLIS;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.END;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.HELLO;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.JOB;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.LEASE;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.MAX_LEASE;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.MORE;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.PING;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.RESULT;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.REVOKE;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.REVOKED;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.SKIPPED;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.argument;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.jsonArgument;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.verb;
+
+/**
+ * Shares a list of URLs between {@link Worker}s running in other JVMs (on this host or others), and merges their
+ * results, so that one list can be searched by several processes. Workers connect whenever they start, even halfway
+ * through the list, and get the search term(s) from the coordinator. See {@link ClusterProtocol} for the messages.
+ * <ul>
+ *     <li>The URLs are leased in batches, as many as each worker asks for. A worker asks for more as it gets through
+ *     its URLs, so the faster workers get more of the list.</li>
+ *     <li>Once the whole list has been leased, a worker that has nothing left steals half of the URLs another worker
+ *     has leased but not started yet.</li>
+ *     <li>A worker that disconnects, or sends nothing for {@link ClusterProtocol#DEAD_MILLIS}, is taken for dead:
+ *     the URLs leased to it go back to the front of the list for the other workers.</li>
+ * </ul>
+ * A result is only taken from the worker the URL is leased to, so each URL of the list is reported once however many
+ * times it's leased. The URLs a worker skipped (see {@link ClusterProtocol#SKIPPED}) aren't reported, as in a search
+ * in one process.
+ */
+public class Coordinator implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(Coordinator.class);
+
+    /** Max number of URLs read from the list and not leased yet */
+    static final int MAX_PENDING = 10_000;
+    /** How long {@link #run} waits for the workers to disconnect once they have all been told to */
+    private static final long DISCONNECT_MILLIS = 5000;
+
+    private final ServerSocket serverSocket;
+    /** Argument of the JOB message */
+    private final Map<String, Object> job;
+    /** URLs read from the list (or taken back from dead workers) that aren't leased, in the order to lease them */
+    private final Deque<String> pending = new ArrayDeque<>();
+    private final List<Connection> workers = new ArrayList<>();
+    private Consumer<SearchResult> results;
+    private boolean listRead;
+    private boolean finished;
+    /** Results being handed to the consumer */
+    private int reporting;
+    private int reported;
+    private int skipped;
+    private int reassigned;
+    private int stolen;
+
+    /**
+     * Listen for workers.
+     *
+     * @param port TCP port to listen on, or 0 for any free port (see {@link #getPort()})
+     * @param searchTerm regex to search for
+     * @throws IOException if the port can't be listened on
+     * @throws IllegalArgumentException if the search term is null or empty
+     */
+    public Coordinator(int port, String searchTerm) throws IOException {
+        this(port, "term", requireTerm(searchTerm));
+    }
+
+    /**
+     * Listen for workers, to search for several named terms at once.
+     *
+     * @param port TCP port to listen on, or 0 for any free port (see {@link #getPort()})
+     * @param namedTerms regexes to search for, by name
+     * @throws IOException if the port can't be listened on
+     * @throws IllegalArgumentException if there are no terms
+     */
+    public Coordinator(int port, Map<String, String> namedTerms) throws IOException {
+        this(port, "terms", requireTerms(namedTerms));
+    }
+
+    private Coordinator(int port, String jobKey, Object terms) throws IOException {
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("Port must be between 0-65535 (inclusive). Port arg: " + port);
+        }
+        this.job = Collections.singletonMap(jobKey, terms);
+        this.serverSocket = new ServerSocket(port);
+    }
+
+    private static String requireTerm(String searchTerm) {
+        if (searchTerm == null || searchTerm.isEmpty()) {
+            throw new IllegalArgumentException("Search term can not be null or empty.");
+        }
+        return searchTerm;
+    }
+
+    private static Map<String, String> requireTerms(Map<String, String> namedTerms) {
+        if (namedTerms == null || namedTerms.isEmpty()) {
+            throw new IllegalArgumentException("Search terms can not be null or empty.");
+        }
+        return new LinkedHashMap<>(namedTerms);
+    }
+
+    /**
+     * @return TCP port the workers connect to
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Lease the URLs to the workers that connect, and hand their results to a consumer. Returns once every URL of the
+     * list has been reported or skipped and the workers have been told to disconnect. Waits for workers for as long as
+     * it takes.
+     *
+     * If reading the list fails the error is logged, and the URLs read so far are still searched.
+     *
+     * @param urls URLs to search, read as they are leased
+     * @param results gets the result of every URL searched, matched or not. Called from one thread per worker, so it
+     *                must be thread-safe (see {@link ResultWriter}).
+     */
+    public void run(Iterator<String> urls, Consumer<SearchResult> results) {
+        this.results = results;
+        daemon(this::acceptWorkers, "coordinator_accept").start();
+        daemon(() -> feed(urls), "coordinator_feed").start();
+        try {
+            synchronized (this) {
+                while (!finished) {
+                    wait();
+                }
+                // let the workers read their END before this process goes away
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DISCONNECT_MILLIS);
+                while (!workers.isEmpty() && deadline - System.nanoTime() > 0) {
+                    wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeQuietly(serverSocket);
+        }
+        LOG.info("Coordinator done: {} results, {} URLs skipped, {} leased again after a worker was lost, {} stolen",
+                getReported(), getSkipped(), getReassigned(), getStolen());
+    }
+
+    /**
+     * Stop listening, and disconnect the workers still connected.
+     */
+    @Override
+    public void close() {
+        closeQuietly(serverSocket);
+        List<Connection> connected;
+        synchronized (this) {
+            connected = new ArrayList<>(workers);
+        }
+        for (Connection worker : connected) {
+            closeQuietly(worker.socket);
+        }
+    }
+
+    /**
+     * @return number of results handed to the consumer
+     */
+    public synchronized int getReported() {
+        return reported;
+    }
+
+    /**
+     * @return number of URLs the workers skipped without a result
+     */
+    public synchronized int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return number of URLs leased again because the worker they were leased to was lost
+     */
+    public synchronized int getReassigned() {
+        return reassigned;
+    }
+
+    /**
+     * @return number of URLs taken back from a worker for another one that had nothing left
+     */
+    public synchronized int getStolen() {
+        return stolen;
+    }
+
+    private void acceptWorkers() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                daemon(() -> serve(socket), "coordinator_worker").start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOG.warn("Error accepting a worker: {}", e.toString());
+                }
+            }
+        }
+    }
+
+    private void feed(Iterator<String> urls) {
+        List<String> batch = new ArrayList<>();
+        try {
+            while (urls.hasNext()) {
+                // a batch at a time, so that the workers waiting get full leases
+                batch.clear();
+                while (batch.size() < MAX_LEASE && urls.hasNext()) {
+                    batch.add(urls.next());
+                }
+                synchronized (this) {
+                    while (pending.size() >= MAX_PENDING && !finished) {
+                        wait();
+                    }
+                    if (finished) {
+                        return;
+                    }
+                    pending.addAll(batch);
+                    dispatch();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.error("Error reading the URLs, searching the ones read so far: {}", e.toString());
+        } finally {
+            synchronized (this) {
+                listRead = true;
+                dispatch();
+            }
+        }
+    }
+
+    /**
+     * Talk to one worker until it disconnects or is taken for dead.
+     *
+     * @param socket
+     */
+    private void serve(Socket socket) {
+        Connection worker = null;
+        try {
+            socket.setSoTimeout(DEAD_MILLIS);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                    StandardCharsets.UTF_8));
+            String line = reader.readLine();
+            if (line == null || !HELLO.equals(verb(line))) {
+                LOG.warn("Not a worker: {}", socket.getRemoteSocketAddress());
+                return;
+            }
+            worker = new Connection(jsonArgument(line).path("name").asText(socket.getRemoteSocketAddress().toString()),
+                    socket, writer);
+            ClusterProtocol.send(writer, JOB, job);
+            synchronized (this) {
+                workers.add(worker);
+                LOG.info("Worker {} joined, {} workers", worker.name, workers.size());
+                if (finished) {
+                    send(worker, END, null);
+                }
+            }
+            while ((line = reader.readLine()) != null) {
+                switch (verb(line)) {
+                    case MORE:
+                        more(worker, Integer.parseInt(argument(line)));
+                        break;
+                    case RESULT:
+                        result(worker, ResultWriter.fromJson(argument(line)));
+                        break;
+                    case SKIPPED:
+                        skipped(worker, jsonArgument(line));
+                        break;
+                    case REVOKED:
+                        revoked(worker, jsonArgument(line));
+                        break;
+                    case PING:
+                        break;
+                    default:
+                        LOG.warn("Unknown message from worker {}: {}", worker.name, line);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Lost worker {}: {}", worker != null ? worker.name : socket.getRemoteSocketAddress(),
+                    e.toString());
+        } finally {
+            if (worker != null) {
+                lost(worker);
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    private synchronized void more(Connection worker, int count) {
+        worker.wanted += count;
+        dispatch();
+    }
+
+    private void result(Connection worker, SearchResult result) {
+        synchronized (this) {
+            if (!worker.release(result.getUrl())) {
+                LOG.debug("Dropping the result of a URL not leased to worker {}: {}", worker.name, result.getUrl());
+                return;
+            }
+            reporting++;
+        }
+        try {
+            SearchMetrics.getInstance().urlDone(result);
+            results.accept(result);
+        } finally {
+            synchronized (this) {
+                reporting--;
+                reported++;
+                dispatch();
+            }
+        }
+    }
+
+    private synchronized void skipped(Connection worker, JsonNode urls) {
+        for (JsonNode url : urls) {
+            if (worker.release(url.asText())) {
+                skipped++;
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * A worker gave back URLs it hadn't started: lease them to the worker they were taken back for.
+     */
+    private synchronized void revoked(Connection victim, JsonNode urls) {
+        Connection thief = victim.revokingFor;
+        victim.revokingFor = null;
+        List<String> taken = new ArrayList<>();
+        for (JsonNode url : urls) {
+            if (victim.release(url.asText())) {
+                taken.add(url.asText());
+            }
+        }
+        if (taken.isEmpty()) {
+            // whatever it has left is in progress
+            victim.drained = true;
+        }
+        else {
+            stolen += taken.size();
+            if (workers.contains(thief)) {
+                LOG.info("{} URLs of worker {} stolen for worker {}", taken.size(), victim.name, thief.name);
+                lease(thief, taken);
+            }
+            else {
+                addFirst(taken);
+            }
+        }
+        if (thief != null) {
+            thief.stealing = false;
+        }
+        dispatch();
+    }
+
+    private synchronized void lost(Connection worker) {
+        workers.remove(worker);
+        if (worker.revokingFor != null) {
+            worker.revokingFor.stealing = false;
+        }
+        List<String> urls = worker.getLeased();
+        if (!urls.isEmpty() && !finished) {
+            LOG.warn("Worker {} lost, leasing its {} URLs again", worker.name, urls.size());
+            reassigned += urls.size();
+            addFirst(urls);
+        }
+        else {
+            LOG.info("Worker {} left, {} workers", worker.name, workers.size());
+        }
+        dispatch();
+        notifyAll();
+    }
+
+    /**
+     * Lease the URLs waiting to the workers that want more, steal URLs for the workers that have nothing left once the
+     * whole list has been leased, and finish once every URL has been reported or skipped.
+     */
+    private void dispatch() {
+        if (finished) {
+            return;
+        }
+        for (Connection worker : workers) {
+            while (worker.wanted > 0 && !pending.isEmpty()) {
+                List<String> urls = new ArrayList<>();
+                while (urls.size() < Math.min(worker.wanted, MAX_LEASE) && !pending.isEmpty()) {
+                    urls.add(pending.poll());
+                }
+                lease(worker, urls);
+            }
+        }
+        if (pending.size() < MAX_PENDING) {
+            // the feeder may be waiting
+            notifyAll();
+        }
+        if (!listRead || !pending.isEmpty()) {
+            return;
+        }
+        if (reporting == 0 && workers.stream().allMatch(worker -> worker.leasedCount == 0
+                && worker.revokingFor == null)) {
+            finished = true;
+            for (Connection worker : workers) {
+                send(worker, END, null);
+            }
+            notifyAll();
+            return;
+        }
+        for (Connection thief : workers) {
+            if (thief.wanted == 0 || thief.leasedCount > 0 || thief.stealing) {
+                continue;
+            }
+            Connection victim = null;
+            for (Connection worker : workers) {
+                if (worker != thief && worker.revokingFor == null && !worker.drained && worker.leasedCount >= 2
+                        && (victim == null || worker.leasedCount > victim.leasedCount)) {
+                    victim = worker;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            victim.revokingFor = thief;
+            thief.stealing = true;
+            send(victim, REVOKE, String.valueOf(victim.leasedCount / 2));
+        }
+    }
+
+    private void lease(Connection worker, List<String> urls) {
+        for (String url : urls) {
+            worker.leased.merge(url, 1, Integer::sum);
+        }
+        worker.leasedCount += urls.size();
+        worker.wanted = Math.max(0, worker.wanted - urls.size());
+        worker.drained = false;
+        send(worker, LEASE, urls);
+    }
+
+    private void addFirst(List<String> urls) {
+        for (int i = urls.size() - 1; i >= 0; i--) {
+            pending.addFirst(urls.get(i));
+        }
+    }
+
+    /**
+     * Send a message, disconnecting the worker if that fails: its URLs are then leased again.
+     */
+    private void send(Connection worker, String verb, Object argument) {
+        try {
+            ClusterProtocol.send(worker.writer, verb, argument);
+        } catch (IOException e) {
+            LOG.warn("Error sending to worker {}: {}", worker.name, e.toString());
+            closeQuietly(worker.socket);
+        }
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOG.debug("Error closing: {}", e.toString());
+        }
+    }
+
+    /**
+     * A connected worker and the URLs leased to it. Guarded by the coordinator.
+     */
+    private static class Connection {
+        final String name;
+        final Socket socket;
+        final Writer writer;
+        /** URLs leased and not reported or skipped yet, with how many times (a list can have the same URL twice) */
+        final Map<String, Integer> leased = new LinkedHashMap<>();
+        int leasedCount;
+        /** Number of URLs asked for and not leased yet */
+        int wanted;
+        /** Worker a REVOKE sent to this one is for, or null if there's none in flight */
+        Connection revokingFor;
+        /** A REVOKE is in flight for this worker */
+        boolean stealing;
+        /** Gave nothing back to the last REVOKE, and got no URLs since */
+        boolean drained;
+
+        Connection(String name, Socket socket, Writer writer) {
+            this.name = name;
+            this.socket = socket;
+            this.writer = writer;
+        }
+
+        /**
+         * @param url
+         * @return true if the URL was leased to this worker, and no longer is
+         */
+        boolean release(String url) {
+            Integer count = leased.get(url);
+            if (count == null) {
+                return false;
+            }
+            if (count == 1) {
+                leased.remove(url);
+            }
+            else {
+                leased.put(url, count - 1);
+            }
+            leasedCount--;
+            return true;
+        }
+
+        List<String> getLeased() {
+            List<String> urls = new ArrayList<>();
+            leased.forEach((url, count) -> urls.addAll(Collections.nCopies(count, url)));
+            return urls;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.wework.websitesearcher.cluster;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.wework.websitesearcher.io.ResultWriter;
+import com.wework.websitesearcher.io.SearchResult;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.matcher.ContentMatcherFactory;
+import com.wework.websitesearcher.services.UrlSearchService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.wework.websitesearcher.cluster.ClusterProtocol.END;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.HELLO;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.JOB;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.LEASE;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.MORE;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.PING;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.PING_MILLIS;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.RESULT;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.REVOKE;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.REVOKED;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.SKIPPED;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.argument;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.jsonArgument;
+import static com.wework.websitesearcher.cluster.ClusterProtocol.verb;
+
+/**
+ * Searches URLs leased by a {@link Coordinator} with a {@link UrlSearchService} of this JVM, sending back each result
+ * as soon as it's found.
+ *
+ * The URLs leased wait in a buffer, and are handed to the service as it gets through them: at most
+ * {@link #IN_SERVICE_FACTOR} times the concurrency at once, so that the rest can still be given back to the
+ * coordinator for another worker. More URLs are asked for whenever fewer than {@link #CREDIT_FACTOR} times the
+ * concurrency are leased (by half the concurrency at least, to keep the messages few).
+ *
+ * Every option of the search but the terms (mode, threads, limits, retries...) is this JVM's.
+ */
+public class Worker {
+    private static final Logger LOG = LoggerFactory.getLogger(Worker.class);
+
+    /** How long to keep trying to connect to a coordinator that isn't listening yet */
+    static final long CONNECT_MILLIS = 30_000;
+    private static final long CONNECT_RETRY_MILLIS = 200;
+    /** How often the URLs skipped are sent to the coordinator */
+    private static final long SKIPPED_MILLIS = 100;
+    static final int IN_SERVICE_FACTOR = 2;
+    static final int CREDIT_FACTOR = 3;
+
+    private final String host;
+    private final int port;
+    private final UrlSearchService service;
+    private final int concurrency;
+    /** URLs leased and not handed to the service yet */
+    private final Deque<String> buffer = new ArrayDeque<>();
+    /** URLs skipped by the service and not sent to the coordinator yet */
+    private final List<String> skippedUrls = new ArrayList<>();
+    private Writer writer;
+    /** URLs handed to the service and not reported or skipped yet */
+    private int inService;
+    /** URLs asked for and not leased yet */
+    private int requested;
+    /** Got the END, or lost the coordinator: no more URLs will come */
+    private boolean ended;
+    private int leased;
+    private int searched;
+    private int skipped;
+    private int revoked;
+
+    /**
+     * @param host host name of the coordinator
+     * @param port TCP port of the coordinator
+     * @param service searches the URLs
+     * @param concurrency max number of URLs the service searches at once (max threads or requests in flight)
+     * @throws IllegalArgumentException if host or service is null, or port or concurrency is out of range
+     */
+    public Worker(String host, int port, UrlSearchService service, int concurrency) {
+        if (host == null || service == null) {
+            throw new IllegalArgumentException("Host and service can not be null.");
+        }
+        if (port < 1 || port > 0xFFFF) {
+            throw new IllegalArgumentException("Port must be between 1-65535 (inclusive). Port arg: " + port);
+        }
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be positive. Concurrency arg: " + concurrency);
+        }
+        this.host = host;
+        this.port = port;
+        this.service = service;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Connect to the coordinator (waiting up to {@link #CONNECT_MILLIS} for it to listen), and search the URLs it
+     * leases until it says they are all done or goes away.
+     *
+     * @throws IOException if the coordinator can't be reached or isn't one
+     */
+    public void run() throws IOException {
+        try (Socket socket = connect()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            Map<String, Object> hello = new LinkedHashMap<>();
+            hello.put("name", ManagementFactory.getRuntimeMXBean().getName());
+            hello.put("concurrency", concurrency);
+            ClusterProtocol.send(writer, HELLO, hello);
+            String line = reader.readLine();
+            if (line == null || !JOB.equals(verb(line))) {
+                throw new IOException("Not a coordinator: " + host + ":" + port);
+            }
+            ContentMatcher matcher = getMatcher(jsonArgument(line));
+            LOG.info("Connected to coordinator {}:{}, matcher: {}", host, port, matcher);
+
+            Thread leases = new Thread(() -> readLeases(reader), "worker_leases");
+            leases.setDaemon(true);
+            leases.start();
+            ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "worker_send");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sender.scheduleWithFixedDelay(this::sendSkipped, SKIPPED_MILLIS, SKIPPED_MILLIS, TimeUnit.MILLISECONDS);
+            sender.scheduleWithFixedDelay(() -> send(PING, null), PING_MILLIS, PING_MILLIS, TimeUnit.MILLISECONDS);
+            try {
+                askForMore();
+                service.searchUrls(new LeasedUrls(), matcher, this::report, this::skip);
+                sendSkipped();
+            } finally {
+                sender.shutdownNow();
+            }
+        }
+        LOG.info("Worker done: {} URLs leased, {} searched, {} skipped, {} given back", getLeased(), getSearched(),
+                getSkipped(), getRevoked());
+    }
+
+    /**
+     * @return number of URLs leased by the coordinator
+     */
+    public synchronized int getLeased() {
+        return leased;
+    }
+
+    /**
+     * @return number of URLs searched and reported to the coordinator
+     */
+    public synchronized int getSearched() {
+        return searched;
+    }
+
+    /**
+     * @return number of URLs skipped without a result (host not resolved, job deadline passed)
+     */
+    public synchronized int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return number of URLs given back to the coordinator for other workers
+     */
+    public synchronized int getRevoked() {
+        return revoked;
+    }
+
+    private Socket connect() throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_MILLIS);
+        while (true) {
+            try {
+                return new Socket(host, port);
+            } catch (ConnectException e) {
+                if (deadline - System.nanoTime() <= 0) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(CONNECT_RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while connecting to " + host + ":" + port);
+                }
+            }
+        }
+    }
+
+    private static ContentMatcher getMatcher(JsonNode job) {
+        if (job.has("terms")) {
+            Map<String, String> namedTerms = new LinkedHashMap<>();
+            job.get("terms").fields().forEachRemaining(term -> namedTerms.put(term.getKey(), term.getValue().asText()));
+            return ContentMatcherFactory.getInstance(namedTerms);
+        }
+        return ContentMatcherFactory.getInstance(job.path("term").asText());
+    }
+
+    /**
+     * Read the messages of the coordinator until END, or until it goes away.
+     */
+    private void readLeases(BufferedReader reader) {
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                switch (verb(line)) {
+                    case LEASE:
+                        lease(jsonArgument(line));
+                        break;
+                    case REVOKE:
+                        send(REVOKED, revoke(Integer.parseInt(argument(line))));
+                        break;
+                    case END:
+                        LOG.info("All the URLs have been searched");
+                        return;
+                    default:
+                        LOG.warn("Unknown message from the coordinator: {}", line);
+                }
+            }
+            LOG.warn("Lost the coordinator");
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Lost the coordinator: {}", e.toString());
+        } finally {
+            synchronized (this) {
+                ended = true;
+                if (!buffer.isEmpty()) {
+                    LOG.warn("Dropping the {} URLs leased and not started", buffer.size());
+                    buffer.clear();
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void lease(JsonNode urls) {
+        for (JsonNode url : urls) {
+            buffer.add(url.asText());
+        }
+        leased += urls.size();
+        requested = Math.max(0, requested - urls.size());
+        notifyAll();
+    }
+
+    /**
+     * @param count
+     * @return up to count URLs not started, taken from the end of the buffer
+     */
+    private synchronized List<String> revoke(int count) {
+        List<String> urls = new ArrayList<>();
+        while (urls.size() < count && !buffer.isEmpty()) {
+            urls.add(buffer.pollLast());
+        }
+        revoked += urls.size();
+        return urls;
+    }
+
+    private void report(SearchResult result) {
+        send(RESULT, ResultWriter.toJson(result));
+        synchronized (this) {
+            inService--;
+            searched++;
+            notifyAll();
+        }
+        askForMore();
+    }
+
+    /**
+     * Called by the service, maybe while it holds a lock: the URL is sent later.
+     */
+    private synchronized void skip(String url) {
+        skippedUrls.add(url);
+        inService--;
+        skipped++;
+        notifyAll();
+    }
+
+    private void sendSkipped() {
+        List<String> urls;
+        synchronized (this) {
+            if (skippedUrls.isEmpty()) {
+                return;
+            }
+            urls = new ArrayList<>(skippedUrls);
+            skippedUrls.clear();
+        }
+        send(SKIPPED, urls);
+        askForMore();
+    }
+
+    private void askForMore() {
+        int count;
+        synchronized (this) {
+            count = CREDIT_FACTOR * concurrency - buffer.size() - inService - requested;
+            if (ended || count < Math.max(1, concurrency / 2)) {
+                return;
+            }
+            requested += count;
+        }
+        send(MORE, String.valueOf(count));
+    }
+
+    /**
+     * Send a message, or only log it if the coordinator is gone: the reader then sees it too, and the search winds
+     * down.
+     */
+    private void send(String verb, Object argument) {
+        try {
+            ClusterProtocol.send(writer, verb, argument);
+        } catch (IOException e) {
+            LOG.debug("Error sending {} to the coordinator: {}", verb, e.toString());
+        }
+    }
+
+    /**
+     * The URLs leased, handed to the service as it has room for them. Blocks until a URL is leased, or the END.
+     */
+    private class LeasedUrls implements Iterator<String> {
+        @Override
+        public boolean hasNext() {
+            synchronized (Worker.this) {
+                try {
+                    while (!ended && (buffer.isEmpty() || inService >= IN_SERVICE_FACTOR * concurrency)) {
+                        Worker.this.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                return !buffer.isEmpty();
+            }
+        }
+
+        @Override
+        public String next() {
+            String url;
+            synchronized (Worker.this) {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                url = buffer.poll();
+                inService++;
+            }
+            askForMore();
+            return url;
+        }
+    }
+}
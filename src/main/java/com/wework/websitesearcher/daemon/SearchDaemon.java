@@ -0,0 +1,395 @@
+package com.wework.websitesearcher.daemon;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resident search server, so that many small searches don't each pay for starting a JVM, warming up the JIT and
+ * resolving the same hosts again. Jobs are submitted to a local HTTP/JSON API and run in this JVM, where they share
+ * the DNS cache ({@link com.wework.websitesearcher.io.DnsResolver}), the JDK keep-alive connections, the page cache
+ * and redirect map if there are ones (see {@link com.wework.websitesearcher.io.UrlReader}), and the compiled search
+ * terms of the last {@link #MAX_MATCHERS} jobs.
+ * <ul>
+ *     <li><code>POST /jobs</code> with a job (see {@link SearchJob#parse}) queues it and answers
+ *     <code>202</code> with its status, including its <code>id</code>.</li>
+ *     <li><code>GET /jobs</code> lists the status of the jobs, <code>GET /jobs/{id}</code> of one: its state
+ *     (queued, running, done, failed or cancelled) and the number of results, matches and skipped URLs so far.</li>
+ *     <li><code>GET /jobs/{id}/results</code> streams the results of a job as JSON lines (same format as
+ *     <code>results.jsonl</code>), as they come, until the job is finished. <code>?from=n</code> skips the first n,
+ *     to carry on after a disconnection.</li>
+ *     <li><code>DELETE /jobs/{id}</code> cancels a job: the URLs in progress are still reported.</li>
+ * </ul>
+ * At most <code>maxJobs</code> jobs run at once, the others wait in turn. The results of each job are spooled to a
+ * file in a temporary directory (see {@link SearchJob}), and streamed from it; the ones of the last
+ * {@link #MAX_FINISHED_JOBS} finished jobs are kept, the directory is deleted on {@link #close()}.
+ *
+ * The server only listens on the loopback address. Since a web page in a local browser can still send it requests,
+ * it only answers the ones whose <code>Host</code> is the loopback address (not a rebound DNS name), and only takes
+ * jobs posted as <code>application/json</code> (which a cross-site form can't send). A job reads its list of URLs
+ * from a local file only if the daemon allows it.
+ */
+public class SearchDaemon implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SearchDaemon.class);
+
+    public static final int DEFAULT_MAX_JOBS = 4;
+    static final int MAX_FINISHED_JOBS = 100;
+    static final int MAX_MATCHERS = 64;
+    private static final int MAX_REQUEST_BYTES = 16 * 1024 * 1024;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    /** Host header values (before the port) of the requests answered */
+    private static final String[] LOOPBACK_HOSTS = {"localhost", "127.0.0.1", "[::1]"};
+
+    private final HttpServer server;
+    private final ExecutorService jobRunner;
+    private final ExecutorService httpThreads;
+    /** By id, in the order they were submitted. Guarded by this. */
+    private final Map<String, SearchJob> jobs = new LinkedHashMap<>();
+    /** Compiled search terms by {@link SearchJob#getMatcherKey()}, least recently used first. Guarded by itself. */
+    private final Map<String, ContentMatcher> matchers = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicInteger lastId = new AtomicInteger();
+    private final boolean allowLocalFiles;
+    /** Where the results of the jobs are spooled */
+    private final File resultsDir;
+
+    /**
+     * Listen for jobs, reading their lists of URLs from URLs only. Call {@link #start()} to serve them.
+     *
+     * @param port TCP port to listen on (loopback only), or 0 for any free port (see {@link #getPort()})
+     * @param maxJobs max number of jobs run at once
+     * @throws IOException if the port can't be listened on, or the results directory created
+     */
+    public SearchDaemon(int port, int maxJobs) throws IOException {
+        this(port, maxJobs, false);
+    }
+
+    /**
+     * Listen for jobs. Call {@link #start()} to serve them.
+     *
+     * @param port TCP port to listen on (loopback only), or 0 for any free port (see {@link #getPort()})
+     * @param maxJobs max number of jobs run at once
+     * @param allowLocalFiles whether jobs may read their list of URLs from a local file (or a file: URL)
+     * @throws IOException if the port can't be listened on, or the results directory created
+     */
+    public SearchDaemon(int port, int maxJobs, boolean allowLocalFiles) throws IOException {
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("Port must be between 0-65535 (inclusive). Port arg: " + port);
+        }
+        if (maxJobs < 1) {
+            throw new IllegalArgumentException("Max jobs must be positive. Max jobs arg: " + maxJobs);
+        }
+        this.allowLocalFiles = allowLocalFiles;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 50);
+        AtomicInteger jobThreads = new AtomicInteger();
+        this.jobRunner = Executors.newFixedThreadPool(maxJobs, runnable ->
+                daemon(runnable, "daemon_job_" + jobThreads.incrementAndGet()));
+        // results streams hold on to their thread until the job is finished
+        AtomicInteger requestThreads = new AtomicInteger();
+        this.httpThreads = Executors.newCachedThreadPool(runnable ->
+                daemon(runnable, "daemon_http_" + requestThreads.incrementAndGet()));
+        server.setExecutor(httpThreads);
+        server.createContext("/jobs", this::handle);
+        this.resultsDir = Files.createTempDirectory("search-daemon-results").toFile();
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * @return TCP port the API is served on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Start serving the API, in the background. The server threads keep the JVM running until {@link #close()}.
+     */
+    public void start() {
+        server.start();
+        LOG.info("Search daemon listening on {}", server.getAddress());
+    }
+
+    /**
+     * Stop serving the API and cancel the jobs. Returns once the running jobs are done with the URLs in progress, and
+     * their results deleted.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        synchronized (this) {
+            jobs.values().forEach(SearchJob::cancel);
+        }
+        jobRunner.shutdown();
+        try {
+            jobRunner.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        httpThreads.shutdownNow();
+        FileUtils.deleteQuietly(resultsDir);
+    }
+
+    /**
+     * Queue a job.
+     *
+     * @param spec the job, see {@link SearchJob#parse}
+     * @return the job queued
+     * @throws IllegalArgumentException if the job isn't valid (including its search terms)
+     * @throws RejectedExecutionException if the daemon is closed
+     */
+    SearchJob submit(JsonNode spec) {
+        String id = String.valueOf(lastId.incrementAndGet());
+        SearchJob job = SearchJob.parse(id, spec, allowLocalFiles, new File(resultsDir, id + ".jsonl"));
+        // compiled now, so that a bad regex is an error of the request
+        ContentMatcher matcher;
+        try {
+            matcher = getMatcher(job);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Bad search term: " + e.getMessage(), e);
+        }
+        synchronized (this) {
+            jobs.put(job.getId(), job);
+            dropFinishedJobs();
+        }
+        jobRunner.execute(() -> job.run(matcher));
+        LOG.info("Job {} queued: {}", job.getId(), job);
+        return job;
+    }
+
+    private ContentMatcher getMatcher(SearchJob job) {
+        String key = job.getMatcherKey();
+        synchronized (matchers) {
+            ContentMatcher matcher = matchers.get(key);
+            if (matcher != null) {
+                return matcher;
+            }
+        }
+        ContentMatcher matcher = job.newMatcher();
+        synchronized (matchers) {
+            matchers.put(key, matcher);
+            if (matchers.size() > MAX_MATCHERS) {
+                Iterator<String> eldest = matchers.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return matcher;
+    }
+
+    private void dropFinishedJobs() {
+        int finished = 0;
+        for (SearchJob job : jobs.values()) {
+            if (job.isFinished()) {
+                finished++;
+            }
+        }
+        for (Iterator<SearchJob> i = jobs.values().iterator(); i.hasNext() && finished > MAX_FINISHED_JOBS; ) {
+            SearchJob job = i.next();
+            if (job.isFinished()) {
+                i.remove();
+                // a stream still reading it keeps it open
+                job.deleteResults();
+                finished--;
+            }
+        }
+    }
+
+    private synchronized SearchJob getJob(String id) {
+        return jobs.get(id);
+    }
+
+    private synchronized List<SearchJob> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            // "", "{id}" or "{id}/results"
+            String path = exchange.getRequestURI().getPath().substring("/jobs".length()).replaceAll("^/+|/+$", "");
+            String[] parts = path.isEmpty() ? new String[0] : path.split("/");
+            if (!isLoopbackHost(exchange.getRequestHeaders().getFirst("Host"))) {
+                sendError(exchange, 403, "Forbidden host: " + exchange.getRequestHeaders().getFirst("Host"));
+            }
+            else if (parts.length == 0 && "POST".equals(method)) {
+                postJob(exchange);
+            }
+            else if (parts.length == 0 && "GET".equals(method)) {
+                List<Map<String, Object>> statuses = new ArrayList<>();
+                for (SearchJob job : getJobs()) {
+                    statuses.add(job.getStatus());
+                }
+                sendJson(exchange, 200, statuses);
+            }
+            else if (parts.length == 0) {
+                sendError(exchange, 405, "Method not allowed: " + method);
+            }
+            else if (parts.length > 2 || (parts.length == 2 && !"results".equals(parts[1]))) {
+                sendError(exchange, 404, "Not found: " + exchange.getRequestURI().getPath());
+            }
+            else {
+                SearchJob job = getJob(parts[0]);
+                if (job == null) {
+                    sendError(exchange, 404, "No job " + parts[0]);
+                }
+                else if (parts.length == 2 && "GET".equals(method)) {
+                    streamResults(exchange, job);
+                }
+                else if (parts.length == 1 && "GET".equals(method)) {
+                    sendJson(exchange, 200, job.getStatus());
+                }
+                else if (parts.length == 1 && "DELETE".equals(method)) {
+                    job.cancel();
+                    LOG.info("Job {} cancelled", job.getId());
+                    sendJson(exchange, 200, job.getStatus());
+                }
+                else {
+                    sendError(exchange, 405, "Method not allowed: " + method);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Error answering {} {}: {}", exchange.getRequestMethod(), exchange.getRequestURI(), e.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @param host the <code>Host</code> header of a request
+     * @return whether it names this server by its loopback address, rather than by a name that could resolve to it
+     */
+    private boolean isLoopbackHost(String host) {
+        if (host == null) {
+            return false;
+        }
+        String port = ":" + getPort();
+        for (String loopback : LOOPBACK_HOSTS) {
+            if (host.equalsIgnoreCase(loopback + port)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void postJob(HttpExchange exchange) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType == null || !contentType.split(";")[0].trim().equalsIgnoreCase("application/json")) {
+            sendError(exchange, 415, "A job must be posted as application/json. Content-Type: " + contentType);
+            return;
+        }
+        JsonNode spec;
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = readBody(in);
+            if (body == null) {
+                sendError(exchange, 413, "A job can't be more than " + MAX_REQUEST_BYTES + " bytes");
+                return;
+            }
+            spec = MAPPER.readTree(body);
+        } catch (IOException e) {
+            sendError(exchange, 400, "Not a JSON job: " + e.getMessage());
+            return;
+        }
+        SearchJob job;
+        try {
+            job = submit(spec);
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+            return;
+        } catch (RejectedExecutionException e) {
+            sendError(exchange, 503, "The daemon is shutting down");
+            return;
+        }
+        exchange.getResponseHeaders().add("Location", "/jobs/" + job.getId());
+        sendJson(exchange, 202, job.getStatus());
+    }
+
+    /**
+     * @param in
+     * @return the bytes, or null if there are more than {@link #MAX_REQUEST_BYTES}
+     * @throws IOException
+     */
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+            if (body.size() > MAX_REQUEST_BYTES) {
+                return null;
+            }
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Send the results of a job as they come, until it's finished or the client goes away.
+     */
+    private void streamResults(HttpExchange exchange, SearchJob job) throws IOException {
+        int from = 0;
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.startsWith("from=")) {
+            try {
+                from = Math.max(0, Integer.parseInt(query.substring("from=".length())));
+            } catch (NumberFormatException e) {
+                sendError(exchange, 400, "Bad from: " + query);
+                return;
+            }
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/x-ndjson");
+        // chunked
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            job.copyResults(from, out);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = MAPPER.writeValueAsBytes(body);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        sendJson(exchange, status, Collections.singletonMap("error", message));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SearchDaemon{port=" + getPort() + ", jobs=" + jobs.size() + "}";
+    }
+}
@@ -0,0 +1,483 @@
+package com.wework.websitesearcher.daemon;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.wework.websitesearcher.io.CsvUrlSource;
+import com.wework.websitesearcher.io.ResultWriter;
+import com.wework.websitesearcher.io.SearchResult;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.matcher.ContentMatcherFactory;
+import com.wework.websitesearcher.services.UrlSearchService;
+import com.wework.websitesearcher.services.UrlSearchServiceFactory;
+import com.wework.websitesearcher.services.UrlSearchServiceFactory.Mode;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A search submitted to a {@link SearchDaemon}: what to search (see {@link #parse}), and its state and results so far.
+ * The results are spooled to a file, as JSON lines (see {@link ResultWriter}), so that memory stays flat however many
+ * there are; only the counts are kept in memory. The file is deleted once the job is dropped from the daemon.
+ *
+ * Thread-safe: the job runs on a thread of the daemon, while HTTP threads read its state and results.
+ */
+class SearchJob {
+    private static final Logger LOG = LoggerFactory.getLogger(SearchJob.class);
+
+    static final int DEFAULT_MAX_URLS = 9999;
+    static final int DEFAULT_CONCURRENCY = 20;
+    /**
+     * The service is given at most this many times the concurrency in URLs that aren't done yet, so that a
+     * cancelled job stops soon: the services read ahead of the URLs they search.
+     */
+    static final int IN_SERVICE_FACTOR = 2;
+    /** How long a results stream that has caught up with the file waits before looking for more */
+    static final long STREAM_POLL_MILLIS = 100;
+
+    enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+    private final String id;
+    /** Where to read the list of URLs from, or null if the URLs are given */
+    private final String urlsLocation;
+    private final List<String> urls;
+    private final int maxUrls;
+    /** Regex search term, or null with named terms */
+    private final String searchTerm;
+    private final Map<String, String> namedTerms;
+    private final Mode mode;
+    private final int concurrency;
+    private final int maxPerHost;
+    private final File resultsFile;
+
+    private State state = State.QUEUED;
+    /** Results handed to the writer (they may not all be in the file yet) */
+    private int results;
+    private int matched;
+    private int skipped;
+    private String error;
+    /** URLs handed to the service */
+    private int given;
+    private final long submittedAt = System.currentTimeMillis();
+    private long startedAt;
+    private long finishedAt;
+    private volatile boolean cancelled;
+
+    private SearchJob(String id, String urlsLocation, List<String> urls, int maxUrls, String searchTerm,
+                      Map<String, String> namedTerms, Mode mode, int concurrency, int maxPerHost, File resultsFile) {
+        this.id = id;
+        this.urlsLocation = urlsLocation;
+        this.urls = urls;
+        this.maxUrls = maxUrls;
+        this.searchTerm = searchTerm;
+        this.namedTerms = namedTerms;
+        this.mode = mode;
+        this.concurrency = concurrency;
+        this.maxPerHost = maxPerHost;
+        this.resultsFile = resultsFile;
+    }
+
+    /**
+     * Read a job from its JSON description:
+     * <ul>
+     *     <li><code>urls</code>: where to read the CSV list of URLs from (an http(s) URL, or a local file if
+     *     allowed, see {@link CsvUrlSource}), or an array of the URLs themselves. Required.</li>
+     *     <li>what to search for, one of: <code>term</code>, a regex; <code>keywords</code>, an array of plain
+     *     keywords; or <code>terms</code>, an object of named regexes. Required.</li>
+     *     <li><code>max_urls</code>: how many URLs of the list to search (default {@link #DEFAULT_MAX_URLS})</li>
+     *     <li><code>mode</code>: threads, pipelined, nio or virtual (default threads)</li>
+     *     <li><code>concurrency</code>: threads or requests in flight, as on the command line (default
+     *     {@link #DEFAULT_CONCURRENCY}, at most what the mode allows)</li>
+     *     <li><code>max_per_host</code>: max number of URLs of the same host searched at once (default
+     *     {@link UrlSearchServiceFactory#DEFAULT_MAX_PER_HOST})</li>
+     * </ul>
+     *
+     * @param id
+     * @param spec
+     * @param allowLocalFiles whether the list of URLs may be read from a local file (or any URL that isn't http(s))
+     * @param resultsFile where to spool the results
+     * @return the job, queued
+     * @throws IllegalArgumentException if the description isn't valid, or reads a local file that isn't allowed
+     */
+    static SearchJob parse(String id, JsonNode spec, boolean allowLocalFiles, File resultsFile) {
+        if (spec == null || !spec.isObject()) {
+            throw new IllegalArgumentException("A job must be a JSON object.");
+        }
+        JsonNode urlsNode = spec.path("urls");
+        String urlsLocation = null;
+        List<String> urls = null;
+        if (urlsNode.isTextual() && !urlsNode.asText().isEmpty()) {
+            urlsLocation = urlsNode.asText();
+            String scheme = urlsLocation.contains("://")
+                    ? urlsLocation.substring(0, urlsLocation.indexOf("://")).toLowerCase(Locale.ROOT) : "";
+            if (!allowLocalFiles && !"http".equals(scheme) && !"https".equals(scheme)) {
+                throw new IllegalArgumentException("This daemon only reads lists of URLs from http(s) URLs, not " +
+                        "local files (see --allow-local-files). Urls arg: " + urlsLocation);
+            }
+        }
+        else if (urlsNode.isArray() && urlsNode.size() > 0) {
+            urls = new ArrayList<>();
+            for (JsonNode url : urlsNode) {
+                if (!url.isTextual()) {
+                    throw new IllegalArgumentException("The urls must be strings. Url arg: " + url);
+                }
+                urls.add(url.asText());
+            }
+        }
+        else {
+            throw new IllegalArgumentException("A job needs urls: the location of a list, or the URLs.");
+        }
+
+        String searchTerm = null;
+        Map<String, String> namedTerms = null;
+        int kinds = (spec.has("term") ? 1 : 0) + (spec.has("keywords") ? 1 : 0) + (spec.has("terms") ? 1 : 0);
+        if (kinds != 1) {
+            throw new IllegalArgumentException("A job needs one of term, keywords or terms.");
+        }
+        if (spec.has("term")) {
+            searchTerm = requireText(spec.get("term"), "term");
+        }
+        else if (spec.has("keywords")) {
+            List<String> keywords = new ArrayList<>();
+            JsonNode keywordsNode = spec.get("keywords");
+            if (!keywordsNode.isArray() || keywordsNode.size() == 0) {
+                throw new IllegalArgumentException("Keywords must be a non-empty array. Keywords arg: " +
+                        keywordsNode);
+            }
+            for (JsonNode keyword : keywordsNode) {
+                keywords.add(requireText(keyword, "keyword"));
+            }
+            searchTerm = ContentMatcherFactory.toKeywordSearchTerm(keywords);
+        }
+        else {
+            JsonNode termsNode = spec.get("terms");
+            if (!termsNode.isObject() || termsNode.size() == 0) {
+                throw new IllegalArgumentException("Terms must be a non-empty object of name: regex. Terms arg: " +
+                        termsNode);
+            }
+            namedTerms = new LinkedHashMap<>();
+            for (Iterator<Map.Entry<String, JsonNode>> i = termsNode.fields(); i.hasNext(); ) {
+                Map.Entry<String, JsonNode> term = i.next();
+                namedTerms.put(term.getKey(), requireText(term.getValue(), "term " + term.getKey()));
+            }
+        }
+
+        Mode mode;
+        try {
+            mode = Mode.valueOf(spec.path("mode").asText(Mode.THREADS.name()).toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown mode. Mode arg: " + spec.get("mode"));
+        }
+        if (!UrlSearchServiceFactory.isAvailable(mode)) {
+            throw new IllegalArgumentException("Mode " + mode + " needs Java 21+ and a build with the jdk21 profile");
+        }
+        int maxUrls = positive(spec, "max_urls", DEFAULT_MAX_URLS);
+        int concurrency = Math.min(positive(spec, "concurrency", DEFAULT_CONCURRENCY),
+                UrlSearchServiceFactory.getMaxConcurrency(mode));
+        int maxPerHost = positive(spec, "max_per_host", UrlSearchServiceFactory.DEFAULT_MAX_PER_HOST);
+        return new SearchJob(id, urlsLocation, urls, maxUrls, searchTerm, namedTerms, mode, concurrency, maxPerHost,
+                resultsFile);
+    }
+
+    private static String requireText(JsonNode node, String name) {
+        if (!node.isTextual() || node.asText().isEmpty()) {
+            throw new IllegalArgumentException("The " + name + " must be a non-empty string. Arg: " + node);
+        }
+        return node.asText();
+    }
+
+    private static int positive(JsonNode spec, String name, int defaultValue) {
+        JsonNode node = spec.get(name);
+        if (node == null) {
+            return defaultValue;
+        }
+        if (!node.canConvertToInt() || node.asInt() < 1) {
+            throw new IllegalArgumentException("The " + name + " must be a positive integer. Arg: " + node);
+        }
+        return node.asInt();
+    }
+
+    String getId() {
+        return id;
+    }
+
+    /**
+     * @return the search term(s), as the key of the compiled matcher
+     */
+    String getMatcherKey() {
+        return namedTerms != null ? "terms " + namedTerms : "term " + searchTerm;
+    }
+
+    /**
+     * @return a new matcher for the search term(s)
+     * @throws IllegalArgumentException if a term isn't a valid regex or name
+     */
+    ContentMatcher newMatcher() {
+        return namedTerms != null ? ContentMatcherFactory.getInstance(namedTerms)
+                : ContentMatcherFactory.getInstance(searchTerm);
+    }
+
+    /**
+     * Search the URLs. Returns once they have all been searched, or the job is cancelled and the URLs in progress are
+     * done.
+     *
+     * @param matcher the search term(s) compiled
+     */
+    void run(ContentMatcher matcher) {
+        synchronized (this) {
+            if (state != State.QUEUED) {
+                // cancelled while queued
+                return;
+            }
+            state = State.RUNNING;
+            startedAt = System.currentTimeMillis();
+        }
+        LOG.info("Job {} started: {}", id, this);
+        CsvUrlSource source = null;
+        ResultWriter writer = null;
+        State end;
+        String failure = null;
+        try {
+            writer = new ResultWriter(resultsFile, ResultWriter.Format.JSON, null);
+            Iterator<String> list;
+            if (urls != null) {
+                list = urls.iterator();
+            }
+            else {
+                source = CsvUrlSource.open(urlsLocation, maxUrls);
+                list = source;
+            }
+            UrlSearchService service = UrlSearchServiceFactory.getInstance(mode, concurrency, maxPerHost);
+            ResultWriter results = writer;
+            service.searchUrls(new JobUrls(list), matcher, result -> add(results, result), url -> skipped());
+            // all in the file before the job is finished, so a results stream that reaches its end is done
+            writer.close();
+            end = cancelled ? State.CANCELLED : State.DONE;
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Job " + id + " failed", e);
+            end = State.FAILED;
+            failure = e.toString();
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+            IOUtils.closeQuietly(writer);
+        }
+        finish(end, failure);
+        LOG.info("Job {} {}: {} results, {} matched, {} skipped", id, getState(), getResultCount(), getMatched(),
+                getSkipped());
+    }
+
+    private void add(ResultWriter writer, SearchResult result) {
+        // may block while the writer catches up, so not with the job locked
+        writer.accept(result);
+        synchronized (this) {
+            results++;
+            if (result.isMatched()) {
+                matched++;
+            }
+            notifyAll();
+        }
+    }
+
+    private synchronized void skipped() {
+        skipped++;
+        notifyAll();
+    }
+
+    private synchronized void finish(State state, String error) {
+        this.state = state;
+        this.error = error;
+        finishedAt = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * Stop the job: a queued job won't start, a running one doesn't start any more URLs (the ones in progress are
+     * still reported).
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        if (state == State.QUEUED) {
+            finish(State.CANCELLED, null);
+        }
+        notifyAll();
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized boolean isFinished() {
+        return state != State.QUEUED && state != State.RUNNING;
+    }
+
+    synchronized int getResultCount() {
+        return results;
+    }
+
+    synchronized int getMatched() {
+        return matched;
+    }
+
+    synchronized int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Copy the results to a stream as they are written to the file, until the job is finished and they have all been
+     * copied. The stream is flushed whenever the copy has caught up with the file.
+     *
+     * @param from number of results to skip
+     * @param out where the results go, as JSON lines (see {@link ResultWriter#toJson})
+     * @throws IOException if the file can't be read, or the stream written (e.g. once the client is gone)
+     * @throws InterruptedException
+     */
+    void copyResults(int from, OutputStream out) throws IOException, InterruptedException {
+        InputStream in = null;
+        try {
+            byte[] buffer = new byte[8192];
+            // the start of a line read before its end: it's only copied whole
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int skip = from;
+            while (true) {
+                // if finished before reading, the end of the file is the end of the results
+                boolean finished = isFinished();
+                if (in == null && resultsFile.exists()) {
+                    in = new FileInputStream(resultsFile);
+                }
+                int read = in != null ? in.read(buffer) : -1;
+                if (read > 0) {
+                    int start = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] != '\n') {
+                            continue;
+                        }
+                        if (skip > 0) {
+                            skip--;
+                        }
+                        else {
+                            line.writeTo(out);
+                            out.write(buffer, start, i + 1 - start);
+                        }
+                        line.reset();
+                        start = i + 1;
+                    }
+                    if (skip == 0) {
+                        line.write(buffer, start, read - start);
+                    }
+                }
+                else if (finished) {
+                    out.flush();
+                    return;
+                }
+                else {
+                    out.flush();
+                    synchronized (this) {
+                        if (!isFinished()) {
+                            wait(STREAM_POLL_MILLIS);
+                        }
+                    }
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Delete the results file. The job must be finished.
+     */
+    void deleteResults() {
+        if (resultsFile.exists() && !resultsFile.delete()) {
+            LOG.warn("Couldn't delete the results of job {}: {}", id, resultsFile);
+        }
+    }
+
+    /**
+     * @return what the job is and how far it has got, for the JSON API
+     */
+    synchronized Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("id", id);
+        status.put("state", state.name().toLowerCase(Locale.ROOT));
+        status.put("urls", urls != null ? urls.size() + " URLs" : urlsLocation);
+        if (namedTerms != null) {
+            status.put("terms", namedTerms);
+        }
+        else {
+            status.put("term", searchTerm);
+        }
+        status.put("mode", mode.name().toLowerCase(Locale.ROOT));
+        status.put("concurrency", concurrency);
+        status.put("results", results);
+        status.put("matched", matched);
+        status.put("skipped", skipped);
+        status.put("submitted_at", submittedAt);
+        if (startedAt > 0) {
+            status.put("elapsed_ms", (finishedAt > 0 ? finishedAt : System.currentTimeMillis()) - startedAt);
+        }
+        if (error != null) {
+            status.put("error", error);
+        }
+        return status;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchJob{id=" + id + ", urls=" + (urls != null ? urls.size() + " URLs" : urlsLocation) +
+                ", " + getMatcherKey() + ", mode=" + mode + ", concurrency=" + concurrency + "}";
+    }
+
+    /**
+     * The list of URLs, handed to the service {@link #IN_SERVICE_FACTOR} times the concurrency ahead of the ones done
+     * at most, and ending early once the job is cancelled.
+     */
+    private class JobUrls implements Iterator<String> {
+        private final Iterator<String> urls;
+
+        JobUrls(Iterator<String> urls) {
+            this.urls = urls;
+        }
+
+        @Override
+        public boolean hasNext() {
+            synchronized (SearchJob.this) {
+                try {
+                    while (!cancelled && given - results - skipped >= IN_SERVICE_FACTOR * concurrency) {
+                        SearchJob.this.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            // reading the list may block, so not with the job locked
+            return !cancelled && urls.hasNext();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String url = urls.next();
+            synchronized (SearchJob.this) {
+                given++;
+            }
+            return url;
+        }
+    }
+}
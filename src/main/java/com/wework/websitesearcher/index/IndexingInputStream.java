@@ -0,0 +1,106 @@
+package com.wework.websitesearcher.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Body of a page as returned by {@link PageIndex#index}: tokenizes the bytes as they are read, and adds the page to
+ * the index on {@link #close()}. A body closed before its end (e.g. after a match) is read to the end first, so the
+ * whole page is indexed; the stream underneath decides where that is (e.g. the max body size of the
+ * {@link com.wework.websitesearcher.io.FetchLimits}). A page that fails to read isn't indexed.
+ */
+class IndexingInputStream extends FilterInputStream {
+    private static final Logger LOG = LoggerFactory.getLogger(IndexingInputStream.class);
+
+    private final PageIndex index;
+    private final String url;
+    private final Set<String> terms = new HashSet<>();
+    private final Tokenizer tokenizer = new Tokenizer(terms, PageIndex.MAX_PAGE_TERMS, true);
+    private boolean eof;
+    private boolean broken;
+    private boolean closed;
+
+    IndexingInputStream(PageIndex index, String url, InputStream body) {
+        super(body);
+        this.index = index;
+        this.url = url;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read;
+        try {
+            read = in.read(b, off, len);
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        }
+        if (read < 0) {
+            eof = true;
+        }
+        else {
+            tokenizer.feed(b, off, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // read rather than skip, so the skipped bytes are indexed too
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (!eof && !broken) {
+                // stopped early: get the rest of the page for the index
+                byte[] buffer = new byte[8192];
+                try {
+                    while (!tokenizer.isFull() && read(buffer, 0, buffer.length) >= 0) {
+                        // tokenized by read()
+                    }
+                } catch (IOException e) {
+                    LOG.debug("Error reading the rest of url: {}, message: {}", url, e.toString());
+                }
+            }
+            if (!broken) {
+                tokenizer.finish();
+                index.add(url, terms);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package com.wework.websitesearcher.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Persistent inverted index of the pages read, so they can be queried again by keyword in milliseconds instead of
+ * being fetched and searched again. Each term of a page (see {@link Tokenizer}: its lowercased words and pairs of
+ * consecutive words) maps to the ids of the pages containing it.
+ *
+ * Pages go in as their body is read (see {@link #index}, used by
+ * {@link com.wework.websitesearcher.io.UrlReader#openBody} once the index is set with
+ * {@link com.wework.websitesearcher.io.UrlReader#setPageIndex}). They are kept in memory until they have
+ * {@link #FLUSH_POSTINGS} postings, then written to a new immutable segment file of primitive int postings, which is
+ * memory-mapped for the queries (see {@link Segment}). Past {@link #MAX_SEGMENTS} segments the smallest ones are
+ * merged into one.
+ *
+ * A page indexed again gets a new doc id if its terms have changed; the postings of the old id are ignored by the
+ * queries and dropped by the next merge. A page that fails to load keeps its last indexed version.
+ *
+ * Queries ({@link #search(Collection)}) match words, not substrings like the regex and keyword matchers do: "twitter"
+ * finds <code>twitter.com</code> but not <code>twitterbot</code>. A phrase finds the pages with each pair of its
+ * consecutive words, which is exact for two words and almost always right for more. The matchers can still check
+ * the pages found against their cached copies (see
+ * {@link com.wework.websitesearcher.io.UrlReader#searchCachedPage}).
+ *
+ * Thread-safe. A directory must only be used by one process at a time, and the pages indexed after the last
+ * {@link #flush()} (or {@link #close()}) are lost if the process dies.
+ */
+public class PageIndex implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(PageIndex.class);
+
+    /** Postings kept in memory before they are written to a segment */
+    public static final int FLUSH_POSTINGS = 1_000_000;
+    /** Terms indexed per page at most */
+    public static final int MAX_PAGE_TERMS = 100_000;
+    /** Past this many segments the smallest ones are merged */
+    static final int MAX_SEGMENTS = 8;
+    /** Segments aren't merged past this size: a segment is mapped as a whole, so it must stay under 2GB */
+    static final long MAX_SEGMENT_BYTES = 512L * 1024 * 1024;
+    private static final String SUFFIX = ".seg";
+
+    private final File dir;
+    private final int flushPostings;
+    private final List<Segment> segments = new ArrayList<>();
+    /** Latest version of each page */
+    private final Map<String, Segment.Doc> docs = new HashMap<>();
+    /** URL by doc id, for the latest versions */
+    private final Map<Integer, String> urls = new HashMap<>();
+    private final BitSet live = new BitSet();
+    /** Term -> ids of the docs indexed since the last flush, ascending */
+    private final Map<String, PostingList> pending = new HashMap<>();
+    private final List<Segment.Doc> pendingDocs = new ArrayList<>();
+    private long pendingPostings;
+    private int nextDoc;
+    private int nextSegment;
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder unchanged = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+
+    /**
+     * Open (or create) an index directory.
+     *
+     * @param dir
+     * @throws IOException if the directory can't be created or read
+     */
+    public PageIndex(File dir) throws IOException {
+        this(dir, FLUSH_POSTINGS);
+    }
+
+    /**
+     * Open (or create) an index directory.
+     *
+     * @param dir
+     * @param flushPostings number of postings kept in memory before they are written to a segment
+     * @throws IOException if the directory can't be created or read
+     */
+    public PageIndex(File dir, int flushPostings) throws IOException {
+        if (flushPostings < 1) {
+            throw new IllegalArgumentException("Flush postings must be positive. Flush postings arg: " +
+                    flushPostings);
+        }
+        Files.createDirectories(dir.toPath());
+        this.dir = dir;
+        this.flushPostings = flushPostings;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Can't list the index directory " + dir);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SegmentWriter.TEMP_SUFFIX)) {
+                // left half-written by a previous run
+                file.delete();
+                continue;
+            }
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                nextSegment = Math.max(nextSegment, Integer.parseInt(name.substring(0, name.length() -
+                        SUFFIX.length())) + 1);
+                Segment segment = new Segment(file);
+                for (Segment.Doc doc : segment.readDocs()) {
+                    // the highest id is the latest version
+                    Segment.Doc current = docs.get(doc.url);
+                    if (current == null || doc.id > current.id) {
+                        docs.put(doc.url, doc);
+                    }
+                    nextDoc = Math.max(nextDoc, doc.id + 1);
+                }
+                segments.add(segment);
+            } catch (NumberFormatException | IOException e) {
+                LOG.warn("Ignoring index file {}: {}", file, e.toString());
+            }
+        }
+        for (Segment.Doc doc : docs.values()) {
+            live.set(doc.id);
+            urls.put(doc.id, doc.url);
+        }
+        LOG.info("Page index {}: {} pages, {} segments", dir, docs.size(), segments.size());
+    }
+
+    /**
+     * Index a page as its body is read: the returned stream adds it to the index once it's closed (see
+     * {@link IndexingInputStream}).
+     *
+     * @param url URL the page is indexed under
+     * @param body
+     * @return the body
+     */
+    public InputStream index(String url, InputStream body) {
+        return new IndexingInputStream(this, url, body);
+    }
+
+    /**
+     * @param url
+     * @return true if the page is in the index
+     */
+    public synchronized boolean contains(String url) {
+        return docs.containsKey(url);
+    }
+
+    /**
+     * @return number of pages in the index
+     */
+    public synchronized int size() {
+        return docs.size();
+    }
+
+    /**
+     * Add a page, or replace its previous version if its terms have changed.
+     *
+     * @param url
+     * @param terms
+     */
+    synchronized void add(String url, Set<String> terms) {
+        long hash = hash(terms);
+        Segment.Doc current = docs.get(url);
+        if (current != null && current.hash == hash) {
+            unchanged.increment();
+            return;
+        }
+        Segment.Doc doc = new Segment.Doc(nextDoc++, hash, url);
+        if (current != null) {
+            live.clear(current.id);
+            urls.remove(current.id);
+        }
+        docs.put(url, doc);
+        live.set(doc.id);
+        urls.put(doc.id, url);
+        pendingDocs.add(doc);
+        for (String term : terms) {
+            pending.computeIfAbsent(term, key -> new PostingList()).add(doc.id);
+        }
+        pendingPostings += terms.size();
+        indexed.increment();
+        if (pendingPostings >= flushPostings) {
+            try {
+                flush();
+            } catch (IOException e) {
+                // still in memory, written with the next flush
+                LOG.error("Error writing an index segment in {}: {}", dir, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Independent of the order of the set.
+     */
+    private static long hash(Set<String> terms) {
+        long hash = terms.size();
+        for (String term : terms) {
+            // FNV-1a
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < term.length(); i++) {
+                h = (h ^ term.charAt(i)) * 0x100000001b3L;
+            }
+            hash += h;
+        }
+        return hash;
+    }
+
+    /**
+     * Find the pages containing any of the keywords (or phrases), see {@link PageIndex}. Upper and lower case ASCII
+     * letters are the same.
+     *
+     * @param keywords
+     * @return URLs of the pages found, in the order they were indexed
+     */
+    public synchronized List<String> search(Collection<String> keywords) {
+        queries.increment();
+        BitSet found = new BitSet();
+        for (String keyword : keywords) {
+            List<String> words = Tokenizer.words(keyword);
+            List<String> terms = new ArrayList<>();
+            if (words.size() == 1) {
+                terms.add(words.get(0));
+            }
+            for (int i = 1; i < words.size(); i++) {
+                terms.add(Tokenizer.pair(words.get(i - 1), words.get(i)));
+            }
+            BitSet keywordDocs = null;
+            for (String term : terms) {
+                BitSet termDocs = postings(term);
+                if (keywordDocs == null) {
+                    keywordDocs = termDocs;
+                }
+                else {
+                    keywordDocs.and(termDocs);
+                }
+                if (keywordDocs.isEmpty()) {
+                    break;
+                }
+            }
+            if (keywordDocs != null) {
+                found.or(keywordDocs);
+            }
+        }
+        found.and(live);
+        List<String> result = new ArrayList<>(found.cardinality());
+        for (int id = found.nextSetBit(0); id >= 0; id = found.nextSetBit(id + 1)) {
+            result.add(urls.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * @param term
+     * @return ids of the docs with the term, live or not
+     */
+    private BitSet postings(String term) {
+        BitSet docs = new BitSet(nextDoc);
+        byte[] bytes = term.getBytes(StandardCharsets.ISO_8859_1);
+        for (Segment segment : segments) {
+            segment.addPostings(bytes, docs);
+        }
+        PostingList list = pending.get(term);
+        if (list != null) {
+            for (int i = 0; i < list.size; i++) {
+                docs.set(list.ids[i]);
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Write the pages indexed since the last flush to a new segment, then merge the smallest segments if there are
+     * more than {@link #MAX_SEGMENTS}.
+     *
+     * @throws IOException if the segment can't be written, in which case the pages stay in memory
+     */
+    public synchronized void flush() throws IOException {
+        if (pendingDocs.isEmpty()) {
+            return;
+        }
+        List<String> terms = new ArrayList<>(pending.keySet());
+        // one char per byte: the same order as the bytes
+        Collections.sort(terms);
+        File file = segmentFile(nextSegment);
+        try (SegmentWriter writer = new SegmentWriter(file)) {
+            for (String term : terms) {
+                PostingList list = pending.get(term);
+                writer.add(term.getBytes(StandardCharsets.ISO_8859_1), list.ids, list.size);
+            }
+            for (Segment.Doc doc : pendingDocs) {
+                writer.addDoc(doc);
+            }
+            writer.commit();
+        }
+        nextSegment++;
+        segments.add(new Segment(file));
+        LOG.debug("Wrote index segment {}: {} pages, {} terms", file, pendingDocs.size(), terms.size());
+        pending.clear();
+        pendingDocs.clear();
+        pendingPostings = 0;
+        if (segments.size() > MAX_SEGMENTS) {
+            merge();
+        }
+    }
+
+    /**
+     * Merge the smallest segments into one, leaving out the postings and docs of the old versions of the pages. The
+     * merged segments are deleted once the new one is in place; if the process dies in between, both are read the
+     * next time, which is harmless.
+     *
+     * @throws IOException
+     */
+    private void merge() throws IOException {
+        List<Segment> bySize = new ArrayList<>(segments);
+        bySize.sort(Comparator.comparingLong(Segment::getBytes));
+        List<Segment> merged = new ArrayList<>();
+        long bytes = 0;
+        for (Segment segment : bySize) {
+            if (bytes + segment.getBytes() > MAX_SEGMENT_BYTES) {
+                break;
+            }
+            merged.add(segment);
+            bytes += segment.getBytes();
+        }
+        if (merged.size() < 2) {
+            return;
+        }
+        File file = segmentFile(nextSegment);
+        try (SegmentWriter writer = new SegmentWriter(file)) {
+            // the terms of all the segments in order, one cursor per segment
+            PriorityQueue<TermCursor> cursors = new PriorityQueue<>();
+            for (Segment segment : merged) {
+                TermCursor cursor = new TermCursor(segment);
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                }
+            }
+            PostingList postings = new PostingList();
+            while (!cursors.isEmpty()) {
+                byte[] term = cursors.peek().term;
+                postings.size = 0;
+                while (!cursors.isEmpty() && Segment.compare(cursors.peek().term, term) == 0) {
+                    TermCursor cursor = cursors.poll();
+                    for (int id : cursor.segment.getPostings(cursor.index)) {
+                        if (live.get(id)) {
+                            postings.add(id);
+                        }
+                    }
+                    if (cursor.next()) {
+                        cursors.add(cursor);
+                    }
+                }
+                if (postings.size > 0) {
+                    postings.sortDistinct();
+                    writer.add(term, postings.ids, postings.size);
+                }
+            }
+            BitSet added = new BitSet();
+            for (Segment segment : merged) {
+                for (Segment.Doc doc : segment.readDocs()) {
+                    if (live.get(doc.id) && !added.get(doc.id)) {
+                        writer.addDoc(doc);
+                        added.set(doc.id);
+                    }
+                }
+            }
+            writer.commit();
+        }
+        nextSegment++;
+        segments.removeAll(merged);
+        segments.add(new Segment(file));
+        for (Segment segment : merged) {
+            // still mapped until garbage collected, which only matters on Windows
+            if (!segment.getFile().delete()) {
+                LOG.debug("Couldn't delete merged index segment {}", segment.getFile());
+            }
+        }
+        merges.increment();
+        LOG.debug("Merged {} index segments into {}", merged.size(), file);
+    }
+
+    private File segmentFile(int number) {
+        return new File(dir, String.format("%08d%s", number, SUFFIX));
+    }
+
+    /**
+     * Write the pages indexed since the last flush (see {@link #flush()}).
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PageIndex{pages=" + docs.size() + ", segments=" + segments.size() + ", indexed=" + indexed.sum() +
+                ", unchanged=" + unchanged.sum() + ", merges=" + merges.sum() + ", queries=" + queries.sum() + "}";
+    }
+
+    /**
+     * Growable array of doc ids.
+     */
+    private static class PostingList {
+        private int[] ids = new int[4];
+        private int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        void sortDistinct() {
+            Arrays.sort(ids, 0, size);
+            int distinct = 0;
+            for (int i = 0; i < size; i++) {
+                if (distinct == 0 || ids[i] != ids[distinct - 1]) {
+                    ids[distinct++] = ids[i];
+                }
+            }
+            size = distinct;
+        }
+    }
+
+    /**
+     * Position in the dictionary of a segment being merged.
+     */
+    private static class TermCursor implements Comparable<TermCursor> {
+        private final Segment segment;
+        private int index = -1;
+        private byte[] term;
+
+        TermCursor(Segment segment) {
+            this.segment = segment;
+        }
+
+        /**
+         * @return false if there are no more terms
+         */
+        boolean next() {
+            if (++index >= segment.getTermCount()) {
+                return false;
+            }
+            term = segment.getTerm(index);
+            return true;
+        }
+
+        @Override
+        public int compareTo(TermCursor other) {
+            return Segment.compare(term, other.term);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.wework.websitesearcher.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * One immutable file of a {@link PageIndex}, written by a {@link SegmentWriter} and memory-mapped as a whole for
+ * reading. Big-endian, in this order:
+ * <ul>
+ *     <li>header: magic, format, number of terms, number of docs, and the offsets of the term bytes, the dictionary
+ *     and the docs (8 ints)</li>
+ *     <li>postings: the doc ids of each term in turn, ascending (ints)</li>
+ *     <li>term bytes: the terms one after the other, in ascending (unsigned) byte order</li>
+ *     <li>dictionary: for each term, where its bytes start, their length, where its postings start (in ints) and how
+ *     many there are (4 ints), so a term is found with a binary search</li>
+ *     <li>docs: for each page, its doc id (int), the hash of its terms (long) and its URL (int length and UTF-8
+ *     bytes)</li>
+ * </ul>
+ *
+ * Thread-safe: the mapped buffer is only read with absolute gets.
+ */
+class Segment {
+    static final int MAGIC = 0x57535849;
+    static final int FORMAT = 1;
+    static final int HEADER_BYTES = 32;
+    static final int DICTIONARY_ENTRY_BYTES = 16;
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final int termCount;
+    private final int docCount;
+    private final int termsOffset;
+    private final int dictionaryOffset;
+    private final int docsOffset;
+
+    /**
+     * Map a segment file.
+     *
+     * @param file
+     * @throws IOException if the file can't be read or isn't a segment
+     */
+    Segment(File file) throws IOException {
+        this.file = file;
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Not an index segment: " + file);
+            }
+            // stays mapped after the channel is closed, until the buffer is garbage collected
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        buffer = mapped;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+            throw new IOException("Not an index segment: " + file);
+        }
+        termCount = buffer.getInt(8);
+        docCount = buffer.getInt(12);
+        termsOffset = buffer.getInt(16);
+        dictionaryOffset = buffer.getInt(20);
+        docsOffset = buffer.getInt(24);
+        if (termCount < 0 || docCount < 0 || termsOffset < HEADER_BYTES || dictionaryOffset < termsOffset ||
+                docsOffset != dictionaryOffset + (long) termCount * DICTIONARY_ENTRY_BYTES ||
+                docsOffset > buffer.capacity()) {
+            throw new IOException("Corrupt index segment: " + file);
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return size of the file
+     */
+    long getBytes() {
+        return buffer.capacity();
+    }
+
+    int getTermCount() {
+        return termCount;
+    }
+
+    /**
+     * @param i
+     * @return the ith term, in ascending order
+     */
+    byte[] getTerm(int i) {
+        int entry = dictionaryOffset + i * DICTIONARY_ENTRY_BYTES;
+        int start = termsOffset + buffer.getInt(entry);
+        byte[] term = new byte[buffer.getInt(entry + 4)];
+        for (int k = 0; k < term.length; k++) {
+            term[k] = buffer.get(start + k);
+        }
+        return term;
+    }
+
+    /**
+     * @param i
+     * @return the doc ids of the ith term, ascending
+     */
+    int[] getPostings(int i) {
+        int entry = dictionaryOffset + i * DICTIONARY_ENTRY_BYTES;
+        int start = HEADER_BYTES + buffer.getInt(entry + 8) * 4;
+        int[] postings = new int[buffer.getInt(entry + 12)];
+        for (int k = 0; k < postings.length; k++) {
+            postings[k] = buffer.getInt(start + k * 4);
+        }
+        return postings;
+    }
+
+    /**
+     * Add the doc ids of a term to a set, if the term is in this segment.
+     *
+     * @param term
+     * @param docs
+     */
+    void addPostings(byte[] term, BitSet docs) {
+        int i = find(term);
+        if (i < 0) {
+            return;
+        }
+        int entry = dictionaryOffset + i * DICTIONARY_ENTRY_BYTES;
+        int start = HEADER_BYTES + buffer.getInt(entry + 8) * 4;
+        int count = buffer.getInt(entry + 12);
+        for (int k = 0; k < count; k++) {
+            docs.set(buffer.getInt(start + k * 4));
+        }
+    }
+
+    /**
+     * @param term
+     * @return the index of the term, or -1 if it isn't in this segment
+     */
+    private int find(byte[] term) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareTerm(mid, term);
+            if (cmp < 0) {
+                low = mid + 1;
+            }
+            else if (cmp > 0) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareTerm(int i, byte[] term) {
+        int entry = dictionaryOffset + i * DICTIONARY_ENTRY_BYTES;
+        int start = termsOffset + buffer.getInt(entry);
+        int length = buffer.getInt(entry + 4);
+        for (int k = 0; k < Math.min(length, term.length); k++) {
+            int cmp = (buffer.get(start + k) & 0xff) - (term[k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - term.length;
+    }
+
+    /**
+     * Compare two terms by their unsigned bytes, the order of the dictionary.
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    static int compare(byte[] a, byte[] b) {
+        for (int k = 0; k < Math.min(a.length, b.length); k++) {
+            int cmp = (a[k] & 0xff) - (b[k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Read the docs of this segment. They aren't kept in memory: only opening the index and merging need them.
+     *
+     * @return
+     * @throws IOException if the segment is corrupt
+     */
+    List<Doc> readDocs() throws IOException {
+        List<Doc> docs = new ArrayList<>(docCount);
+        ByteBuffer in = buffer.duplicate();
+        in.position(docsOffset);
+        try {
+            for (int i = 0; i < docCount; i++) {
+                int id = in.getInt();
+                long hash = in.getLong();
+                byte[] url = new byte[in.getInt()];
+                in.get(url);
+                docs.add(new Doc(id, hash, new String(url, StandardCharsets.UTF_8)));
+            }
+        } catch (RuntimeException e) {
+            // BufferUnderflowException, or a negative length
+            throw new IOException("Corrupt index segment: " + file, e);
+        }
+        return docs;
+    }
+
+    @Override
+    public String toString() {
+        return "Segment{file=" + file.getName() + ", terms=" + termCount + ", docs=" + docCount + "}";
+    }
+
+    /**
+     * A version of a page in the index. A page gets a new doc id each time it's indexed with other terms, and its
+     * postings under the old id are dropped when the segments are merged.
+     */
+    static class Doc {
+        final int id;
+        /** Hash of the terms, to tell whether a page refetched has changed */
+        final long hash;
+        final String url;
+
+        Doc(int id, long hash, String url) {
+            this.id = id;
+            this.hash = hash;
+            this.url = url;
+        }
+    }
+}
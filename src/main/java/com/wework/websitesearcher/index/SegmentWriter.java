@@ -0,0 +1,122 @@
+package com.wework.websitesearcher.index;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes a {@link Segment} file. The postings go straight to a temporary file, the (smaller) term bytes, dictionary
+ * and docs are kept in memory until {@link #commit()} appends them, fills in the header and moves the file into
+ * place. Closing a writer that wasn't committed deletes the temporary file. Not thread-safe.
+ */
+class SegmentWriter implements Closeable {
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private final File file;
+    private final File temp;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream terms = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+    private final DataOutputStream dictionary = new DataOutputStream(dictionaryBytes);
+    private final ByteArrayOutputStream docBytes = new ByteArrayOutputStream();
+    private final DataOutputStream docs = new DataOutputStream(docBytes);
+    private int termCount;
+    private int docCount;
+    private long postingCount;
+    private boolean committed;
+
+    /**
+     * @param file where the segment goes once committed
+     * @throws IOException if the temporary file can't be created
+     */
+    SegmentWriter(File file) throws IOException {
+        this.file = file;
+        this.temp = new File(file.getPath() + TEMP_SUFFIX);
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        // filled in by commit()
+        out.write(new byte[Segment.HEADER_BYTES]);
+    }
+
+    /**
+     * Add a term. Terms must be added in ascending order (see {@link Segment#compare(byte[], byte[])}).
+     *
+     * @param term
+     * @param postings doc ids, ascending
+     * @param count number of doc ids in postings
+     * @throws IOException
+     */
+    void add(byte[] term, int[] postings, int count) throws IOException {
+        if (postingCount + count > Integer.MAX_VALUE / 4) {
+            throw new IOException("Too many postings for one index segment: " + (postingCount + count));
+        }
+        dictionary.writeInt(terms.size());
+        dictionary.writeInt(term.length);
+        dictionary.writeInt((int) postingCount);
+        dictionary.writeInt(count);
+        terms.write(term);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(postings[i]);
+        }
+        postingCount += count;
+        termCount++;
+    }
+
+    void addDoc(Segment.Doc doc) throws IOException {
+        byte[] url = doc.url.getBytes(StandardCharsets.UTF_8);
+        docs.writeInt(doc.id);
+        docs.writeLong(doc.hash);
+        docs.writeInt(url.length);
+        docs.write(url);
+        docCount++;
+    }
+
+    /**
+     * Finish the segment and move it into place, replacing any file there.
+     *
+     * @throws IOException
+     */
+    void commit() throws IOException {
+        long termsOffset = Segment.HEADER_BYTES + postingCount * 4;
+        long dictionaryOffset = termsOffset + terms.size();
+        long docsOffset = dictionaryOffset + dictionaryBytes.size();
+        if (docsOffset + docBytes.size() > Integer.MAX_VALUE) {
+            throw new IOException("Index segment too big: " + (docsOffset + docBytes.size()) + " bytes");
+        }
+        terms.writeTo(out);
+        dictionaryBytes.writeTo(out);
+        docBytes.writeTo(out);
+        out.close();
+        try (RandomAccessFile header = new RandomAccessFile(temp, "rw")) {
+            header.writeInt(Segment.MAGIC);
+            header.writeInt(Segment.FORMAT);
+            header.writeInt(termCount);
+            header.writeInt(docCount);
+            header.writeInt((int) termsOffset);
+            header.writeInt((int) dictionaryOffset);
+            header.writeInt((int) docsOffset);
+            // the segment must be complete on disk before it replaces anything
+            header.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+    @Override
+    public void close() {
+        if (!committed) {
+            IOUtils.closeQuietly(out);
+            temp.delete();
+        }
+    }
+}
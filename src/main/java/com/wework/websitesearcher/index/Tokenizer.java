@@ -0,0 +1,126 @@
+package com.wework.websitesearcher.index;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Splits the bytes of a page into the terms of a {@link PageIndex}: its words, and each pair of consecutive words (for
+ * phrase queries). A word is a run of ASCII letters and digits and of non-ASCII bytes, so the words of a page in UTF-8
+ * (or any other ASCII-compatible charset) stay whole without decoding it. ASCII letters are lowercased.
+ *
+ * Terms are kept as strings with one char per byte (ISO-8859-1), which sort in the same order as their bytes. A pair
+ * is the two words separated by a space, which can't be part of a word. Words longer than {@link #MAX_WORD_BYTES}
+ * (e.g. base64 data) are left out.
+ *
+ * The bytes can be fed in chunks: a word straddling two chunks is still one word. Not thread-safe.
+ */
+class Tokenizer {
+    static final int MAX_WORD_BYTES = 64;
+
+    private final Collection<String> terms;
+    private final int maxTerms;
+    private final boolean pairs;
+    private final byte[] word = new byte[MAX_WORD_BYTES];
+    private int length;
+    private boolean tooLong;
+    /** Word before the current one, or null after a word that was left out */
+    private String previous;
+
+    /**
+     * @param terms where the terms go
+     * @param maxTerms no more terms are added once the collection has this many
+     * @param pairs whether to add the pairs of consecutive words too
+     */
+    Tokenizer(Collection<String> terms, int maxTerms, boolean pairs) {
+        this.terms = terms;
+        this.maxTerms = maxTerms;
+        this.pairs = pairs;
+    }
+
+    /**
+     * @param text
+     * @return the words of the text, in order
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        Tokenizer tokenizer = new Tokenizer(words, Integer.MAX_VALUE, false);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        tokenizer.feed(bytes, 0, bytes.length);
+        tokenizer.finish();
+        return words;
+    }
+
+    /**
+     * @param first
+     * @param second
+     * @return the term for the two words one after the other
+     */
+    static String pair(String first, String second) {
+        return first + ' ' + second;
+    }
+
+    void feed(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            byte c = b[i];
+            if (c >= 'A' && c <= 'Z') {
+                append((byte) (c + ('a' - 'A')));
+            }
+            else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c < 0) {
+                // c < 0: a byte of a non-ASCII char
+                append(c);
+            }
+            else if (length > 0 || tooLong) {
+                endWord();
+            }
+        }
+    }
+
+    /**
+     * The page is over: adds its last word.
+     */
+    void finish() {
+        if (length > 0 || tooLong) {
+            endWord();
+        }
+    }
+
+    /**
+     * @return true if no more terms are added
+     */
+    boolean isFull() {
+        return terms.size() >= maxTerms;
+    }
+
+    private void append(byte c) {
+        if (length < MAX_WORD_BYTES) {
+            word[length++] = c;
+        }
+        else {
+            tooLong = true;
+        }
+    }
+
+    private void endWord() {
+        if (tooLong) {
+            previous = null;
+        }
+        else {
+            String current = new String(word, 0, length, StandardCharsets.ISO_8859_1);
+            add(current);
+            if (pairs && previous != null) {
+                add(pair(previous, current));
+            }
+            previous = current;
+        }
+        length = 0;
+        tooLong = false;
+    }
+
+    private void add(String term) {
+        if (!isFull()) {
+            terms.add(term);
+        }
+    }
+}
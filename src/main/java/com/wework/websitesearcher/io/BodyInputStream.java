@@ -0,0 +1,229 @@
+package com.wework.websitesearcher.io;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+
+/**
+ * Body of an {@link HttpURLConnection} as returned by {@link UrlReader#openBody}. Decompresses it if it's gzip or
+ * deflate encoded (see {@link ContentDecoder}), counts the bytes read (as sent, so compressed), copies the decompressed
+ * bytes to the {@link PageCache} if the page is being cached, and frees the connection on {@link #close()}:
+ * <ul>
+ *     <li>read to the end: the connection goes back to the JDK keep-alive cache</li>
+ *     <li>stopped early (e.g. a match): the rest is read if the page is being cached (up to
+ *     {@link PageCache#MAX_ENTRY_BYTES}), otherwise it goes through {@link UrlReader#releaseConnection}</li>
+ *     <li>a read failed: the connection is dropped</li>
+ * </ul>
+ *
+ * Also enforces the {@link FetchLimits}: the stream ends at the body limit, counted after decompression so a small
+ * compressed body can't blow up into gigabytes (the result is then marked truncated), and
+ * reads fail with a {@link SocketTimeoutException} once the deadline has passed.
+ */
+class BodyInputStream extends FilterInputStream {
+    private static final Logger LOG = LoggerFactory.getLogger(BodyInputStream.class);
+
+    private final HttpURLConnection huc;
+    /** The body as sent, under the decompressing stream (if any) */
+    private final CountingInputStream wire;
+    private final SearchResult result;
+    private final long limit;
+    private final long deadline;
+    private PageCache.Writer cacheWriter;
+    /** Bytes read after decompression */
+    private long bytes;
+    private boolean eof;
+    private boolean broken;
+    private boolean closed;
+
+    /**
+     * @param huc connection whose body this is
+     * @param cacheWriter where to store the body, or null if it isn't cached
+     * @param result gets the number of bytes read when the stream is closed
+     * @param limit max number of (decompressed) bytes to read
+     * @param deadline {@link System#nanoTime()} after which reads fail
+     * @throws IOException if the body can't be read, or its encoding isn't supported. The connection is dropped.
+     */
+    BodyInputStream(HttpURLConnection huc, PageCache.Writer cacheWriter, SearchResult result, long limit,
+                    long deadline) throws IOException {
+        super(null);
+        wire = new CountingInputStream(huc.getInputStream());
+        try {
+            in = ContentDecoder.decode(huc.getContentEncoding(), wire);
+        } catch (IOException e) {
+            huc.disconnect();
+            if (cacheWriter != null) {
+                cacheWriter.abort();
+            }
+            throw e;
+        }
+        this.huc = huc;
+        this.cacheWriter = cacheWriter;
+        this.result = result;
+        this.limit = limit;
+        this.deadline = deadline;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!checkLimits()) {
+            return -1;
+        }
+        int b;
+        try {
+            b = in.read();
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        }
+        if (b < 0) {
+            eof = true;
+        }
+        else {
+            bytes++;
+            cache(new byte[] {(byte) b}, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!checkLimits()) {
+            return -1;
+        }
+        int read;
+        try {
+            read = in.read(b, off, (int) Math.min(len, limit - bytes));
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        }
+        if (read < 0) {
+            eof = true;
+        }
+        else {
+            bytes += read;
+            cache(b, off, read);
+        }
+        return read;
+    }
+
+    /**
+     * @return false if the body limit has been reached: the rest of the body isn't read (nor cached)
+     * @throws SocketTimeoutException if the deadline has passed
+     */
+    private boolean checkLimits() throws SocketTimeoutException {
+        if (System.nanoTime() - deadline > 0) {
+            broken = true;
+            throw UrlReader.getFetchLimits().deadlineExceeded(huc.getURL());
+        }
+        if (bytes < limit) {
+            return true;
+        }
+        if (!result.isTruncated()) {
+            LOG.debug("Body of url: {} is over {} bytes, not reading the rest", huc.getURL(), limit);
+            result.setTruncated(true);
+        }
+        if (cacheWriter != null) {
+            cacheWriter.abort();
+            cacheWriter = null;
+        }
+        return false;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // read rather than skip, so the cached copy is complete
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void cache(byte[] b, int off, int len) {
+        if (cacheWriter == null) {
+            return;
+        }
+        try {
+            cacheWriter.write(b, off, len);
+            if (cacheWriter.isFull()) {
+                cacheWriter.abort();
+                cacheWriter = null;
+            }
+        } catch (IOException e) {
+            // e.g. disk full: still search the page, just don't cache it
+            LOG.debug("Error caching url: {}, message: {}", huc.getURL(), e.toString());
+            cacheWriter.abort();
+            cacheWriter = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (!eof && !broken && cacheWriter != null) {
+                // stopped early: get the rest of the page for the cache
+                byte[] buffer = new byte[8192];
+                try {
+                    while (cacheWriter != null && read(buffer, 0, buffer.length) >= 0) {
+                        // cached by read()
+                    }
+                } catch (IOException e) {
+                    LOG.debug("Error reading the rest of url: {}, message: {}", huc.getURL(), e.toString());
+                }
+            }
+            if (cacheWriter != null) {
+                if (eof && !broken) {
+                    try {
+                        cacheWriter.commit();
+                    } catch (IOException e) {
+                        LOG.debug("Error caching url: {}, message: {}", huc.getURL(), e.toString());
+                    }
+                }
+                else {
+                    cacheWriter.abort();
+                }
+            }
+            if (eof) {
+                in.close();
+            }
+            else {
+                if (broken) {
+                    huc.disconnect();
+                }
+                else {
+                    UrlReader.releaseConnection(huc);
+                }
+                if (in != wire) {
+                    // frees the inflater
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        } finally {
+            result.addBytesRead(wire.getByteCount());
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.wework.websitesearcher.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses gzip and deflate bodies (<code>Content-Encoding</code>) as they arrive, a chunk at a time, for
+ * {@link NioHttpExchange}. Nothing is buffered apart from the gzip header and trailer, so the matcher sees the
+ * decompressed page as soon as the compressed bytes are read. {@link #decode(String, InputStream)} does the same for
+ * the blocking {@link UrlReader}, with the JDK streams.
+ *
+ * "deflate" is meant to be zlib-wrapped, but some servers send raw deflate data: the first two bytes tell which.
+ *
+ * Not thread-safe: one per response. {@link #end()} frees the native memory of the {@link Inflater}.
+ */
+class ContentDecoder {
+    /** What to send in <code>Accept-Encoding</code> */
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    /** Give up on gzip headers (with a file name or comment) bigger than this */
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    private static final int GZIP_TRAILER_BYTES = 8;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private enum State { HEADER, BODY, TRAILER, DONE }
+
+    private final boolean gzip;
+    private final CRC32 crc = new CRC32();
+    private final byte[] output = new byte[BUFFER_SIZE];
+    private Inflater inflater;
+    private State state = State.HEADER;
+    /** Header or trailer bytes received so far */
+    private byte[] pending = new byte[16];
+    private int pendingLength;
+    private boolean received;
+
+    private ContentDecoder(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * @param contentEncoding value of the <code>Content-Encoding</code> header, or null
+     * @return a decoder for the encoding, or null if the body isn't encoded
+     * @throws ZipException if the encoding isn't supported
+     */
+    static ContentDecoder forEncoding(String contentEncoding) throws ZipException {
+        switch (normalize(contentEncoding)) {
+            case "":
+            case "identity":
+                return null;
+            case "gzip":
+            case "x-gzip":
+                return new ContentDecoder(true);
+            case "deflate":
+                return new ContentDecoder(false);
+            default:
+                throw new ZipException("Unsupported content encoding: " + contentEncoding);
+        }
+    }
+
+    /**
+     * Wrap a body in a stream that decompresses it.
+     *
+     * @param contentEncoding value of the <code>Content-Encoding</code> header, or null
+     * @param body the body as sent by the server
+     * @return the decompressed body (or the body itself if it isn't encoded). Closing it ends the inflater and closes
+     * the body.
+     * @throws IOException if the encoding isn't supported or the body can't be read
+     */
+    static InputStream decode(String contentEncoding, InputStream body) throws IOException {
+        String encoding = normalize(contentEncoding);
+        if (encoding.isEmpty() || encoding.equals("identity")) {
+            return body;
+        }
+        if (!encoding.equals("gzip") && !encoding.equals("x-gzip") && !encoding.equals("deflate")) {
+            throw new ZipException("Unsupported content encoding: " + contentEncoding);
+        }
+        // an empty body (e.g. a 204) has no gzip header either
+        PushbackInputStream peek = new PushbackInputStream(body, 2);
+        byte[] head = new byte[2];
+        int read = 0;
+        int n;
+        while (read < 2 && (n = peek.read(head, read, 2 - read)) >= 0) {
+            read += n;
+        }
+        if (read == 0) {
+            return peek;
+        }
+        peek.unread(head, 0, read);
+        if (!encoding.equals("deflate")) {
+            return new GZIPInputStream(peek, BUFFER_SIZE);
+        }
+        Inflater inflater = new Inflater(!isZlibHeader(head, read));
+        return new InflaterInputStream(peek, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    private static String normalize(String contentEncoding) {
+        return contentEncoding == null ? "" : contentEncoding.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * A zlib header is a method byte (deflate, window size up to 32K) and a flags byte making the pair a multiple of
+     * 31. Raw deflate data starting with a pair like that can't be told apart, and is rare enough.
+     */
+    private static boolean isZlibHeader(byte[] head, int length) {
+        if (length < 2) {
+            return false;
+        }
+        int cmf = head[0] & 0xff;
+        int flg = head[1] & 0xff;
+        return (cmf & 0x0f) == 8 && (cmf >>> 4) <= 7 && (cmf * 256 + flg) % 31 == 0;
+    }
+
+    /**
+     * Decompress a chunk of the body and pass what comes out of it on.
+     *
+     * @param bytes compressed bytes, only read during the call
+     * @param offset
+     * @param length
+     * @param consumer gets the decompressed bytes
+     * @return true if the consumer asked to stop
+     * @throws IOException if the body isn't valid gzip/deflate data, or the consumer failed
+     */
+    boolean decode(byte[] bytes, int offset, int length, HttpResponseParser.BodyConsumer consumer)
+            throws IOException {
+        int end = offset + length;
+        received |= length > 0;
+        while (offset < end) {
+            switch (state) {
+                case HEADER:
+                    if (gzip && inflater != null && pendingLength == 0 && (bytes[offset] & 0xff) != 0x1f) {
+                        // not another member: padding after the last one, ignored like GZIPInputStream does
+                        state = State.DONE;
+                        return false;
+                    }
+                    offset = readHeader(bytes, offset, end);
+                    break;
+                case BODY:
+                    if (pendingLength > 0) {
+                        // the first bytes of deflate data, kept to tell zlib from raw deflate
+                        inflater.setInput(Arrays.copyOf(pending, pendingLength));
+                        pendingLength = 0;
+                        if (inflate(consumer)) {
+                            return true;
+                        }
+                        if (inflater.finished()) {
+                            state = State.DONE;
+                            break;
+                        }
+                    }
+                    inflater.setInput(bytes, offset, end - offset);
+                    if (inflate(consumer)) {
+                        return true;
+                    }
+                    // whatever is left over follows the compressed data
+                    int next = end - inflater.getRemaining();
+                    if (inflater.finished()) {
+                        state = gzip ? State.TRAILER : State.DONE;
+                    }
+                    else if (next == offset) {
+                        throw new ZipException("Invalid compressed body");
+                    }
+                    offset = next;
+                    break;
+                case TRAILER:
+                    offset = readTrailer(bytes, offset, end);
+                    break;
+                default:
+                    // anything after the end of the compressed data is ignored
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    private boolean inflate(HttpResponseParser.BodyConsumer consumer) throws IOException {
+        try {
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(output);
+                if (inflated == 0) {
+                    if (inflater.needsDictionary()) {
+                        throw new ZipException("Deflate data needs a preset dictionary");
+                    }
+                    break;
+                }
+                if (gzip) {
+                    crc.update(output, 0, inflated);
+                }
+                if (consumer.onBody(output, 0, inflated)) {
+                    return true;
+                }
+                // with the output full there may be more to come (or the end of the data) even with no input left
+                if (inflated < output.length && inflater.needsInput()) {
+                    break;
+                }
+            }
+            return false;
+        } catch (DataFormatException e) {
+            ZipException zipException = new ZipException("Invalid compressed body: " + e.getMessage());
+            zipException.initCause(e);
+            throw zipException;
+        }
+    }
+
+    /**
+     * Collect the gzip header (or the first two bytes of deflate data) and start inflating once it's complete.
+     *
+     * @return offset of the first byte after the ones used
+     */
+    private int readHeader(byte[] bytes, int offset, int end) throws ZipException {
+        if (!gzip) {
+            int needed = Math.min(2 - pendingLength, end - offset);
+            append(bytes, offset, needed);
+            if (pendingLength < 2) {
+                return offset + needed;
+            }
+            inflater = new Inflater(!isZlibHeader(pending, 2));
+            // the two pending bytes are inflated first
+            state = State.BODY;
+            return offset + needed;
+        }
+        int start = pendingLength;
+        append(bytes, offset, end - offset);
+        int headerLength = gzipHeaderLength();
+        if (headerLength < 0) {
+            if (pendingLength > MAX_HEADER_BYTES) {
+                throw new ZipException("Gzip header too long");
+            }
+            return end;
+        }
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        else {
+            // the next member of a multi-member body
+            inflater.reset();
+        }
+        crc.reset();
+        state = State.BODY;
+        pendingLength = 0;
+        return offset + headerLength - start;
+    }
+
+    /**
+     * @return length of the gzip header in the pending bytes, or -1 if it isn't all there yet
+     * @throws ZipException if it isn't a gzip header
+     */
+    private int gzipHeaderLength() throws ZipException {
+        if (pendingLength >= 2 && ((pending[0] & 0xff) != 0x1f || (pending[1] & 0xff) != 0x8b)) {
+            throw new ZipException("Not in gzip format");
+        }
+        if (pendingLength < 10) {
+            return -1;
+        }
+        if (pending[2] != 8) {
+            throw new ZipException("Unsupported gzip compression method: " + pending[2]);
+        }
+        int flags = pending[3] & 0xff;
+        int position = 10;
+        if ((flags & FEXTRA) != 0) {
+            if (pendingLength < position + 2) {
+                return -1;
+            }
+            position += 2 + ((pending[position] & 0xff) | (pending[position + 1] & 0xff) << 8);
+        }
+        for (int flag : new int[] {FNAME, FCOMMENT}) {
+            if ((flags & flag) != 0) {
+                // zero-terminated
+                while (position < pendingLength && pending[position] != 0) {
+                    position++;
+                }
+                if (position >= pendingLength) {
+                    return -1;
+                }
+                position++;
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            position += 2;
+        }
+        return position <= pendingLength ? position : -1;
+    }
+
+    /**
+     * Collect and check the gzip trailer: CRC-32 and size (mod 2^32) of the decompressed data.
+     *
+     * @return offset of the first byte after the ones used
+     */
+    private int readTrailer(byte[] bytes, int offset, int end) throws ZipException {
+        int needed = Math.min(GZIP_TRAILER_BYTES - pendingLength, end - offset);
+        append(bytes, offset, needed);
+        if (pendingLength < GZIP_TRAILER_BYTES) {
+            return offset + needed;
+        }
+        if (littleEndianInt(0) != (int) crc.getValue()) {
+            throw new ZipException("Corrupt gzip trailer (CRC mismatch)");
+        }
+        if (littleEndianInt(4) != (int) inflater.getBytesWritten()) {
+            throw new ZipException("Corrupt gzip trailer (size mismatch)");
+        }
+        // another member may follow
+        state = State.HEADER;
+        pendingLength = 0;
+        return offset + needed;
+    }
+
+    private int littleEndianInt(int at) {
+        return (pending[at] & 0xff) | (pending[at + 1] & 0xff) << 8 | (pending[at + 2] & 0xff) << 16
+                | (pending[at + 3] & 0xff) << 24;
+    }
+
+    private void append(byte[] bytes, int offset, int length) {
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+        }
+        System.arraycopy(bytes, offset, pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    /**
+     * The body has ended: check it wasn't cut short.
+     *
+     * @throws ZipException if the compressed data didn't end
+     */
+    void finish() throws ZipException {
+        boolean complete = !received || state == State.DONE
+                // a gzip body ends after the trailer of its last member
+                || (gzip && state == State.HEADER && pendingLength == 0 && inflater != null);
+        if (!complete) {
+            throw new ZipException("Unexpected end of compressed body");
+        }
+    }
+
+    /**
+     * Free the inflater. The decoder can't be used after this.
+     */
+    void end() {
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+}
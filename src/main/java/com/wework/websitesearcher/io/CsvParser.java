@@ -1,105 +1,204 @@
 package com.wework.websitesearcher.io;
 
-import org.apache.commons.lang3.StringUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.util.Arrays;
-import java.util.Collections;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
- * Parses the contents of a CSV file and returns the list of URLs in the 2nd column. Assumes the file is formatted like:
- * <pre>
- * "Rank","URL","Linking Root Domains","External Links","mozRank","mozTrust"
- * 1,"facebook.com/",9616487,1688316928,9.54,9.34
- * </pre>
+ * Streaming CSV parser: reads one row at a time from a {@link Reader}, so the file is never held in memory. Handles
+ * quoted fields (with commas, line breaks and doubled quotes <code>""</code> inside them) and both LF and CRLF line
+ * endings. Empty lines are skipped.
  *
- * If the URLs don't start with "http://" then that prefix is added to each URL.
+ * Only the columns asked for are turned into Strings; the other fields of the row are skipped over.
  */
-class CsvParser {
-    private static final Logger LOG = LoggerFactory.getLogger(CsvParser.class);
-
-    List<String> parseAndReturnUrls(String csvContents) {
-        if (StringUtils.isEmpty(csvContents)) {
-            LOG.warn("CSV Contents are empty.");
-            return Collections.emptyList();
-        }
+class CsvParser implements Closeable {
+    private static final int BUFFER_SIZE = 8192;
 
-        List<CsvRow> allRows = Arrays.stream(csvContents.split("\\n"))
-                .skip(1)
-                .map(line -> line.split(","))
-                .map(cols -> new CsvRow(Integer.parseInt(cols[0]),
-                                        cols[1],
-                                        Integer.parseInt(cols[2]),
-                                        Integer.parseInt(cols[3]),
-                                        Double.parseDouble(cols[4]),
-                                        Double.parseDouble(cols[5])))
-                .collect(Collectors.toList());
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private final StringBuilder field = new StringBuilder();
 
-        return allRows.stream()
-                .map(CsvRow::getUrl)
-                .filter(StringUtils::isNotEmpty)
-                .map(url -> url.replace("\"",""))
-                .map(url -> !url.startsWith("http") ? "http://" + url : url)
-                .collect(Collectors.toList());
+    CsvParser(Reader reader) {
+        this.reader = reader;
     }
 
     /**
-     * Represents the contents of one CSV row. All we're interested in is the 'url' value.
+     * Read the next row.
+     *
+     * @param columns indexes (0-based) of the columns to return, or none for all of them
+     * @return the values of the given columns, in the same order (null for columns the row doesn't have), or all the
+     * fields of the row if no columns are given. Null at the end of the input.
+     * @throws IOException
      */
-    private class CsvRow {
-        private final Integer rank;
-        private final String url;
-        private final Integer linkingRootDomains;
-        private final Integer externalLinks;
-        private final Double mozRank;
-        private final Double mozTrust;
+    String[] next(int... columns) throws IOException {
+        List<String> all = columns.length == 0 ? new ArrayList<>() : null;
+        String[] values = columns.length == 0 ? null : new String[columns.length];
+        int index = 0;
+        boolean rowStarted = false;
+        while (true) {
+            int c = read();
+            if (c < 0) {
+                if (!rowStarted) {
+                    return null;
+                }
+                break;
+            }
+            if (!rowStarted && (c == '\n' || c == '\r')) {
+                // empty line
+                continue;
+            }
+            rowStarted = true;
+            boolean wanted = all != null || indexOf(columns, index) >= 0;
+            int end = readField(c, wanted);
+            if (wanted) {
+                if (all != null) {
+                    all.add(field.toString());
+                }
+                else {
+                    for (int i = 0; i < columns.length; i++) {
+                        if (columns[i] == index) {
+                            values[i] = field.toString();
+                        }
+                    }
+                }
+            }
+            if (end != ',') {
+                break;
+            }
+            index++;
+            if (all == null && index > max(columns)) {
+                skipRestOfRow();
+                break;
+            }
+        }
+        return all != null ? all.toArray(new String[0]) : values;
+    }
 
-        public CsvRow(Integer rank, String url, Integer linkingRootDomains, Integer externalLinks, Double mozRank, Double mozTrust) {
-            this.rank = rank;
-            this.url = url;
-            this.linkingRootDomains = linkingRootDomains;
-            this.externalLinks = externalLinks;
-            this.mozRank = mozRank;
-            this.mozTrust = mozTrust;
+    /**
+     * Read one field, starting with its first char (already read).
+     *
+     * @param first first char of the field
+     * @param keep true to collect the field in {@link #field}, false to skip over it
+     * @return the char that ended the field: ',', '\n' or -1 (end of input)
+     * @throws IOException
+     */
+    private int readField(int first, boolean keep) throws IOException {
+        field.setLength(0);
+        int c = first;
+        boolean inQuotes = false;
+        if (c == '"') {
+            inQuotes = true;
+            c = read();
         }
+        while (c >= 0) {
+            if (inQuotes) {
+                if (c == '"') {
+                    int next = read();
+                    if (next == '"') {
+                        // escaped quote
+                        if (keep) {
+                            field.append('"');
+                        }
+                        c = read();
+                        continue;
+                    }
+                    inQuotes = false;
+                    c = next;
+                    continue;
+                }
+            }
+            else if (c == ',') {
+                return ',';
+            }
+            else if (c == '\n') {
+                return '\n';
+            }
+            else if (c == '\r') {
+                skipLineFeed();
+                return '\n';
+            }
+            // anything after the closing quote (e.g. "abc"def) is kept, like most parsers do
+            if (keep) {
+                field.append((char) c);
+            }
+            c = read();
+        }
+        return -1;
+    }
 
-        public Integer getRank() {
-            return rank;
+    private void skipRestOfRow() throws IOException {
+        boolean inQuotes = false;
+        int c;
+        while ((c = read()) >= 0) {
+            if (c == '"') {
+                inQuotes = !inQuotes;
+            }
+            else if (!inQuotes && c == '\n') {
+                return;
+            }
+            else if (!inQuotes && c == '\r') {
+                skipLineFeed();
+                return;
+            }
         }
+    }
 
-        public String getUrl() {
-            return url;
+    private void skipLineFeed() throws IOException {
+        if (peek() == '\n') {
+            read();
         }
+    }
 
-        public Integer getLinkingRootDomains() {
-            return linkingRootDomains;
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
         }
+        return buffer[position++];
+    }
 
-        public Integer getExternalLinks() {
-            return externalLinks;
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
         }
+        return buffer[position];
+    }
 
-        public Double getMozRank() {
-            return mozRank;
+    private boolean fill() throws IOException {
+        int read;
+        do {
+            read = reader.read(buffer, 0, buffer.length);
+        } while (read == 0);
+        if (read < 0) {
+            return false;
         }
+        position = 0;
+        limit = read;
+        return true;
+    }
 
-        public Double getMozTrust() {
-            return mozTrust;
+    private static int indexOf(int[] columns, int index) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == index) {
+                return i;
+            }
         }
+        return -1;
+    }
 
-        @Override
-        public String toString() {
-            return "CsvRow{" +
-                    "rank=" + rank +
-                    ", url='" + url + '\'' +
-                    ", linkingRootDomains=" + linkingRootDomains +
-                    ", externalLinks=" + externalLinks +
-                    ", mozRank=" + mozRank +
-                    ", mozTrust=" + mozTrust +
-                    '}';
+    private static int max(int[] columns) {
+        int max = -1;
+        for (int column : columns) {
+            max = Math.max(max, column);
         }
+        return max;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
     }
 }
@@ -0,0 +1,159 @@
+package com.wework.websitesearcher.io;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The URLs of a CSV file, read lazily: rows are only parsed (and the file only downloaded) as the URLs are asked for,
+ * and reading stops after <code>max</code> URLs. Assumes the file is formatted like:
+ * <pre>
+ * "Rank","URL","Linking Root Domains","External Links","mozRank","mozTrust"
+ * 1,"facebook.com/",9616487,1688316928,9.54,9.34
+ * </pre>
+ *
+ * The URL column is found by its header ("URL", any case), or is the 2nd column if there isn't one. Only that column
+ * is parsed. Rows without a URL are skipped. If the URLs don't start with "http" then "http://" is added to each URL.
+ *
+ * Not thread-safe. I/O errors while reading are thrown as {@link UncheckedIOException}. The stream is closed once all
+ * the URLs have been read (or by {@link #close()}).
+ */
+public class CsvUrlSource implements Iterator<String>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(CsvUrlSource.class);
+
+    static final String URL_HEADER = "url";
+    static final int DEFAULT_URL_COLUMN = 1;
+
+    private final CsvParser parser;
+    private final int max;
+    private int urlColumn = DEFAULT_URL_COLUMN;
+    private boolean headerRead;
+    private boolean closed;
+    private String next;
+    private int count;
+
+    /**
+     * @param reader the CSV contents
+     * @param max max number of URLs to return
+     */
+    public CsvUrlSource(Reader reader, int max) {
+        this.parser = new CsvParser(reader);
+        this.max = max;
+    }
+
+    /**
+     * Open the CSV file at a location.
+     *
+     * @param location fully-qualified URL (http, https, file...) or local file path
+     * @param max max number of URLs to return
+     * @return
+     * @throws IOException if the file can't be opened
+     */
+    public static CsvUrlSource open(String location, int max) throws IOException {
+        if (StringUtils.isEmpty(location)) {
+            throw new IllegalArgumentException("URL string can not be null.");
+        }
+        InputStream inputStream = location.contains("://") ? UrlReader.toUrl(location).openStream()
+                : new FileInputStream(location);
+        return new CsvUrlSource(new InputStreamReader(inputStream, StandardCharsets.UTF_8), max);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !closed) {
+            try {
+                next = readNext();
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException("Error reading the CSV file", e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String url = next;
+        next = null;
+        count++;
+        return url;
+    }
+
+    /**
+     * @return number of URLs returned so far
+     */
+    public int getCount() {
+        return count;
+    }
+
+    private String readNext() throws IOException {
+        if (count >= max) {
+            close();
+            return null;
+        }
+        if (!headerRead) {
+            headerRead = true;
+            if (!readHeader()) {
+                close();
+                return null;
+            }
+        }
+        String[] row;
+        while ((row = parser.next(urlColumn)) != null) {
+            String url = StringUtils.trim(row[0]);
+            if (StringUtils.isNotEmpty(url)) {
+                return !url.startsWith("http") ? "http://" + url : url;
+            }
+        }
+        close();
+        return null;
+    }
+
+    /**
+     * Find the URL column in the header row.
+     *
+     * @return false if the file is empty
+     * @throws IOException
+     */
+    private boolean readHeader() throws IOException {
+        String[] header = parser.next();
+        if (header == null) {
+            return false;
+        }
+        for (int i = 0; i < header.length; i++) {
+            // the file may start with a byte order mark
+            if (URL_HEADER.equalsIgnoreCase(StringUtils.strip(header[i], "\uFEFF \t"))) {
+                urlColumn = i;
+                return true;
+            }
+        }
+        LOG.warn("No URL column in CSV header {}, using column {}", String.join(",", header), DEFAULT_URL_COLUMN + 1);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            try {
+                parser.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing CSV file", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.wework.websitesearcher.io;
+
+import com.wework.websitesearcher.util.SearchMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Resolves host names on a pool of resolver threads, so callers never block on a lookup. Results are kept in a
+ * bounded cache (least recently used hosts are dropped first): successful lookups for {@link #DEFAULT_TTL_MILLIS},
+ * failed ones (e.g. dead domains) for {@link #DEFAULT_NEGATIVE_TTL_MILLIS}. Concurrent lookups of the same host share
+ * one request.
+ *
+ * The lookups themselves go through {@link InetAddress#getByName(String)}, so they also fill the JVM's own cache used
+ * by {@link java.net.HttpURLConnection}.
+ */
+public class DnsResolver implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(DnsResolver.class);
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+    public static final int DEFAULT_THREADS = 64;
+
+    private static DnsResolver instance;
+
+    private final ExecutorService executor;
+    private final Lookup lookup;
+    private final LongSupplier nanoTime;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final Map<String, Entry> cache;
+    private final Map<String, CompletableFuture<InetAddress>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param threads number of resolver threads (max number of lookups in progress at once)
+     * @param maxEntries max number of hosts in the cache
+     * @param ttlMillis how long a successful lookup is cached
+     * @param negativeTtlMillis how long a failed lookup is cached
+     */
+    public DnsResolver(int threads, int maxEntries, long ttlMillis, long negativeTtlMillis) {
+        this(threads, maxEntries, ttlMillis, negativeTtlMillis, InetAddress::getByName, System::nanoTime);
+    }
+
+    /**
+     * @param threads number of resolver threads (max number of lookups in progress at once)
+     * @param maxEntries max number of hosts in the cache
+     * @param ttlMillis how long a successful lookup is cached
+     * @param negativeTtlMillis how long a failed lookup is cached
+     * @param lookup does the actual lookups
+     * @param nanoTime clock the TTLs are measured with, like {@link System#nanoTime()}
+     */
+    DnsResolver(int threads, int maxEntries, long ttlMillis, long negativeTtlMillis, Lookup lookup,
+                LongSupplier nanoTime) {
+        if (threads < 1 || maxEntries < 1 || ttlMillis < 0 || negativeTtlMillis < 0) {
+            throw new IllegalArgumentException("Threads and max entries must be positive and TTLs can't be negative.");
+        }
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "dns_" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.lookup = lookup;
+        this.nanoTime = nanoTime;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.cache = new LinkedHashMap<String, Entry>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the resolver shared by the whole app, created with the defaults on first use.
+     *
+     * @return
+     */
+    public static synchronized DnsResolver getInstance() {
+        if (instance == null) {
+            instance = new DnsResolver(DEFAULT_THREADS, DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS,
+                    DEFAULT_NEGATIVE_TTL_MILLIS);
+        }
+        return instance;
+    }
+
+    /**
+     * Resolve a host name. Returns right away; the future completes (possibly already completed, from the cache) with
+     * the address, or exceptionally with an {@link UnknownHostException}.
+     *
+     * @param host
+     * @return
+     */
+    public CompletableFuture<InetAddress> resolve(String host) {
+        String name = host.toLowerCase(Locale.ROOT);
+        Entry entry = getCached(name);
+        if (entry != null) {
+            hits.increment();
+            return entry.address != null ? CompletableFuture.completedFuture(entry.address)
+                    : failed(new UnknownHostException(host + " (cached)"));
+        }
+        CompletableFuture<InetAddress> future = new CompletableFuture<>();
+        CompletableFuture<InetAddress> running = inFlight.putIfAbsent(name, future);
+        if (running != null) {
+            hits.increment();
+            return running;
+        }
+        lookups.increment();
+        executor.execute(() -> lookup(name, future));
+        return future;
+    }
+
+    private void lookup(String name, CompletableFuture<InetAddress> future) {
+        InetAddress address = null;
+        Exception error = null;
+        long start = nanoTime.getAsLong();
+        try {
+            address = lookup.lookup(name);
+        } catch (UnknownHostException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            // e.g. an invalid host name
+            error = new UnknownHostException(name + ": " + e.getMessage());
+        }
+        long now = nanoTime.getAsLong();
+        SearchMetrics.getInstance().record(SearchMetrics.Phase.DNS, now - start);
+        synchronized (cache) {
+            cache.put(name, new Entry(address, now + (address != null ? ttlNanos : negativeTtlNanos)));
+        }
+        inFlight.remove(name);
+        if (address != null) {
+            future.complete(address);
+        }
+        else {
+            failures.increment();
+            LOG.debug("Unknown host: {}", name);
+            future.completeExceptionally(error);
+        }
+    }
+
+    private Entry getCached(String name) {
+        synchronized (cache) {
+            Entry entry = cache.get(name);
+            if (entry != null && nanoTime.getAsLong() - entry.expiresAt > 0) {
+                cache.remove(name);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    private static CompletableFuture<InetAddress> failed(Exception e) {
+        CompletableFuture<InetAddress> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * Stop the resolver threads. Lookups in progress never complete.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        synchronized (DnsResolver.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        synchronized (cache) {
+            size = cache.size();
+        }
+        return "DnsResolver{cached=" + size + ", hits=" + hits.sum() + ", lookups=" + lookups.sum() +
+                ", failed=" + failures.sum() + "}";
+    }
+
+    /**
+     * Looks up the address of a host, blocking. {@link InetAddress#getByName(String)} outside of tests.
+     */
+    interface Lookup {
+        InetAddress lookup(String host) throws UnknownHostException;
+    }
+
+    private static class Entry {
+        /** null if the host didn't resolve */
+        private final InetAddress address;
+        private final long expiresAt;
+
+        Entry(InetAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
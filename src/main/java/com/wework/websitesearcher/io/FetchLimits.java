@@ -0,0 +1,311 @@
+package com.wework.websitesearcher.io;
+
+import java.net.SocketTimeoutException;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on what a single URL can cost, applied by {@link UrlReader} (and so by all the blocking modes) and by
+ * {@link NioHttpClient}:
+ * <ul>
+ *     <li>max body size: reading stops there, as if the body ended, and the result is marked truncated (see
+ *     {@link SearchResult#isTruncated()})</li>
+ *     <li>deadline: max time for the whole request, redirects included. The read timeout on its own restarts on
+ *     every byte, so a server trickling a page could otherwise hold a worker for minutes.</li>
+ *     <li>text only: responses whose <code>Content-Type</code> isn't text (images, videos, PDFs...) are dropped after
+ *     the headers, without reading the body</li>
+ *     <li>range: optionally ask for only the first bytes of the body with a <code>Range</code> header. Servers that
+ *     ignore it still only get read up to that many bytes.</li>
+ *     <li>job deadline: optionally, a time by which the whole search must be done. No request goes past it, and no URL
+ *     is handed out after it (see the services' <code>HostShardedUrlQueue</code>).</li>
+ *     <li>retries: optionally, how many times a URL that failed for a transient reason (see {@link #isTransient}) is
+ *     tried again, after an exponential backoff</li>
+ *     <li>hedging: optionally, a URL taking longer than a percentile of the others gets a second request, the first
+ *     to finish being the one reported</li>
+ * </ul>
+ *
+ * Set up before a search starts; not meant to be changed while requests are in flight.
+ */
+public class FetchLimits {
+    public static final long DEFAULT_MAX_BODY_BYTES = 10 * 1024 * 1024;
+    public static final int DEFAULT_DEADLINE_SECS = 60;
+    public static final int DEFAULT_RETRY_BACKOFF_MILLIS = 500;
+    /** Longest wait before a retry, however many retries came before */
+    public static final int MAX_RETRY_BACKOFF_MILLIS = 8000;
+
+    private long maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+    private int deadlineSecs = DEFAULT_DEADLINE_SECS;
+    private boolean textOnly = true;
+    private long rangeBytes;
+    /** {@link System#nanoTime()} of the job deadline, only meaningful if hasJobDeadline */
+    private long jobDeadline;
+    private boolean hasJobDeadline;
+    private int maxRetries;
+    private int retryBackoffMillis = DEFAULT_RETRY_BACKOFF_MILLIS;
+    private double hedgePercentile;
+
+    /**
+     * @param maxBodyBytes read at most this much of a body (default 10MB)
+     * @throws IllegalArgumentException if it isn't positive
+     */
+    public void setMaxBodyBytes(long maxBodyBytes) {
+        if (maxBodyBytes < 1) {
+            throw new IllegalArgumentException("Max body size must be positive. Max body size arg: " + maxBodyBytes);
+        }
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * @param deadlineSecs max time for a request, from the first connection to the end of the body (default 60)
+     * @throws IllegalArgumentException if it isn't positive
+     */
+    public void setDeadlineSecs(int deadlineSecs) {
+        if (deadlineSecs < 1) {
+            throw new IllegalArgumentException("Deadline must be positive. Deadline arg: " + deadlineSecs);
+        }
+        this.deadlineSecs = deadlineSecs;
+    }
+
+    /**
+     * @param textOnly true (the default) to skip the responses whose content type isn't text (see {@link #isText})
+     */
+    public void setTextOnly(boolean textOnly) {
+        this.textOnly = textOnly;
+    }
+
+    /**
+     * @param rangeBytes ask for only this many bytes of each body, or 0 (the default) to ask for the whole body
+     * @throws IllegalArgumentException if it's negative
+     */
+    public void setRangeBytes(long rangeBytes) {
+        if (rangeBytes < 0) {
+            throw new IllegalArgumentException("Range can't be negative. Range arg: " + rangeBytes);
+        }
+        this.rangeBytes = rangeBytes;
+    }
+
+    /**
+     * @param jobDeadline {@link System#nanoTime()} by which the whole search must be done
+     */
+    public void setJobDeadline(long jobDeadline) {
+        this.jobDeadline = jobDeadline;
+        this.hasJobDeadline = true;
+    }
+
+    /**
+     * @param maxRetries how many times to try again a URL that failed for a transient reason (default 0)
+     * @throws IllegalArgumentException if it's negative
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("Max retries can't be negative. Max retries arg: " + maxRetries);
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param retryBackoffMillis wait before the first retry, doubled for each next one (default 500)
+     * @throws IllegalArgumentException if it isn't positive
+     */
+    public void setRetryBackoffMillis(int retryBackoffMillis) {
+        if (retryBackoffMillis < 1) {
+            throw new IllegalArgumentException("Retry backoff must be positive. Retry backoff arg: " +
+                    retryBackoffMillis);
+        }
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    /**
+     * @param hedgePercentile send a second request for the URLs taking longer than this percentile of the others
+     *                        (e.g. 95), or 0 (the default) not to
+     * @throws IllegalArgumentException if it isn't between 0 and 100 (exclusive), or 0
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        if (hedgePercentile < 0 || hedgePercentile >= 100) {
+            throw new IllegalArgumentException("Hedge percentile should be between 0-100 (exclusive). Hedge " +
+                    "percentile arg: " + hedgePercentile);
+        }
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public long getMaxBodyBytes() {
+        return maxBodyBytes;
+    }
+
+    public int getDeadlineSecs() {
+        return deadlineSecs;
+    }
+
+    public boolean isTextOnly() {
+        return textOnly;
+    }
+
+    public long getRangeBytes() {
+        return rangeBytes;
+    }
+
+    public boolean hasJobDeadline() {
+        return hasJobDeadline;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} of the job deadline (see {@link #hasJobDeadline()})
+     */
+    public long getJobDeadline() {
+        return jobDeadline;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public int getRetryBackoffMillis() {
+        return retryBackoffMillis;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * @return true if there's a job deadline and it has passed
+     */
+    public boolean isJobOver() {
+        return hasJobDeadline && System.nanoTime() - jobDeadline >= 0;
+    }
+
+    /**
+     * Exponential backoff with jitter: the backoff doubles with each retry up to {@link #MAX_RETRY_BACKOFF_MILLIS},
+     * and a random half of it is taken off so that the URLs that failed together aren't all retried together.
+     *
+     * @param retry 1 for the first retry
+     * @return how long to wait before the retry, in nanoseconds
+     */
+    public long getRetryDelay(int retry) {
+        long backoff = Math.min(MAX_RETRY_BACKOFF_MILLIS, (long) retryBackoffMillis << Math.min(20, retry - 1));
+        long millis = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @return how much of a body to read at most: the max body size, or the range if it's smaller
+     */
+    public long getBodyLimit() {
+        return rangeBytes > 0 ? Math.min(rangeBytes, maxBodyBytes) : maxBodyBytes;
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} when the request started
+     * @return {@link System#nanoTime()} at which the request times out
+     */
+    public long getDeadline(long startNanos) {
+        long deadline = startNanos + TimeUnit.SECONDS.toNanos(deadlineSecs);
+        return hasJobDeadline && jobDeadline - deadline < 0 ? jobDeadline : deadline;
+    }
+
+    /**
+     * @param url
+     * @return what a request fails with at its deadline: a {@link SocketTimeoutException} telling whether it was the
+     * request's deadline or the job's
+     */
+    public SocketTimeoutException deadlineExceeded(Object url) {
+        return new SocketTimeoutException((isJobOver() ? "Job deadline exceeded: " : "Deadline exceeded: ") + url);
+    }
+
+    /**
+     * @return value of the <code>Range</code> request header, or null if the whole body is wanted
+     */
+    public String getRangeHeader() {
+        return rangeBytes > 0 ? "bytes=0-" + (rangeBytes - 1) : null;
+    }
+
+    /**
+     * @param contentType value of the <code>Content-Type</code> response header, or null if there wasn't one
+     * @return true if the body should be read
+     */
+    public boolean accepts(String contentType) {
+        return !textOnly || isText(contentType);
+    }
+
+    /**
+     * Text is <code>text/*</code> plus the application types that are text (HTML, XML, JSON, JavaScript). A missing
+     * or unparseable content type counts as text, since plenty of servers don't send one for their pages.
+     *
+     * @param contentType value of the <code>Content-Type</code> header
+     * @return
+     */
+    public static boolean isText(String contentType) {
+        if (contentType == null) {
+            return true;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        int semicolon = type.indexOf(';');
+        type = (semicolon >= 0 ? type.substring(0, semicolon) : type).trim();
+        if (type.isEmpty() || type.indexOf('/') < 0) {
+            return true;
+        }
+        return type.startsWith("text/") || type.endsWith("+xml") || type.endsWith("+json")
+                || type.equals("application/xml") || type.equals("application/json")
+                || type.equals("application/javascript") || type.equals("application/ecmascript")
+                || type.equals("application/x-javascript");
+    }
+
+    /**
+     * @param contentRange value of the <code>Content-Range</code> header of a 206 response, e.g.
+     *                     <code>bytes 0-1023/146515</code>
+     * @return true if the range sent is only part of the body, false if it's all of it or it can't be told
+     */
+    public static boolean isPartial(String contentRange) {
+        if (contentRange == null) {
+            return false;
+        }
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return false;
+        }
+        try {
+            long last = Long.parseLong(contentRange.substring(dash + 1, slash).trim());
+            String total = contentRange.substring(slash + 1).trim();
+            // an unknown total ("*") means there's more
+            return total.equals("*") || last + 1 < Long.parseLong(total);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A failure is transient if trying again later may well work: a timeout or a connection that failed or was reset
+     * (but not a host that doesn't resolve, nor a failed TLS handshake), or a 429 (Too Many Requests), 502, 503 or 504
+     * (a gateway or server that's overloaded or restarting). Told by the kind of failure (see
+     * {@link SearchResult#getFailure()}), not by the error message.
+     *
+     * @param result
+     * @return true if the result failed for a transient reason
+     */
+    public static boolean isTransient(SearchResult result) {
+        SearchResult.Failure failure = result.getFailure();
+        if (failure == null) {
+            return false;
+        }
+        switch (failure) {
+            case TIMEOUT:
+            case CONNECTION:
+                return true;
+            case HTTP_STATUS:
+                int status = result.getStatus();
+                return status == 429 || status == 502 || status == 503 || status == 504;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FetchLimits{maxBodyBytes=" + maxBodyBytes + ", deadlineSecs=" + deadlineSecs + ", textOnly=" +
+                textOnly + ", rangeBytes=" + rangeBytes + ", maxRetries=" + maxRetries + ", hedgePercentile=" +
+                hedgePercentile + (hasJobDeadline ? ", jobDeadlineInMillis=" +
+                TimeUnit.NANOSECONDS.toMillis(jobDeadline - System.nanoTime()) : "") + "}";
+    }
+}
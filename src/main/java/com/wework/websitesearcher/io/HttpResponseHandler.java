@@ -0,0 +1,66 @@
+package com.wework.websitesearcher.io;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Callbacks for one request made through {@link NioHttpClient}. Redirects are followed before any of these are
+ * called, so they only ever see the final response.
+ *
+ * The callbacks are made on one of the client's I/O threads, so they should be quick and must not block.
+ */
+public interface HttpResponseHandler {
+
+    /**
+     * Called once the headers of the final response have been read.
+     *
+     * @param url final URL (after redirects)
+     * @param status HTTP status code
+     * @param headers response headers (names are lower case)
+     */
+    default void onHeaders(String url, int status, Map<String, List<String>> headers) {
+    }
+
+    /**
+     * Called for each chunk of the (de-chunked) response body as it arrives, before it's decompressed (if the server
+     * compressed it) and passed on to {@link #onBody}. For counting the bytes transferred.
+     *
+     * @param count number of bytes received
+     */
+    default void onBytesReceived(int count) {
+    }
+
+    /**
+     * Called for each chunk of the (de-chunked, decompressed) response body as it arrives. The bytes are only valid during the call.
+     *
+     * @param bytes buffer containing the chunk
+     * @param offset offset of the first byte of the chunk
+     * @param length number of bytes in the chunk
+     * @return true to stop reading the body and close the connection
+     */
+    boolean onBody(byte[] bytes, int offset, int length);
+
+    /**
+     * Called when the handler doesn't get the whole body because of the {@link FetchLimits}: before the last
+     * {@link #onComplete}, after the body was cut at the max body size, or after the headers of a 206 response that is
+     * only part of the body.
+     */
+    default void onTruncated() {
+    }
+
+    /**
+     * Called once when the whole body has been read, or when {@link #onBody} asked to stop.
+     *
+     * @param stoppedEarly true if {@link #onBody} asked to stop before the end of the body
+     */
+    void onComplete(boolean stoppedEarly);
+
+    /**
+     * Called once if the request failed (unknown host, timeout, 400/500 status, I/O error...). No other callback is
+     * made after this. An error status is reported as an {@link HttpStatusException}.
+     *
+     * @param url URL that failed (may be a redirect target of the original URL)
+     * @param e cause of the failure
+     */
+    void onFailure(String url, Exception e);
+}
@@ -0,0 +1,319 @@
+package com.wework.websitesearcher.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Incremental parser for an HTTP/1.1 response. Bytes are fed in as they are read from the socket; the status and
+ * headers are collected and the body (with chunked transfer-encoding removed) is passed on to a {@link BodyConsumer}
+ * without being buffered.
+ */
+class HttpResponseParser {
+
+    /** Give up on responses whose status line + headers are bigger than this. */
+    static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    interface BodyConsumer {
+        /**
+         * @return true to stop parsing
+         */
+        boolean onBody(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    private enum State { HEADERS, FIXED_BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILERS, BODY_UNTIL_CLOSE, DONE }
+
+    private State state = State.HEADERS;
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+    private final List<String> headerLines = new ArrayList<>();
+    private int headerBytes;
+    private int status;
+    private Map<String, List<String>> headers;
+    private long remaining;
+    private boolean delimited;
+    private boolean keepAlive;
+    private final boolean bodyless;
+
+    /**
+     * @param bodyless true if the request can't have a response body (e.g. HEAD)
+     */
+    HttpResponseParser(boolean bodyless) {
+        this.bodyless = bodyless;
+    }
+
+    boolean headersComplete() {
+        return headers != null;
+    }
+
+    boolean isDone() {
+        return state == State.DONE;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return response headers, keyed by lower case header name, or null if they haven't been read yet
+     */
+    Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the first value of a header, or null
+     *
+     * @param name lower case header name
+     * @return
+     */
+    String getHeader(String name) {
+        List<String> values = headers != null ? headers.get(name) : null;
+        return values != null && !values.isEmpty() ? values.get(0) : null;
+    }
+
+    /**
+     * True if the response body is delimited (by Content-Length or chunked encoding), so the connection could be
+     * used for another request once it has been read.
+     *
+     * @return
+     */
+    boolean isBodyDelimited() {
+        return delimited;
+    }
+
+    /**
+     * True if the connection can be used for another request once the response has been read: the body is delimited
+     * and the server didn't ask to close it (HTTP/1.1 keeps connections open unless told otherwise, HTTP/1.0 only
+     * with <code>Connection: keep-alive</code>).
+     *
+     * @return
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Parse the headers only. Stops as soon as the headers are complete and leaves any body bytes in the buffer.
+     *
+     * @param buffer buffer in read mode
+     * @return true once the headers are complete
+     * @throws IOException if the response is malformed
+     */
+    boolean parseHeaders(ByteBuffer buffer) throws IOException {
+        while (state == State.HEADERS && buffer.hasRemaining()) {
+            String line = readLine(buffer);
+            if (line == null) {
+                return false;
+            }
+            if (!line.isEmpty()) {
+                headerLines.add(line);
+                continue;
+            }
+            if (headerLines.isEmpty()) {
+                // tolerate blank lines before the status line
+                continue;
+            }
+            endOfHeaders();
+        }
+        return headersComplete();
+    }
+
+    /**
+     * Parse the body bytes in the buffer, passing them to the consumer.
+     *
+     * @param buffer buffer in read mode
+     * @param consumer
+     * @return true if parsing should stop (body complete or consumer asked to stop)
+     * @throws IOException if the response is malformed
+     */
+    boolean parseBody(ByteBuffer buffer, BodyConsumer consumer) throws IOException {
+        while (buffer.hasRemaining() && state != State.DONE) {
+            switch (state) {
+                case HEADERS:
+                    if (!parseHeaders(buffer)) {
+                        return false;
+                    }
+                    break;
+                case FIXED_BODY:
+                case CHUNK_DATA:
+                case BODY_UNTIL_CLOSE: {
+                    int length = buffer.remaining();
+                    if (state != State.BODY_UNTIL_CLOSE) {
+                        length = (int) Math.min(length, remaining);
+                        remaining -= length;
+                    }
+                    boolean stop = consume(buffer, length, consumer);
+                    if (remaining == 0 && state == State.FIXED_BODY) {
+                        state = State.DONE;
+                    }
+                    else if (remaining == 0 && state == State.CHUNK_DATA) {
+                        state = State.CHUNK_DATA_END;
+                    }
+                    if (stop) {
+                        return true;
+                    }
+                    break;
+                }
+                case CHUNK_SIZE: {
+                    String line = readLine(buffer);
+                    if (line != null) {
+                        remaining = parseChunkSize(line);
+                        state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                    }
+                    break;
+                }
+                case CHUNK_DATA_END: {
+                    String line = readLine(buffer);
+                    if (line != null) {
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+                }
+                case TRAILERS: {
+                    String line = readLine(buffer);
+                    if (line != null && line.isEmpty()) {
+                        state = State.DONE;
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * Signal that the connection was closed by the server.
+     *
+     * @throws IOException if the response wasn't complete
+     */
+    void endOfStream() throws IOException {
+        if (state == State.BODY_UNTIL_CLOSE) {
+            state = State.DONE;
+        }
+        else if (state != State.DONE) {
+            throw new IOException("Connection closed before the end of the response (state " + state + ")");
+        }
+    }
+
+    private boolean consume(ByteBuffer buffer, int length, BodyConsumer consumer) throws IOException {
+        if (length == 0) {
+            return false;
+        }
+        boolean stop;
+        if (buffer.hasArray()) {
+            stop = consumer.onBody(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.position() + length);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            stop = consumer.onBody(bytes, 0, length);
+        }
+        return stop;
+    }
+
+    private void endOfHeaders() throws IOException {
+        String statusLine = headerLines.get(0);
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new ProtocolException("Invalid status line: " + statusLine);
+        }
+        try {
+            status = Integer.parseInt(parts[1].trim());
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid status line: " + statusLine);
+        }
+        if (status >= 100 && status < 200) {
+            // interim response (e.g. 100 Continue), the real one follows
+            headerLines.clear();
+            headerBytes = 0;
+            return;
+        }
+
+        headers = new LinkedHashMap<>();
+        for (String line : headerLines.subList(1, headerLines.size())) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.computeIfAbsent(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), k -> new ArrayList<>())
+                        .add(line.substring(colon + 1).trim());
+            }
+        }
+
+        String transferEncoding = getHeader("transfer-encoding");
+        String contentLength = getHeader("content-length");
+        if (bodyless || status == 204 || status == 304) {
+            state = State.DONE;
+        }
+        else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+            state = State.CHUNK_SIZE;
+        }
+        else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+            if (remaining < 0) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+            state = remaining == 0 ? State.DONE : State.FIXED_BODY;
+        }
+        else {
+            state = State.BODY_UNTIL_CLOSE;
+        }
+        delimited = state != State.BODY_UNTIL_CLOSE;
+
+        String connection = getHeader("connection");
+        connection = connection != null ? connection.toLowerCase(Locale.ROOT) : "";
+        boolean http10 = parts[0].equals("HTTP/1.0");
+        keepAlive = delimited && (http10 ? connection.contains("keep-alive") : !connection.contains("close"));
+    }
+
+    private long parseChunkSize(String line) throws IOException {
+        int end = line.indexOf(';');
+        String size = (end >= 0 ? line.substring(0, end) : line).trim();
+        long chunkSize;
+        try {
+            chunkSize = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid chunk size: " + line);
+        }
+        if (chunkSize < 0) {
+            throw new ProtocolException("Invalid chunk size: " + line);
+        }
+        return chunkSize;
+    }
+
+    /**
+     * Read up to the next LF. Returns the line without the line terminator, or null if the line isn't complete yet
+     * (the partial line is kept for the next call).
+     */
+    private String readLine(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (state == State.HEADERS && ++headerBytes > MAX_HEADER_BYTES) {
+                throw new ProtocolException("Response headers are bigger than " + MAX_HEADER_BYTES + " bytes");
+            }
+            if (b == '\n') {
+                byte[] line = lineBuffer.toByteArray();
+                lineBuffer.reset();
+                int length = line.length > 0 && line[line.length - 1] == '\r' ? line.length - 1 : line.length;
+                return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            if (lineBuffer.size() >= MAX_HEADER_BYTES) {
+                throw new ProtocolException("Line is longer than " + MAX_HEADER_BYTES + " bytes");
+            }
+            lineBuffer.write(b);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,19 @@
+package com.wework.websitesearcher.io;
+
+import java.io.IOException;
+
+/**
+ * The server answered with an error status (400 or more). Passed to {@link HttpResponseHandler#onFailure}.
+ */
+public class HttpStatusException extends IOException {
+    private final int status;
+
+    public HttpStatusException(int status, String url) {
+        super("Server returned HTTP response code: " + status + " for URL: " + url);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+}
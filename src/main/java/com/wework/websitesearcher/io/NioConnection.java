@@ -0,0 +1,46 @@
+package com.wework.websitesearcher.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * An open (and for https, handshaken) connection of {@link NioHttpClient}, kept in a {@link NioConnectionPool}
+ * between requests.
+ */
+class NioConnection {
+    private static final Logger LOG = LoggerFactory.getLogger(NioConnection.class);
+
+    final String poolKey;
+    final SocketChannel channel;
+    final SelectionKey key;
+    /** TLS only, null for http */
+    final SSLEngine engine;
+    final ByteBuffer netIn;
+    final ByteBuffer netOut;
+    long idleSince;
+
+    NioConnection(String poolKey, SocketChannel channel, SelectionKey key, SSLEngine engine, ByteBuffer netIn,
+                  ByteBuffer netOut) {
+        this.poolKey = poolKey;
+        this.channel = channel;
+        this.key = key;
+        this.engine = engine;
+        this.netIn = netIn;
+        this.netOut = netOut;
+    }
+
+    void close() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.trace("Error closing idle connection to {}", poolKey, e);
+        }
+    }
+}
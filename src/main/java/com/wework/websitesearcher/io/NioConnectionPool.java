@@ -0,0 +1,124 @@
+package com.wework.websitesearcher.io;
+
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Idle keep-alive connections of one I/O thread of {@link NioHttpClient}, by scheme, host and port. A connection is
+ * only ever used by the I/O thread whose selector it's registered with, so each I/O thread has its own pool and
+ * nothing here is thread-safe.
+ *
+ * While idle, a connection stays registered for reads: the server closing it (or sending anything unexpected) makes
+ * it readable and it's dropped from the pool.
+ */
+class NioConnectionPool {
+
+    /** Max idle connections kept per scheme, host and port */
+    static final int MAX_IDLE_PER_HOST = 8;
+    /** Idle connections are closed after this long (servers usually close them after 5-60s anyway) */
+    static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(15);
+
+    private final Map<String, Deque<NioConnection>> idle = new HashMap<>();
+
+    /**
+     * Key of the pool the connections for a URL go in.
+     *
+     * @param protocol
+     * @param host
+     * @param port
+     * @return
+     */
+    static String key(String protocol, String host, int port) {
+        return protocol + "://" + host.toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    /**
+     * Take the most recently used idle connection for the key.
+     *
+     * @param poolKey
+     * @return the connection, or null if there is none
+     */
+    NioConnection take(String poolKey) {
+        Deque<NioConnection> connections = idle.get(poolKey);
+        if (connections == null) {
+            return null;
+        }
+        NioConnection connection;
+        while ((connection = connections.pollLast()) != null && !connection.channel.isOpen()) {
+            // already closed, try the next one
+        }
+        if (connections.isEmpty()) {
+            idle.remove(poolKey);
+        }
+        return connection;
+    }
+
+    /**
+     * Put a connection back in the pool once its response has been fully read.
+     *
+     * @param connection
+     * @param now current {@link System#nanoTime()}
+     * @return false if the pool for that host is full, in which case the caller should close the connection
+     */
+    boolean release(NioConnection connection, long now) {
+        Deque<NioConnection> connections = idle.computeIfAbsent(connection.poolKey, key -> new ArrayDeque<>());
+        if (connections.size() >= MAX_IDLE_PER_HOST) {
+            return false;
+        }
+        connection.idleSince = now;
+        connection.key.attach(connection);
+        connection.key.interestOps(SelectionKey.OP_READ);
+        connections.addLast(connection);
+        return true;
+    }
+
+    /**
+     * Close an idle connection and drop it from the pool (e.g. the server closed it).
+     *
+     * @param connection
+     */
+    void evict(NioConnection connection) {
+        Deque<NioConnection> connections = idle.get(connection.poolKey);
+        if (connections != null) {
+            connections.remove(connection);
+            if (connections.isEmpty()) {
+                idle.remove(connection.poolKey);
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Close the connections that have been idle for too long.
+     *
+     * @param now current {@link System#nanoTime()}
+     */
+    void expire(long now) {
+        for (Iterator<Deque<NioConnection>> pools = idle.values().iterator(); pools.hasNext(); ) {
+            Deque<NioConnection> connections = pools.next();
+            // oldest first
+            while (!connections.isEmpty() && now - connections.peekFirst().idleSince > IDLE_TIMEOUT_NANOS) {
+                connections.pollFirst().close();
+            }
+            if (connections.isEmpty()) {
+                pools.remove();
+            }
+        }
+    }
+
+    void closeAll() {
+        for (Deque<NioConnection> connections : new ArrayList<>(idle.values())) {
+            for (NioConnection connection : connections) {
+                connection.close();
+            }
+        }
+        idle.clear();
+    }
+}
@@ -0,0 +1,298 @@
+package com.wework.websitesearcher.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking HTTP/1.1 client. A small fixed number of I/O threads each run a {@link Selector} over any number of
+ * connections, so thousands of requests can be in flight at once without a thread per request. Supports http and
+ * https, chunked responses, gzip and deflate compressed bodies, cookies (through the default {@link java.net.CookieHandler}, see
+ * {@link UrlReader#enableCookies()}) and follows 301/302/303/307/308 redirects (at most
+ * {@link UrlReader#MAX_REDIRECTS}, failing on the first one back to a URL already requested), like
+ * {@link UrlReader#getUrlContentsWithTimeout(String, int)}.
+ *
+ * The connect timeout and the read timeout (max time without receiving any bytes) are both <code>timeoutSecs</code>,
+ * same as {@link UrlReader#getUrlContentsWithTimeout(String, int)}. The {@link FetchLimits} of {@link UrlReader} when
+ * the client is created apply as well: deadline per request (redirects included), max body size, range and content
+ * types.
+ *
+ * Host name lookups block, so they are done by a {@link DnsResolver} (with its own threads and cache) before the
+ * connection is handed to an I/O thread.
+ *
+ * Connections are kept alive and reused for the next request to the same host (another URL or a redirect), which
+ * skips the TCP and TLS handshakes. All the requests to a host go through the same I/O thread, which keeps the idle
+ * connections in its own {@link NioConnectionPool}.
+ */
+public class NioHttpClient implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(NioHttpClient.class);
+
+    /** How often the I/O threads check for timed out requests. */
+    private static final long TICK_MILLIS = 100;
+    private static final int READ_BUFFER_SIZE = 32 * 1024;
+
+    private final IoThread[] ioThreads;
+    private final DnsResolver resolver;
+    /** True if the resolver was created by (and is closed with) this client */
+    private final boolean ownResolver;
+    private final int timeoutMillis;
+    private final FetchLimits limits;
+    private final SSLContext sslContext;
+
+    /**
+     * Create the client, with its own {@link DnsResolver}, and start its I/O threads.
+     *
+     * @param ioThreads number of selector threads (1 or 2 per core is plenty)
+     * @param resolverThreads number of threads doing (blocking) host name lookups
+     * @param timeoutSecs connect and read timeout
+     * @throws IOException if a selector can't be opened
+     */
+    public NioHttpClient(int ioThreads, int resolverThreads, int timeoutSecs) throws IOException {
+        this(ioThreads, new DnsResolver(resolverThreads, DnsResolver.DEFAULT_MAX_ENTRIES,
+                DnsResolver.DEFAULT_TTL_MILLIS, DnsResolver.DEFAULT_NEGATIVE_TTL_MILLIS), true, timeoutSecs);
+    }
+
+    /**
+     * Create the client and start its I/O threads.
+     *
+     * @param ioThreads number of selector threads (1 or 2 per core is plenty)
+     * @param resolver resolves (and caches) the host names, e.g. {@link DnsResolver#getInstance()}. Not closed with
+     *                 the client.
+     * @param timeoutSecs connect and read timeout
+     * @throws IOException if a selector can't be opened
+     */
+    public NioHttpClient(int ioThreads, DnsResolver resolver, int timeoutSecs) throws IOException {
+        this(ioThreads, resolver, false, timeoutSecs);
+    }
+
+    private NioHttpClient(int ioThreads, DnsResolver resolver, boolean ownResolver, int timeoutSecs) throws IOException {
+        if (ioThreads < 1 || timeoutSecs < 1) {
+            throw new IllegalArgumentException("I/O threads and timeout must both be positive.");
+        }
+        try {
+            this.sslContext = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No default SSLContext", e);
+        }
+        this.timeoutMillis = timeoutSecs * 1000;
+        this.limits = UrlReader.getFetchLimits();
+        this.resolver = resolver;
+        this.ownResolver = ownResolver;
+        this.ioThreads = new IoThread[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            this.ioThreads[i] = new IoThread("nio_io_" + (i + 1));
+            this.ioThreads[i].start();
+        }
+    }
+
+    /**
+     * Start a GET request. Returns right away; the handler is called back on an I/O thread.
+     *
+     * @param url fully-qualified http or https URL
+     * @param handler
+     */
+    public void get(String url, HttpResponseHandler handler) {
+        start(url, handler, Collections.emptyList(), limits.getDeadline(System.nanoTime()));
+    }
+
+    /**
+     * Start the request for a URL (the original or a redirect target)
+     *
+     * @param url
+     * @param handler
+     * @param chain the URLs requested before this one, the original first: one per redirect followed so far
+     * @param deadline {@link System#nanoTime()} by which the request, redirects included, must be done
+     */
+    void start(String url, HttpResponseHandler handler, List<String> chain, long deadline) {
+        URL parsed;
+        try {
+            parsed = new URL(url);
+        } catch (MalformedURLException e) {
+            handler.onFailure(url, e);
+            return;
+        }
+        if (!"http".equals(parsed.getProtocol()) && !"https".equals(parsed.getProtocol())) {
+            handler.onFailure(url, new MalformedURLException("Unsupported protocol: " + url));
+            return;
+        }
+        NioHttpExchange exchange = new NioHttpExchange(this, parsed, handler, chain, deadline);
+        // the callback runs right away, on this thread, if the host is cached
+        resolver.resolve(parsed.getHost()).whenComplete((address, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                if (cause instanceof UnknownHostException) {
+                    LOG.warn("Unknown host: " + url);
+                }
+                exchange.fail(cause instanceof Exception ? (Exception) cause : new IOException(cause));
+                return;
+            }
+            exchange.setAddress(new InetSocketAddress(address, exchange.getPort()));
+            ioThreadFor(parsed.getHost()).register(exchange);
+        });
+    }
+
+    int getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    FetchLimits getLimits() {
+        return limits;
+    }
+
+    SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * The I/O thread that handles (and keeps the idle connections of) a host.
+     *
+     * @param host
+     * @return
+     */
+    private IoThread ioThreadFor(String host) {
+        return ioThreads[Math.floorMod(host.toLowerCase(Locale.ROOT).hashCode(), ioThreads.length)];
+    }
+
+    /**
+     * Stop the I/O threads. Requests still in flight fail.
+     */
+    @Override
+    public void close() {
+        if (ownResolver) {
+            resolver.close();
+        }
+        for (IoThread ioThread : ioThreads) {
+            ioThread.shutdown();
+        }
+        for (IoThread ioThread : ioThreads) {
+            try {
+                ioThread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs the selector loop for the exchanges registered with it. All the socket I/O of an exchange happens on the
+     * one I/O thread it was registered with. Selection keys are attached to either an exchange or an idle connection.
+     */
+    private static class IoThread extends Thread {
+        private final Selector selector;
+        private final Queue<NioHttpExchange> pending = new ConcurrentLinkedQueue<>();
+        private final NioConnectionPool pool = new NioConnectionPool();
+        /** Shared by all the exchanges of this thread: a read is always fully processed before the next one. */
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private volatile boolean running = true;
+
+        IoThread(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Hand an exchange to this thread, or fail it if the thread has stopped (the client was closed while its host
+         * was being looked up): nothing would ever take it from the queue.
+         *
+         * @param exchange
+         */
+        void register(NioHttpExchange exchange) {
+            pending.add(exchange);
+            // whoever takes it from the queue fails it: this or the last drain of the stopping thread
+            if (!running && pending.remove(exchange)) {
+                exchange.fail(new IOException("Client closed"));
+                return;
+            }
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            LOG.debug("BEGIN I/O thread: {}", getName());
+            long lastTimeoutCheck = System.nanoTime();
+            while (running) {
+                try {
+                    selector.select(TICK_MILLIS);
+                } catch (IOException e) {
+                    LOG.error("Selector failed on {}", getName(), e);
+                    break;
+                }
+
+                NioHttpExchange exchange;
+                while ((exchange = pending.poll()) != null) {
+                    exchange.start(selector, readBuffer, pool);
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Object attachment = key.attachment();
+                    if (attachment instanceof NioHttpExchange) {
+                        ((NioHttpExchange) attachment).handle(key);
+                    }
+                    else {
+                        // an idle connection is only readable when the server closed it (or sent junk)
+                        pool.evict((NioConnection) attachment);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                long now = System.nanoTime();
+                if (now - lastTimeoutCheck >= TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS)) {
+                    lastTimeoutCheck = now;
+                    // copy the keys since timing out an exchange cancels its key
+                    List<SelectionKey> keys = new ArrayList<>(selector.keys());
+                    for (SelectionKey key : keys) {
+                        if (key.attachment() instanceof NioHttpExchange) {
+                            ((NioHttpExchange) key.attachment()).checkTimeout(now);
+                        }
+                    }
+                    pool.expire(now);
+                }
+            }
+
+            // fail whatever is left
+            pool.closeAll();
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.attachment() instanceof NioHttpExchange) {
+                    ((NioHttpExchange) key.attachment()).fail(new IOException("Client closed"));
+                }
+            }
+            NioHttpExchange exchange;
+            while ((exchange = pending.poll()) != null) {
+                exchange.fail(new IOException("Client closed"));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing selector", e);
+            }
+            LOG.debug("Closing I/O thread: {}", getName());
+        }
+    }
+}
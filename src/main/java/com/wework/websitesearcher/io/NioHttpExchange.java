@@ -0,0 +1,830 @@
+package com.wework.websitesearcher.io;
+
+import com.wework.websitesearcher.util.SearchMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.net.CookieHandler;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One request/response over one connection of {@link NioHttpClient}. A state machine driven by the selector of the
+ * I/O thread the exchange is registered with: connect, TLS handshake (for https), send the request, receive the
+ * response. Redirects start a new exchange.
+ *
+ * Connections are kept alive: an idle connection to the same host from the I/O thread's {@link NioConnectionPool} is
+ * used instead of connecting (and retried once on a new connection if the server had closed it in the meantime), and
+ * once the response has been read the connection goes back to the pool. When the handler is done before the end of
+ * the body (a match, a redirect or an error status), up to {@link UrlReader#MAX_DRAIN_BYTES} of the rest is read and
+ * thrown away to keep the connection.
+ *
+ * Bodies are requested compressed and decompressed as they arrive by a {@link ContentDecoder}, so the handler gets
+ * the page itself.
+ *
+ * The {@link FetchLimits} of the client apply: a response that isn't text fails after its headers, the handler only
+ * gets the body up to the limit (and then {@link HttpResponseHandler#onTruncated()}), and the whole exchange,
+ * redirects included, fails with a {@link SocketTimeoutException} at the deadline.
+ *
+ * Apart from {@link #fail(Exception)}, which may also be called by a resolver thread before the exchange is
+ * registered, everything runs on the I/O thread.
+ */
+class NioHttpExchange {
+    private static final Logger LOG = LoggerFactory.getLogger(NioHttpExchange.class);
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private enum State { RESOLVING, CONNECTING, HANDSHAKING, SENDING, RECEIVING, DRAINING, DONE }
+
+    /** Result of trying to unwrap TLS records. */
+    private enum Unwrapped { PROGRESS, NEED_DATA, CLOSED }
+
+    private final NioHttpClient client;
+    private final URL url;
+    private final HttpResponseHandler handler;
+    /** The URLs requested before this one, the original first */
+    private final List<String> chain;
+    /** {@link System#nanoTime()} at which the request times out, however busy the connection */
+    private final long requestDeadline;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private HttpResponseParser parser = new HttpResponseParser(false);
+
+    private volatile InetSocketAddress address;
+    private State state = State.RESOLVING;
+    private long deadline;
+    private Selector selector;
+    private NioConnectionPool pool;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private ByteBuffer request;
+    /** True while running on a connection taken from the pool */
+    private boolean reused;
+    private boolean receivedAny;
+    private long drained;
+    /** Decompresses the body, or null if it isn't compressed */
+    private ContentDecoder decoder;
+    /** Bytes handed to the handler, after decompression */
+    private long bodyBytes;
+    private boolean truncated;
+    /** The handler asked to stop before the end of the body */
+    private boolean handlerStopped;
+    /** Start of the current phase (connect, TLS handshake, waiting for the response) */
+    private long phaseStart;
+    private long firstByteAt;
+
+    // TLS only
+    private SSLEngine engine;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+
+    NioHttpExchange(NioHttpClient client, URL url, HttpResponseHandler handler, List<String> chain,
+                    long requestDeadline) {
+        this.client = client;
+        this.url = url;
+        this.handler = handler;
+        this.chain = chain;
+        this.requestDeadline = requestDeadline;
+    }
+
+    int getPort() {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    void setAddress(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    String getPoolKey() {
+        return NioConnectionPool.key(url.getProtocol(), url.getHost(), getPort());
+    }
+
+    /**
+     * Take an idle connection from the pool or open a new one. Called on the I/O thread once the host name has been
+     * resolved.
+     *
+     * @param selector selector of the I/O thread
+     * @param readBuffer read buffer shared by all the exchanges of the I/O thread
+     * @param pool idle connections of the I/O thread
+     */
+    void start(Selector selector, ByteBuffer readBuffer, NioConnectionPool pool) {
+        if (finished.get()) {
+            return;
+        }
+        this.selector = selector;
+        this.readBuffer = readBuffer;
+        this.pool = pool;
+        try {
+            NioConnection idle = pool.take(getPoolKey());
+            if (idle != null) {
+                reuse(idle);
+            }
+            else {
+                connect();
+            }
+        } catch (IOException | RuntimeException e) {
+            failOrRetry(e);
+        }
+    }
+
+    private void connect() throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        key = channel.register(selector, 0, this);
+        state = State.CONNECTING;
+        extendDeadline();
+        phaseStart = System.nanoTime();
+        if (channel.connect(address)) {
+            connected();
+        }
+        else {
+            key.interestOps(SelectionKey.OP_CONNECT);
+        }
+    }
+
+    private void reuse(NioConnection connection) throws IOException {
+        LOG.trace("Reusing connection to {}", connection.poolKey);
+        reused = true;
+        channel = connection.channel;
+        key = connection.key;
+        key.attach(this);
+        engine = connection.engine;
+        if (engine != null) {
+            netIn = connection.netIn;
+            netOut = connection.netOut;
+            appIn = newAppBuffer();
+        }
+        state = State.SENDING;
+        request = ByteBuffer.wrap(buildRequest().getBytes(StandardCharsets.ISO_8859_1));
+        extendDeadline();
+        step();
+    }
+
+    /**
+     * Called by the I/O thread when the channel is ready.
+     *
+     * @param key
+     */
+    void handle(SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    connected();
+                }
+                return;
+            }
+            step();
+        } catch (IOException | RuntimeException e) {
+            failOrRetry(e);
+        }
+    }
+
+    /**
+     * Fail the exchange if nothing has happened for longer than the timeout, or if it's past the request deadline.
+     *
+     * @param now current {@link System#nanoTime()}
+     */
+    void checkTimeout(long now) {
+        if (state == State.DRAINING && now - deadline > 0) {
+            close();
+        }
+        else if (state != State.DRAINING && state != State.DONE && now - requestDeadline > 0) {
+            LOG.trace("URL: " + url + " DEADLINE");
+            fail(client.getLimits().deadlineExceeded(url));
+        }
+        else if (state != State.DONE && now - deadline > 0) {
+            LOG.trace("URL: " + url + " TIMEOUT");
+            fail(new SocketTimeoutException((state == State.CONNECTING ? "Connect" : "Read") + " timed out: " + url));
+        }
+    }
+
+    /**
+     * Fail the exchange and notify the handler (unless the exchange already finished).
+     *
+     * @param e
+     */
+    void fail(Exception e) {
+        if (finished.compareAndSet(false, true)) {
+            close();
+            handler.onFailure(url.toString(), e);
+        }
+        else if (state == State.DRAINING) {
+            // the handler already has its result, only the connection is lost
+            close();
+        }
+    }
+
+    /**
+     * A pooled connection may have been closed by the server while it was idle. If it fails before any of the
+     * response arrived, send the request again on a new connection instead of failing.
+     *
+     * @param e
+     */
+    private void failOrRetry(Exception e) {
+        if (!reused || receivedAny || finished.get() || state == State.DONE) {
+            fail(e);
+            return;
+        }
+        LOG.debug("Idle connection to {} was closed ({}), retrying on a new connection", getPoolKey(), e.toString());
+        closeChannel();
+        reused = false;
+        engine = null;
+        parser = new HttpResponseParser(false);
+        try {
+            connect();
+        } catch (IOException | RuntimeException retryError) {
+            fail(retryError);
+        }
+    }
+
+    private void complete(boolean stoppedEarly, ByteBuffer data) throws IOException {
+        if (decoder != null && !handlerStopped && !truncated) {
+            // throws if the compressed body was cut short
+            decoder.finish();
+        }
+        if (receivedAny && !finished.get()) {
+            // first to last byte: includes decoding and matching, which run on this thread as the body arrives
+            SearchMetrics.getInstance().record(SearchMetrics.Phase.DOWNLOAD, System.nanoTime() - firstByteAt);
+        }
+        finish(data, () -> handler.onComplete(stoppedEarly));
+    }
+
+    /**
+     * Hand the result to the handler (the callback) and keep the connection if the response allows it, reading and
+     * throwing away what's left of the body first.
+     *
+     * @param data response bytes read but not parsed yet
+     * @param callback
+     * @throws IOException
+     */
+    private void finish(ByteBuffer data, Runnable callback) throws IOException {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        endDecoder();
+        if (!parser.isKeepAlive()) {
+            close();
+            callback.run();
+            return;
+        }
+        state = State.DRAINING;
+        callback.run();
+        drain(data);
+    }
+
+    /**
+     * Throw away the rest of the body (up to {@link UrlReader#MAX_DRAIN_BYTES}) and put the connection back in the
+     * pool once it's all been read.
+     *
+     * @param data
+     * @throws IOException
+     */
+    private void drain(ByteBuffer data) throws IOException {
+        if (!parser.isDone()) {
+            parser.parseBody(data, (bytes, offset, length) -> (drained += length) > UrlReader.MAX_DRAIN_BYTES);
+            if (!parser.isDone()) {
+                if (drained > UrlReader.MAX_DRAIN_BYTES) {
+                    close();
+                }
+                return;
+            }
+        }
+        // anything left over (or a TLS message still to process) means the connection isn't in a clean state
+        boolean clean = !data.hasRemaining() && (engine == null || (netIn.position() == 0 && !netOut.hasRemaining()
+                && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING));
+        if (clean && pool.release(new NioConnection(getPoolKey(), channel, key, engine, netIn, netOut),
+                System.nanoTime())) {
+            LOG.trace("Keeping connection to {}", getPoolKey());
+            state = State.DONE;
+            // the connection belongs to the pool now
+            channel = null;
+            key = null;
+            engine = null;
+            return;
+        }
+        close();
+    }
+
+    private void close() {
+        state = State.DONE;
+        endDecoder();
+        closeChannel();
+    }
+
+    private void endDecoder() {
+        if (decoder != null) {
+            decoder.end();
+            decoder = null;
+        }
+    }
+
+    private void closeChannel() {
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.trace("Error closing channel for {}", url, e);
+            }
+        }
+        if (engine != null) {
+            engine.closeOutbound();
+        }
+    }
+
+    private void connected() throws IOException {
+        long now = System.nanoTime();
+        SearchMetrics.getInstance().record(SearchMetrics.Phase.CONNECT, now - phaseStart);
+        phaseStart = now;
+        if ("https".equals(url.getProtocol())) {
+            engine = client.getSslContext().createSSLEngine(url.getHost(), getPort());
+            engine.setUseClientMode(true);
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            if (!url.getHost().matches("[0-9.]+|\\[.*\\]")) {
+                try {
+                    parameters.setServerNames(Collections.singletonList(new SNIHostName(url.getHost())));
+                } catch (IllegalArgumentException e) {
+                    LOG.debug("Not a valid SNI host name: {}", url.getHost());
+                }
+            }
+            engine.setSSLParameters(parameters);
+            int packetSize = engine.getSession().getPacketBufferSize();
+            netIn = ByteBuffer.allocate(packetSize);
+            netOut = ByteBuffer.allocate(packetSize);
+            netOut.flip();
+            appIn = newAppBuffer();
+            engine.beginHandshake();
+            state = State.HANDSHAKING;
+        }
+        else {
+            state = State.SENDING;
+        }
+        request = ByteBuffer.wrap(buildRequest().getBytes(StandardCharsets.ISO_8859_1));
+        extendDeadline();
+        step();
+    }
+
+    private ByteBuffer newAppBuffer() {
+        int appSize = engine.getSession().getApplicationBufferSize();
+        return readBuffer.capacity() >= appSize ? readBuffer : ByteBuffer.allocate(appSize);
+    }
+
+    private void step() throws IOException {
+        while (true) {
+            switch (state) {
+                case HANDSHAKING:
+                    if (!handshake()) {
+                        return;
+                    }
+                    SearchMetrics.getInstance().record(SearchMetrics.Phase.TLS, System.nanoTime() - phaseStart);
+                    state = State.SENDING;
+                    break;
+                case SENDING:
+                    if (!send()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    state = State.RECEIVING;
+                    phaseStart = System.nanoTime();
+                    key.interestOps(SelectionKey.OP_READ);
+                    break;
+                case RECEIVING:
+                case DRAINING:
+                    receive();
+                    return;
+                default:
+                    return;
+            }
+        }
+    }
+
+    private String buildRequest() {
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        String host = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+        StringBuilder request = new StringBuilder(256)
+                .append("GET ").append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(host).append("\r\n")
+                .append("User-Agent: ").append(UrlReader.USER_AGENT).append("\r\n")
+                .append("Accept: */*\r\n");
+        String range = client.getLimits().getRangeHeader();
+        if (range != null) {
+            request.append("Range: ").append(range).append("\r\n");
+        }
+        else {
+            // not with a range: a range of the compressed bytes can't be decompressed
+            request.append("Accept-Encoding: ").append(ContentDecoder.ACCEPT_ENCODING).append("\r\n");
+        }
+        CookieHandler cookieHandler = CookieHandler.getDefault();
+        if (cookieHandler != null) {
+            try {
+                Map<String, List<String>> cookies = cookieHandler.get(url.toURI(), Collections.emptyMap());
+                for (Map.Entry<String, List<String>> cookie : cookies.entrySet()) {
+                    for (String value : cookie.getValue()) {
+                        request.append(cookie.getKey()).append(": ").append(value).append("\r\n");
+                    }
+                }
+            } catch (IOException | URISyntaxException e) {
+                LOG.debug("Couldn't get cookies for {}", url, e);
+            }
+        }
+        return request.append("\r\n").toString();
+    }
+
+    // ----- sending
+
+    private boolean send() throws IOException {
+        if (engine == null) {
+            channel.write(request);
+            return !request.hasRemaining();
+        }
+        while (true) {
+            if (!flush()) {
+                return false;
+            }
+            if (!request.hasRemaining()) {
+                return true;
+            }
+            wrap(request);
+        }
+    }
+
+    // ----- receiving
+
+    private void receive() throws IOException {
+        while (state == State.RECEIVING || state == State.DRAINING) {
+            ByteBuffer data;
+            boolean endOfStream = false;
+            if (engine == null) {
+                readBuffer.clear();
+                int read = channel.read(readBuffer);
+                if (read == 0) {
+                    return;
+                }
+                endOfStream = read < 0;
+                readBuffer.flip();
+                data = readBuffer;
+            }
+            else {
+                if (!handlePostHandshake()) {
+                    return;
+                }
+                appIn.clear();
+                Unwrapped unwrapped = unwrap();
+                appIn.flip();
+                if (unwrapped == Unwrapped.NEED_DATA && !appIn.hasRemaining()) {
+                    return;
+                }
+                endOfStream = unwrapped == Unwrapped.CLOSED;
+                data = appIn;
+            }
+
+            if (data.hasRemaining()) {
+                if (!receivedAny) {
+                    firstByteAt = System.nanoTime();
+                    SearchMetrics.getInstance().record(SearchMetrics.Phase.FIRST_BYTE, firstByteAt - phaseStart);
+                }
+                receivedAny = true;
+                extendDeadline();
+                if (process(data)) {
+                    return;
+                }
+            }
+            if (endOfStream) {
+                if (state == State.DRAINING) {
+                    close();
+                    return;
+                }
+                // throws if the response isn't complete
+                parser.endOfStream();
+                complete(false, data);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Feed response bytes to the parser.
+     *
+     * @param data
+     * @return true if the exchange is finished
+     * @throws IOException
+     */
+    private boolean process(ByteBuffer data) throws IOException {
+        if (state == State.DRAINING) {
+            drain(data);
+            return state == State.DONE;
+        }
+        if (!parser.headersComplete()) {
+            if (!parser.parseHeaders(data)) {
+                return false;
+            }
+            if (headersReceived(data)) {
+                return state == State.DONE;
+            }
+        }
+        if (parser.isDone()) {
+            complete(false, data);
+            return true;
+        }
+        if (parser.parseBody(data, this::onBody)) {
+            // cut at the limit: for the handler, that's the end of the body
+            complete(!truncated && !parser.isDone(), data);
+            return state == State.DONE;
+        }
+        return false;
+    }
+
+    /**
+     * Handle the status and headers of the response.
+     *
+     * @param data the rest of the bytes read (the start of the body)
+     * @return true if the handler is done with the exchange (redirect or error)
+     * @throws IOException
+     */
+    private boolean headersReceived(ByteBuffer data) throws IOException {
+        int status = parser.getStatus();
+        CookieHandler cookieHandler = CookieHandler.getDefault();
+        if (cookieHandler != null) {
+            try {
+                cookieHandler.put(url.toURI(), parser.getHeaders());
+            } catch (URISyntaxException e) {
+                LOG.debug("Couldn't store cookies for {}", url, e);
+            }
+        }
+
+        if (UrlReader.isRedirect(status)) {
+            String location = parser.getHeader("location");
+            if (location == null) {
+                fail(new ProtocolException("Redirect without a Location header: " + url));
+            }
+            else if (chain.size() >= UrlReader.MAX_REDIRECTS) {
+                fail(new ProtocolException("Too many redirects: " + url));
+            }
+            else {
+                String target = new URL(url, location).toString();
+                String first = chain.isEmpty() ? url.toString() : chain.get(0);
+                if (target.equals(url.toString()) || chain.contains(target)) {
+                    fail(new ProtocolException("Redirect loop: " + first + " comes back to " + target));
+                    return true;
+                }
+                LOG.debug("Redirecting from " + url + " to " + target);
+                List<String> next = new ArrayList<>(chain);
+                next.add(url.toString());
+                // often to the same host, which then gets this connection once the redirect body has been drained
+                finish(data, () -> client.start(target, handler, next, requestDeadline));
+            }
+            return true;
+        }
+        if (status >= 400) {
+            LOG.debug("URL: " + url + " returned status code " + status);
+            IOException error = new HttpStatusException(status, url.toString());
+            finish(data, () -> handler.onFailure(url.toString(), error));
+            return true;
+        }
+        handler.onHeaders(url.toString(), status, parser.getHeaders());
+        // throws if the encoding isn't supported
+        decoder = ContentDecoder.forEncoding(parser.getHeader("content-encoding"));
+        String contentType = parser.getHeader("content-type");
+        if (!client.getLimits().accepts(contentType)) {
+            LOG.debug("Skipping url: {}, content type: {}", url, contentType);
+            IOException error = new IOException("Skipped content type: " + contentType);
+            finish(data, () -> handler.onFailure(url.toString(), error));
+            return true;
+        }
+        if (status == HttpURLConnection.HTTP_PARTIAL && FetchLimits.isPartial(parser.getHeader("content-range"))) {
+            handler.onTruncated();
+        }
+        return false;
+    }
+
+    /**
+     * A chunk of the body as received: decompress it if needed and hand it to the handler.
+     *
+     * @return true to stop reading the body
+     * @throws IOException if the body can't be decompressed
+     */
+    private boolean onBody(byte[] bytes, int offset, int length) throws IOException {
+        if (decoder == null) {
+            return deliver(bytes, offset, length, true);
+        }
+        handler.onBytesReceived(length);
+        return decoder.decode(bytes, offset, length, (decoded, from, count) -> deliver(decoded, from, count, false));
+    }
+
+    /**
+     * Hand a chunk of the (decompressed) body to the handler, up to the body limit, which so applies to what the body
+     * decompresses to.
+     *
+     * @param received true if the bytes are as received (not decompressed), and so count as received once handed over
+     * @return true to stop reading the body: the handler asked to, or the limit has been reached
+     */
+    private boolean deliver(byte[] bytes, int offset, int length, boolean received) {
+        FetchLimits limits = client.getLimits();
+        // a server that honored the range already cut the body
+        long limit = parser.getStatus() == HttpURLConnection.HTTP_PARTIAL ? limits.getMaxBodyBytes()
+                : limits.getBodyLimit();
+        int allowed = (int) Math.min(length, limit - bodyBytes);
+        bodyBytes += allowed;
+        if (received && allowed > 0) {
+            handler.onBytesReceived(allowed);
+        }
+        if (allowed > 0 && handler.onBody(bytes, offset, allowed)) {
+            handlerStopped = true;
+            return true;
+        }
+        if (allowed < length) {
+            LOG.debug("Body of url: {} is over {} bytes, not reading the rest", url, limit);
+            truncated = true;
+            handler.onTruncated();
+            return true;
+        }
+        return false;
+    }
+
+    // ----- TLS
+
+    /**
+     * Drive the TLS handshake as far as it can go without blocking.
+     *
+     * @return true once the handshake is complete
+     * @throws IOException
+     */
+    private boolean handshake() throws IOException {
+        while (true) {
+            if (!flush()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    return true;
+                default:
+                    // NEED_UNWRAP (and NEED_UNWRAP_AGAIN on newer JDKs)
+                    Unwrapped unwrapped = unwrap();
+                    if (unwrapped == Unwrapped.CLOSED) {
+                        throw new IOException("Connection closed during TLS handshake: " + url);
+                    }
+                    if (unwrapped == Unwrapped.NEED_DATA) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        return false;
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * After the handshake the server may still send handshake messages (e.g. TLS 1.3 session tickets or key updates)
+     * that need a task run or a reply.
+     *
+     * @return false if a reply is waiting to be written
+     * @throws IOException
+     */
+    private boolean handlePostHandshake() throws IOException {
+        while (true) {
+            if (!flush()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+            else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrap(EMPTY);
+            }
+            else {
+                key.interestOps(SelectionKey.OP_READ);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unwrap TLS records from netIn into appIn, reading from the channel when more bytes are needed. Stops after the
+     * first record that produced something.
+     *
+     * @return
+     * @throws IOException
+     */
+    private Unwrapped unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            switch (result.getStatus()) {
+                case OK:
+                    if (result.bytesProduced() > 0 || result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                        return Unwrapped.PROGRESS;
+                    }
+                    break;
+                case CLOSED:
+                    return Unwrapped.CLOSED;
+                case BUFFER_OVERFLOW:
+                    if (appIn.position() > 0) {
+                        // let the caller process what's there first
+                        return Unwrapped.PROGRESS;
+                    }
+                    appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        ByteBuffer bigger = ByteBuffer.allocate(Math.max(netIn.capacity() * 2,
+                                engine.getSession().getPacketBufferSize()));
+                        netIn.flip();
+                        bigger.put(netIn);
+                        netIn = bigger;
+                    }
+                    int read = channel.read(netIn);
+                    if (read < 0) {
+                        return Unwrapped.CLOSED;
+                    }
+                    if (read == 0) {
+                        return Unwrapped.NEED_DATA;
+                    }
+                    extendDeadline();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Wrap app bytes into netOut. Only call once netOut has been flushed.
+     *
+     * @param source
+     * @throws IOException
+     */
+    private void wrap(ByteBuffer source) throws IOException {
+        netOut.clear();
+        SSLEngineResult result = engine.wrap(source, netOut);
+        netOut.flip();
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new IOException("TLS connection closed: " + url);
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            netOut.flip();
+        }
+    }
+
+    /**
+     * Write whatever is pending in netOut.
+     *
+     * @return true if everything was written
+     * @throws IOException
+     */
+    private boolean flush() throws IOException {
+        if (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        return !netOut.hasRemaining();
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void extendDeadline() {
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(client.getTimeoutMillis());
+    }
+}
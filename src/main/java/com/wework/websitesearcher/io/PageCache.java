@@ -0,0 +1,398 @@
+package com.wework.websitesearcher.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent cache of page bodies, so repeat runs over the same URLs only revalidate them (conditional GET with
+ * <code>If-None-Match</code>/<code>If-Modified-Since</code>) instead of downloading them again. Only pages with an
+ * <code>ETag</code> or <code>Last-Modified</code> header are cached.
+ *
+ * Each page is one file in the cache directory (named after a hash of the URL) holding the validators, the content
+ * type and the gzipped body. The total size of the files is kept under <code>maxBytes</code> by deleting the least
+ * recently used pages; the last use of a page is its file's modification time, so the order survives restarts.
+ *
+ * Thread-safe. A directory must only be used by one process at a time.
+ */
+public class PageCache {
+    private static final Logger LOG = LoggerFactory.getLogger(PageCache.class);
+
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+    /** Bodies bigger than this (before compression) aren't cached */
+    public static final int MAX_ENTRY_BYTES = 8 * 1024 * 1024;
+    private static final int FORMAT = 2;
+    private static final String SUFFIX = ".page";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final long maxBytes;
+    /** File name -> file size, least recently used first */
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(1024, 0.75f, true);
+    private long size;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stored = new LongAdder();
+
+    /**
+     * Open (or create) a cache directory.
+     *
+     * @param dir
+     * @param maxBytes max total size of the cached pages (compressed)
+     * @throws IOException if the directory can't be created or read
+     */
+    public PageCache(File dir, long maxBytes) throws IOException {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Max cache size must be positive. Max bytes arg: " + maxBytes);
+        }
+        Files.createDirectories(dir.toPath());
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        List<File> files;
+        try (Stream<Path> paths = Files.walk(dir.toPath(), 2)) {
+            files = paths.map(Path::toFile).filter(File::isFile).collect(Collectors.toList());
+        }
+        for (Iterator<File> i = files.iterator(); i.hasNext(); ) {
+            File file = i.next();
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // left half-written by a previous run
+                file.delete();
+            }
+            if (!file.getName().endsWith(SUFFIX)) {
+                i.remove();
+            }
+        }
+        files.sort(Comparator.comparingLong(File::lastModified));
+        synchronized (this) {
+            for (File file : files) {
+                index.put(file.getName(), file.length());
+                size += file.length();
+            }
+            evict();
+        }
+        LOG.info("Page cache {}: {} pages, {} MB", dir, index.size(), size / (1024 * 1024));
+    }
+
+    /**
+     * Returns the cached page of a URL, if there is one. Counts as a use of the page.
+     *
+     * @param url
+     * @return the page or null
+     */
+    public Entry get(String url) {
+        String name = fileName(url);
+        synchronized (this) {
+            if (index.get(name) == null) {
+                misses.increment();
+                return null;
+            }
+        }
+        File file = file(name);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Entry entry = readHeader(in, file);
+            if (entry == null || !entry.url.equals(url)) {
+                // another version of the format, or (very unlikely) another URL with the same hash
+                misses.increment();
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis());
+            hits.increment();
+            return entry;
+        } catch (IOException e) {
+            LOG.debug("Error reading cached page {}: {}", file, e.toString());
+            remove(name);
+            misses.increment();
+            return null;
+        }
+    }
+
+    /**
+     * Open the body of a cached page.
+     *
+     * @param entry
+     * @return the (uncompressed) body
+     * @throws IOException if the page has been evicted or can't be read
+     */
+    public InputStream openBody(Entry entry) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry.file)));
+        try {
+            if (readHeader(in, entry.file) == null) {
+                throw new IOException("Cached page was replaced: " + entry.file);
+            }
+            return new GZIPInputStream(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Start storing the body of a page. The body written to the returned stream is only added to the cache by
+     * {@link Writer#commit()}.
+     *
+     * @param url URL the page is cached under
+     * @param finalUrl URL of the response (after redirects)
+     * @param etag ETag header of the response, or null
+     * @param lastModified Last-Modified header of the response, or null
+     * @param contentType Content-Type header of the response (for its charset), or null
+     * @return
+     * @throws IOException if the file can't be created
+     */
+    public Writer store(String url, String finalUrl, String etag, String lastModified, String contentType)
+            throws IOException {
+        String name = fileName(url);
+        File target = file(name);
+        Files.createDirectories(target.getParentFile().toPath());
+        File temp = File.createTempFile(name, TEMP_SUFFIX, target.getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(FORMAT);
+            out.writeUTF(url);
+            out.writeUTF(finalUrl);
+            out.writeUTF(etag != null ? etag : "");
+            out.writeUTF(lastModified != null ? lastModified : "");
+            out.writeUTF(contentType != null ? contentType : "");
+            return new Writer(new GZIPOutputStream(out), name, temp, target);
+        } catch (IOException e) {
+            out.close();
+            temp.delete();
+            throw e;
+        }
+    }
+
+    private void committed(String name, File temp, File target) throws IOException {
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        stored.increment();
+        synchronized (this) {
+            Long previous = index.put(name, target.length());
+            size += target.length() - (previous != null ? previous : 0);
+            evict();
+        }
+    }
+
+    private synchronized void remove(String name) {
+        Long previous = index.remove(name);
+        if (previous != null) {
+            size -= previous;
+            file(name).delete();
+        }
+    }
+
+    /**
+     * Delete the least recently used pages until the cache fits in maxBytes.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> entries = index.entrySet().iterator();
+        List<String> evicted = new ArrayList<>();
+        while (size > maxBytes && entries.hasNext()) {
+            Map.Entry<String, Long> eldest = entries.next();
+            size -= eldest.getValue();
+            evicted.add(eldest.getKey());
+            entries.remove();
+        }
+        for (String name : evicted) {
+            file(name).delete();
+        }
+    }
+
+    private static Entry readHeader(DataInputStream in, File file) throws IOException {
+        if (in.readInt() != FORMAT) {
+            return null;
+        }
+        String url = in.readUTF();
+        String finalUrl = in.readUTF();
+        String etag = in.readUTF();
+        String lastModified = in.readUTF();
+        String contentType = in.readUTF();
+        return new Entry(url, finalUrl, etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified,
+                contentType.isEmpty() ? null : contentType, file);
+    }
+
+    private static String fileName(String url) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2 + SUFFIX.length());
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    private File file(String name) {
+        // spread the files over 256 directories
+        return new File(new File(dir, name.substring(0, 2)), name);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PageCache{pages=" + index.size() + ", bytes=" + size + ", hits=" + hits.sum() +
+                ", misses=" + misses.sum() + ", stored=" + stored.sum() + "}";
+    }
+
+    /**
+     * A cached page: its validators and where its body is.
+     */
+    public static class Entry {
+        private final String url;
+        private final String finalUrl;
+        private final String etag;
+        private final String lastModified;
+        private final String contentType;
+        private final File file;
+
+        Entry(String url, String finalUrl, String etag, String lastModified, String contentType, File file) {
+            this.url = url;
+            this.finalUrl = finalUrl;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.file = file;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getFinalUrl() {
+            return finalUrl;
+        }
+
+        /**
+         * @return the ETag to send as If-None-Match, or null
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * @return the Last-Modified date to send as If-Modified-Since, or null
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the Content-Type the page was served with, or null
+         */
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    /**
+     * Stream for the body of a page being stored. Exactly one of {@link #commit()} or {@link #abort()} must be called.
+     * Not thread-safe.
+     */
+    public class Writer extends FilterOutputStream {
+        private final String name;
+        private final File temp;
+        private final File target;
+        private long written;
+        private boolean closed;
+
+        Writer(OutputStream out, String name, File temp, File target) {
+            super(out);
+            this.name = name;
+            this.temp = temp;
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+        }
+
+        /**
+         * @return true if the body is too big to be cached (see {@link #MAX_ENTRY_BYTES})
+         */
+        public boolean isFull() {
+            return written > MAX_ENTRY_BYTES;
+        }
+
+        /**
+         * The whole body has been written: add the page to the cache (replacing any previous version).
+         *
+         * @throws IOException
+         */
+        public void commit() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                out.close();
+                if (written > MAX_ENTRY_BYTES) {
+                    temp.delete();
+                    return;
+                }
+                committed(name, temp, target);
+            } catch (IOException e) {
+                temp.delete();
+                throw e;
+            }
+        }
+
+        /**
+         * Drop the page (e.g. the body couldn't be read to the end).
+         */
+        public void abort() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.trace("Error closing cache file {}", temp, e);
+            }
+            temp.delete();
+        }
+
+        /**
+         * Same as {@link #abort()} unless already committed.
+         */
+        @Override
+        public void close() {
+            abort();
+        }
+    }
+}
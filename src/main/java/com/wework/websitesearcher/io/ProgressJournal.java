@@ -0,0 +1,390 @@
+package com.wework.websitesearcher.io;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Append-only record of the URLs done so far, so that a search that dies half-way can be resumed where it stopped
+ * instead of starting over (see {@link #replay}).
+ *
+ * One line per URL, after a header line saying which search it is: the result in the JSON format of
+ * {@link ResultWriter#toJson}, or <code>{"url": ..., "skipped": true}</code> for a URL dropped without a result. Lines
+ * are written from a single writer thread, like {@link ResultWriter}, and synced to the disk (fsync) in batches: when
+ * the writer has caught up, at most every {@link #SYNC_INTERVAL_MILLIS}, or at least that often when it's busy. A crash
+ * loses at most the last batch, and maybe leaves half a line at the end, which {@link #replay} ignores: those URLs are
+ * just searched again.
+ */
+public class ProgressJournal implements Consumer<SearchResult>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ProgressJournal.class);
+
+    static final int QUEUE_SIZE = 10_000;
+    static final long SYNC_INTERVAL_MILLIS = 200;
+    static final int VERSION = 1;
+    private static final String END = new String("END");
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final FileOutputStream out;
+    private final Writer writer;
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread thread;
+    private volatile boolean closed;
+    // only used by the writer thread until it ends
+    private IOException error;
+    private boolean dirty;
+    private long syncs;
+
+    /**
+     * Create (or overwrite) a journal for a search.
+     *
+     * @param file
+     * @param job what the search is (the list and the search terms): a journal is only replayed for the same job
+     * @throws IOException if the file can't be created
+     */
+    public ProgressJournal(File file, String job) throws IOException {
+        this(new FileOutputStream(file), job);
+    }
+
+    /**
+     * Carry on a journal that has been replayed, after the last complete line.
+     *
+     * @param file
+     * @param progress what {@link #replay} read from the file
+     * @throws IOException if the file can't be written
+     */
+    public ProgressJournal(File file, Progress progress) throws IOException {
+        this(truncate(file, progress.length), null);
+    }
+
+    private ProgressJournal(FileOutputStream out, String job) throws IOException {
+        this.out = out;
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        if (job != null) {
+            Map<String, Object> header = new LinkedHashMap<>();
+            header.put("journal", VERSION);
+            header.put("job", job);
+            writer.write(MAPPER.writeValueAsString(header));
+            writer.write('\n');
+            sync();
+        }
+        this.thread = new Thread(this::run, "progress_journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static FileOutputStream truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // drop the half line a crash may have left
+            raf.setLength(length);
+        }
+        return new FileOutputStream(file, true);
+    }
+
+    /**
+     * Record a URL searched. Thread-safe. Blocks while {@link #QUEUE_SIZE} lines are waiting.
+     *
+     * @param result
+     * @throws IllegalStateException if the journal is closed
+     */
+    @Override
+    public void accept(SearchResult result) {
+        put(ResultWriter.toJson(result));
+    }
+
+    /**
+     * Record a URL skipped without a result. Thread-safe. Blocks while {@link #QUEUE_SIZE} lines are waiting.
+     *
+     * @param url
+     * @throws IllegalStateException if the journal is closed
+     */
+    public void skipped(String url) {
+        Map<String, Object> line = new LinkedHashMap<>();
+        line.put("url", url);
+        line.put("skipped", true);
+        try {
+            put(MAPPER.writeValueAsString(line));
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write " + url + " as JSON", e);
+        }
+    }
+
+    private void put(String line) {
+        if (closed) {
+            throw new IllegalStateException("Progress journal is closed");
+        }
+        try {
+            queue.put(line);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted, not journaled: {}", line);
+        }
+    }
+
+    private void run() {
+        try {
+            long syncInterval = TimeUnit.MILLISECONDS.toNanos(SYNC_INTERVAL_MILLIS);
+            long lastSync = System.nanoTime();
+            while (true) {
+                String line = queue.poll();
+                if (line == null && dirty) {
+                    // caught up: sync, but not more often than the interval
+                    long wait = syncInterval - (System.nanoTime() - lastSync);
+                    line = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (line == null) {
+                        sync();
+                        lastSync = System.nanoTime();
+                    }
+                }
+                if (line == null) {
+                    line = queue.take();
+                }
+                if (line == END) {
+                    break;
+                }
+                writer.write(line);
+                writer.write('\n');
+                dirty = true;
+                if (System.nanoTime() - lastSync > syncInterval) {
+                    sync();
+                    lastSync = System.nanoTime();
+                }
+            }
+            sync();
+        } catch (IOException e) {
+            LOG.error("Error writing the progress journal, the rest of the progress isn't recorded: {}",
+                    e.toString());
+            error = e;
+            // keep taking the lines so the search threads don't block
+            try {
+                while (queue.take() != END) {
+                    // dropped
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sync() throws IOException {
+        writer.flush();
+        out.getFD().sync();
+        dirty = false;
+        syncs++;
+    }
+
+    /**
+     * @return number of times the journal was synced to the disk. Only complete once the journal is closed.
+     */
+    public long getSyncs() {
+        return syncs;
+    }
+
+    /**
+     * Write and sync the lines still queued and close the file. The search must be over: no more URLs can be
+     * recorded.
+     *
+     * @throws IOException if the lines couldn't all be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the progress journal to be written");
+        } finally {
+            writer.close();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Read a journal, handing the results recorded to a consumer (to rebuild the results files), and return what's
+     * been done. Reading stops at the first line that isn't complete or can't be read, as a crash may have left one at
+     * the end.
+     *
+     * @param file
+     * @param job the search to resume: must be the one the journal was written for
+     * @param results gets the results recorded, in the order they were
+     * @return the URLs done, to skip them (see {@link Progress#remaining(Iterator)})
+     * @throws IOException if the file can't be read, or is the journal of another search
+     */
+    public static Progress replay(File file, String job, Consumer<SearchResult> results) throws IOException {
+        Progress progress = new Progress();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            String line = readLine(in);
+            String journalJob = readJob(file, line);
+            if (!job.equals(journalJob)) {
+                throw new IOException("The journal " + file + " is of another search: " + journalJob);
+            }
+            progress.length = line.getBytes(StandardCharsets.UTF_8).length + 1;
+            while ((line = readLine(in)) != null) {
+                JsonNode node = parse(line);
+                if (node == null || !node.path("url").isTextual()) {
+                    LOG.warn("Unreadable line in the progress journal, ignoring the rest: {}", line);
+                    break;
+                }
+                if (node.path("skipped").asBoolean()) {
+                    progress.skipped++;
+                }
+                else {
+                    results.accept(ResultWriter.fromJson(line));
+                    progress.results++;
+                }
+                progress.done.merge(node.get("url").asText(), 1, Integer::sum);
+                progress.length += line.getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+        }
+        return progress;
+    }
+
+    /**
+     * @param file
+     * @return the search a journal is for (see {@link #ProgressJournal(File, String)})
+     * @throws IOException if the file can't be read or isn't a journal
+     */
+    public static String readJob(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return readJob(file, readLine(in));
+        }
+    }
+
+    private static String readJob(File file, String header) throws IOException {
+        JsonNode node = header != null ? parse(header) : null;
+        if (node == null || node.path("journal").asInt() != VERSION || !node.path("job").isTextual()) {
+            throw new IOException("Not a progress journal: " + file);
+        }
+        return node.get("job").asText();
+    }
+
+    private static JsonNode parse(String line) {
+        try {
+            JsonNode node = MAPPER.readTree(line);
+            return node != null && node.isObject() ? node : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param in
+     * @return the next line, without its '\n', or null if there's no complete line left
+     * @throws IOException
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return new String(line.toByteArray(), StandardCharsets.UTF_8);
+            }
+            line.write(b);
+        }
+        return null;
+    }
+
+    /**
+     * What a journal says has been done.
+     */
+    public static class Progress {
+        /** URLs done, with how many times (a list can have the same URL twice) */
+        private final Map<String, Integer> done = new HashMap<>();
+        private int results;
+        private int skipped;
+        /** Bytes of the journal up to the last line read */
+        private long length;
+
+        /**
+         * @return number of URLs done, searched or skipped
+         */
+        public int getDone() {
+            return results + skipped;
+        }
+
+        /**
+         * @return number of results recorded
+         */
+        public int getResults() {
+            return results;
+        }
+
+        /**
+         * @return number of URLs recorded as skipped
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @return the URLs of a list that aren't done: as many times as a URL is done, it's skipped. Reads the list
+         * as it's read itself, and is no more thread-safe than the list.
+         */
+        public Iterator<String> remaining(Iterator<String> urls) {
+            Map<String, Integer> left = new HashMap<>(done);
+            return new Iterator<String>() {
+                private String next;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && urls.hasNext()) {
+                        String url = urls.next();
+                        Integer count = left.get(url);
+                        if (count == null) {
+                            next = url;
+                        }
+                        else if (count == 1) {
+                            left.remove(url);
+                        }
+                        else {
+                            left.put(url, count - 1);
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    String url = next;
+                    next = null;
+                    return url;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.wework.websitesearcher.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Persistent map of the URLs that redirect permanently (301 or 308) to where they end up, so repeat runs request the
+ * target right away instead of going through the same redirects again (see {@link UrlReader#openBody}). A URL maps to
+ * the last URL reached through permanent redirects only: <code>http://facebook.com/</code> -&gt; 301
+ * <code>https://facebook.com/</code> -&gt; 301 <code>https://www.facebook.com/</code> maps to the last one, but the
+ * temporary redirects (302, 303, 307) are followed again each time.
+ *
+ * The map is read from its file when created and only written by {@link #save()}: one <code>url target</code> line per
+ * URL, tab-separated. It holds at most <code>maxEntries</code> URLs, past which new redirects aren't recorded.
+ *
+ * Thread-safe. A file must only be used by one process at a time.
+ */
+public class RedirectMap {
+    private static final Logger LOG = LoggerFactory.getLogger(RedirectMap.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 1_000_000;
+    private static final String HEADER = "redirects 1";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File file;
+    private final int maxEntries;
+    private final Map<String, String> targets = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder recorded = new LongAdder();
+
+    /**
+     * Open (or create) a redirect map with the default max size.
+     *
+     * @param file
+     * @throws IOException if the file exists but can't be read
+     */
+    public RedirectMap(File file) throws IOException {
+        this(file, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Open (or create) a redirect map.
+     *
+     * @param file
+     * @param maxEntries max number of URLs to remember
+     * @throws IOException if the file exists but can't be read
+     */
+    public RedirectMap(File file, int maxEntries) throws IOException {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Max entries must be positive. Max entries arg: " + maxEntries);
+        }
+        this.file = file;
+        this.maxEntries = maxEntries;
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                // another version of the format: start again
+                LOG.warn("Ignoring redirect map {}: unknown format", file);
+                return;
+            }
+            while ((line = reader.readLine()) != null && targets.size() < maxEntries) {
+                int tab = line.indexOf('\t');
+                if (tab > 0 && tab < line.length() - 1) {
+                    targets.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        }
+        LOG.info("Redirect map {}: {} URLs", file, targets.size());
+    }
+
+    /**
+     * @param url
+     * @return where the URL was last redirected to permanently, or null if it wasn't
+     */
+    public String get(String url) {
+        String target = targets.get(url);
+        if (target != null) {
+            hits.increment();
+        }
+        return target;
+    }
+
+    /**
+     * Remember where a URL is redirected to permanently. A URL isn't recorded as its own target.
+     *
+     * @param url
+     * @param target
+     */
+    public void put(String url, String target) {
+        if (url.equals(target)) {
+            return;
+        }
+        if (hasWhitespace(url) || hasWhitespace(target)) {
+            // wouldn't survive the file format
+            return;
+        }
+        if (targets.size() >= maxEntries && !targets.containsKey(url)) {
+            return;
+        }
+        if (!target.equals(targets.put(url, target))) {
+            recorded.increment();
+        }
+    }
+
+    /**
+     * Forget the target of a URL that didn't work anymore (an error, or couldn't connect), unless another one has been
+     * recorded in the meantime.
+     *
+     * @param url
+     * @param target
+     */
+    public void remove(String url, String target) {
+        if (targets.remove(url, target)) {
+            stale.increment();
+        }
+    }
+
+    private static boolean hasWhitespace(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of URLs with a target
+     */
+    public int size() {
+        return targets.size();
+    }
+
+    /**
+     * Write the map to its file. The file is replaced at once, so a crash while saving leaves the previous version.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Map.Entry<String, String> entry : targets.entrySet()) {
+                writer.write(entry.getKey());
+                writer.write('\t');
+                writer.write(entry.getValue());
+                writer.write('\n');
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public String toString() {
+        return "RedirectMap{urls=" + targets.size() + ", hits=" + hits.sum() + ", stale=" + stale.sum() +
+                ", recorded=" + recorded.sum() + "}";
+    }
+}
@@ -0,0 +1,314 @@
+package com.wework.websitesearcher.io;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Writes search results to a file as they come in, from a single writer thread, so the search threads never wait on
+ * the disk or on each other (beyond handing over the result) and results already found survive if the search dies
+ * half-way. The file is flushed whenever the writer has caught up, and at least every {@link #FLUSH_INTERVAL_MILLIS}.
+ *
+ * At most {@link #QUEUE_SIZE} results wait to be written; past that {@link #accept(SearchResult)} blocks, so memory
+ * stays flat however many results there are.
+ *
+ * Formats:
+ * <ul>
+ *     <li>{@link Format#TEXT}: a header line, then the URLs that matched, one per line</li>
+ *     <li>{@link Format#JSON}: one JSON object per line for every URL searched (matched or not), with its final URL,
+ *     status, whether it came from the page cache, bytes read and timings, the names of the terms it matched for a
+ *     search of several named terms, and whether the job deadline cut it short</li>
+ * </ul>
+ */
+public class ResultWriter implements Consumer<SearchResult>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ResultWriter.class);
+
+    static final int QUEUE_SIZE = 10_000;
+    static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final SearchResult END = new SearchResult(null);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public enum Format { TEXT, JSON }
+
+    private final Writer writer;
+    private final Format format;
+    private final JsonGenerator json;
+    private final BlockingQueue<SearchResult> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread thread;
+    private volatile boolean closed;
+    // only used by the writer thread until it ends
+    private IOException error;
+    private long written;
+    private long matched;
+
+    /**
+     * Create (or overwrite) the file and start the writer thread.
+     *
+     * @param file
+     * @param format
+     * @param searchTerm written in the header of the text format
+     * @throws IOException if the file can't be created
+     */
+    public ResultWriter(File file, Format format, String searchTerm) throws IOException {
+        this(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), format, searchTerm);
+    }
+
+    /**
+     * @param writer where the results go (buffered here, closed by {@link #close()})
+     * @param format
+     * @param searchTerm written in the header of the text format
+     * @throws IOException
+     */
+    public ResultWriter(Writer writer, Format format, String searchTerm) throws IOException {
+        this.writer = new BufferedWriter(writer);
+        this.format = format;
+        if (format == Format.JSON) {
+            this.json = JSON_FACTORY.createGenerator(this.writer);
+            // one object per line rather than space separated
+            json.setRootValueSeparator(null);
+        }
+        else {
+            this.json = null;
+            this.writer.write("URLs containing the search term '" + searchTerm + "'\n");
+        }
+        this.thread = new Thread(this::run, "result_writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a result to be written. Thread-safe. Blocks while {@link #QUEUE_SIZE} results are waiting.
+     *
+     * @param result
+     * @throws IllegalStateException if the writer is closed
+     */
+    @Override
+    public void accept(SearchResult result) {
+        if (closed) {
+            throw new IllegalStateException("Result writer is closed");
+        }
+        try {
+            queue.put(result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted, result not written: {}", result);
+        }
+    }
+
+    private void run() {
+        try {
+            long lastFlush = System.nanoTime();
+            while (true) {
+                SearchResult result = queue.poll();
+                if (result == null) {
+                    // caught up: get what's been written so far to disk
+                    flush();
+                    lastFlush = System.nanoTime();
+                    result = queue.take();
+                }
+                if (result == END) {
+                    break;
+                }
+                write(result);
+                if (System.nanoTime() - lastFlush > TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS)) {
+                    flush();
+                    lastFlush = System.nanoTime();
+                }
+            }
+            flush();
+        } catch (IOException e) {
+            LOG.error("Error writing results, the rest of the results are dropped: {}", e.toString());
+            error = e;
+            // keep taking the results so the search threads don't block
+            try {
+                while (queue.take() != END) {
+                    // dropped
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(SearchResult result) throws IOException {
+        if (result.isMatched()) {
+            matched++;
+        }
+        if (format == Format.JSON) {
+            writeJson(json, result);
+            json.writeRaw('\n');
+            written++;
+        }
+        else if (result.isMatched()) {
+            writer.write(result.getUrl());
+            writer.write('\n');
+            written++;
+        }
+    }
+
+    /**
+     * Write a result as one JSON object, the way the {@link Format#JSON} format does.
+     *
+     * @param json
+     * @param result
+     * @throws IOException
+     */
+    public static void writeJson(JsonGenerator json, SearchResult result) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("url", result.getUrl());
+        if (result.getFinalUrl() != null) {
+            json.writeStringField("final_url", result.getFinalUrl());
+        }
+        json.writeNumberField("status", result.getStatus());
+        json.writeBooleanField("matched", result.isMatched());
+        if (result.getMatchedTerms() != null) {
+            json.writeArrayFieldStart("terms");
+            for (String term : result.getMatchedTerms()) {
+                json.writeString(term);
+            }
+            json.writeEndArray();
+        }
+        json.writeBooleanField("cached", result.isCached());
+        if (result.isTruncated()) {
+            json.writeBooleanField("truncated", true);
+        }
+        json.writeNumberField("bytes", result.getBytes());
+        json.writeNumberField("started_at", result.getStartedAt());
+        if (result.getHeadersMillis() >= 0) {
+            json.writeNumberField("headers_ms", result.getHeadersMillis());
+        }
+        json.writeNumberField("total_ms", result.getTotalMillis());
+        if (result.getError() != null) {
+            json.writeStringField("error", result.getError());
+        }
+        if (result.isIncomplete()) {
+            json.writeBooleanField("incomplete", true);
+        }
+        json.writeEndObject();
+    }
+
+    /**
+     * @param result
+     * @return the result as a JSON object on one line, as written in the {@link Format#JSON} format
+     */
+    public static String toJson(SearchResult result) {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+            writeJson(json, result);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Read back a result written by {@link #writeJson}. The content type isn't written, so it's null, nor the kind of
+     * failure, so a failed result is {@link SearchResult.Failure#OTHER}; the timings are rounded to the millisecond.
+     *
+     * @param line a JSON object
+     * @return the result
+     * @throws IOException if it isn't a JSON object with a <code>url</code>
+     */
+    public static SearchResult fromJson(String line) throws IOException {
+        JsonNode node = MAPPER.readTree(line);
+        if (node == null || !node.isObject() || !node.path("url").isTextual()) {
+            throw new IOException("Not a search result: " + line);
+        }
+        SearchResult result = new SearchResult(node.get("url").asText(), node.path("started_at").asLong());
+        int status = node.path("status").asInt();
+        if (node.hasNonNull("final_url") || status != 0) {
+            result.setResponse(node.path("final_url").asText(null), status);
+        }
+        result.addBytesRead(node.path("bytes").asLong());
+        result.setCached(node.path("cached").asBoolean());
+        result.setTruncated(node.path("truncated").asBoolean());
+        result.setIncomplete(node.path("incomplete").asBoolean());
+        if (node.hasNonNull("error")) {
+            result.fail(node.get("error").asText());
+        }
+        else {
+            result.complete(node.path("matched").asBoolean());
+        }
+        if (node.has("terms")) {
+            List<String> terms = new ArrayList<>();
+            node.get("terms").forEach(term -> terms.add(term.asText()));
+            result.setMatchedTerms(terms);
+        }
+        result.setTimings(node.path("headers_ms").asLong(-1), node.path("total_ms").asLong(-1));
+        return result;
+    }
+
+    private void flush() throws IOException {
+        if (json != null) {
+            json.flush();
+        }
+        else {
+            writer.flush();
+        }
+    }
+
+    /**
+     * @return number of results that matched. Only complete once the writer is closed.
+     */
+    public long getMatched() {
+        return matched;
+    }
+
+    /**
+     * @return number of lines of results written (not counting the header). Only complete once the writer is closed.
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Write the results still queued and close the file. The search must be over: no more results can be added.
+     *
+     * @throws IOException if the results couldn't all be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the results to be written");
+        } finally {
+            if (json != null) {
+                json.close();
+            }
+            writer.close();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.wework.websitesearcher.io;
+
+import javax.net.ssl.SSLException;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of searching one URL: whether it matched, what the server answered and how long it took.
+ *
+ * Filled in by whichever thread is searching the URL, then handed to the results consumer (see
+ * {@link ResultWriter}). Not thread-safe: hand it over through a thread-safe queue or executor.
+ */
+public class SearchResult {
+    /**
+     * What kind of failure a URL had, as far as trying it again goes (see {@link FetchLimits#isTransient}).
+     */
+    public enum Failure {
+        /** The host name doesn't resolve */
+        UNKNOWN_HOST,
+        /** The TLS handshake failed or the connection couldn't be secured (e.g. a bad certificate) */
+        TLS,
+        /** The connection was refused, couldn't be routed, or was reset */
+        CONNECTION,
+        /** A connect or read timed out, or the deadline passed */
+        TIMEOUT,
+        /** The server answered with an error status (see {@link #getStatus()}) */
+        HTTP_STATUS,
+        /** Anything else: a response that isn't text, a malformed response, a redirect loop... */
+        OTHER;
+
+        /**
+         * @param e why a URL couldn't be searched
+         * @return the kind of failure it is: the one of the first exception in its causes that tells
+         */
+        public static Failure of(Throwable e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof HttpStatusException) {
+                    return HTTP_STATUS;
+                }
+                if (cause instanceof UnknownHostException) {
+                    return UNKNOWN_HOST;
+                }
+                if (cause instanceof SSLException) {
+                    return TLS;
+                }
+                if (cause instanceof SocketTimeoutException) {
+                    return TIMEOUT;
+                }
+                if (cause instanceof SocketException) {
+                    // including ConnectException and NoRouteToHostException
+                    return CONNECTION;
+                }
+            }
+            return OTHER;
+        }
+    }
+
+    private final String url;
+    private final long startedAt;
+    private final long startNanos;
+    private String finalUrl;
+    private int status;
+    private String contentType;
+    private long bytes;
+    private long headersNanos = -1;
+    private long totalNanos = -1;
+    private boolean matched;
+    private List<String> matchedTerms;
+    private boolean cached;
+    private boolean truncated;
+    private boolean incomplete;
+    private String error;
+    private Failure failure;
+
+    /**
+     * Starts the clock for a URL.
+     *
+     * @param url URL being searched
+     */
+    public SearchResult(String url) {
+        this.url = url;
+        this.startedAt = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * A result searched elsewhere (see {@link ResultWriter#fromJson(String)}): the timings are set last, with
+     * {@link #setTimings(long, long)}.
+     *
+     * @param url URL searched
+     * @param startedAt when its search started (milliseconds since the epoch)
+     */
+    SearchResult(String url, long startedAt) {
+        this.url = url;
+        this.startedAt = startedAt;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * @param headersMillis milliseconds until the headers of the final response were read, or -1
+     * @param totalMillis milliseconds until the URL was searched or failed, or -1
+     */
+    void setTimings(long headersMillis, long totalMillis) {
+        this.headersNanos = headersMillis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(headersMillis);
+        this.totalNanos = totalMillis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(totalMillis);
+    }
+
+    /**
+     * The status and headers of the final response (after redirects) have been read.
+     *
+     * @param finalUrl URL of the final response
+     * @param status HTTP status code
+     */
+    public void setResponse(String finalUrl, int status) {
+        this.finalUrl = finalUrl;
+        this.status = status;
+        this.headersNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @param contentType <code>Content-Type</code> of the body (its charset says how to decode it), or null if there
+     *                    wasn't one
+     */
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * @param count number of body bytes read (as sent by the server, before any decoding)
+     */
+    public void addBytesRead(long count) {
+        bytes += count;
+    }
+
+    /**
+     * @param cached true if the body was read from the page cache (the server answered 304 Not Modified)
+     */
+    public void setCached(boolean cached) {
+        this.cached = cached;
+    }
+
+    /**
+     * @param truncated true if only part of the body was searched because of the size limits (see
+     *                  {@link FetchLimits})
+     */
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+
+    /**
+     * @param incomplete true if the URL couldn't be searched in time because the job deadline passed (see
+     *                   {@link FetchLimits#setJobDeadline(long)})
+     */
+    public void setIncomplete(boolean incomplete) {
+        this.incomplete = incomplete;
+    }
+
+    /**
+     * The body was searched (to the end, or until it matched).
+     *
+     * @param matched true if it matched
+     */
+    public void complete(boolean matched) {
+        this.matched = matched;
+        this.totalNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @param matchedTerms names of the search terms the body matched, for a search of several named terms (see
+     *                     {@link com.wework.websitesearcher.matcher.MultiTermMatcher}), or null for a single term
+     */
+    public void setMatchedTerms(List<String> matchedTerms) {
+        this.matchedTerms = matchedTerms;
+    }
+
+    /**
+     * The URL couldn't be searched, for a reason that isn't an exception (e.g. a response that isn't text).
+     *
+     * @param error what went wrong
+     */
+    public void fail(String error) {
+        fail(Failure.OTHER, error);
+    }
+
+    /**
+     * The URL couldn't be searched (unreachable, timeout, malformed response...).
+     *
+     * @param e what went wrong: its kind is found from its class (see {@link Failure#of})
+     */
+    public void fail(Throwable e) {
+        fail(Failure.of(e), e.toString());
+    }
+
+    /**
+     * The URL couldn't be searched.
+     *
+     * @param failure the kind of failure
+     * @param error what went wrong
+     */
+    public void fail(Failure failure, String error) {
+        this.failure = failure;
+        this.error = error;
+        this.totalNanos = System.nanoTime() - startNanos;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return URL of the final response after redirects, or null if there was no response
+     */
+    public String getFinalUrl() {
+        return finalUrl;
+    }
+
+    /**
+     * @return HTTP status of the final response, or 0 if there was no response
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return <code>Content-Type</code> of the body, or null if there wasn't one (or no body)
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    public boolean isMatched() {
+        return matched;
+    }
+
+    /**
+     * @return names of the search terms the body matched, or null if the search was for a single term (or the URL
+     * couldn't be searched)
+     */
+    public List<String> getMatchedTerms() {
+        return matchedTerms;
+    }
+
+    /**
+     * @return true if the body came from the page cache
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    /**
+     * @return true if the body was cut at the max body size or range (see {@link FetchLimits}), so the rest of the
+     * page wasn't searched
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return true if the search of the URL was cut short by the job deadline: it failed, but might not have with more
+     * time
+     */
+    public boolean isIncomplete() {
+        return incomplete;
+    }
+
+    /**
+     * @return number of body bytes read. Less than the body size when reading stopped at a match.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return when the search of the URL started (milliseconds since the epoch)
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return milliseconds until the headers of the final response were read, or -1 if there was no response
+     */
+    public long getHeadersMillis() {
+        return headersNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(headersNanos);
+    }
+
+    /**
+     * @return nanoseconds until the headers of the final response were read, or -1 if there was no response
+     */
+    public long getHeadersNanos() {
+        return headersNanos;
+    }
+
+    /**
+     * @return milliseconds until the URL was searched or failed, or -1 if it isn't finished
+     */
+    public long getTotalMillis() {
+        return totalNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(totalNanos);
+    }
+
+    /**
+     * @return nanoseconds until the URL was searched or failed, or -1 if it isn't finished
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return why the URL couldn't be searched, or null if it was
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return the kind of failure, or null if the URL was searched
+     */
+    public Failure getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchResult{url=" + url + ", status=" + status + ", matched=" + matched +
+                (matchedTerms != null ? ", matchedTerms=" + matchedTerms : "") + ", cached=" + cached +
+                (truncated ? ", truncated=true" : "") +
+                (incomplete ? ", incomplete=true" : "") + ", bytes=" + bytes + ", totalMillis=" + getTotalMillis() +
+                (error != null ? ", error=" + error : "") + "}";
+    }
+}
@@ -0,0 +1,44 @@
+package com.wework.websitesearcher.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Keeps track of the time spent in reads, i.e. waiting for the bytes of a body (see
+ * {@link com.wework.websitesearcher.util.SearchMetrics.Phase#DOWNLOAD}). Not thread-safe.
+ */
+public class TimedInputStream extends FilterInputStream {
+    private long nanos;
+
+    public TimedInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        try {
+            return in.read();
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return in.read(b, off, len);
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * @return nanoseconds spent in reads so far
+     */
+    public long getNanos() {
+        return nanos;
+    }
+}
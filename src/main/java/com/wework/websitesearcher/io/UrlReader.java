@@ -1,7 +1,11 @@
 package com.wework.websitesearcher.io;
 
+import com.wework.websitesearcher.index.PageIndex;
+import com.wework.websitesearcher.matcher.ByteMatchSession;
+import com.wework.websitesearcher.matcher.Charsets;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.util.SearchMetrics;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,11 +17,17 @@ import java.net.CookieManager;
 import java.net.CookiePolicy;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
-import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class reads a URL and returns the body contents as a String.
@@ -25,38 +35,21 @@ import java.util.List;
 public class UrlReader {
     private static final Logger LOG = LoggerFactory.getLogger(UrlReader.class);
 
-    private UrlReader() {}
+    static final String USER_AGENT = "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_13_4) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/11.1 Safari/605.1.15";
 
-    /**
-     * Loads the contents of a CSV file from the specified URL and returns the list of URLs found in the URL column.
-     * See {@link CsvParser} for more details.
-     *
-     * @param urlVal fully-qualified URL containing the CSV file
-     * @param max max number of URLs to return
-     * @return the list of URLs or an empty list (never null)
-     * @see CsvParser
-     * @throws IllegalArgumentException if urlVal is null or empty
-     */
-    public static List<String> getUrlsFromCsvUrl(String urlVal, int max) {
-        if (StringUtils.isEmpty(urlVal)) {
-            throw new IllegalArgumentException("URL string can not be null.");
-        }
+    /** Read and throw away at most this much of an unfinished body to keep the connection alive. */
+    static final int MAX_DRAIN_BYTES = 64 * 1024;
+    /** Give up after this many redirects */
+    static final int MAX_REDIRECTS = 10;
+    static final int HTTP_TEMPORARY_REDIRECT = 307;
+    static final int HTTP_PERMANENT_REDIRECT = 308;
 
-        String urlContents = getUrlContents(urlVal);
-        CsvParser csvParser = new CsvParser();
-        List<String> results = csvParser.parseAndReturnUrls(urlContents);
-        if (results == null || results.isEmpty()) {
-            // if there aren't any URLs, then exit the program right away.
-            System.out.println("Couldn't load the list of URLs or the list was empty.");
-            LOG.warn("Couldn't load the list of URLs or the list was empty.");
-            System.exit(0);
-        }
-        else if (results.size() > max) {
-            // truncate the list of URLs if the MAX urls to search is less than the total # of urls in the list
-            results = results.subList(0, max);
-        }
-        return results;
-    }
+    private static volatile PageCache pageCache;
+    private static volatile FetchLimits fetchLimits = new FetchLimits();
+    private static volatile RedirectMap redirectMap;
+    private static volatile PageIndex pageIndex;
+
+    private UrlReader() {}
 
     /**
      * Return the body/contents of a URL. If the URL could not be loaded (due to timeout or a 400/500 error), then null
@@ -67,14 +60,17 @@ public class UrlReader {
      */
     public static String getUrlContents(String url) {
         InputStream inputStream = null;
+        URLConnection connection;
         try {
-            inputStream = toUrl(url).openStream();
+            connection = toUrl(url).openConnection();
+            inputStream = connection.getInputStream();
         } catch (IOException e) {
             throw new RuntimeException("Error opening stream for URL: " + url, e);
         }
 
         try {
-            return IOUtils.toString( inputStream, Charset.forName("UTF-8"));
+            byte[] bytes = IOUtils.toByteArray(inputStream);
+            return new String(bytes, Charsets.detect(connection.getContentType(), bytes, 0, bytes.length));
         } catch (IOException e) {
             throw new RuntimeException("Error reading URL: " + url, e);
         } finally {
@@ -92,47 +88,520 @@ public class UrlReader {
      * @throws IOException
      */
     public static String getUrlContentsWithTimeout(String url, int timeoutSecs) throws IOException {
-        LOG.debug("Reading url: " + url);
+        SearchResult result = new SearchResult(url);
+        InputStream body = openBody(url, timeoutSecs, result);
+        if (body == null) {
+            return null;
+        }
+        try {
+            byte[] bytes = IOUtils.toByteArray(body);
+            return new String(bytes, Charsets.detect(result.getContentType(), bytes, 0, bytes.length));
+        } finally {
+            body.close();
+        }
+    }
 
-        // Create the request object
-        HttpURLConnection huc = (HttpURLConnection) toUrl(url).openConnection();
-        HttpURLConnection.setFollowRedirects(true);
-        huc.setConnectTimeout(timeoutSecs * 1000);
-        huc.setReadTimeout(timeoutSecs * 1000);
-        huc.setRequestMethod("GET");
-        huc.setRequestProperty("User-Agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_13_4) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/11.1 Safari/605.1.15");
+    /**
+     * Search the body of a URL without reading it into memory. The body is streamed through a {@link ByteMatchSession}
+     * in chunks and the connection is closed as soon as the matcher reports a match, so the rest of the body is never
+     * downloaded.
+     *
+     * @param url
+     * @param timeoutSecs connect and read timeout
+     * @param matcher compiled search term
+     * @return true if the body matched, false if it didn't, or null if the URL could not be loaded (due to timeout or
+     * a 400/500 error)
+     * @throws IOException
+     */
+    public static Boolean searchUrlContentsWithTimeout(String url, int timeoutSecs, ContentMatcher matcher) throws IOException {
+        return search(url, timeoutSecs, matcher, new SearchResult(url));
+    }
+
+    /**
+     * Search the body of a URL like {@link #searchUrlContentsWithTimeout(String, int, ContentMatcher)}, recording the
+     * final URL, status, bytes read and timings. Never throws: errors are recorded in the result.
+     *
+     * @param url
+     * @param timeoutSecs connect and read timeout
+     * @param matcher compiled search term
+     * @return the result, complete or failed
+     */
+    public static SearchResult searchUrl(String url, int timeoutSecs, ContentMatcher matcher) {
+        SearchResult result = new SearchResult(url);
         try {
-            huc.connect();
+            search(url, timeoutSecs, matcher, result);
         } catch (SocketTimeoutException e) {
-            LOG.trace("URL: " + url + " TIMEOUT");
+            LOG.debug("url: {} timed out", url);
+            result.fail(e);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error reading url: {}, message: {}", url, e);
+            result.fail(e);
+        }
+        SearchMetrics.getInstance().urlDone(result);
+        return result;
+    }
+
+    private static Boolean search(String url, int timeoutSecs, ContentMatcher matcher, SearchResult result)
+            throws IOException {
+        InputStream body = openBody(url, timeoutSecs, result);
+        if (body == null) {
+            return null;
+        }
+        // the bytes go to the matcher as they are read, decoded (or not) in the charset of the page. The reads are
+        // timed apart from the session, and the session's decoding apart from its matching.
+        TimedInputStream timed = new TimedInputStream(body);
+        ByteMatchSession session = matcher.newResponseSession(result.getContentType());
+        long sessionNanos = 0;
+        // closing the body after a match doesn't read the rest of it (unless it's being cached)
+        try (InputStream in = timed) {
+            byte[] buffer = new byte[ContentMatcher.CHUNK_SIZE];
+            boolean matched;
+            while (true) {
+                int read = in.read(buffer);
+                long start = System.nanoTime();
+                matched = read == -1 ? session.finish() : session.feed(buffer, 0, read);
+                sessionNanos += System.nanoTime() - start;
+                if (matched || read == -1) {
+                    break;
+                }
+            }
+            result.complete(matched);
+            result.setMatchedTerms(session.getMatchedTerms());
+            return matched;
+        } finally {
+            SearchMetrics metrics = SearchMetrics.getInstance();
+            metrics.record(SearchMetrics.Phase.DOWNLOAD, timed.getNanos());
+            metrics.record(SearchMetrics.Phase.DECODE, sessionNanos - session.getMatchNanos());
+            metrics.record(SearchMetrics.Phase.MATCH, session.getMatchNanos());
+        }
+    }
+
+    /**
+     * Open the body of a URL, following redirects. With a page cache (see {@link #setPageCache(PageCache)}), a page
+     * cached by an earlier run is revalidated with a conditional GET and read from the cache if the server answers
+     * 304 Not Modified, and cacheable pages are stored as they are read. With a page index (see
+     * {@link #setPageIndex(PageIndex)}), the pages are indexed as they are read, except the cached pages it already
+     * has.
+     *
+     * Closing the stream frees the connection: the rest of the body is only read if it's small (see
+     * {@link #releaseConnection}) or if the page is being cached or indexed.
+     *
+     * Pages are requested gzip or deflate compressed; the stream returned is the decompressed body.
+     *
+     * The {@link FetchLimits} apply (see {@link #setFetchLimits(FetchLimits)}): a response that isn't text is dropped
+     * before its body is read, the stream ends at the max body size, and connecting, redirects and reads all have to
+     * be done by the deadline.
+     *
+     * @param url
+     * @param timeoutSecs connect and read timeout
+     * @param result gets the final URL, status and number of bytes read
+     * @return the body, or null if the URL could not be loaded (due to timeout or a 400/500 error) or isn't text, in
+     * which case the result has failed
+     * @throws IOException
+     */
+    public static InputStream openBody(String url, int timeoutSecs, SearchResult result) throws IOException {
+        FetchLimits limits = fetchLimits;
+        return openBody(url, timeoutSecs, result, limits, limits.getDeadline(System.nanoTime()), true);
+    }
+
+    private static InputStream openBody(String url, int timeoutSecs, SearchResult result, FetchLimits limits,
+                                        long deadline, boolean revalidate) throws IOException {
+        PageCache cache = pageCache;
+        PageCache.Entry cached = cache != null && revalidate ? cache.get(url) : null;
+        Map<String, String> headers = new HashMap<>();
+        if (limits.getRangeHeader() != null) {
+            headers.put("Range", limits.getRangeHeader());
+        }
+        else {
+            // decompressed as it's read (see BodyInputStream). Not with a range: that would be a range of the
+            // compressed bytes, which can't be decompressed on their own.
+            headers.put("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
+        }
+        if (cached != null) {
+            if (cached.getEtag() != null) {
+                headers.put("If-None-Match", cached.getEtag());
+            }
+            if (cached.getLastModified() != null) {
+                headers.put("If-Modified-Since", cached.getLastModified());
+            }
+        }
+        HttpURLConnection huc;
+        try {
+            huc = openConnection(url, timeoutSecs, headers, deadline);
+        } catch (SocketTimeoutException | UnknownHostException | SSLHandshakeException e) {
+            // kept apart in the result: a timeout may be worth retrying, a host that doesn't resolve isn't
+            LOG.debug("Couldn't connect to url: {}: {}", url, e.toString());
+            result.fail(e);
+            return null;
+        }
+        int status = huc.getResponseCode();
+        result.setResponse(huc.getURL().toString(), status);
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            releaseConnection(huc);
+            try {
+                InputStream body = cache.openBody(cached);
+                result.setCached(true);
+                result.setContentType(cached.getContentType());
+                PageIndex index = pageIndex;
+                return index != null && !index.contains(url) ? index.index(url, body) : body;
+            } catch (IOException e) {
+                // evicted in the meantime
+                LOG.debug("Cached page of url: {} is gone, fetching it again: {}", url, e.toString());
+                return openBody(url, timeoutSecs, result, limits, deadline, false);
+            }
+        }
+        if (status >= 400) {
+            releaseConnection(huc);
+            result.fail(SearchResult.Failure.HTTP_STATUS, "Server returned HTTP response code: " + status);
             return null;
-        } catch (UnknownHostException e) {
-            LOG.warn("Unknown host: " + url);
+        }
+        if (!limits.accepts(huc.getContentType())) {
+            LOG.debug("Skipping url: {}, content type: {}", url, huc.getContentType());
+            releaseConnection(huc);
+            result.fail("Skipped content type: " + huc.getContentType());
+            return null;
+        }
+        result.setContentType(huc.getContentType());
+        long limit = limits.getBodyLimit();
+        if (status == HttpURLConnection.HTTP_PARTIAL) {
+            // the server cut the body at the range already
+            result.setTruncated(FetchLimits.isPartial(huc.getHeaderField("Content-Range")));
+            limit = limits.getMaxBodyBytes();
+        }
+        PageCache.Writer cacheWriter = null;
+        if (cache != null && status == HttpURLConnection.HTTP_OK && isCacheable(huc)) {
+            try {
+                cacheWriter = cache.store(url, huc.getURL().toString(), huc.getHeaderField("ETag"),
+                        huc.getHeaderField("Last-Modified"), huc.getContentType());
+            } catch (IOException e) {
+                LOG.debug("Error caching url: {}, message: {}", url, e.toString());
+            }
+        }
+        InputStream body = new BodyInputStream(huc, cacheWriter, result, limit, deadline);
+        PageIndex index = pageIndex;
+        return index != null ? index.index(url, body) : body;
+    }
+
+    /**
+     * Search the cached copy of a page (see {@link #setPageCache(PageCache)}) without going to the server, e.g. to
+     * check the pages found in a {@link PageIndex} with a regex.
+     *
+     * @param url
+     * @param matcher
+     * @param result gets the final URL the page was cached from, and whether it matched
+     * @return true if the page matched, false if it didn't, or null if it isn't cached or can't be read (in which case
+     * the result has failed)
+     */
+    public static Boolean searchCachedPage(String url, ContentMatcher matcher, SearchResult result) {
+        PageCache cache = pageCache;
+        PageCache.Entry cached = cache != null ? cache.get(url) : null;
+        if (cached == null) {
+            result.fail("Not cached");
             return null;
-        } catch (SSLHandshakeException e) {
-            LOG.warn("SSLHandshakeException for url: " + url);
+        }
+        ByteMatchSession session = matcher.newResponseSession(cached.getContentType());
+        try (InputStream in = cache.openBody(cached)) {
+            result.setResponse(cached.getFinalUrl(), HttpURLConnection.HTTP_OK);
+            result.setCached(true);
+            result.setContentType(cached.getContentType());
+            byte[] buffer = new byte[ContentMatcher.CHUNK_SIZE];
+            boolean matched;
+            int read;
+            do {
+                read = in.read(buffer);
+                matched = read == -1 ? session.finish() : session.feed(buffer, 0, read);
+            } while (!matched && read != -1);
+            result.complete(matched);
+            result.setMatchedTerms(session.getMatchedTerms());
+            return matched;
+        } catch (IOException e) {
+            LOG.debug("Error reading cached page of url: {}, message: {}", url, e.toString());
+            result.fail("Error reading cached page: " + e.getMessage());
             return null;
         }
-        // get the HTTP response code. If the response is a redirect (HTTP status 300), then recursively call
-        // this method to follow the redirect
+    }
+
+    /**
+     * A page can be cached if it can be revalidated (it has an ETag or a Last-Modified date) and the server doesn't
+     * forbid storing it.
+     *
+     * @param huc
+     * @return
+     */
+    private static boolean isCacheable(HttpURLConnection huc) {
+        String cacheControl = huc.getHeaderField("Cache-Control");
+        if (cacheControl != null && cacheControl.toLowerCase(Locale.ROOT).contains("no-store")) {
+            return false;
+        }
+        return huc.getHeaderField("ETag") != null || huc.getHeaderField("Last-Modified") != null;
+    }
+
+    /**
+     * Cache the pages read through {@link #openBody} (and so by all the search methods) in this cache, or stop caching
+     * if null.
+     *
+     * @param cache
+     */
+    public static void setPageCache(PageCache cache) {
+        pageCache = cache;
+    }
+
+    /**
+     * @return the page cache, or null if there isn't one
+     */
+    public static PageCache getPageCache() {
+        return pageCache;
+    }
+
+    /**
+     * Request the URLs read through {@link #openBody} (and so by all the search methods) at the target of their
+     * permanent redirects if it's in this map, and record the new ones in it. No redirect map if null.
+     *
+     * @param redirects
+     */
+    public static void setRedirectMap(RedirectMap redirects) {
+        redirectMap = redirects;
+    }
+
+    /**
+     * @return the redirect map, or null if there isn't one
+     */
+    public static RedirectMap getRedirectMap() {
+        return redirectMap;
+    }
+
+    /**
+     * Index the pages read through {@link #openBody} (and so by all the search methods) in this index, or stop
+     * indexing if null.
+     *
+     * @param index
+     */
+    public static void setPageIndex(PageIndex index) {
+        pageIndex = index;
+    }
+
+    /**
+     * @return the page index, or null if there isn't one
+     */
+    public static PageIndex getPageIndex() {
+        return pageIndex;
+    }
+
+    /**
+     * Limit the size, time and content types of the pages read through {@link #openBody} (and so by all the search
+     * methods), and of the requests of the {@link NioHttpClient}s created afterwards.
+     *
+     * @param limits
+     * @throws IllegalArgumentException if limits is null
+     */
+    public static void setFetchLimits(FetchLimits limits) {
+        if (limits == null) {
+            throw new IllegalArgumentException("Fetch limits can't be null.");
+        }
+        fetchLimits = limits;
+    }
+
+    /**
+     * @return the fetch limits (the defaults of {@link FetchLimits} unless set)
+     */
+    public static FetchLimits getFetchLimits() {
+        return fetchLimits;
+    }
+
+    /**
+     * Open a connection and follow the redirects from it (see {@link #followRedirects}). With a redirect map (see
+     * {@link #setRedirectMap(RedirectMap)}), a URL known to redirect permanently is requested at its target right
+     * away. If the target doesn't work anymore (it can't be reached or answers with an error), it's forgotten and the
+     * URL itself is requested instead.
+     *
+     * @param url
+     * @param timeoutSecs connect and read timeout
+     * @param headers extra request headers, also sent to redirect targets
+     * @param deadline {@link System#nanoTime()} by which the response, redirects included, must have started
+     * @return the connected connection (response code already read)
+     * @throws IOException if the URL could not be reached
+     */
+    private static HttpURLConnection openConnection(String url, int timeoutSecs, Map<String, String> headers,
+                                                    long deadline) throws IOException {
+        RedirectMap redirects = redirectMap;
+        String target = redirects != null ? redirects.get(url) : null;
+        if (target != null) {
+            HttpURLConnection huc = null;
+            try {
+                huc = followRedirects(url, target, timeoutSecs, headers, deadline, redirects);
+            } catch (IOException e) {
+                LOG.debug("Redirect target: {} of url: {} failed: {}", target, url, e.toString());
+            }
+            if (huc != null && huc.getResponseCode() < 400) {
+                return huc;
+            }
+            if (huc != null) {
+                releaseConnection(huc);
+            }
+            LOG.debug("Redirect target: {} of url: {} is stale, requesting the url", target, url);
+            redirects.remove(url, target);
+        }
+        return followRedirects(url, url, timeoutSecs, headers, deadline, redirects);
+    }
+
+    /**
+     * Request a URL and follow its redirects (301, 302, 303, 307 and 308, to relative locations as well), at most
+     * {@link #MAX_REDIRECTS} of them. The JDK doesn't follow them itself, so each hop goes through the same timeouts,
+     * deadline and connection reuse. A redirect to a URL already in the chain (the URL searched included, when starting
+     * at its target in the redirect map) is a loop: it fails right away, without requesting that URL again.
+     *
+     * The last URL reached through permanent redirects only (301 and 308) is recorded in the redirect map, if there is
+     * one, for the next time. Since the chain has no loop, that's never a URL that leads back to the URL searched.
+     *
+     * @param url the URL searched
+     * @param start where to start: the URL itself, or its target in the redirect map
+     * @param timeoutSecs connect and read timeout
+     * @param headers extra request headers, also sent to redirect targets
+     * @param deadline {@link System#nanoTime()} by which the response, redirects included, must have started
+     * @param redirects where to record the permanent redirects, or null
+     * @return the connected connection (response code already read)
+     * @throws ProtocolException on a redirect loop, too many redirects or a redirect without a location
+     * @throws IOException if a URL of the chain could not be reached
+     */
+    private static HttpURLConnection followRedirects(String url, String start, int timeoutSecs,
+                                                     Map<String, String> headers, long deadline,
+                                                     RedirectMap redirects) throws IOException {
+        Set<String> chain = new HashSet<>();
+        chain.add(url);
+        chain.add(start);
+        String current = start;
+        // the last URL reached from the start through permanent redirects only
+        String permanent = start;
+        boolean permanentSoFar = true;
+        for (int hops = 0; ; hops++) {
+            HttpURLConnection huc = connect(current, timeoutSecs, headers, deadline);
+            int status = huc.getResponseCode();
+            if (!isRedirect(status)) {
+                if (redirects != null && status < 400 && !permanent.equals(start)) {
+                    redirects.put(url, permanent);
+                }
+                return huc;
+            }
+            String location = huc.getHeaderField("Location");
+            // the redirect is often to the same host, so keep the connection for it
+            releaseConnection(huc);
+            if (location == null) {
+                throw new ProtocolException("Redirect without a Location header: " + current);
+            }
+            if (hops >= MAX_REDIRECTS) {
+                throw new ProtocolException("Too many redirects: " + url);
+            }
+            String target = new URL(huc.getURL(), location).toString();
+            if (!chain.add(target)) {
+                throw new ProtocolException("Redirect loop: " + url + " comes back to " + target);
+            }
+            LOG.debug("Redirecting from " + current + " to " + target);
+            if (permanentSoFar && (status == HttpURLConnection.HTTP_MOVED_PERM || status == HTTP_PERMANENT_REDIRECT)) {
+                permanent = target;
+            }
+            else {
+                permanentSoFar = false;
+            }
+            current = target;
+        }
+    }
+
+    /**
+     * @param status
+     * @return whether the response is a redirect to follow
+     */
+    static boolean isRedirect(int status) {
+        return status == HttpURLConnection.HTTP_MOVED_PERM
+                || status == HttpURLConnection.HTTP_MOVED_TEMP
+                || status == HttpURLConnection.HTTP_SEE_OTHER
+                || status == HTTP_TEMPORARY_REDIRECT
+                || status == HTTP_PERMANENT_REDIRECT;
+    }
+
+    /**
+     * One request, without following redirects.
+     *
+     * @param url
+     * @param timeoutSecs connect and read timeout
+     * @param headers extra request headers
+     * @param deadline {@link System#nanoTime()} by which the response must have started
+     * @return the connected connection (response code already read)
+     * @throws IOException if the URL could not be reached (the exception tells why, see {@link SearchResult.Failure})
+     */
+    private static HttpURLConnection connect(String url, int timeoutSecs, Map<String, String> headers,
+                                             long deadline) throws IOException {
+        LOG.debug("Reading url: " + url);
+        long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (left <= 0) {
+            throw fetchLimits.deadlineExceeded(url);
+        }
+        // no single connect or read may go past the deadline
+        int timeoutMillis = (int) Math.min(timeoutSecs * 1000L, left);
+
+        // Create the request object
+        HttpURLConnection huc = (HttpURLConnection) toUrl(url).openConnection();
+        huc.setInstanceFollowRedirects(false);
+        huc.setConnectTimeout(timeoutMillis);
+        huc.setReadTimeout(timeoutMillis);
+        huc.setRequestMethod("GET");
+        huc.setRequestProperty("User-Agent", USER_AGENT);
+        headers.forEach(huc::setRequestProperty);
+        long start = System.nanoTime();
+        // a connection from the keep-alive cache connects right away; a new one includes the TLS handshake
+        huc.connect();
+        SearchMetrics.getInstance().record(SearchMetrics.Phase.CONNECT, System.nanoTime() - start);
+        start = System.nanoTime();
         int responseCode = huc.getResponseCode();
+        SearchMetrics.getInstance().record(SearchMetrics.Phase.FIRST_BYTE, System.nanoTime() - start);
         if (responseCode != 200) {
             LOG.debug("URL: " + url + " returned status code " + responseCode);
-            boolean redirect = false;
+        }
+        return huc;
+    }
 
-            if (responseCode == HttpURLConnection.HTTP_MOVED_TEMP
-                    || responseCode == HttpURLConnection.HTTP_MOVED_PERM
-                    || responseCode == HttpURLConnection.HTTP_SEE_OTHER) {
-                redirect = true;
+    /**
+     * Done with a connection before the end of its body (e.g. the search term was found, or it's a redirect or an
+     * error page). If what's left of the body is small (up to {@link #MAX_DRAIN_BYTES}), it is read and thrown away
+     * so the connection goes back to the JDK keep-alive cache and the next request to the same host skips the TCP and
+     * TLS handshakes. Otherwise the connection is dropped.
+     *
+     * @param huc
+     */
+    public static void releaseConnection(HttpURLConnection huc) {
+        InputStream inputStream = null;
+        try {
+            inputStream = huc.getResponseCode() >= 400 ? huc.getErrorStream() : huc.getInputStream();
+            if (inputStream == null) {
+                return;
             }
-            if (redirect) {
-
-                String location = huc.getHeaderField("Location");
-                LOG.debug("Redirecting from " + url + " to " + location);
-                return getUrlContentsWithTimeout(location, timeoutSecs);
+            byte[] buffer = new byte[8192];
+            long drained = 0;
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) {
+                drained += read;
+                if (drained > MAX_DRAIN_BYTES) {
+                    huc.disconnect();
+                    return;
+                }
             }
+        } catch (IOException e) {
+            LOG.trace("Error draining url: " + huc.getURL(), e);
+            huc.disconnect();
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Sets how many idle connections to the same host the JDK keep-alive cache holds on to (the http.maxConnections
+     * system property, 5 by default). Only has an effect before the first connection is opened.
+     *
+     * @param max
+     */
+    public static void setKeepAliveConnectionsPerHost(int max) {
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(max));
         }
-        return IOUtils.toString(huc.getInputStream(), "UTF-8");
     }
 
     /**
@@ -141,7 +610,7 @@ public class UrlReader {
      * @param urlVal
      * @return
      */
-    private static URL toUrl(String urlVal) {
+    static URL toUrl(String urlVal) {
         try {
             return new URL( urlVal );
         } catch (MalformedURLException e) {
@@ -0,0 +1,43 @@
+package com.wework.websitesearcher.matcher;
+
+import java.util.List;
+
+/**
+ * A {@link MatchSession} fed with the raw bytes of a document instead of chars, e.g. straight off a socket. Depending
+ * on the matcher and the charset the bytes are either decoded first ({@link DecodingMatchSession}) or matched as they
+ * are.
+ *
+ * A session is not thread-safe and can only be used for a single document.
+ */
+public interface ByteMatchSession {
+
+    /**
+     * Feed the next chunk of the document to this session.
+     *
+     * @param bytes buffer containing the chunk
+     * @param offset offset of the first byte of the chunk
+     * @param length number of bytes in the chunk
+     * @return true if the content seen so far already matches (no need to feed the rest of the document)
+     */
+    boolean feed(byte[] bytes, int offset, int length);
+
+    /**
+     * Signal that there is no more content and return the final result.
+     *
+     * @return true if the document matched
+     */
+    boolean finish();
+
+    /**
+     * @return nanoseconds spent matching (as opposed to decoding) so far
+     */
+    long getMatchNanos();
+
+    /**
+     * @return names of the search terms the document has matched so far, if the matcher is a
+     * {@link MultiTermMatcher}, or null for a single search term
+     */
+    default List<String> getMatchedTerms() {
+        return null;
+    }
+}
@@ -0,0 +1,78 @@
+package com.wework.websitesearcher.matcher;
+
+import java.util.List;
+
+/**
+ * {@link ByteMatchSession} for a body whose charset isn't known yet. The first bytes are held back until there are
+ * enough of them to detect the charset (see {@link Charsets#detect}): just a byte order mark's worth if the header
+ * names a charset, else up to {@link Charsets#SNIFF_BYTES} to look for a <code>&lt;meta&gt;</code> tag. After that
+ * everything goes straight to the session the matcher has for that charset.
+ */
+class CharsetDetectingMatchSession implements ByteMatchSession {
+    private final ContentMatcher matcher;
+    private final String contentType;
+    /** Number of bytes needed to detect the charset */
+    private final int needed;
+    private byte[] head;
+    private int headLength;
+    private ByteMatchSession session;
+
+    /**
+     * @param matcher
+     * @param contentType value of the <code>Content-Type</code> header, or null
+     */
+    CharsetDetectingMatchSession(ContentMatcher matcher, String contentType) {
+        this.matcher = matcher;
+        this.contentType = contentType;
+        this.needed = Charsets.fromContentType(contentType) != null ? Charsets.BOM_BYTES : Charsets.SNIFF_BYTES;
+    }
+
+    @Override
+    public boolean feed(byte[] bytes, int offset, int length) {
+        if (session != null) {
+            return session.feed(bytes, offset, length);
+        }
+        if (headLength == 0 && length >= needed) {
+            // the usual case: the first chunk is enough on its own
+            start(bytes, offset, length);
+            return session.feed(bytes, offset, length);
+        }
+        if (head == null) {
+            head = new byte[needed];
+        }
+        int copied = Math.min(length, needed - headLength);
+        System.arraycopy(bytes, offset, head, headLength, copied);
+        headLength += copied;
+        if (headLength < needed) {
+            return false;
+        }
+        start(head, 0, headLength);
+        return session.feed(head, 0, headLength) || session.feed(bytes, offset + copied, length - copied);
+    }
+
+    @Override
+    public boolean finish() {
+        if (session == null) {
+            byte[] bytes = head != null ? head : new byte[0];
+            start(bytes, 0, headLength);
+            if (headLength > 0 && session.feed(bytes, 0, headLength)) {
+                return true;
+            }
+        }
+        return session.finish();
+    }
+
+    @Override
+    public long getMatchNanos() {
+        return session != null ? session.getMatchNanos() : 0;
+    }
+
+    @Override
+    public List<String> getMatchedTerms() {
+        return session != null ? session.getMatchedTerms() : null;
+    }
+
+    private void start(byte[] bytes, int offset, int length) {
+        session = matcher.newByteSession(Charsets.detect(contentType, bytes, offset, length));
+    }
+}
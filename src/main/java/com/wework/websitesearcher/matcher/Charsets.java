@@ -0,0 +1,173 @@
+package com.wework.websitesearcher.matcher;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Locale;
+
+/**
+ * Works out the charset of a page the way browsers do (a simplified version of the HTML5 encoding sniffing rules): a
+ * byte order mark wins, then the <code>charset</code> of the <code>Content-Type</code> header, then a
+ * <code>&lt;meta&gt;</code> charset declaration in the first {@link #SNIFF_BYTES} bytes of the page, and UTF-8 if
+ * there's none of those.
+ */
+public final class Charsets {
+    /** What pages without any charset information are decoded as */
+    public static final Charset DEFAULT = StandardCharsets.UTF_8;
+    /** How far into a page to look for a <code>&lt;meta&gt;</code> charset */
+    public static final int SNIFF_BYTES = 1024;
+    /** Longest byte order mark */
+    static final int BOM_BYTES = 3;
+
+    private Charsets() {}
+
+    /**
+     * @param contentType value of the <code>Content-Type</code> header, or null
+     * @param bytes start of the body (the first {@link #SNIFF_BYTES} are enough)
+     * @param offset
+     * @param length
+     * @return charset of the body (never null)
+     */
+    public static Charset detect(String contentType, byte[] bytes, int offset, int length) {
+        Charset charset = fromBom(bytes, offset, length);
+        if (charset == null) {
+            charset = fromContentType(contentType);
+        }
+        if (charset == null) {
+            charset = fromMeta(bytes, offset, Math.min(length, SNIFF_BYTES));
+        }
+        return charset != null ? charset : DEFAULT;
+    }
+
+    /**
+     * @param contentType value of the <code>Content-Type</code> header, e.g. <code>text/html; charset=utf-8</code>
+     * @return the charset it names, or null if there's none or the JVM doesn't support it
+     */
+    public static Charset fromContentType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        String lower = contentType.toLowerCase(Locale.ROOT);
+        int semicolon = lower.indexOf(';');
+        while (semicolon >= 0) {
+            int next = lower.indexOf(';', semicolon + 1);
+            String parameter = lower.substring(semicolon + 1, next >= 0 ? next : lower.length()).trim();
+            if (parameter.startsWith("charset=")) {
+                return forLabel(unquote(parameter.substring("charset=".length()).trim()), false);
+            }
+            semicolon = next;
+        }
+        return null;
+    }
+
+    /**
+     * @return the charset given by a UTF-8 or UTF-16 byte order mark at the start of the bytes, or null if there's
+     * none
+     */
+    static Charset fromBom(byte[] bytes, int offset, int length) {
+        if (length >= 3 && (bytes[offset] & 0xff) == 0xef && (bytes[offset + 1] & 0xff) == 0xbb
+                && (bytes[offset + 2] & 0xff) == 0xbf) {
+            return StandardCharsets.UTF_8;
+        }
+        if (length >= 2 && (bytes[offset] & 0xff) == 0xfe && (bytes[offset + 1] & 0xff) == 0xff) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (length >= 2 && (bytes[offset] & 0xff) == 0xff && (bytes[offset + 1] & 0xff) == 0xfe) {
+            return StandardCharsets.UTF_16LE;
+        }
+        return null;
+    }
+
+    /**
+     * Look for <code>&lt;meta charset="..."&gt;</code> or
+     * <code>&lt;meta http-equiv="Content-Type" content="text/html; charset=..."&gt;</code>.
+     *
+     * @return the first supported charset declared by a meta tag in the bytes, or null if there's none
+     */
+    static Charset fromMeta(byte[] bytes, int offset, int length) {
+        // the declaration itself is ASCII whatever the charset (UTF-16 pages have a BOM or a header)
+        String head = new String(bytes, offset, length, StandardCharsets.ISO_8859_1).toLowerCase(Locale.ROOT);
+        int meta = head.indexOf("<meta");
+        while (meta >= 0) {
+            int end = head.indexOf('>', meta);
+            String tag = head.substring(meta, end >= 0 ? end : head.length());
+            int at = tag.indexOf("charset");
+            while (at >= 0) {
+                int i = skipSpaces(tag, at + "charset".length());
+                if (i < tag.length() && tag.charAt(i) == '=') {
+                    i = skipSpaces(tag, i + 1);
+                    if (i < tag.length() && (tag.charAt(i) == '"' || tag.charAt(i) == '\'')) {
+                        i++;
+                    }
+                    int start = i;
+                    while (i < tag.length() && " \t\r\n\"';/>".indexOf(tag.charAt(i)) < 0) {
+                        i++;
+                    }
+                    Charset charset = forLabel(tag.substring(start, i), true);
+                    if (charset != null) {
+                        return charset;
+                    }
+                }
+                at = tag.indexOf("charset", at + 1);
+            }
+            meta = end >= 0 ? head.indexOf("<meta", end) : -1;
+        }
+        return null;
+    }
+
+    /**
+     * True for the charsets that encode ASCII as ASCII and never use a byte below 0x80 inside a multi-byte char, so
+     * that an ASCII keyword can be searched for in the raw bytes. Shift_JIS, GBK, Big5, ISO-2022-* and UTF-16/32 are
+     * not.
+     *
+     * @param charset
+     * @return
+     */
+    public static boolean isAsciiCompatible(Charset charset) {
+        String name = charset.name();
+        return name.equals("UTF-8") || name.equals("US-ASCII") || name.startsWith("ISO-8859-")
+                || name.startsWith("windows-125") || name.startsWith("KOI8-") || name.startsWith("EUC-");
+    }
+
+    /**
+     * @param label charset name from a header or a meta tag
+     * @param fromMeta true if it comes from a meta tag, where a UTF-16 charset can't be right (the tag was just read
+     *                 as ASCII) and means UTF-8
+     * @return the charset, or null if the JVM doesn't support it
+     */
+    private static Charset forLabel(String label, boolean fromMeta) {
+        if (label.isEmpty()) {
+            return null;
+        }
+        try {
+            Charset charset = Charset.forName(label);
+            String name = charset.name();
+            if (fromMeta && name.startsWith("UTF-16")) {
+                return StandardCharsets.UTF_8;
+            }
+            // what browsers do: pages labelled Latin-1 are nearly always really windows-1252 (curly quotes and all)
+            if (name.equals("ISO-8859-1") || name.equals("US-ASCII")) {
+                return Charset.isSupported("windows-1252") ? Charset.forName("windows-1252") : charset;
+            }
+            return charset;
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            return null;
+        }
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && (value.charAt(0) == '"' || value.charAt(0) == '\'')
+                && value.charAt(value.length() - 1) == value.charAt(0)) {
+            return value.substring(1, value.length() - 1).trim();
+        }
+        return value;
+    }
+
+    private static int skipSpaces(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
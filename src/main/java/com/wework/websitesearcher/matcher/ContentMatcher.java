@@ -0,0 +1,86 @@
+package com.wework.websitesearcher.matcher;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * A compiled search term. Create one per search job (see {@link ContentMatcherFactory}) and share it across threads;
+ * each document is matched in its own {@link MatchSession}, or {@link ByteMatchSession} for raw bytes.
+ */
+public interface ContentMatcher {
+
+    /** Number of chars read from a {@link Reader} (or bytes from a stream) at a time. */
+    int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Start matching a new document.
+     *
+     * @return a new session (never null)
+     */
+    MatchSession newSession();
+
+    /**
+     * Start matching a new document given as bytes in a known charset. By default the bytes are decoded and fed to a
+     * {@link #newSession()}; matchers that can match the bytes as they are override this.
+     *
+     * @param charset charset of the document
+     * @return a new session (never null)
+     */
+    default ByteMatchSession newByteSession(Charset charset) {
+        return new DecodingMatchSession(newSession(), charset);
+    }
+
+    /**
+     * Start matching the body of an HTTP response. Its charset is worked out from the header, a byte order mark or a
+     * <code>&lt;meta&gt;</code> tag (see {@link Charsets}), so the first bytes may be held back until it's known.
+     *
+     * @param contentType value of the <code>Content-Type</code> header, or null if there wasn't one
+     * @return a new session (never null)
+     */
+    default ByteMatchSession newResponseSession(String contentType) {
+        return new CharsetDetectingMatchSession(this, contentType);
+    }
+
+    /**
+     * Counters for all the sessions of this matcher so far.
+     *
+     * @return
+     */
+    MatchStats getStats();
+
+    /**
+     * Read the content from the reader in chunks and return as soon as it is known whether the content matches. The
+     * reader is NOT closed and may not have been read to the end.
+     *
+     * @param reader content to search
+     * @return true if the content matches
+     * @throws IOException if reading fails
+     */
+    default boolean matches(Reader reader) throws IOException {
+        MatchSession session = newSession();
+        char[] buffer = new char[CHUNK_SIZE];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            if (session.feed(buffer, 0, read)) {
+                return true;
+            }
+        }
+        return session.finish();
+    }
+
+    /**
+     * Returns true if the content matches. Returns false if the content is null or empty.
+     *
+     * @param content content to search
+     * @return true if the content matches
+     */
+    default boolean matches(CharSequence content) {
+        if (content == null || content.length() == 0) {
+            return false;
+        }
+        MatchSession session = newSession();
+        char[] chars = content.toString().toCharArray();
+        return session.feed(chars, 0, chars.length) || session.finish();
+    }
+}
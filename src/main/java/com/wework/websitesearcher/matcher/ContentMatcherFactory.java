@@ -0,0 +1,113 @@
+package com.wework.websitesearcher.matcher;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Compiles a search term into a {@link ContentMatcher}. Call this once per search job, not once per URL.
+ *
+ * Search terms that are just an alternation of plain keywords, like the default
+ * <code>(?s).*(facebook|twitter).*</code>, are run through an Aho-Corasick automaton
+ * ({@link KeywordContentMatcher}). Everything else falls back to {@link java.util.regex.Pattern}
+ * ({@link RegexContentMatcher}). Several named search terms are compiled together into a {@link MultiTermMatcher}.
+ */
+public class ContentMatcherFactory {
+    private static final Logger LOG = LoggerFactory.getLogger(ContentMatcherFactory.class);
+
+    /** Inline flags that don't change how plain keywords match. */
+    private static final String KEYWORD_SAFE_FLAGS = "smdi";
+
+    private ContentMatcherFactory() {}
+
+    /**
+     * Returns a matcher for the regex search term. The regex has whole-document semantics, same as
+     * {@link String#matches(String)} (e.g. <code>(?s).*(facebook|twitter).*</code>).
+     *
+     * @param searchTerm regex search term
+     * @return the compiled matcher
+     * @throws IllegalArgumentException if the search term is empty or isn't a valid regex
+     */
+    public static ContentMatcher getInstance(String searchTerm) {
+        if (StringUtils.isEmpty(searchTerm)) {
+            throw new IllegalArgumentException("Search term can not be null or empty.");
+        }
+        List<String> keywords = toKeywords(searchTerm);
+        if (keywords != null) {
+            LOG.debug("Search term '{}' is a list of {} keywords", searchTerm, keywords.size());
+            return new KeywordContentMatcher(keywords, RegexSyntax.hasFlag(RegexSyntax.leadingFlags(searchTerm), 'i'));
+        }
+        return new RegexContentMatcher(searchTerm);
+    }
+
+    /**
+     * Returns a matcher for several named regex search terms at once (see {@link MultiTermMatcher}).
+     *
+     * @param namedTerms search terms by name, in the order they should be reported in. Names can only have letters,
+     *                   digits, '_', '-' and '.', since they are used in file names.
+     * @return the compiled matcher
+     * @throws IllegalArgumentException if there are no terms, a name isn't valid, or a search term is empty or isn't
+     * a valid regex
+     */
+    public static MultiTermMatcher getInstance(Map<String, String> namedTerms) {
+        if (namedTerms == null || namedTerms.isEmpty()) {
+            throw new IllegalArgumentException("Search terms can not be null or empty.");
+        }
+        for (Map.Entry<String, String> term : namedTerms.entrySet()) {
+            if (term.getKey() == null || !term.getKey().matches("[A-Za-z0-9_.-]+")) {
+                throw new IllegalArgumentException("Search term names can only have letters, digits, '_', '-' and " +
+                        "'.'. Name arg: " + term.getKey());
+            }
+            if (StringUtils.isEmpty(term.getValue())) {
+                throw new IllegalArgumentException("Search term can not be null or empty. Name arg: " + term.getKey());
+            }
+        }
+        MultiTermMatcher matcher = new MultiTermMatcher(namedTerms);
+        LOG.debug("Search terms {}: {}", namedTerms.keySet(), matcher);
+        return matcher;
+    }
+
+    /**
+     * Returns a regex search term that matches documents containing any of the keywords (e.g. keywords "facebook" and
+     * "twitter" become <code>(?s).*(facebook|twitter).*</code>). Passing the result to {@link #getInstance(String)}
+     * returns a keyword matcher.
+     *
+     * @param keywords plain keywords (no regex syntax)
+     * @return the regex search term
+     * @throws IllegalArgumentException if there are no keywords or one of them is empty
+     */
+    public static String toKeywordSearchTerm(Collection<String> keywords) {
+        if (keywords == null || keywords.isEmpty() || keywords.stream().anyMatch(StringUtils::isEmpty)) {
+            throw new IllegalArgumentException("Keywords can not be null or empty: " + keywords);
+        }
+        return keywords.stream()
+                .map(RegexSyntax::escapeLiteral)
+                .collect(Collectors.joining("|", "(?s).*(", ").*"));
+    }
+
+    /**
+     * Returns the keywords if the search term is of the form <code>(?s).*(keyword1|keyword2|...).*</code>, otherwise
+     * null.
+     *
+     * @param searchTerm
+     * @return
+     */
+    static List<String> toKeywords(String searchTerm) {
+        String flags = RegexSyntax.leadingFlags(searchTerm);
+        for (int i = 2; i < flags.length() - 1; i++) {
+            if (KEYWORD_SAFE_FLAGS.indexOf(flags.charAt(i)) < 0) {
+                return null;
+            }
+        }
+        String unwrapped = RegexSyntax.unwrapDotAll(searchTerm);
+        if (unwrapped == null) {
+            return null;
+        }
+        return RegexSyntax.literalAlternatives(unwrapped.substring(flags.length()));
+    }
+}
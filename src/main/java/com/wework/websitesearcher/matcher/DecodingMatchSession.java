@@ -0,0 +1,121 @@
+package com.wework.websitesearcher.matcher;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+
+/**
+ * Feeds raw bytes (e.g. straight off a socket) to a {@link MatchSession}, decoding them as they arrive. Multi-byte
+ * chars split across two chunks of bytes are kept until the rest of the char arrives. Malformed input is replaced,
+ * same as {@link java.io.InputStreamReader}.
+ */
+public class DecodingMatchSession implements ByteMatchSession {
+    private final MatchSession session;
+    private final CharsetDecoder decoder;
+    private final CharBuffer chars = CharBuffer.allocate(ContentMatcher.CHUNK_SIZE);
+    private ByteBuffer pending = ByteBuffer.allocate(0);
+    private boolean matched;
+    private long matchNanos;
+
+    public DecodingMatchSession(MatchSession session, Charset charset) {
+        this.session = session;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Decode the bytes and feed them to the session.
+     *
+     * @param bytes buffer containing the chunk
+     * @param offset offset of the first byte of the chunk
+     * @param length number of bytes in the chunk
+     * @return true if the content seen so far already matches
+     */
+    @Override
+    public boolean feed(byte[] bytes, int offset, int length) {
+        if (matched) {
+            return true;
+        }
+        ByteBuffer input;
+        if (pending.hasRemaining()) {
+            input = ByteBuffer.allocate(pending.remaining() + length);
+            input.put(pending).put(bytes, offset, length).flip();
+        }
+        else {
+            input = ByteBuffer.wrap(bytes, offset, length);
+        }
+        matched = decode(input, false);
+        if (!matched && input.hasRemaining()) {
+            // keep the start of a char that isn't complete yet
+            pending = ByteBuffer.allocate(input.remaining());
+            pending.put(input).flip();
+        }
+        else {
+            pending = ByteBuffer.allocate(0);
+        }
+        return matched;
+    }
+
+    /**
+     * Signal that there is no more content and return the final result.
+     *
+     * @return true if the content matched
+     */
+    @Override
+    public boolean finish() {
+        if (matched) {
+            return true;
+        }
+        if (decode(pending, true)) {
+            return true;
+        }
+        chars.clear();
+        decoder.flush(chars);
+        chars.flip();
+        if (chars.hasRemaining() && match(false)) {
+            return true;
+        }
+        return match(true);
+    }
+
+    /**
+     * @return nanoseconds spent in the session (as opposed to decoding) so far
+     */
+    @Override
+    public long getMatchNanos() {
+        return matchNanos;
+    }
+
+    @Override
+    public List<String> getMatchedTerms() {
+        return session.getMatchedTerms();
+    }
+
+    private boolean decode(ByteBuffer input, boolean endOfInput) {
+        while (true) {
+            chars.clear();
+            CoderResult result = decoder.decode(input, chars, endOfInput);
+            chars.flip();
+            if (chars.hasRemaining() && match(false)) {
+                return true;
+            }
+            if (!result.isOverflow()) {
+                return false;
+            }
+        }
+    }
+
+    private boolean match(boolean finish) {
+        long start = System.nanoTime();
+        try {
+            return finish ? session.finish() : session.feed(chars.array(), 0, chars.limit());
+        } finally {
+            matchNanos += System.nanoTime() - start;
+        }
+    }
+}
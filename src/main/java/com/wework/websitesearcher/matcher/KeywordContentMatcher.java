@@ -0,0 +1,316 @@
+package com.wework.websitesearcher.matcher;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * {@link ContentMatcher} that matches documents containing any one of a set of plain keywords. The keywords are
+ * compiled into an Aho-Corasick automaton, so every char of the document is looked at exactly once no matter how many
+ * keywords there are. The automaton state carries over from one chunk to the next, so keywords straddling chunk
+ * boundaries are always found.
+ *
+ * Transitions for ASCII chars are precomputed into a table; other chars walk the failure links.
+ *
+ * If all the keywords are ASCII, bodies in an ASCII-compatible charset (see {@link Charsets#isAsciiCompatible}) are
+ * matched on their raw bytes, without decoding them: no byte of a multi-byte char is ASCII, so any byte above 0x7f
+ * just sends the automaton back to its root.
+ *
+ * The keywords can also come in groups (one per search term of a {@link MultiTermMatcher}), all in the same automaton:
+ * a {@link GroupSession} then keeps track of which groups have matched.
+ */
+class KeywordContentMatcher implements ContentMatcher {
+    private static final int ASCII = 128;
+    private static final int ROOT = 0;
+
+    private final List<String> keywords;
+    private final boolean ignoreCase;
+    private final boolean asciiKeywords;
+    private final int[] asciiTransitions;
+    private final List<Map<Character, Integer>> children;
+    private final int[] failure;
+    private final boolean[] terminal;
+    /** Groups with a keyword ending at each state, through the failure links too */
+    private final int[][] outputs;
+    private final int groupCount;
+    private final MatchStats stats = new MatchStats();
+
+    /**
+     * Build the automaton.
+     *
+     * @param keywords keywords to search for (at least one, none empty)
+     * @param ignoreCase if true, ASCII letters are matched case-insensitively (same as the regex flag
+     *                   <code>(?i)</code>)
+     * @throws IllegalArgumentException if there are no keywords or one of them is empty
+     */
+    KeywordContentMatcher(Collection<String> keywords, boolean ignoreCase) {
+        this(Collections.singletonList(keywords), ignoreCase);
+    }
+
+    /**
+     * Build one automaton for several groups of keywords.
+     *
+     * @param groups keywords to search for, by group (at least one group, none empty, no empty keyword)
+     * @param ignoreCase if true, ASCII letters are matched case-insensitively (same as the regex flag
+     *                   <code>(?i)</code>)
+     * @throws IllegalArgumentException if there are no keywords, a group is empty or a keyword is empty
+     */
+    KeywordContentMatcher(List<? extends Collection<String>> groups, boolean ignoreCase) {
+        if (groups == null || groups.isEmpty()) {
+            throw new IllegalArgumentException("Keywords can not be null or empty.");
+        }
+        this.keywords = new ArrayList<>();
+        this.ignoreCase = ignoreCase;
+        this.groupCount = groups.size();
+
+        // build the trie
+        children = new ArrayList<>();
+        List<BitSet> stateGroups = new ArrayList<>();
+        children.add(new HashMap<>());
+        stateGroups.add(new BitSet());
+        boolean ascii = true;
+        for (int group = 0; group < groups.size(); group++) {
+            Collection<String> groupKeywords = groups.get(group);
+            if (groupKeywords == null || groupKeywords.isEmpty()) {
+                throw new IllegalArgumentException("Keywords can not be null or empty.");
+            }
+            for (String keyword : groupKeywords) {
+                if (keyword == null || keyword.isEmpty()) {
+                    throw new IllegalArgumentException("Keywords can not be empty: " + groupKeywords);
+                }
+                keywords.add(keyword);
+                int state = ROOT;
+                for (int i = 0; i < keyword.length(); i++) {
+                    char c = fold(keyword.charAt(i));
+                    ascii &= c < ASCII;
+                    Integer next = children.get(state).get(c);
+                    if (next == null) {
+                        next = children.size();
+                        children.add(new HashMap<>());
+                        stateGroups.add(new BitSet());
+                        children.get(state).put(c, next);
+                    }
+                    state = next;
+                }
+                stateGroups.get(state).set(group);
+            }
+        }
+        asciiKeywords = ascii;
+
+        int states = children.size();
+        failure = new int[states];
+        terminal = new boolean[states];
+        outputs = new int[states][];
+        asciiTransitions = new int[states * ASCII];
+        outputs[ROOT] = new int[0];
+
+        // breadth-first, so the failure state of every state has been completed before the state itself
+        Queue<Integer> queue = new ArrayDeque<>();
+        queue.add(ROOT);
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (Map.Entry<Character, Integer> child : children.get(state).entrySet()) {
+                int next = child.getValue();
+                failure[next] = state == ROOT ? ROOT : transition(failure[state], child.getKey());
+                BitSet groupsAtNext = stateGroups.get(next);
+                for (int group : outputs[failure[next]]) {
+                    groupsAtNext.set(group);
+                }
+                outputs[next] = groupsAtNext.stream().toArray();
+                terminal[next] = outputs[next].length > 0;
+                queue.add(next);
+            }
+            for (char c = 0; c < ASCII; c++) {
+                Integer next = children.get(state).get(c);
+                if (next != null) {
+                    asciiTransitions[state * ASCII + c] = next;
+                }
+                else {
+                    asciiTransitions[state * ASCII + c] = state == ROOT ? ROOT : asciiTransitions[failure[state] * ASCII + c];
+                }
+            }
+        }
+        if (ignoreCase) {
+            // so that raw bytes can be looked up without folding them first
+            for (int s = 0; s < states; s++) {
+                for (char c = 'A'; c <= 'Z'; c++) {
+                    asciiTransitions[s * ASCII + c] = asciiTransitions[s * ASCII + fold(c)];
+                }
+            }
+        }
+    }
+
+    @Override
+    public MatchSession newSession() {
+        stats.documentStarted();
+        return new KeywordSession();
+    }
+
+    @Override
+    public ByteMatchSession newByteSession(Charset charset) {
+        if (!asciiKeywords || !Charsets.isAsciiCompatible(charset)) {
+            return ContentMatcher.super.newByteSession(charset);
+        }
+        stats.documentStarted();
+        return new KeywordByteSession();
+    }
+
+    @Override
+    public MatchStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "KeywordContentMatcher{keywords=" + keywords.size() + ", ignoreCase=" + ignoreCase + '}';
+    }
+
+    /**
+     * Next state of the automaton (only valid once the failure links of <code>state</code> and its ancestors are
+     * set).
+     *
+     * @param state current state
+     * @param c next (folded) char
+     * @return
+     */
+    private int transition(int state, char c) {
+        if (c < ASCII) {
+            return asciiTransitions[state * ASCII + c];
+        }
+        while (true) {
+            Integer next = children.get(state).get(c);
+            if (next != null) {
+                return next;
+            }
+            if (state == ROOT) {
+                return ROOT;
+            }
+            state = failure[state];
+        }
+    }
+
+    private char fold(char c) {
+        return ignoreCase && c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private class KeywordSession implements MatchSession {
+        private int state = ROOT;
+        private boolean matched;
+
+        @Override
+        public boolean feed(char[] chars, int offset, int length) {
+            if (matched) {
+                return true;
+            }
+            int s = state;
+            for (int i = offset, end = offset + length; i < end; i++) {
+                s = transition(s, fold(chars[i]));
+                if (terminal[s]) {
+                    matched = true;
+                    stats.documentMatched();
+                    return true;
+                }
+            }
+            state = s;
+            return false;
+        }
+
+        @Override
+        public boolean finish() {
+            return matched;
+        }
+    }
+
+    private class KeywordByteSession implements ByteMatchSession {
+        private int state = ROOT;
+        private boolean matched;
+        private long matchNanos;
+
+        @Override
+        public boolean feed(byte[] bytes, int offset, int length) {
+            if (matched) {
+                return true;
+            }
+            long start = System.nanoTime();
+            int s = state;
+            for (int i = offset, end = offset + length; i < end; i++) {
+                byte b = bytes[i];
+                s = b >= 0 ? asciiTransitions[s * ASCII + b] : ROOT;
+                if (terminal[s]) {
+                    matched = true;
+                    stats.documentMatched();
+                    break;
+                }
+            }
+            state = s;
+            matchNanos += System.nanoTime() - start;
+            return matched;
+        }
+
+        @Override
+        public boolean finish() {
+            return matched;
+        }
+
+        @Override
+        public long getMatchNanos() {
+            return matchNanos;
+        }
+    }
+
+    /**
+     * Start matching a document against every group at once. Unlike the other sessions, it only stops early (feed
+     * returns true) once all the groups have matched.
+     *
+     * @return
+     */
+    GroupSession newGroupSession() {
+        return new GroupSession();
+    }
+
+    class GroupSession implements MatchSession {
+        private final BitSet matched = new BitSet(groupCount);
+        private int state = ROOT;
+
+        @Override
+        public boolean feed(char[] chars, int offset, int length) {
+            if (matched.cardinality() == groupCount) {
+                return true;
+            }
+            int s = state;
+            for (int i = offset, end = offset + length; i < end; i++) {
+                s = transition(s, fold(chars[i]));
+                if (terminal[s]) {
+                    for (int group : outputs[s]) {
+                        matched.set(group);
+                    }
+                    if (matched.cardinality() == groupCount) {
+                        return true;
+                    }
+                }
+            }
+            state = s;
+            return false;
+        }
+
+        @Override
+        public boolean finish() {
+            return !matched.isEmpty();
+        }
+
+        /**
+         * @param group
+         * @return true if a keyword of the group has been seen
+         */
+        boolean isMatched(int group) {
+            return matched.get(group);
+        }
+    }
+}
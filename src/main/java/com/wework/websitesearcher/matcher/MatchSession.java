@@ -0,0 +1,37 @@
+package com.wework.websitesearcher.matcher;
+
+import java.util.List;
+
+/**
+ * Holds the state of matching one document (e.g. the body of one URL) against a {@link ContentMatcher}. The content
+ * is fed to the session in chunks as it arrives, so the caller can stop reading as soon as {@link #feed} returns true.
+ *
+ * A session is not thread-safe and can only be used for a single document.
+ */
+public interface MatchSession {
+
+    /**
+     * Feed the next chunk of the document to this session.
+     *
+     * @param chars buffer containing the chunk
+     * @param offset offset of the first char of the chunk
+     * @param length number of chars in the chunk
+     * @return true if the content seen so far already matches (no need to feed the rest of the document)
+     */
+    boolean feed(char[] chars, int offset, int length);
+
+    /**
+     * Signal that there is no more content and return the final result.
+     *
+     * @return true if the document matched
+     */
+    boolean finish();
+
+    /**
+     * @return names of the search terms the document has matched so far, if the matcher is a
+     * {@link MultiTermMatcher}, or null for a single search term
+     */
+    default List<String> getMatchedTerms() {
+        return null;
+    }
+}
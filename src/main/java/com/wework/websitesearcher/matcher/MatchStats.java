@@ -0,0 +1,55 @@
+package com.wework.websitesearcher.matcher;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe counters kept by a {@link ContentMatcher} across all of its sessions.
+ */
+public class MatchStats {
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder matched = new LongAdder();
+    private final LongAdder prefilterRejected = new LongAdder();
+
+    void documentStarted() {
+        documents.increment();
+    }
+
+    void documentMatched() {
+        matched.increment();
+    }
+
+    void prefilterRejected() {
+        prefilterRejected.increment();
+    }
+
+    /**
+     * @return number of documents (sessions) started
+     */
+    public long getDocuments() {
+        return documents.sum();
+    }
+
+    /**
+     * @return number of documents that matched
+     */
+    public long getMatched() {
+        return matched.sum();
+    }
+
+    /**
+     * @return number of documents rejected by the literal prefilter without running the regex
+     */
+    public long getPrefilterRejected() {
+        return prefilterRejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        long documents = getDocuments();
+        long rejected = getPrefilterRejected();
+        return "documents: " + documents +
+                ", matched: " + getMatched() +
+                ", rejected by prefilter: " + rejected +
+                (documents > 0 ? String.format(" (%.1f%%)", 100.0 * rejected / documents) : "");
+    }
+}
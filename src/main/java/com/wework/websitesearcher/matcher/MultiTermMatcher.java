@@ -0,0 +1,207 @@
+package com.wework.websitesearcher.matcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ContentMatcher} for several named search terms at once, so that each page is fetched once however many terms
+ * it's searched for. A document matches if it matches any of the terms; its session tells which ones
+ * ({@link MatchSession#getMatchedTerms()}) and only stops early once it has matched all of them.
+ *
+ * The content is looked at once for all the keyword terms (see {@link ContentMatcherFactory}): they share one
+ * Aho-Corasick automaton, with a group of keywords per term (two automatons if some are case-insensitive and some
+ * aren't). The other terms are regexes, each fed the same chunks in turn.
+ */
+public class MultiTermMatcher implements ContentMatcher {
+    private final List<String> names;
+    private final List<String> searchTerms;
+    /** Automatons of the keyword terms: case-sensitive, then case-insensitive. Null if there are no such terms. */
+    private final KeywordContentMatcher[] automatons = new KeywordContentMatcher[2];
+    /** For each automaton, index of the term of each of its groups */
+    private final int[][] automatonTerms = new int[2][];
+    private final List<ContentMatcher> regexMatchers = new ArrayList<>();
+    /** Index of the term of each regex matcher */
+    private final int[] regexTerms;
+    private final MatchStats stats = new MatchStats();
+    private final LongAdder[] termMatches;
+
+    /**
+     * @param namedTerms search terms by name, in the order they are reported in
+     * @throws IllegalArgumentException if there are no terms or a term isn't a valid regex
+     */
+    MultiTermMatcher(Map<String, String> namedTerms) {
+        if (namedTerms == null || namedTerms.isEmpty()) {
+            throw new IllegalArgumentException("Search terms can not be null or empty.");
+        }
+        names = new ArrayList<>(namedTerms.keySet());
+        searchTerms = new ArrayList<>(namedTerms.values());
+        termMatches = new LongAdder[names.size()];
+        // by automaton: the keywords of each term, and the index of that term
+        List<List<List<String>>> groups = Arrays.asList(new ArrayList<>(), new ArrayList<>());
+        List<List<Integer>> groupTerms = Arrays.asList(new ArrayList<>(), new ArrayList<>());
+        List<Integer> regexTermList = new ArrayList<>();
+        for (int term = 0; term < names.size(); term++) {
+            termMatches[term] = new LongAdder();
+            String searchTerm = searchTerms.get(term);
+            List<String> keywords = ContentMatcherFactory.toKeywords(searchTerm);
+            if (keywords != null) {
+                int automaton = RegexSyntax.hasFlag(RegexSyntax.leadingFlags(searchTerm), 'i') ? 1 : 0;
+                groups.get(automaton).add(keywords);
+                groupTerms.get(automaton).add(term);
+            }
+            else {
+                regexMatchers.add(ContentMatcherFactory.getInstance(searchTerm));
+                regexTermList.add(term);
+            }
+        }
+        for (int automaton = 0; automaton < 2; automaton++) {
+            if (!groups.get(automaton).isEmpty()) {
+                automatons[automaton] = new KeywordContentMatcher(groups.get(automaton), automaton == 1);
+                automatonTerms[automaton] = groupTerms.get(automaton).stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+        regexTerms = regexTermList.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return names of the search terms, in order
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @param name
+     * @return the search term of that name, or null if there's none
+     */
+    public String getSearchTerm(String name) {
+        int term = names.indexOf(name);
+        return term >= 0 ? searchTerms.get(term) : null;
+    }
+
+    /**
+     * @return number of documents matched by each term so far, by name
+     */
+    public Map<String, Long> getMatchCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int term = 0; term < names.size(); term++) {
+            counts.put(names.get(term), termMatches[term].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public MatchSession newSession() {
+        stats.documentStarted();
+        return new MultiSession();
+    }
+
+    /**
+     * Counters for all the sessions: documents started and documents that matched at least one term.
+     *
+     * @return
+     */
+    @Override
+    public MatchStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "MultiTermMatcher{terms=" + names.size() + ", keywordTerms=" + (names.size() - regexTerms.length) +
+                ", regexTerms=" + regexTerms.length + '}';
+    }
+
+    private class MultiSession implements MatchSession {
+        private final BitSet matched = new BitSet(names.size());
+        private final KeywordContentMatcher.GroupSession[] groupSessions = new KeywordContentMatcher.GroupSession[2];
+        private final MatchSession[] regexSessions = new MatchSession[regexMatchers.size()];
+        private boolean done;
+
+        MultiSession() {
+            for (int automaton = 0; automaton < 2; automaton++) {
+                if (automatons[automaton] != null) {
+                    groupSessions[automaton] = automatons[automaton].newGroupSession();
+                }
+            }
+            for (int i = 0; i < regexSessions.length; i++) {
+                regexSessions[i] = regexMatchers.get(i).newSession();
+            }
+        }
+
+        @Override
+        public boolean feed(char[] chars, int offset, int length) {
+            if (done) {
+                return true;
+            }
+            for (int automaton = 0; automaton < 2; automaton++) {
+                KeywordContentMatcher.GroupSession session = groupSessions[automaton];
+                if (session != null) {
+                    session.feed(chars, offset, length);
+                    collect(automaton);
+                }
+            }
+            for (int i = 0; i < regexSessions.length; i++) {
+                if (regexSessions[i] != null && regexSessions[i].feed(chars, offset, length)) {
+                    regexSessions[i] = null;
+                    matched.set(regexTerms[i]);
+                }
+            }
+            if (matched.cardinality() < names.size()) {
+                return false;
+            }
+            end();
+            return true;
+        }
+
+        @Override
+        public boolean finish() {
+            if (!done) {
+                for (int i = 0; i < regexSessions.length; i++) {
+                    if (regexSessions[i] != null && regexSessions[i].finish()) {
+                        matched.set(regexTerms[i]);
+                    }
+                }
+                end();
+            }
+            return !matched.isEmpty();
+        }
+
+        @Override
+        public List<String> getMatchedTerms() {
+            List<String> matchedNames = new ArrayList<>();
+            for (int term = matched.nextSetBit(0); term >= 0; term = matched.nextSetBit(term + 1)) {
+                matchedNames.add(names.get(term));
+            }
+            return matchedNames;
+        }
+
+        /**
+         * Mark the terms whose keywords the automaton has seen as matched.
+         */
+        private void collect(int automaton) {
+            KeywordContentMatcher.GroupSession session = groupSessions[automaton];
+            for (int group = 0; group < automatonTerms[automaton].length; group++) {
+                if (session.isMatched(group)) {
+                    matched.set(automatonTerms[automaton][group]);
+                }
+            }
+        }
+
+        private void end() {
+            done = true;
+            if (!matched.isEmpty()) {
+                stats.documentMatched();
+            }
+            for (int term = matched.nextSetBit(0); term >= 0; term = matched.nextSetBit(term + 1)) {
+                termMatches[term].increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.wework.websitesearcher.matcher;
+
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link ContentMatcher} for a {@link Pattern} regex with whole-document semantics (same as
+ * {@link String#matches(String)}). The pattern is compiled once.
+ *
+ * Regexes shaped like <code>(?s).*(facebook|twitter).*</code> are run in streaming mode: the inner pattern is searched
+ * for in each chunk as it arrives, so the session can report a match without seeing the rest of the document. To find
+ * matches that straddle two chunks, the last {@link #OVERLAP} chars of each chunk are carried over into the next
+ * search window, so this is only done when no match of the inner pattern can be longer than that (see
+ * {@link RegexSyntax#maxMatchLength}): <code>(?s).*facebook.*twitter.*</code> is not streamed, since the two words can
+ * be any distance apart. Any other regex is run against the whole document once it has been fully read. Word
+ * boundaries at the edges of the window are told from the chars around it: the ones before the window are kept as
+ * context, and a match that depends on what comes after the window (see {@link Matcher#requireEnd()}) is only
+ * counted once the next chunk, or the end of the document, shows it still holds.
+ *
+ * If the regex has literals that every match must contain (see {@link RequiredLiterals}), the content is first
+ * scanned for them and the regex only runs once one of them has been seen. Documents that never contain any of them
+ * are rejected without running the regex at all.
+ */
+class RegexContentMatcher implements ContentMatcher {
+
+    /** Number of chars carried over from one chunk to the next. Longer matches are never streamed. */
+    static final int OVERLAP = 1024;
+    /**
+     * Chars kept before the carried over ones, only looked at (not searched), so that a <code>\b</code> at the start
+     * of the search window sees the char before it. Two, for a surrogate pair.
+     */
+    private static final int CONTEXT = 2;
+
+    private final String regex;
+    private final Pattern fullPattern;
+    private final Pattern findPattern;
+    private final KeywordContentMatcher prefilter;
+    private final MatchStats stats = new MatchStats();
+
+    RegexContentMatcher(String regex) {
+        this.regex = regex;
+        this.fullPattern = Pattern.compile(regex);
+        String unwrapped = RegexSyntax.unwrapDotAll(regex);
+        this.findPattern = unwrapped != null && isShorterThanOverlap(unwrapped) ? Pattern.compile(unwrapped) : null;
+        List<String> literals = RequiredLiterals.extract(regex);
+        this.prefilter = literals != null
+                ? new KeywordContentMatcher(literals, RegexSyntax.hasFlag(RegexSyntax.leadingFlags(regex), 'i'))
+                : null;
+    }
+
+    /**
+     * @param findRegex regex with find semantics, as returned by {@link RegexSyntax#unwrapDotAll}
+     * @return true if its matches fit in the chars carried over between chunks
+     */
+    private static boolean isShorterThanOverlap(String findRegex) {
+        int maxLength = RegexSyntax.maxMatchLength(findRegex);
+        return maxLength >= 0 && maxLength <= OVERLAP;
+    }
+
+    /**
+     * Returns true if documents are matched chunk by chunk (vs. buffered and matched once fully read).
+     *
+     * @return
+     */
+    boolean isStreaming() {
+        return findPattern != null;
+    }
+
+    @Override
+    public MatchSession newSession() {
+        stats.documentStarted();
+        return isStreaming() ? new StreamingSession() : new BufferingSession();
+    }
+
+    @Override
+    public MatchStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "RegexContentMatcher{regex='" + regex + "', streaming=" + isStreaming() +
+                ", prefilter=" + (prefilter != null) + '}';
+    }
+
+    /**
+     * Tracks whether any of the required literals has been seen yet.
+     */
+    private abstract class PrefilteredSession implements MatchSession {
+        private final MatchSession prefilterSession = prefilter != null ? prefilter.newSession() : null;
+        private boolean literalSeen = prefilter == null;
+
+        /**
+         * Scan the chunk for the required literals.
+         *
+         * @return true if one of them has been seen in this or an earlier chunk
+         */
+        boolean literalSeen(char[] chars, int offset, int length) {
+            if (!literalSeen) {
+                literalSeen = prefilterSession.feed(chars, offset, length);
+            }
+            return literalSeen;
+        }
+
+        boolean rejectedByPrefilter() {
+            if (!literalSeen) {
+                stats.prefilterRejected();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Searches a sliding window (overlap from the previous chunk + the current chunk) for the inner pattern.
+     */
+    private class StreamingSession extends PrefilteredSession {
+        private final Matcher matcher = findPattern.matcher("").useTransparentBounds(true).useAnchoringBounds(false);
+        private char[] window = new char[0];
+        private int windowLength;
+        /** Chars at the start of the window only kept as context, not searched */
+        private int contextLength;
+        private boolean matched;
+        /** Whether the window has a match that more chars could undo, e.g. <code>cat\b</code> ending the window */
+        private boolean pendingMatch;
+
+        @Override
+        public boolean feed(char[] chars, int offset, int length) {
+            if (matched || length == 0) {
+                return matched;
+            }
+            if (window.length < windowLength + length) {
+                char[] grown = new char[CONTEXT + OVERLAP + length];
+                System.arraycopy(window, 0, grown, 0, windowLength);
+                window = grown;
+            }
+            System.arraycopy(chars, offset, window, windowLength, length);
+            windowLength += length;
+
+            if (literalSeen(chars, offset, length)) {
+                matcher.reset(CharBuffer.wrap(window, 0, windowLength));
+                matcher.region(contextLength, windowLength);
+                pendingMatch = false;
+                if (matcher.find()) {
+                    if (!matcher.requireEnd()) {
+                        matched = true;
+                        stats.documentMatched();
+                        return true;
+                    }
+                    // found again in the next window, or confirmed by finish() if this is the end of the document
+                    pendingMatch = true;
+                }
+            }
+
+            // keep the tail of the window so matches spanning the chunk boundary are found next time
+            int keep = Math.min(CONTEXT + OVERLAP, windowLength);
+            System.arraycopy(window, windowLength - keep, window, 0, keep);
+            windowLength = keep;
+            contextLength = Math.max(0, keep - OVERLAP);
+            return false;
+        }
+
+        @Override
+        public boolean finish() {
+            if (!matched && pendingMatch) {
+                matched = true;
+                stats.documentMatched();
+            }
+            if (!matched) {
+                rejectedByPrefilter();
+            }
+            return matched;
+        }
+    }
+
+    /**
+     * Buffers the whole document and runs the full pattern against it at the end.
+     */
+    private class BufferingSession extends PrefilteredSession {
+        private final StringBuilder content = new StringBuilder();
+
+        @Override
+        public boolean feed(char[] chars, int offset, int length) {
+            literalSeen(chars, offset, length);
+            content.append(chars, offset, length);
+            return false;
+        }
+
+        @Override
+        public boolean finish() {
+            if (rejectedByPrefilter() || content.length() == 0) {
+                return false;
+            }
+            boolean matched = fullPattern.matcher(content).matches();
+            if (matched) {
+                stats.documentMatched();
+            }
+            return matched;
+        }
+    }
+}
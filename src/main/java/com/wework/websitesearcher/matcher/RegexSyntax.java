@@ -0,0 +1,613 @@
+package com.wework.websitesearcher.matcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Package-private helpers for looking at the shape of a {@link java.util.regex.Pattern} regex string without
+ * compiling it. These are deliberately conservative: when in doubt they report that a regex can't be simplified, and
+ * the caller falls back to running the regex as-is.
+ */
+final class RegexSyntax {
+
+    /** Chars that have a special meaning outside of a char class. */
+    private static final String META_CHARS = "\\^$.|?*+()[]{}";
+    /** Match lengths past this count as unbounded, so products of nested quantifiers can't overflow */
+    private static final long MAX_BOUNDED_LENGTH = 1L << 30;
+
+    private RegexSyntax() {}
+
+    /**
+     * Returns the leading inline flags group of the regex (e.g. <code>(?s)</code> or <code>(?is)</code>), or an empty
+     * string if the regex doesn't start with one.
+     *
+     * @param regex
+     * @return
+     */
+    static String leadingFlags(String regex) {
+        if (!regex.startsWith("(?")) {
+            return "";
+        }
+        int i = 2;
+        while (i < regex.length() && isFlagChar(regex.charAt(i))) {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ')') {
+            return regex.substring(0, i + 1);
+        }
+        return "";
+    }
+
+    /**
+     * Returns true if the given inline flags group turns on the given flag (e.g. 's' for DOTALL).
+     *
+     * @param flags flags group as returned by {@link #leadingFlags(String)}
+     * @param flag flag char
+     * @return
+     */
+    static boolean hasFlag(String flags, char flag) {
+        for (int i = 2; i < flags.length(); i++) {
+            char c = flags.charAt(i);
+            if (c == '-') {
+                return false;
+            }
+            if (c == flag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * If the regex has the shape <code>(?s).*INNER.*</code>, where INNER has no top-level alternation and no anchors,
+     * then matching the whole document against the regex is the same as finding INNER anywhere in the document. In
+     * that case this returns the regex for INNER (with the leading flags group kept), otherwise null.
+     *
+     * @param regex regex whose whole-document match semantics are wanted (as in {@link String#matches(String)})
+     * @return an equivalent regex with find semantics, or null
+     */
+    static String unwrapDotAll(String regex) {
+        String flags = leadingFlags(regex);
+        if (!hasFlag(flags, 's') || regex.contains("\\Q")) {
+            return null;
+        }
+        String body = regex.substring(flags.length());
+        if (body.length() < 4 || !body.startsWith(".*") || !body.endsWith(".*")) {
+            return null;
+        }
+        // lazy or possessive leading quantifier changes the meaning
+        char afterLeading = body.charAt(2);
+        if (afterLeading == '?' || afterLeading == '+') {
+            return null;
+        }
+        String inner = body.substring(2, body.length() - 2);
+        if (endsWithEscape(inner) || !isFindSafe(inner)) {
+            return null;
+        }
+        return flags + inner;
+    }
+
+    /**
+     * Returns true if the regex has no top-level alternation and no anchors, so its matches don't depend on where the
+     * document (or a chunk of the document) starts or ends.
+     *
+     * @param regex
+     * @return
+     */
+    static boolean isFindSafe(String regex) {
+        int depth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            switch (c) {
+                case '\\':
+                    if (i + 1 < regex.length() && "AzZG".indexOf(regex.charAt(i + 1)) >= 0) {
+                        return false;
+                    }
+                    i++;
+                    break;
+                case '[':
+                    i = skipCharClass(regex, i);
+                    if (i < 0) {
+                        return false;
+                    }
+                    break;
+                case '(':
+                    depth++;
+                    break;
+                case ')':
+                    depth--;
+                    break;
+                case '|':
+                    if (depth == 0) {
+                        return false;
+                    }
+                    break;
+                case '^':
+                case '$':
+                    return false;
+                default:
+                    break;
+            }
+        }
+        return depth == 0;
+    }
+
+    /**
+     * Returns the most chars a match of the regex can span, or -1 if that isn't bounded (a <code>*</code>,
+     * <code>+</code> or <code>{n,}</code> quantifier) or can't be told from the regex (back references, lookarounds,
+     * quoting...). Conservative: a char class or <code>.</code> counts as 2 chars, since it can match a surrogate pair.
+     *
+     * @param regex
+     * @return
+     */
+    static int maxMatchLength(String regex) {
+        int[] pos = {0};
+        long max = maxSequenceLength(regex, pos);
+        return max < 0 || pos[0] != regex.length() || max > Integer.MAX_VALUE ? -1 : (int) max;
+    }
+
+    /**
+     * Max length of the alternatives from pos[0] up to the ')' closing the current group (left at pos[0]) or the end.
+     */
+    private static long maxSequenceLength(String regex, int[] pos) {
+        long max = 0;
+        long current = 0;
+        while (pos[0] < regex.length()) {
+            char c = regex.charAt(pos[0]);
+            if (c == ')') {
+                break;
+            }
+            if (c == '|') {
+                max = Math.max(max, current);
+                current = 0;
+                pos[0]++;
+                continue;
+            }
+            long atom = maxAtomLength(regex, pos);
+            if (atom < 0) {
+                return -1;
+            }
+            long repeat = maxRepeat(regex, pos);
+            if (repeat < 0) {
+                return -1;
+            }
+            current += atom * repeat;
+            if (current > MAX_BOUNDED_LENGTH) {
+                return -1;
+            }
+        }
+        return Math.max(max, current);
+    }
+
+    /**
+     * Max length of the atom at pos[0], moving pos[0] past it.
+     */
+    private static long maxAtomLength(String regex, int[] pos) {
+        int i = pos[0];
+        char c = regex.charAt(i);
+        switch (c) {
+            case '\\':
+                return maxEscapeLength(regex, pos);
+            case '[':
+                int end = skipCharClass(regex, i);
+                if (end < 0) {
+                    return -1;
+                }
+                pos[0] = end + 1;
+                return 2;
+            case '(':
+                return maxGroupLength(regex, pos);
+            case '.':
+                pos[0]++;
+                return 2;
+            case '^':
+            case '$':
+                pos[0]++;
+                return 0;
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                // a quantifier with nothing to repeat
+                return -1;
+            default:
+                pos[0]++;
+                return 1;
+        }
+    }
+
+    private static long maxEscapeLength(String regex, int[] pos) {
+        int i = pos[0] + 1;
+        if (i >= regex.length()) {
+            return -1;
+        }
+        char c = regex.charAt(i);
+        if ("bBAzZG".indexOf(c) >= 0) {
+            pos[0] = i + 1;
+            return 0;
+        }
+        if (c == 'Q' || c == 'E' || c == 'X' || c == 'k' || (c >= '1' && c <= '9')) {
+            // quoting, grapheme clusters and back references
+            return -1;
+        }
+        pos[0] = escapeEnd(regex, pos[0]);
+        return 2;
+    }
+
+    /**
+     * Returns the index just past the escape starting at <code>start</code>, operand included: <code>\x41</code>,
+     * <code>\x{1F600}</code>, <code>&#92;u0041</code>, <code>\0101</code>, <code>\cJ</code>, <code>\pL</code>,
+     * <code>\p{Lu}</code>, <code>\N{...}</code>, <code>\k&lt;name&gt;</code>... An unclosed operand runs to the
+     * end of the regex.
+     *
+     * @param regex
+     * @param start index of the backslash
+     * @return
+     */
+    static int escapeEnd(String regex, int start) {
+        int i = start + 1;
+        if (i >= regex.length()) {
+            return regex.length();
+        }
+        char c = regex.charAt(i++);
+        int end;
+        if ("pPxN".indexOf(c) >= 0 && regex.startsWith("{", i)) {
+            int close = regex.indexOf('}', i);
+            end = close < 0 ? regex.length() : close + 1;
+        }
+        else if (c == 'k' && regex.startsWith("<", i)) {
+            int close = regex.indexOf('>', i);
+            end = close < 0 ? regex.length() : close + 1;
+        }
+        else if (c == 'p' || c == 'P' || c == 'c') {
+            end = i + 1;
+        }
+        else if (c == 'x') {
+            end = i + 2;
+        }
+        else if (c == 'u') {
+            end = i + 4;
+        }
+        else if (c == '0') {
+            // up to 2 octal digits, or 3 if the first is 0-3 (as in Pattern)
+            end = i;
+            while (end < regex.length() && end < i + 3 && isOctalDigit(regex.charAt(end)) &&
+                    (end < i + 2 || regex.charAt(i) <= '3')) {
+                end++;
+            }
+        }
+        else {
+            end = i;
+        }
+        return Math.min(end, regex.length());
+    }
+
+    /**
+     * Returns the text of an escape that stands for a single char (<code>\.</code>, <code>\x41</code>,
+     * <code>\x{1F600}</code>, <code>&#92;u0041</code>, <code>\0101</code>, <code>\cJ</code>, <code>\t</code>...), or
+     * null if it matches anything else (<code>\d</code>, <code>\b</code>, <code>\1</code>, <code>\p{L}</code>...).
+     *
+     * @param regex
+     * @param start index of the backslash
+     * @param end index just past the escape, as returned by {@link #escapeEnd}
+     * @return
+     */
+    static String escapedLiteral(String regex, int start, int end) {
+        if (end < start + 2) {
+            return null;
+        }
+        char c = regex.charAt(start + 1);
+        if (!Character.isLetterOrDigit(c)) {
+            return String.valueOf(c);
+        }
+        String operand = regex.substring(start + 2, end);
+        int codePoint;
+        try {
+            switch (c) {
+                case 'x':
+                    codePoint = Integer.parseInt(operand.startsWith("{") && operand.endsWith("}")
+                            ? operand.substring(1, operand.length() - 1) : operand, 16);
+                    break;
+                case 'u':
+                    codePoint = operand.length() == 4 ? Integer.parseInt(operand, 16) : -1;
+                    break;
+                case '0':
+                    codePoint = Integer.parseInt(operand, 8);
+                    break;
+                case 'c':
+                    codePoint = operand.length() == 1 ? operand.charAt(0) ^ 64 : -1;
+                    break;
+                case 't':
+                    codePoint = '\t';
+                    break;
+                case 'n':
+                    codePoint = '\n';
+                    break;
+                case 'r':
+                    codePoint = '\r';
+                    break;
+                case 'f':
+                    codePoint = '\f';
+                    break;
+                case 'a':
+                    codePoint = 7;
+                    break;
+                case 'e':
+                    codePoint = 27;
+                    break;
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return codePoint >= 0 && Character.isValidCodePoint(codePoint) ? new String(Character.toChars(codePoint))
+                : null;
+    }
+
+    private static long maxGroupLength(String regex, int[] pos) {
+        int i = pos[0] + 1;
+        if (regex.startsWith("?", i)) {
+            i++;
+            if (regex.startsWith("=", i) || regex.startsWith("!", i) || regex.startsWith("<=", i) ||
+                    regex.startsWith("<!", i)) {
+                // lookarounds look past the match
+                return -1;
+            }
+            if (regex.startsWith("<", i)) {
+                int close = regex.indexOf('>', i);
+                if (close < 0) {
+                    return -1;
+                }
+                i = close + 1;
+            }
+            else if (regex.startsWith(":", i) || regex.startsWith(">", i)) {
+                i++;
+            }
+            else {
+                while (i < regex.length() && isFlagChar(regex.charAt(i))) {
+                    i++;
+                }
+                if (regex.startsWith(")", i)) {
+                    // inline flags, no group
+                    pos[0] = i + 1;
+                    return 0;
+                }
+                if (!regex.startsWith(":", i)) {
+                    return -1;
+                }
+                i++;
+            }
+        }
+        pos[0] = i;
+        long inner = maxSequenceLength(regex, pos);
+        if (inner < 0 || pos[0] >= regex.length()) {
+            return -1;
+        }
+        // the closing ')'
+        pos[0]++;
+        return inner;
+    }
+
+    /**
+     * Max number of times the quantifier at pos[0] (if any) repeats its atom, moving pos[0] past it, or -1 if it's
+     * unbounded.
+     */
+    private static long maxRepeat(String regex, int[] pos) {
+        if (pos[0] >= regex.length()) {
+            return 1;
+        }
+        long repeat;
+        char c = regex.charAt(pos[0]);
+        if (c == '*' || c == '+') {
+            return -1;
+        }
+        if (c == '?') {
+            pos[0]++;
+            repeat = 1;
+        }
+        else if (c == '{') {
+            int close = regex.indexOf('}', pos[0]);
+            if (close < 0) {
+                return -1;
+            }
+            String bounds = regex.substring(pos[0] + 1, close);
+            int comma = bounds.indexOf(',');
+            String upper = comma < 0 ? bounds : bounds.substring(comma + 1);
+            if (upper.isEmpty()) {
+                return -1;
+            }
+            try {
+                repeat = Long.parseLong(upper.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            pos[0] = close + 1;
+        }
+        else {
+            return 1;
+        }
+        // lazy or possessive
+        if (pos[0] < regex.length() && (regex.charAt(pos[0]) == '?' || regex.charAt(pos[0]) == '+')) {
+            pos[0]++;
+        }
+        return repeat;
+    }
+
+    /**
+     * Returns the index of the ']' that closes the char class starting at <code>start</code>, or -1 if it isn't
+     * closed.
+     *
+     * @param regex
+     * @param start index of the opening '['
+     * @return
+     */
+    static int skipCharClass(String regex, int start) {
+        int depth = 0;
+        int i = start;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                depth++;
+                // a ']' right after the opening '[' (or '[^') is a literal
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            }
+            else if (c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return i;
+                }
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * If the regex is a plain literal (e.g. <code>facebook</code>) or a group of plain literal alternatives (e.g.
+     * <code>(facebook|twitter)</code> or <code>(?:facebook|twitter)</code>), return the literals with any escaping
+     * removed. Otherwise return null.
+     *
+     * @param regex regex without a leading flags group
+     * @return the literals or null
+     */
+    static List<String> literalAlternatives(String regex) {
+        String body = regex;
+        if (body.startsWith("(") && closingParen(body, 0) == body.length() - 1) {
+            if (body.startsWith("(?:")) {
+                body = body.substring(3, body.length() - 1);
+            }
+            else if (body.startsWith("(?")) {
+                // named groups, lookarounds, inline flags...
+                return null;
+            }
+            else {
+                body = body.substring(1, body.length() - 1);
+            }
+        }
+
+        List<String> literals = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= body.length(); i++) {
+            if (i == body.length() || body.charAt(i) == '|') {
+                String literal = unescapeLiteral(body.substring(start, i));
+                if (literal == null) {
+                    return null;
+                }
+                literals.add(literal);
+                start = i + 1;
+            }
+            else if (body.charAt(i) == '\\') {
+                i++;
+            }
+        }
+        return literals;
+    }
+
+    /**
+     * Returns the regex as a plain literal with escaping removed, or null if it contains anything other than literal
+     * chars (or is empty).
+     *
+     * @param regex
+     * @return
+     */
+    static String unescapeLiteral(String regex) {
+        if (regex.isEmpty()) {
+            return null;
+        }
+        StringBuilder literal = new StringBuilder(regex.length());
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    // char classes (\d), escapes (\t), back references (\1), quoting (\Q)...
+                    return null;
+                }
+                literal.append(regex.charAt(++i));
+            }
+            else if (META_CHARS.indexOf(c) >= 0) {
+                return null;
+            }
+            else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+
+    /**
+     * Escape a literal so it can be used as part of a regex.
+     *
+     * @param literal
+     * @return
+     */
+    static String escapeLiteral(String literal) {
+        StringBuilder escaped = new StringBuilder(literal.length() + 8);
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            if (META_CHARS.indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Returns the index of the ')' that closes the group starting at <code>start</code>, or -1 if it isn't closed.
+     *
+     * @param regex
+     * @param start index of the opening '('
+     * @return
+     */
+    static int closingParen(String regex, int start) {
+        int depth = 0;
+        for (int i = start; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            }
+            else if (c == '[') {
+                i = skipCharClass(regex, i);
+                if (i < 0) {
+                    return -1;
+                }
+            }
+            else if (c == '(') {
+                depth++;
+            }
+            else if (c == ')') {
+                depth--;
+                if (depth == 0) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean endsWithEscape(String regex) {
+        int backslashes = 0;
+        for (int i = regex.length() - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    private static boolean isOctalDigit(char c) {
+        return c >= '0' && c <= '7';
+    }
+
+    private static boolean isFlagChar(char c) {
+        return "idmsuxU-".indexOf(c) >= 0;
+    }
+}
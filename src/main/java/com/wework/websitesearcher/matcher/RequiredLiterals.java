@@ -0,0 +1,261 @@
+package com.wework.websitesearcher.matcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pulls out of a regex a set of literals such that every match of the regex must contain at least one of them. For
+ * example every match of <code>(?s).*https?://(www\.)?(facebook|twitter)\.com.*</code> contains
+ * <code>facebook</code> or <code>twitter</code>.
+ *
+ * A document that contains none of the literals can't match, so it can be rejected with a cheap literal scan before
+ * running the regex. The extraction is conservative: anything it doesn't understand just ends the current literal, so
+ * the literals may be shorter than they could be but are never wrong.
+ */
+final class RequiredLiterals {
+
+    /** Literals shorter than this are found in almost every page, so they aren't worth scanning for. */
+    static final int MIN_LITERAL_LENGTH = 3;
+
+    private RequiredLiterals() {}
+
+    /**
+     * Returns the literals that every match of the regex must contain at least one of, or null if there aren't any
+     * useful ones.
+     *
+     * @param regex
+     * @return
+     */
+    static List<String> extract(String regex) {
+        String flags = RegexSyntax.leadingFlags(regex);
+        if (RegexSyntax.hasFlag(flags, 'x') || RegexSyntax.hasFlag(flags, 'u') || regex.contains("\\Q")) {
+            return null;
+        }
+        String body = regex.substring(flags.length());
+        if (hasInlineFlags(body)) {
+            // flags switched on half way through would change how the literals after them match
+            return null;
+        }
+        List<String> literals = alternatives(body);
+        if (literals == null || shortest(literals) < MIN_LITERAL_LENGTH) {
+            return null;
+        }
+        return literals;
+    }
+
+    /**
+     * Required literals of a regex that may have top-level alternatives: one of the literals of each alternative.
+     *
+     * @param regex
+     * @return
+     */
+    private static List<String> alternatives(String regex) {
+        List<String> literals = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= regex.length(); i++) {
+            char c = i < regex.length() ? regex.charAt(i) : '|';
+            if (c == '\\') {
+                i = RegexSyntax.escapeEnd(regex, i) - 1;
+            }
+            else if (c == '[') {
+                i = RegexSyntax.skipCharClass(regex, i);
+                if (i < 0) {
+                    return null;
+                }
+            }
+            else if (c == '(') {
+                depth++;
+            }
+            else if (c == ')') {
+                depth--;
+            }
+            else if (c == '|' && depth == 0) {
+                List<String> best = sequence(regex.substring(start, i));
+                if (best == null) {
+                    return null;
+                }
+                literals.addAll(best);
+                start = i + 1;
+            }
+        }
+        return literals;
+    }
+
+    /**
+     * Required literals of a regex without top-level alternatives: the best of the literal runs (and groups) that
+     * every match has to go through.
+     *
+     * @param regex
+     * @return
+     */
+    private static List<String> sequence(String regex) {
+        List<String> best = null;
+        StringBuilder run = new StringBuilder();
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int next;
+            List<String> group = null;
+            // the chars this atom matches if it's a literal, null otherwise
+            String text = null;
+
+            if (c == '\\') {
+                // \d, \w, \b, \1, \p{L}... aren't literals, \., \x41, \t... are
+                next = RegexSyntax.escapeEnd(regex, i);
+                text = RegexSyntax.escapedLiteral(regex, i, next);
+            }
+            else if (c == '[') {
+                next = RegexSyntax.skipCharClass(regex, i);
+                if (next < 0) {
+                    return best;
+                }
+                next++;
+            }
+            else if (c == '(') {
+                int close = RegexSyntax.closingParen(regex, i);
+                if (close < 0) {
+                    return best;
+                }
+                group = groupLiterals(regex.substring(i, close + 1));
+                next = close + 1;
+            }
+            else {
+                text = "^$.?*+{}()|".indexOf(c) < 0 ? String.valueOf(c) : null;
+                next = i + 1;
+            }
+
+            // look at what quantifies this atom
+            int quantifierEnd = skipQuantifier(regex, next);
+            boolean optional = quantifierEnd > next && isOptional(regex.substring(next, quantifierEnd));
+            boolean repeated = quantifierEnd > next;
+
+            if (text != null && !optional) {
+                run.append(text);
+            }
+            if (text == null || repeated) {
+                best = better(best, run);
+                run.setLength(0);
+            }
+            if (group != null && !optional) {
+                best = better(best, group);
+            }
+            i = quantifierEnd;
+        }
+        return better(best, run);
+    }
+
+    /**
+     * Required literals of a group like <code>(...)</code>, or null if it's a kind of group we don't look into.
+     *
+     * @param group group including the parens
+     * @return
+     */
+    private static List<String> groupLiterals(String group) {
+        String body;
+        if (group.startsWith("(?:")) {
+            body = group.substring(3, group.length() - 1);
+        }
+        else if (group.startsWith("(?<") && !group.startsWith("(?<=") && !group.startsWith("(?<!")) {
+            // named group
+            int nameEnd = group.indexOf('>');
+            body = group.substring(nameEnd + 1, group.length() - 1);
+        }
+        else if (group.startsWith("(?")) {
+            // lookarounds, inline flags, atomic groups
+            return null;
+        }
+        else {
+            body = group.substring(1, group.length() - 1);
+        }
+        return alternatives(body);
+    }
+
+    /**
+     * Returns the index just past the quantifier (e.g. <code>*</code>, <code>{2,5}?</code>) starting at
+     * <code>start</code>, or <code>start</code> if there isn't one.
+     *
+     * @param regex
+     * @param start
+     * @return
+     */
+    private static int skipQuantifier(String regex, int start) {
+        if (start >= regex.length()) {
+            return start;
+        }
+        char c = regex.charAt(start);
+        int end;
+        if (c == '?' || c == '*' || c == '+') {
+            end = start + 1;
+        }
+        else if (c == '{') {
+            int close = regex.indexOf('}', start);
+            if (close < 0) {
+                return start;
+            }
+            end = close + 1;
+        }
+        else {
+            return start;
+        }
+        // lazy or possessive
+        if (end < regex.length() && (regex.charAt(end) == '?' || regex.charAt(end) == '+')) {
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean hasInlineFlags(String regex) {
+        for (int i = regex.indexOf("(?"); i >= 0; i = regex.indexOf("(?", i + 1)) {
+            if (i + 2 < regex.length() && "idmsuxU-".indexOf(regex.charAt(i + 2)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isOptional(String quantifier) {
+        return quantifier.startsWith("?") || quantifier.startsWith("*") || quantifier.startsWith("{0");
+    }
+
+    private static List<String> better(List<String> best, StringBuilder run) {
+        if (run.length() == 0) {
+            return best;
+        }
+        List<String> candidate = new ArrayList<>();
+        candidate.add(run.toString());
+        return better(best, candidate);
+    }
+
+    /**
+     * Pick the better of two sets of literals: the one whose shortest literal is longest (longer literals reject more
+     * pages), then the one with fewer literals.
+     *
+     * @param best
+     * @param candidate
+     * @return
+     */
+    private static List<String> better(List<String> best, List<String> candidate) {
+        if (candidate == null || candidate.isEmpty()) {
+            return best;
+        }
+        if (best == null) {
+            return candidate;
+        }
+        int bestShortest = shortest(best);
+        int candidateShortest = shortest(candidate);
+        if (candidateShortest > bestShortest
+                || (candidateShortest == bestShortest && candidate.size() < best.size())) {
+            return candidate;
+        }
+        return best;
+    }
+
+    private static int shortest(List<String> literals) {
+        int shortest = Integer.MAX_VALUE;
+        for (String literal : literals) {
+            shortest = Math.min(shortest, literal.length());
+        }
+        return shortest;
+    }
+}
@@ -0,0 +1,282 @@
+package com.wework.websitesearcher.services;
+
+import com.wework.websitesearcher.io.SearchResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of URLs searched at once, like a semaphore whose number of permits can change while URLs are being
+ * searched. With <code>min == max</code> the limit is fixed. Otherwise it's adjusted AIMD-style (additive increase,
+ * multiplicative decrease, like TCP congestion control) from what the URLs searched in each window of at least
+ * {@link #WINDOW_MILLIS} and {@link #MIN_SAMPLES} URLs show:
+ * <ul>
+ *     <li>the share of requests that timed out or got a 429/503 went up by more than {@link #MAX_OVERLOAD_RATE} from
+ *     its usual value: back off. Lists have their share of dead hosts that always time out, hence the usual value,
+ *     the lowest share of all the windows (slowly forgotten too). As in TCP, a back off is only followed by another
+ *     one for requests started after it: the ones started before had the old limit.</li>
+ *     <li>the average time to the response headers went up to over {@link #LATENCY_TOLERANCE} times its usual value:
+ *     back off. The usual value is the lowest window average, slowly forgotten so that a new mix of hosts can raise
+ *     it.</li>
+ *     <li>the throughput (URLs per second) fell after the last increase: go back to the limit before it</li>
+ *     <li>the latency is up by more than {@link #QUEUEING_TOLERANCE} times its usual value but the throughput isn't
+ *     up: requests are queueing somewhere, hold the limit</li>
+ *     <li>otherwise, if the limit was actually reached: increase it, doubling it until the first back off (slow start)
+ *     and then by its square root</li>
+ * </ul>
+ * The limit stays between <code>min</code> and <code>max</code>, and starts at <code>min</code>. Each change is logged
+ * with the reason for it.
+ *
+ * One per search: thread-safe, every URL that {@link #acquire()} let go must be given back to
+ * {@link #release(SearchResult)}.
+ */
+class ConcurrencyLimiter {
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+
+    static final long WINDOW_MILLIS = 1000;
+    /**
+     * Fewer URLs than this (or than the limit, so that a window sees a whole round of requests) say too little to act
+     * on: the window is extended. Otherwise a few timeouts finishing together would make a window of their own.
+     */
+    static final int MIN_SAMPLES = 10;
+    static final double MAX_OVERLOAD_RATE = 0.1;
+    static final double LATENCY_TOLERANCE = 2;
+    static final double QUEUEING_TOLERANCE = 1.25;
+    /** Smaller latency increases are noise, whatever the ratio (a local server answers in well under a millisecond) */
+    private static final long MIN_LATENCY_RISE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final double BACKOFF = 0.75;
+    /** Throughput dropping by more than this after an increase means the increase didn't help */
+    private static final double THROUGHPUT_TOLERANCE = 0.2;
+    /** Smallest throughput gain worth more latency */
+    private static final double MIN_THROUGHPUT_GAIN = 0.05;
+    /** How much the usual share of timeouts goes up per window when the windows all have more */
+    private static final double OVERLOAD_DRIFT = 0.005;
+    /** How much the usual latency goes up per window when the windows are all slower (doubles in about a minute) */
+    private static final double BASELINE_DRIFT = 1.01;
+
+    private final int min;
+    private final int max;
+    private final long windowNanos;
+    private double limit;
+    private int inFlight;
+    private boolean slowStart = true;
+    /** Limit before the last increase, or 0 if the last change wasn't an increase */
+    private int limitBeforeIncrease;
+    private double previousThroughput;
+    private long baselineNanos = Long.MAX_VALUE;
+    private double baselineOverloadRate = -1;
+    private long backOffNanos = System.nanoTime();
+
+    private long windowStart = System.nanoTime();
+    private int completed;
+    /** URLs started since the last back off, that tell whether the limit is too high */
+    private int judged;
+    private int overloaded;
+    private long latencySum;
+    private int latencyCount;
+    private int peakInFlight;
+
+    /**
+     * Fixed limit.
+     *
+     * @param limit max number of URLs searched at once
+     * @throws IllegalArgumentException if limit < 1
+     */
+    ConcurrencyLimiter(int limit) {
+        this(limit, limit);
+    }
+
+    /**
+     * Adaptive limit (fixed if min == max), starting at min.
+     *
+     * @param min lowest the limit can go
+     * @param max highest the limit can go
+     * @throws IllegalArgumentException if min < 1 or max < min
+     */
+    ConcurrencyLimiter(int min, int max) {
+        this(min, max, WINDOW_MILLIS);
+    }
+
+    /**
+     * @param min lowest the limit can go
+     * @param max highest the limit can go
+     * @param windowMillis how often the limit is adjusted at most
+     * @throws IllegalArgumentException if min < 1, max < min or windowMillis < 1
+     */
+    ConcurrencyLimiter(int min, int max, long windowMillis) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Concurrency bounds must be positive with min <= max. Min arg: " + min +
+                    ", max arg: " + max);
+        }
+        if (windowMillis < 1) {
+            throw new IllegalArgumentException("Window must be positive. Window arg: " + windowMillis);
+        }
+        this.min = min;
+        this.max = max;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.limit = min;
+    }
+
+    /**
+     * Wait until fewer URLs than the limit are being searched, and count one more.
+     *
+     * @throws InterruptedException
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+        peakInFlight = Math.max(peakInFlight, inFlight);
+    }
+
+    /**
+     * A URL let go by {@link #acquire()} has been searched: count one less, and adjust the limit if a window is over.
+     *
+     * @param result what searching it gave, or null if it wasn't searched
+     */
+    synchronized void release(SearchResult result) {
+        if (inFlight == 0) {
+            throw new IllegalStateException("Released more than acquired");
+        }
+        inFlight--;
+        if (result != null && isAdaptive()) {
+            sample(result);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wait until all the URLs let go by {@link #acquire()} have been released.
+     *
+     * @throws InterruptedException
+     */
+    synchronized void awaitIdle() throws InterruptedException {
+        while (inFlight > 0) {
+            wait();
+        }
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    boolean isAdaptive() {
+        return min < max;
+    }
+
+    private void sample(SearchResult result) {
+        long now = System.nanoTime();
+        completed++;
+        // a failure or a response is as good as finished
+        if (result.getTotalNanos() < 0 || now - result.getTotalNanos() - backOffNanos >= 0) {
+            judged++;
+            if (isOverloaded(result)) {
+                overloaded++;
+            }
+        }
+        if (!isOverloaded(result) && result.getHeadersNanos() >= 0) {
+            latencySum += result.getHeadersNanos();
+            latencyCount++;
+        }
+        if (now - windowStart >= windowNanos && completed >= Math.max(MIN_SAMPLES, (int) limit)) {
+            adjust(now - windowStart);
+            windowStart = now;
+            completed = 0;
+            judged = 0;
+            overloaded = 0;
+            latencySum = 0;
+            latencyCount = 0;
+            peakInFlight = inFlight;
+        }
+    }
+
+    private void adjust(long elapsedNanos) {
+        double overloadRate = judged > 0 ? (double) overloaded / judged : 0;
+        double throughput = completed * 1e9 / elapsedNanos;
+        long latency = latencyCount > 0 ? latencySum / latencyCount : -1;
+        String window = String.format("%d URLs, %.1f/s, %.0f%% timed out or throttled, latency %s", completed,
+                throughput, overloadRate * 100, latency >= 0 ? TimeUnit.NANOSECONDS.toMillis(latency) + "ms" : "n/a");
+        if (baselineOverloadRate >= 0 && judged >= MIN_SAMPLES
+                && overloadRate > baselineOverloadRate + MAX_OVERLOAD_RATE) {
+            backOff(String.format("timeouts up from %.0f%%", baselineOverloadRate * 100), window);
+        }
+        else if (latency >= 0 && baselineNanos != Long.MAX_VALUE && latency > baselineNanos * LATENCY_TOLERANCE
+                && latency - baselineNanos > MIN_LATENCY_RISE_NANOS) {
+            backOff("latency up from " + TimeUnit.NANOSECONDS.toMillis(baselineNanos) + "ms", window);
+        }
+        else if (limitBeforeIncrease > 0 && throughput < previousThroughput * (1 - THROUGHPUT_TOLERANCE)) {
+            change(limitBeforeIncrease, String.format("throughput down from %.1f/s", previousThroughput), window);
+            slowStart = false;
+            limitBeforeIncrease = 0;
+        }
+        else if (peakInFlight >= (int) limit && limit < max && latency > baselineNanos * QUEUEING_TOLERANCE
+                && throughput < previousThroughput * (1 + MIN_THROUGHPUT_GAIN)) {
+            change(limit, "latency up from " + TimeUnit.NANOSECONDS.toMillis(baselineNanos) + "ms, throughput not",
+                    window);
+            limitBeforeIncrease = 0;
+        }
+        else if (peakInFlight >= (int) limit && limit < max) {
+            int before = (int) limit;
+            double increased = slowStart ? limit * 2 : limit + Math.max(1, Math.sqrt(limit));
+            change(Math.min(max, increased), slowStart ? "slow start" : "limit reached", window);
+            limitBeforeIncrease = before;
+        }
+        else {
+            limitBeforeIncrease = 0;
+        }
+        previousThroughput = throughput;
+        if (judged >= MIN_SAMPLES) {
+            baselineOverloadRate = baselineOverloadRate < 0 ? overloadRate
+                    : Math.min(overloadRate, baselineOverloadRate + OVERLOAD_DRIFT);
+        }
+        if (latency >= 0) {
+            // the lowest window average, slowly forgotten
+            baselineNanos = baselineNanos == Long.MAX_VALUE ? latency
+                    : Math.min(latency, (long) (baselineNanos * BASELINE_DRIFT));
+        }
+    }
+
+    private void backOff(String reason, String window) {
+        change(Math.max(min, limit * BACKOFF), reason, window);
+        backOffNanos = System.nanoTime();
+        slowStart = false;
+        limitBeforeIncrease = 0;
+    }
+
+    /**
+     * @param newLimit
+     * @param reason why the limit changes
+     * @param window stats of the window that ended
+     */
+    private void change(double newLimit, String reason, String window) {
+        int before = (int) limit;
+        limit = newLimit;
+        if ((int) limit != before) {
+            LOG.info("Concurrency limit {} -> {}: {} ({})", before, (int) limit, reason, window);
+        }
+        else {
+            LOG.debug("Concurrency limit stays at {}: {} ({})", before, reason, window);
+        }
+    }
+
+    /**
+     * Timeouts say the network or the servers can't keep up; so do 429 (Too Many Requests) and 503 (Service
+     * Unavailable). Other errors (dead hosts, 404s...) say nothing about the load.
+     *
+     * @param result
+     * @return true if the result is a sign of overload
+     */
+    static boolean isOverloaded(SearchResult result) {
+        SearchResult.Failure failure = result.getFailure();
+        return failure == SearchResult.Failure.TIMEOUT || (failure == SearchResult.Failure.HTTP_STATUS
+                && (result.getStatus() == 429 || result.getStatus() == 503));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConcurrencyLimiter{limit=" + (int) limit + ", min=" + min + ", max=" + max + ", inFlight=" + inFlight +
+                "}";
+    }
+}
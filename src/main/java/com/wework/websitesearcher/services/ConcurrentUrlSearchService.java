@@ -1,5 +1,9 @@
 package com.wework.websitesearcher.services;
 
+import com.wework.websitesearcher.io.DnsResolver;
+import com.wework.websitesearcher.io.SearchResult;
+import com.wework.websitesearcher.io.UrlReader;
+import com.wework.websitesearcher.matcher.ContentMatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -7,45 +11,85 @@ import java.net.CookieHandler;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 
 /**
- * Single-threaded implementation of {@link UrlSearchService}
+ * Multi-threaded implementation of {@link UrlSearchService}
  *
- *  Maximum threads allowed is 50.
+ *  Maximum threads allowed is 50. With an adaptive number of threads, <code>maxThreads</code> threads are started but
+ *  only as many as the {@link ConcurrencyLimiter} allows search at once.
  */
 class ConcurrentUrlSearchService implements UrlSearchService {
     private static final Logger LOG = LoggerFactory.getLogger(ConcurrentUrlSearchService.class);
 
+    static final int MAX_THREADS = 50;
+
+    private int minThreads;
     private int maxThreads;
+    private int maxPerHost;
 
     /**
      * Initialize the service with the number of threads. Threads are not created until you actually call
-     * {@link #searchUrlsForTerm(List, String)}. Maximum number of threads is 50.
+     * {@link #searchUrls(Iterator, ContentMatcher, Consumer)}. Maximum number of threads is 50.
      *
      * @param maxThreads number of threads to use. Must be (1 <= maxThreads <= 50)
      * @throws IllegalArgumentException if (maxThreads < 1) || (maxThreads > 50)
      */
     public ConcurrentUrlSearchService(int maxThreads) {
-        if (maxThreads < 1 || maxThreads > 50) {
-            throw new IllegalArgumentException("Max threads should be between 1-50 (inclusive). Max threads arg: " + maxThreads);
+        this(maxThreads, UrlSearchServiceFactory.DEFAULT_MAX_PER_HOST);
+    }
+
+    /**
+     * Initialize the service with the number of threads and the max number of parallel requests to one host.
+     *
+     * @param maxThreads number of threads to use. Must be (1 <= maxThreads <= 50)
+     * @param maxPerHost max number of URLs of the same host searched at once
+     * @throws IllegalArgumentException if (maxThreads < 1) || (maxThreads > 50) || (maxPerHost < 1)
+     */
+    public ConcurrentUrlSearchService(int maxThreads, int maxPerHost) {
+        this(maxThreads, maxThreads, maxPerHost);
+    }
+
+    /**
+     * Initialize the service with a number of threads searching at once that adapts to how the requests go (see
+     * {@link ConcurrencyLimiter}), from <code>minThreads</code> up to <code>maxThreads</code>.
+     *
+     * @param minThreads number of threads searching at the start, and at least. Must be (1 <= minThreads <= maxThreads)
+     * @param maxThreads number of threads to use. Must be (1 <= maxThreads <= 50)
+     * @param maxPerHost max number of URLs of the same host searched at once
+     * @throws IllegalArgumentException if any of the args is out of range
+     */
+    ConcurrentUrlSearchService(int minThreads, int maxThreads, int maxPerHost) {
+        if (maxThreads < 1 || maxThreads > MAX_THREADS) {
+            throw new IllegalArgumentException("Max threads should be between 1-" + MAX_THREADS +
+                    " (inclusive). Max threads arg: " + maxThreads);
+        }
+        if (minThreads < 1 || minThreads > maxThreads) {
+            throw new IllegalArgumentException("Min threads should be between 1-" + maxThreads +
+                    " (inclusive). Min threads arg: " + minThreads);
+        }
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("Max per host must be positive. Max per host arg: " + maxPerHost);
         }
+        this.minThreads = minThreads;
         this.maxThreads = maxThreads;
+        this.maxPerHost = maxPerHost;
     }
 
     @Override
-    public List<String> searchUrlsForTerm(List<String> urls, String searchTerm) {
-        if (urls == null || urls.isEmpty()) {
-            throw new IllegalArgumentException("URLs can not be null or empty.");
+    public void searchUrls(Iterator<String> urls, ContentMatcher matcher, Consumer<SearchResult> results,
+                           Consumer<String> skipped) {
+        if (urls == null) {
+            throw new IllegalArgumentException("URLs can not be null.");
         }
 
-        // Initialize the thread-safe queue and thread-safe results list
-        Queue<String> queue = getQueue();
-        queue.addAll(urls);
-        List<String> results = Collections.synchronizedList(new ArrayList<>());
+        // Initialize the host-sharded queue (resolving the hosts ahead of the workers)
+        HostShardedUrlQueue queue = HostShardedUrlQueue.feed(urls, maxPerHost, DnsResolver.getInstance(),
+                UrlReader.getFetchLimits(), skipped);
+
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(minThreads, maxThreads);
 
         // set cookie handler to accept all cookies.
         CookieHandler.setDefault(new CookieManager(null, CookiePolicy.ACCEPT_ALL));
@@ -54,7 +98,8 @@ class ConcurrentUrlSearchService implements UrlSearchService {
         List<UrlSearchServiceWorker> workers = new ArrayList<>();
         // startup all the threads and run the search!
         for (int i=0; i < maxThreads; i++) {
-            UrlSearchServiceWorker worker = new UrlSearchServiceWorker(queue, "worker_" + (i+1), results, searchTerm);
+            UrlSearchServiceWorker worker = new UrlSearchServiceWorker(queue, limiter, "worker_" + (i+1), results,
+                    matcher);
             workers.add(worker);
             worker.start();
         }
@@ -73,17 +118,9 @@ class ConcurrentUrlSearchService implements UrlSearchService {
             }
         }
 
-        return results;
-    }
-
-    /**
-     * Returns an empty concurrent Queue
-     *
-     * @return
-     */
-    private Queue<String> getQueue() {
-        return new ConcurrentLinkedQueue<>();
+        if (limiter.isAdaptive()) {
+            LOG.info("Concurrency limit at the end: {}", limiter.getLimit());
+        }
+        queue.logSummary();
     }
-
-
 }
@@ -0,0 +1,678 @@
+package com.wework.websitesearcher.services;
+
+import com.wework.websitesearcher.io.DnsResolver;
+import com.wework.websitesearcher.io.FetchLimits;
+import com.wework.websitesearcher.io.SearchResult;
+import com.wework.websitesearcher.util.LatencyHistogram;
+import com.wework.websitesearcher.util.SearchMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe queue of URLs sharded by host. URLs are handed out round-robin across hosts, and a host's URLs are held
+ * back while <code>maxPerHost</code> of them are being searched, so one host never gets more than that many parallel
+ * requests (however many threads there are) and the requests to the same host are spread out rather than all at once.
+ *
+ * With a {@link DnsResolver}, hosts are resolved in the background up to {@link #LOOKAHEAD} hosts ahead of the ones
+ * being searched, and a host's URLs are only handed out once it has resolved. The URLs of hosts that don't resolve
+ * (dead domains) are dropped without ever taking a thread or connection.
+ *
+ * URLs can be added while others are being searched (see {@link #feed}): {@link #add(String)} blocks while
+ * {@link #MAX_BACKLOG} URLs are waiting, and hosts are forgotten once they have nothing waiting or in progress, so the
+ * memory used doesn't grow with the length of the list. {@link #close()} marks the end of the list.
+ *
+ * The {@link FetchLimits} given also decide how a URL ends:
+ * <ul>
+ *     <li>job deadline: once it has passed, the URLs still waiting are dropped (and the rest of the list isn't read):
+ *     {@link #take()} returns null as soon as the URLs in progress are done. Those fail at the deadline at the latest
+ *     (see {@link FetchLimits#getDeadline(long)}) and their results are marked incomplete.</li>
+ *     <li>retries: a URL that failed for a transient reason (see {@link FetchLimits#isTransient}) is put back ahead of
+ *     its host's other URLs after a backoff, unless it couldn't be tried again before the job deadline. No thread
+ *     waits during the backoff.</li>
+ *     <li>hedging: a URL in progress for longer than the percentile of the others' times (and than
+ *     {@link #MIN_HEDGE_MILLIS}) is handed out a second time (ahead of the other hosts), once, for at most
+ *     {@link #HEDGE_BUDGET} of the URLs. The request that finishes first is the one reported; the other one carries
+ *     on until it ends or times out, as nothing can be cancelled across modes, and its result is dropped.</li>
+ * </ul>
+ *
+ * Every URL returned by {@link #take()} must be given back to {@link #done(String, SearchResult)} once it has been
+ * searched, which tells whether to report its result.
+ */
+class HostShardedUrlQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(HostShardedUrlQueue.class);
+
+    /** Max number of hosts resolved (or being resolved) that haven't been handed out yet */
+    static final int LOOKAHEAD = 256;
+    /** Max number of URLs waiting to be handed out before {@link #add(String)} blocks */
+    static final int MAX_BACKLOG = 100_000;
+    /** Max share of the URLs handed out that get a second request */
+    static final double HEDGE_BUDGET = 0.05;
+    /** Number of URL times needed before any URL is hedged */
+    static final int MIN_HEDGE_SAMPLES = 20;
+    /** URLs taking less than this are never hedged, whatever the percentile: a second request isn't worth it */
+    static final long MIN_HEDGE_MILLIS = 100;
+    /** How often the URLs in progress are checked for hedging */
+    private static final long HEDGE_SCAN_MILLIS = 50;
+
+    private final int maxPerHost;
+    private final DnsResolver resolver;
+    private final FetchLimits limits;
+    /** Whether URLs can be tried more than once, so their attempts need following */
+    private final boolean retrying;
+    /** Requests for the URLs in progress or waiting to be tried again (only followed if retrying) */
+    private final Map<String, Attempts> attempts = new HashMap<>();
+    /** Times of the URLs' first tries, for the hedging threshold */
+    private final LatencyHistogram times = new LatencyHistogram();
+    /** Runs the retries after their backoff and the hedging scans. Null if neither is on. */
+    private final ScheduledExecutorService scheduler;
+    /** Hosts with URLs waiting or in progress */
+    private final Map<String, Host> hosts = new HashMap<>();
+    /** Hosts not looked up yet, in the order they first appear in the list */
+    private final Queue<Host> lookups = new ArrayDeque<>();
+    /** Hosts with URLs waiting and fewer than maxPerHost in progress, in round-robin order */
+    private final Deque<Host> ready = new ArrayDeque<>();
+    private int waiting;
+    private int inProgress;
+    private int pendingRetries;
+    private int lookedUpAhead;
+    private int dropped;
+    private int taken;
+    private int retried;
+    private int hedged;
+    private int expired;
+    private boolean lookingUp;
+    private boolean closed;
+    /** The job deadline has passed and the URLs waiting have been dropped */
+    private boolean jobOver;
+    /** Gets the URLs dropped */
+    private Consumer<String> skipped = url -> { };
+
+    /**
+     * Empty queue, to be filled with {@link #add(String)} and then closed.
+     *
+     * @param maxPerHost max number of URLs of the same host in progress at once
+     * @param resolver resolves the hosts ahead of time, or null to skip the DNS stage
+     * @throws IllegalArgumentException if maxPerHost < 1
+     */
+    HostShardedUrlQueue(int maxPerHost, DnsResolver resolver) {
+        this(maxPerHost, resolver, new FetchLimits());
+    }
+
+    /**
+     * Empty queue, to be filled with {@link #add(String)} and then closed.
+     *
+     * @param maxPerHost max number of URLs of the same host in progress at once
+     * @param resolver resolves the hosts ahead of time, or null to skip the DNS stage
+     * @param limits job deadline, retries and hedging
+     * @throws IllegalArgumentException if maxPerHost < 1
+     */
+    HostShardedUrlQueue(int maxPerHost, DnsResolver resolver, FetchLimits limits) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("Max per host must be positive. Max per host arg: " + maxPerHost);
+        }
+        this.maxPerHost = maxPerHost;
+        this.resolver = resolver;
+        this.limits = limits;
+        this.retrying = limits.getMaxRetries() > 0 || limits.getHedgePercentile() > 0;
+        if (retrying) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "url_retry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (limits.getHedgePercentile() > 0) {
+                scheduler.scheduleWithFixedDelay(this::hedge, HEDGE_SCAN_MILLIS, HEDGE_SCAN_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Queue without a DNS stage: every host is ready right away.
+     *
+     * @param urls URLs to hand out (CSV order is kept within each host)
+     * @param maxPerHost max number of URLs of the same host in progress at once
+     * @throws IllegalArgumentException if maxPerHost < 1
+     */
+    HostShardedUrlQueue(Collection<String> urls, int maxPerHost) {
+        this(urls, maxPerHost, null);
+    }
+
+    /**
+     * Queue of a complete list (already closed).
+     *
+     * @param urls URLs to hand out (CSV order is kept within each host)
+     * @param maxPerHost max number of URLs of the same host in progress at once
+     * @param resolver resolves the hosts ahead of time, or null to skip the DNS stage
+     * @throws IllegalArgumentException if maxPerHost < 1
+     */
+    HostShardedUrlQueue(Collection<String> urls, int maxPerHost, DnsResolver resolver) {
+        this(maxPerHost, resolver);
+        synchronized (this) {
+            for (String url : urls) {
+                enqueue(url);
+            }
+            close();
+        }
+    }
+
+    /**
+     * Start a daemon thread adding the URLs to a new queue, closing it after the last one. If reading the URLs fails
+     * the error is logged and the queue is closed, so the URLs read so far are still searched.
+     *
+     * @param urls URLs to hand out, read as they are needed
+     * @param maxPerHost max number of URLs of the same host in progress at once
+     * @param resolver resolves the hosts ahead of time, or null to skip the DNS stage
+     * @return the queue being filled
+     * @throws IllegalArgumentException if maxPerHost < 1
+     */
+    static HostShardedUrlQueue feed(Iterator<String> urls, int maxPerHost, DnsResolver resolver) {
+        return feed(urls, maxPerHost, resolver, new FetchLimits(), url -> { });
+    }
+
+    /**
+     * Like {@link #feed(Iterator, int, DnsResolver)}, for a queue with a job deadline, retries or hedging, telling
+     * which URLs are dropped. The URLs are no longer read once the job deadline has passed.
+     *
+     * @param urls URLs to hand out, read as they are needed
+     * @param maxPerHost max number of URLs of the same host in progress at once
+     * @param resolver resolves the hosts ahead of time, or null to skip the DNS stage
+     * @param limits job deadline, retries and hedging
+     * @param skipped gets the URLs dropped because their host didn't resolve or the job deadline passed, with the
+     *                queue locked
+     * @return the queue being filled
+     * @throws IllegalArgumentException if maxPerHost < 1
+     */
+    static HostShardedUrlQueue feed(Iterator<String> urls, int maxPerHost, DnsResolver resolver,
+                                    FetchLimits limits, Consumer<String> skipped) {
+        HostShardedUrlQueue queue = new HostShardedUrlQueue(maxPerHost, resolver, limits);
+        queue.skipped = skipped;
+        Thread feeder = new Thread(() -> {
+            try {
+                while (urls.hasNext() && !queue.isJobOver()) {
+                    queue.add(urls.next());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                LOG.error("Error reading the URLs, searching the ones read so far: {}", e.toString());
+            } finally {
+                queue.close();
+            }
+        }, "url_feed");
+        feeder.setDaemon(true);
+        feeder.start();
+        return queue;
+    }
+
+    /**
+     * Add a URL, waiting while {@link #MAX_BACKLOG} URLs are waiting to be handed out.
+     *
+     * @param url
+     * @throws InterruptedException
+     * @throws IllegalStateException if the queue is closed
+     */
+    synchronized void add(String url) throws InterruptedException {
+        while (waiting >= MAX_BACKLOG && !closed) {
+            wait();
+        }
+        if (jobOver) {
+            // too late
+            return;
+        }
+        enqueue(url);
+    }
+
+    private synchronized boolean isJobOver() {
+        return jobOver;
+    }
+
+    /**
+     * No more URLs will be added: {@link #take()} returns null once the ones added have all been handed out.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void enqueue(String url) {
+        if (closed) {
+            throw new IllegalStateException("Queue is closed");
+        }
+        String name = hostOf(url);
+        Host host = hosts.get(name);
+        if (host == null) {
+            host = new Host(name);
+            hosts.put(name, host);
+            if (resolver == null) {
+                host.resolved = true;
+            }
+            else {
+                lookups.add(host);
+            }
+        }
+        boolean hadWaiting = host.hasWaiting();
+        host.urls.add(url);
+        waiting++;
+        if (host.resolved && !hadWaiting && host.inProgress < maxPerHost) {
+            ready.add(host);
+            notifyAll();
+        }
+        else if (!host.resolved) {
+            lookUpAhead();
+        }
+    }
+
+    /**
+     * Returns the next URL, waiting while all the hosts with URLs left are at their limit or still being resolved, or
+     * while the queue is empty but not closed yet (or, with retries or hedging, while URLs are still in progress or
+     * waiting for a retry: they may be handed out again).
+     *
+     * @return the next URL, or null once the queue is closed and all the URLs have been handed out (or dropped), or
+     * once the job deadline has passed and the URLs in progress are done
+     * @throws InterruptedException
+     */
+    synchronized String take() throws InterruptedException {
+        while (true) {
+            if (!jobOver && limits.isJobOver()) {
+                endJob();
+            }
+            if (!ready.isEmpty()) {
+                break;
+            }
+            if (waiting == 0 && closed && pendingRetries == 0 && (!retrying || inProgress == 0)) {
+                if (scheduler != null) {
+                    scheduler.shutdownNow();
+                }
+                return null;
+            }
+            if (limits.hasJobDeadline() && !jobOver) {
+                wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(limits.getJobDeadline() - System.nanoTime())));
+            }
+            else {
+                wait();
+            }
+        }
+        Host host = ready.poll();
+        boolean again = !host.again.isEmpty();
+        String url = again ? host.again.poll() : host.urls.poll();
+        host.inProgress++;
+        inProgress++;
+        if (--waiting == 0 || waiting == MAX_BACKLOG - 1) {
+            // wake up the threads waiting for a host that has nothing left, or the thread adding URLs
+            notifyAll();
+        }
+        if (host.hasWaiting() && host.inProgress < maxPerHost) {
+            ready.add(host);
+        }
+        if (retrying) {
+            Attempts tries = attempts.get(url);
+            if (!again) {
+                // a URL of the list (maybe listed more than once)
+                if (tries == null) {
+                    tries = new Attempts(System.nanoTime());
+                    attempts.put(url, tries);
+                }
+                tries.unreported++;
+                taken++;
+            }
+            else {
+                tries.queued--;
+            }
+            tries.running++;
+        }
+        if (!host.started) {
+            host.started = true;
+            if (resolver != null) {
+                lookedUpAhead--;
+                lookUpAhead();
+            }
+        }
+        return url;
+    }
+
+    /**
+     * Signal that a URL returned by {@link #take()} wasn't searched after all, letting the next URL of its host go.
+     *
+     * @param url
+     */
+    void done(String url) {
+        done(url, null);
+    }
+
+    /**
+     * Signal that a URL returned by {@link #take()} has been searched, letting the next URL of its host go, and decide
+     * whether its result is the one to report:
+     * <ul>
+     *     <li>a failure at or after the job deadline is marked incomplete</li>
+     *     <li>if another request for the URL (a hedge, or the request it was a hedge for) was reported first, it's
+     *     not</li>
+     *     <li>if it failed for a transient reason and another request for the URL is in progress, it's not: that one
+     *     gets to say</li>
+     *     <li>if it failed for a transient reason and there are retries left, it's not, and the URL is tried again
+     *     after a backoff</li>
+     * </ul>
+     *
+     * @param url
+     * @param result result of the search, or null if the URL wasn't searched
+     * @return true if the result should be reported
+     */
+    synchronized boolean done(String url, SearchResult result) {
+        Host host = hosts.get(hostOf(url));
+        if (host == null || host.inProgress == 0) {
+            throw new IllegalStateException("URL wasn't taken from this queue: " + url);
+        }
+        inProgress--;
+        if (host.inProgress-- == maxPerHost && host.hasWaiting()) {
+            ready.add(host);
+            notifyAll();
+        }
+        else if (host.inProgress == 0 && !host.hasWaiting()) {
+            hosts.remove(host.name);
+        }
+        boolean failed = result != null && result.getError() != null;
+        if (failed && limits.isJobOver()) {
+            result.setIncomplete(true);
+        }
+        if (!retrying) {
+            return true;
+        }
+        // the other threads may be waiting for this URL to be retried or hedged, or for the last one to be done
+        notifyAll();
+        Attempts tries = attempts.get(url);
+        tries.running--;
+        if (tries.unreported == 0) {
+            // lost to the other request
+            forget(url, tries);
+            return false;
+        }
+        if (tries.retries == 0 && !tries.hedged) {
+            times.record(System.nanoTime() - tries.takenAt);
+        }
+        boolean transientFailure = failed && FetchLimits.isTransient(result) && !limits.isJobOver();
+        if (transientFailure && tries.running + tries.queued >= tries.unreported) {
+            // another request for the URL will report it
+            return false;
+        }
+        if (transientFailure && tries.retries < limits.getMaxRetries()) {
+            long delay = limits.getRetryDelay(tries.retries + 1);
+            if (!limits.hasJobDeadline() || limits.getJobDeadline() - System.nanoTime() - delay > 0) {
+                tries.retries++;
+                pendingRetries++;
+                retried++;
+                SearchMetrics.getInstance().urlRetried();
+                LOG.debug("Retrying url: {} in {}ms ({})", url, TimeUnit.NANOSECONDS.toMillis(delay),
+                        result.getError());
+                scheduler.schedule(() -> retry(url), delay, TimeUnit.NANOSECONDS);
+                return false;
+            }
+        }
+        tries.unreported--;
+        forget(url, tries);
+        return true;
+    }
+
+    /**
+     * @return number of URLs dropped because their host didn't resolve
+     */
+    synchronized int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return number of URLs that were waiting when the job deadline passed, and so weren't searched
+     */
+    synchronized int getExpired() {
+        return expired;
+    }
+
+    /**
+     * @return number of retries of URLs that failed for a transient reason
+     */
+    synchronized int getRetried() {
+        return retried;
+    }
+
+    /**
+     * @return number of URLs that got a second request for taking too long
+     */
+    synchronized int getHedged() {
+        return hedged;
+    }
+
+    /**
+     * Log what happened to the URLs that weren't simply searched once.
+     */
+    void logSummary() {
+        if (getDropped() > 0) {
+            LOG.info("Skipped {} URLs whose host didn't resolve", getDropped());
+        }
+        if (getRetried() > 0 || getHedged() > 0) {
+            LOG.info("Retried {} times, hedged {} URLs", getRetried(), getHedged());
+        }
+        if (getExpired() > 0) {
+            LOG.info("{} URLs not searched before the job deadline", getExpired());
+        }
+    }
+
+    private void forget(String url, Attempts tries) {
+        if (tries.running == 0 && tries.queued == 0 && tries.unreported == 0) {
+            attempts.remove(url);
+        }
+    }
+
+    /**
+     * Hand a URL out again after its backoff, ahead of the other URLs of its host.
+     *
+     * @param url
+     */
+    private synchronized void retry(String url) {
+        pendingRetries--;
+        handOutAgain(url);
+        notifyAll();
+    }
+
+    /**
+     * Hedge the URLs in progress for longer than the hedging percentile of the others' times (each only once, and
+     * within the budget).
+     */
+    private synchronized void hedge() {
+        if (times.getCount() < MIN_HEDGE_SAMPLES || jobOver) {
+            return;
+        }
+        long threshold = Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_HEDGE_MILLIS),
+                times.getPercentile(limits.getHedgePercentile()));
+        long now = System.nanoTime();
+        for (Map.Entry<String, Attempts> entry : attempts.entrySet()) {
+            if (hedged + 1 > taken * HEDGE_BUDGET) {
+                return;
+            }
+            Attempts tries = entry.getValue();
+            if (!tries.hedged && tries.retries == 0 && tries.running == 1 && tries.queued == 0
+                    && tries.unreported == 1 && now - tries.takenAt > threshold) {
+                LOG.debug("Hedging url: {}, in progress for {}ms", entry.getKey(),
+                        TimeUnit.NANOSECONDS.toMillis(now - tries.takenAt));
+                tries.hedged = true;
+                hedged++;
+                SearchMetrics.getInstance().urlHedged();
+                handOutAgain(entry.getKey());
+                notifyAll();
+            }
+        }
+    }
+
+    private void handOutAgain(String url) {
+        String name = hostOf(url);
+        Host host = hosts.get(name);
+        if (host == null) {
+            // it had nothing else left
+            host = new Host(name);
+            host.resolved = true;
+            host.started = true;
+            hosts.put(name, host);
+        }
+        if (host.resolved && !host.hasWaiting() && host.inProgress < maxPerHost) {
+            // a URL tried again goes ahead of the other hosts too: it has waited already
+            ready.addFirst(host);
+        }
+        host.again.add(url);
+        waiting++;
+        attempts.get(url).queued++;
+    }
+
+    /**
+     * The job deadline has passed: drop the URLs waiting (except the retries, which fail right away as incomplete and
+     * so get reported), and stop reading the list.
+     */
+    private void endJob() {
+        jobOver = true;
+        closed = true;
+        int count = 0;
+        for (Iterator<Host> it = hosts.values().iterator(); it.hasNext(); ) {
+            Host host = it.next();
+            count += host.urls.size();
+            host.urls.forEach(skipped);
+            host.urls.clear();
+            for (Iterator<String> again = host.again.iterator(); again.hasNext(); ) {
+                Attempts tries = attempts.get(again.next());
+                if (tries.running > 0) {
+                    // a hedge, of a request that is still in progress
+                    again.remove();
+                    tries.queued--;
+                    waiting--;
+                }
+            }
+            if (!host.hasWaiting() && host.inProgress == 0) {
+                it.remove();
+            }
+        }
+        waiting -= count;
+        expired += count;
+        ready.removeIf(host -> !host.hasWaiting());
+        lookups.clear();
+        SearchMetrics.getInstance().urlsExpired(count);
+        LOG.info("Job deadline passed: dropping the {} URLs waiting", count);
+        notifyAll();
+    }
+
+    /**
+     * Start lookups for the next hosts in the list until there are {@link #LOOKAHEAD} hosts resolved or being
+     * resolved ahead of the ones handed out.
+     */
+    private void lookUpAhead() {
+        if (lookingUp) {
+            // a cached lookup completed inside the loop below, which will carry on
+            return;
+        }
+        lookingUp = true;
+        try {
+            lookUpNext();
+        } finally {
+            lookingUp = false;
+        }
+    }
+
+    private void lookUpNext() {
+        while (lookedUpAhead < LOOKAHEAD && !lookups.isEmpty()) {
+            Host host = lookups.poll();
+            lookedUpAhead++;
+            if (host.name.isEmpty()) {
+                // not a valid URL, nothing to resolve: let it fail when it's fetched
+                resolved(host, true);
+                continue;
+            }
+            // completes right away (on this thread) when the host is already cached
+            resolver.resolve(host.name).whenComplete((address, error) -> resolved(host, error == null));
+        }
+    }
+
+    private synchronized void resolved(Host host, boolean resolvable) {
+        if (resolvable) {
+            host.resolved = true;
+            if (host.hasWaiting()) {
+                ready.add(host);
+            }
+        }
+        else {
+            LOG.debug("Dropping {} URLs of unknown host {}", host.urls.size(), host.name);
+            waiting -= host.urls.size();
+            dropped += host.urls.size();
+            host.urls.forEach(skipped);
+            host.urls.clear();
+            hosts.remove(host.name);
+            lookedUpAhead--;
+            lookUpAhead();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Host name of the URL (lower case), or the empty string for URLs that can't be parsed (these all share a shard).
+     *
+     * @param url
+     * @return
+     */
+    static String hostOf(String url) {
+        try {
+            return new URL(url).getHost().toLowerCase(Locale.ROOT);
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    private static class Host {
+        private final String name;
+        private final Queue<String> urls = new ArrayDeque<>();
+        /** URLs retried or hedged, handed out before the others */
+        private final Queue<String> again = new ArrayDeque<>();
+        private int inProgress;
+        private boolean resolved;
+        private boolean started;
+
+        Host(String name) {
+            this.name = name;
+        }
+
+        boolean hasWaiting() {
+            return !urls.isEmpty() || !again.isEmpty();
+        }
+    }
+
+    /**
+     * The requests for a URL that can be tried more than once.
+     */
+    private static class Attempts {
+        /** {@link System#nanoTime()} the URL was first handed out */
+        private final long takenAt;
+        /** Requests in progress */
+        private int running;
+        /** Retries and hedges waiting to be handed out */
+        private int queued;
+        /** Number of times the URL was handed out from the list (it can be listed more than once) and not reported */
+        private int unreported;
+        private int retries;
+        private boolean hedged;
+
+        Attempts(long takenAt) {
+            this.takenAt = takenAt;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.wework.websitesearcher.services;
+
+import com.wework.websitesearcher.io.DnsResolver;
+import com.wework.websitesearcher.io.HttpResponseHandler;
+import com.wework.websitesearcher.io.HttpStatusException;
+import com.wework.websitesearcher.io.NioHttpClient;
+import com.wework.websitesearcher.io.SearchResult;
+import com.wework.websitesearcher.io.UrlReader;
+import com.wework.websitesearcher.matcher.ByteMatchSession;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.util.SearchMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Implementation of {@link UrlSearchService} on top of the non-blocking {@link NioHttpClient}. Instead of a thread per
+ * in-flight request, a few I/O threads multiplex all the connections, so the number of requests in flight is only
+ * limited by <code>maxInFlight</code> (up to {@link #MAX_IN_FLIGHT}), or by a {@link ConcurrencyLimiter} between
+ * <code>minInFlight</code> and <code>maxInFlight</code>.
+ *
+ * Bodies are decoded and matched on the I/O threads as they arrive; the connection is closed as soon as the matcher
+ * reports a match.
+ */
+class NioUrlSearchService implements UrlSearchService {
+    private static final Logger LOG = LoggerFactory.getLogger(NioUrlSearchService.class);
+
+    static final int MAX_IN_FLIGHT = 5000;
+    private static final int TIMEOUT_SECS = 10;
+
+    private final int minInFlight;
+    private final int maxInFlight;
+    private final int ioThreads;
+    private final int maxPerHost;
+
+    /**
+     * Initialize the service. The I/O threads are not created until you actually call
+     * {@link #searchUrls(Iterator, ContentMatcher, Consumer)}.
+     *
+     * @param maxInFlight max number of requests in flight at once. Must be (1 <= maxInFlight <= 5000)
+     * @param ioThreads number of selector threads
+     * @param maxPerHost max number of requests in flight to the same host
+     * @throws IllegalArgumentException if maxInFlight, ioThreads or maxPerHost are out of range
+     */
+    NioUrlSearchService(int maxInFlight, int ioThreads, int maxPerHost) {
+        this(maxInFlight, maxInFlight, ioThreads, maxPerHost);
+    }
+
+    /**
+     * Initialize the service with a number of requests in flight that adapts to how the requests go (see
+     * {@link ConcurrencyLimiter}).
+     *
+     * @param minInFlight number of requests in flight at the start, and at least. Must be
+     *                    (1 <= minInFlight <= maxInFlight)
+     * @param maxInFlight max number of requests in flight at once. Must be (1 <= maxInFlight <= 5000)
+     * @param ioThreads number of selector threads
+     * @param maxPerHost max number of requests in flight to the same host
+     * @throws IllegalArgumentException if any of the args is out of range
+     */
+    NioUrlSearchService(int minInFlight, int maxInFlight, int ioThreads, int maxPerHost) {
+        if (maxInFlight < 1 || maxInFlight > MAX_IN_FLIGHT) {
+            throw new IllegalArgumentException("Max in flight should be between 1-" + MAX_IN_FLIGHT +
+                    " (inclusive). Max in flight arg: " + maxInFlight);
+        }
+        if (minInFlight < 1 || minInFlight > maxInFlight) {
+            throw new IllegalArgumentException("Min in flight should be between 1-" + maxInFlight +
+                    " (inclusive). Min in flight arg: " + minInFlight);
+        }
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("Need at least one I/O thread. I/O threads arg: " + ioThreads);
+        }
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("Max per host must be positive. Max per host arg: " + maxPerHost);
+        }
+        this.minInFlight = minInFlight;
+        this.maxInFlight = maxInFlight;
+        this.ioThreads = ioThreads;
+        this.maxPerHost = maxPerHost;
+    }
+
+    @Override
+    public void searchUrls(Iterator<String> urls, ContentMatcher matcher, Consumer<SearchResult> results,
+                           Consumer<String> skipped) {
+        if (urls == null) {
+            throw new IllegalArgumentException("URLs can not be null.");
+        }
+
+        ConcurrencyLimiter inFlight = new ConcurrencyLimiter(minInFlight, maxInFlight);
+        HostShardedUrlQueue queue = HostShardedUrlQueue.feed(urls, maxPerHost, DnsResolver.getInstance(),
+                UrlReader.getFetchLimits(), skipped);
+
+        LOG.debug("STARTING NIO client with [{}] I/O threads, max [{}] requests in flight", ioThreads, maxInFlight);
+        try (NioHttpClient client = new NioHttpClient(ioThreads, DnsResolver.getInstance(), TIMEOUT_SECS)) {
+            String url;
+            while ((url = queue.take()) != null) {
+                inFlight.acquire();
+                String taken = url;
+                client.get(url, new SearchHandler(url, matcher, results, result -> {
+                    try {
+                        return queue.done(taken, result);
+                    } finally {
+                        inFlight.release(result);
+                    }
+                }));
+            }
+            // wait for the requests still in flight
+            inFlight.awaitIdle();
+        } catch (IOException e) {
+            throw new RuntimeException("Error starting the NIO client", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for the requests to complete");
+        }
+        if (inFlight.isAdaptive()) {
+            LOG.info("Concurrency limit at the end: {}", inFlight.getLimit());
+        }
+        queue.logSummary();
+    }
+
+    /**
+     * Matches the body of one URL as it arrives.
+     */
+    private static class SearchHandler implements HttpResponseHandler {
+        private final String url;
+        private final ContentMatcher matcher;
+        private final Consumer<SearchResult> results;
+        /** Called last, with the result: tells whether to hand it on to the results */
+        private final Predicate<SearchResult> onDone;
+        private final SearchResult result;
+        private ByteMatchSession session;
+        /** Time spent decoding and matching the body */
+        private long feedNanos;
+
+        SearchHandler(String url, ContentMatcher matcher, Consumer<SearchResult> results,
+                      Predicate<SearchResult> onDone) {
+            this.url = url;
+            this.matcher = matcher;
+            this.results = results;
+            this.onDone = onDone;
+            this.result = new SearchResult(url);
+        }
+
+        @Override
+        public void onHeaders(String finalUrl, int status, Map<String, List<String>> headers) {
+            result.setResponse(finalUrl, status);
+            List<String> contentType = headers.get("content-type");
+            result.setContentType(contentType != null && !contentType.isEmpty() ? contentType.get(0) : null);
+            session = matcher.newResponseSession(result.getContentType());
+        }
+
+        @Override
+        public void onBytesReceived(int count) {
+            result.addBytesRead(count);
+        }
+
+        @Override
+        public boolean onBody(byte[] bytes, int offset, int length) {
+            long start = System.nanoTime();
+            try {
+                return session.feed(bytes, offset, length);
+            } finally {
+                feedNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void onTruncated() {
+            result.setTruncated(true);
+        }
+
+        @Override
+        public void onComplete(boolean stoppedEarly) {
+            boolean searched = false;
+            try {
+                long start = System.nanoTime();
+                boolean matched = stoppedEarly || session.finish();
+                feedNanos += System.nanoTime() - start;
+                result.complete(matched);
+                result.setMatchedTerms(session.getMatchedTerms());
+                if (matched) {
+                    LOG.debug("URL {} DID contain search term", url);
+                }
+                else {
+                    LOG.debug("URL {} did NOT contain search term", url);
+                }
+                SearchMetrics metrics = SearchMetrics.getInstance();
+                metrics.record(SearchMetrics.Phase.DECODE, feedNanos - session.getMatchNanos());
+                metrics.record(SearchMetrics.Phase.MATCH, session.getMatchNanos());
+                metrics.urlDone(result);
+                searched = true;
+            } finally {
+                done(searched);
+            }
+        }
+
+        @Override
+        public void onFailure(String failedUrl, Exception e) {
+            if (e instanceof SocketTimeoutException) {
+                LOG.debug("url: {} timed out", url);
+            }
+            else {
+                LOG.debug("Error reading url: {} ({}), message: {}", url, failedUrl, e.toString());
+            }
+            if (e instanceof HttpStatusException) {
+                result.setResponse(failedUrl, ((HttpStatusException) e).getStatus());
+            }
+            result.fail(e);
+            boolean searched = false;
+            try {
+                SearchMetrics.getInstance().urlDone(result);
+                searched = true;
+            } finally {
+                done(searched);
+            }
+        }
+
+        /**
+         * @param searched false if handling the response failed, in which case the result isn't handed on
+         */
+        private void done(boolean searched) {
+            if (onDone.test(result) && searched) {
+                results.accept(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package com.wework.websitesearcher.services;
+
+import com.wework.websitesearcher.io.DnsResolver;
+import com.wework.websitesearcher.io.SearchResult;
+import com.wework.websitesearcher.io.TimedInputStream;
+import com.wework.websitesearcher.io.UrlReader;
+import com.wework.websitesearcher.matcher.ByteMatchSession;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.util.SearchMetrics;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Implementation of {@link UrlSearchService} that splits the work in two stages:
+ * <ul>
+ *     <li>a fetch stage: many (I/O-bound) threads, each reading one page at a time in chunks of
+ *     {@link ContentMatcher#CHUNK_SIZE} bytes</li>
+ *     <li>a match stage: one (CPU-bound) thread per core feeding those chunks to the matcher, which decodes them in
+ *     the charset of the page if it needs to (see {@link ContentMatcher#newResponseSession})</li>
+ * </ul>
+ * Slow regexes then no longer hold up the network side and slow networks no longer leave cores idle.
+ *
+ * The chunks are taken from a fixed-size pool of buffers and only returned once they have been matched. When the match
+ * stage falls behind, the fetch threads wait for a free buffer instead of reading more, so the memory used for page
+ * content never goes over <code>bufferBytes</code> no matter how many large pages arrive at once.
+ *
+ * As soon as a page matches, its fetch thread stops reading (see {@link UrlReader#openBody}).
+ *
+ * With an adaptive number of fetch threads, <code>fetchThreads</code> threads are started but only as many as the
+ * {@link ConcurrencyLimiter} allows fetch at once.
+ *
+ * A URL is only done once its page has been matched too: until then it counts towards the limits of its host and of
+ * the {@link ConcurrencyLimiter}, and the retries and the limiter see the result of the match, not just the fetch.
+ */
+class PipelinedUrlSearchService implements UrlSearchService {
+    private static final Logger LOG = LoggerFactory.getLogger(PipelinedUrlSearchService.class);
+
+    static final int MAX_FETCH_THREADS = 500;
+    /** 64MB of page content in the pipeline at most */
+    static final int DEFAULT_BUFFER_BYTES = 64 * 1024 * 1024;
+    private static final int TIMEOUT_SECS = 10;
+
+    private final int minFetchThreads;
+    private final int fetchThreads;
+    private final int matchThreads;
+    private final int bufferBytes;
+    private final int maxPerHost;
+
+    /**
+     * Initialize the service. Threads are not created until you actually call
+     * {@link #searchUrls(Iterator, ContentMatcher, Consumer)}.
+     *
+     * @param fetchThreads number of threads reading pages. Must be (1 <= fetchThreads <= 500)
+     * @param matchThreads number of threads running the matcher, usually the number of cores
+     * @param bufferBytes max number of bytes of page content waiting to be matched, rounded up to a whole number of
+     *                    chunks
+     * @param maxPerHost max number of URLs of the same host fetched at once
+     * @throws IllegalArgumentException if any of the args is out of range
+     */
+    PipelinedUrlSearchService(int fetchThreads, int matchThreads, int bufferBytes, int maxPerHost) {
+        this(fetchThreads, fetchThreads, matchThreads, bufferBytes, maxPerHost);
+    }
+
+    /**
+     * Initialize the service with a number of threads fetching at once that adapts to how the requests go (see
+     * {@link ConcurrencyLimiter}).
+     *
+     * @param minFetchThreads number of threads fetching at the start, and at least. Must be
+     *                        (1 <= minFetchThreads <= fetchThreads)
+     * @param fetchThreads number of threads reading pages. Must be (1 <= fetchThreads <= 500)
+     * @param matchThreads number of threads running the matcher, usually the number of cores
+     * @param bufferBytes max number of bytes of page content waiting to be matched, rounded up to a whole number of
+     *                    chunks
+     * @param maxPerHost max number of URLs of the same host fetched at once
+     * @throws IllegalArgumentException if any of the args is out of range
+     */
+    PipelinedUrlSearchService(int minFetchThreads, int fetchThreads, int matchThreads, int bufferBytes,
+                              int maxPerHost) {
+        if (fetchThreads < 1 || fetchThreads > MAX_FETCH_THREADS) {
+            throw new IllegalArgumentException("Fetch threads should be between 1-" + MAX_FETCH_THREADS +
+                    " (inclusive). Fetch threads arg: " + fetchThreads);
+        }
+        if (minFetchThreads < 1 || minFetchThreads > fetchThreads) {
+            throw new IllegalArgumentException("Min fetch threads should be between 1-" + fetchThreads +
+                    " (inclusive). Min fetch threads arg: " + minFetchThreads);
+        }
+        if (matchThreads < 1 || bufferBytes < 1 || maxPerHost < 1) {
+            throw new IllegalArgumentException("Match threads, buffer size and max per host must be positive.");
+        }
+        this.minFetchThreads = minFetchThreads;
+        this.fetchThreads = fetchThreads;
+        this.matchThreads = matchThreads;
+        this.bufferBytes = bufferBytes;
+        this.maxPerHost = maxPerHost;
+    }
+
+    @Override
+    public void searchUrls(Iterator<String> urls, ContentMatcher matcher, Consumer<SearchResult> results,
+                           Consumer<String> skipped) {
+        if (urls == null) {
+            throw new IllegalArgumentException("URLs can not be null.");
+        }
+
+        HostShardedUrlQueue queue = HostShardedUrlQueue.feed(urls, maxPerHost, DnsResolver.getInstance(),
+                UrlReader.getFetchLimits(), skipped);
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(minFetchThreads, fetchThreads);
+        BufferPool buffers = newBufferPool();
+        AtomicInteger matchThreadCount = new AtomicInteger();
+        ExecutorService matchStage = Executors.newFixedThreadPool(matchThreads, runnable -> {
+            Thread thread = new Thread(runnable, "match_" + matchThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        LOG.debug("STARTING [{}] fetch threads and [{}] match threads", fetchThreads, matchThreads);
+        List<Thread> fetchers = new ArrayList<>();
+        for (int i = 0; i < fetchThreads; i++) {
+            Thread fetcher = new Thread(() -> {
+                try {
+                    String url;
+                    long start = System.nanoTime();
+                    while ((url = queue.take()) != null) {
+                        try {
+                            limiter.acquire();
+                        } catch (InterruptedException e) {
+                            queue.done(url);
+                            throw e;
+                        }
+                        SearchMetrics.getInstance().record(SearchMetrics.Phase.QUEUE, System.nanoTime() - start);
+                        Page page = new Page(url, matcher, matchStage, buffers, queue, limiter, results);
+                        boolean read = false;
+                        try {
+                            read = fetch(page, buffers);
+                        } finally {
+                            page.end(!read);
+                        }
+                        start = System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "fetch_" + (i + 1));
+            fetchers.add(fetcher);
+            fetcher.start();
+        }
+
+        try {
+            for (Thread fetcher : fetchers) {
+                fetcher.join();
+            }
+            // all the pages have been ended by now, so nothing else gets scheduled: let the match stage finish them
+            matchStage.shutdown();
+            matchStage.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for the pipeline to complete");
+        } finally {
+            matchStage.shutdownNow();
+        }
+        if (limiter.isAdaptive()) {
+            LOG.info("Concurrency limit at the end: {}", limiter.getLimit());
+        }
+        LOG.debug("Page buffers: at most {} of {} in use", buffers.getMaxInUse(), buffers.getSize());
+        queue.logSummary();
+    }
+
+    /**
+     * @return the pool of chunk buffers of one search: <code>bufferBytes</code>, rounded up to whole chunks
+     */
+    BufferPool newBufferPool() {
+        return new BufferPool((bufferBytes + ContentMatcher.CHUNK_SIZE - 1) / ContentMatcher.CHUNK_SIZE);
+    }
+
+    /**
+     * Read one page and hand its chunks to the match stage. The caller ends the page, even if it couldn't be read.
+     *
+     * @param page
+     * @param buffers
+     * @return true if the page was read (to the end, or until it matched), false if it failed
+     */
+    private boolean fetch(Page page, BufferPool buffers) {
+        TimedInputStream timed = null;
+        try {
+            InputStream body = UrlReader.openBody(page.url, TIMEOUT_SECS, page.result);
+            if (body == null) {
+                return false;
+            }
+            timed = new TimedInputStream(body);
+            while (!page.matched) {
+                byte[] buffer = buffers.take();
+                int read;
+                try {
+                    read = IOUtils.read(timed, buffer);
+                } catch (IOException | RuntimeException e) {
+                    buffers.release(buffer);
+                    throw e;
+                }
+                if (read == 0) {
+                    buffers.release(buffer);
+                    break;
+                }
+                page.add(buffer, read);
+            }
+            // after a match, closing the body doesn't read the rest of it (unless it's being cached)
+            return true;
+        } catch (SocketTimeoutException e) {
+            LOG.debug("url: {} timed out", page.url);
+            page.result.fail(e);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error reading url: {}, message: {}", page.url, e);
+            page.result.fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            page.result.fail(e);
+        } finally {
+            if (timed != null) {
+                IOUtils.closeQuietly(timed);
+                SearchMetrics.getInstance().record(SearchMetrics.Phase.DOWNLOAD, timed.getNanos());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The chunks of one page waiting to be matched. Chunks are added by the page's fetch thread and matched in order
+     * by at most one match thread at a time, so the (not thread-safe) session needs no locking. The result is filled in
+     * by the fetch thread up to the end of the page, then by the match stage, which gives the URL back to the queue and
+     * the limiter and hands the result on.
+     *
+     * The session is started by the match stage with the first chunk, once the fetch thread has set the content type.
+     */
+    private static class Page implements Runnable {
+        private final String url;
+        private final ContentMatcher matcher;
+        private final ExecutorService matchStage;
+        private final BufferPool buffers;
+        private final HostShardedUrlQueue queue;
+        private final ConcurrencyLimiter limiter;
+        private final Consumer<SearchResult> results;
+        private final SearchResult result;
+        private final Queue<Chunk> chunks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        /** Set by the match stage, read by the fetch thread to stop reading */
+        private volatile boolean matched;
+        private boolean done;
+        private ByteMatchSession session;
+        /** Time spent in the session (decoding and matching) so far, -1 until the first chunk */
+        private long feedNanos = -1;
+
+        Page(String url, ContentMatcher matcher, ExecutorService matchStage, BufferPool buffers,
+             HostShardedUrlQueue queue, ConcurrencyLimiter limiter, Consumer<SearchResult> results) {
+            this.url = url;
+            this.result = new SearchResult(url);
+            this.matcher = matcher;
+            this.matchStage = matchStage;
+            this.buffers = buffers;
+            this.queue = queue;
+            this.limiter = limiter;
+            this.results = results;
+        }
+
+        void add(byte[] buffer, int length) {
+            chunks.add(new Chunk(buffer, length, false));
+            schedule();
+        }
+
+        /**
+         * No more chunks for this page.
+         *
+         * @param failed true if the page couldn't be read to the end
+         */
+        void end(boolean failed) {
+            chunks.add(new Chunk(null, 0, failed));
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                matchStage.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            do {
+                Chunk chunk;
+                while ((chunk = chunks.poll()) != null) {
+                    process(chunk);
+                }
+                scheduled.set(false);
+                // a chunk added after the poll above but before the flag was cleared wasn't scheduled
+            } while (!chunks.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+
+        private void process(Chunk chunk) {
+            long start = System.nanoTime();
+            try {
+                if (chunk.buffer != null) {
+                    if (!done && !matched && session().feed(chunk.buffer, 0, chunk.length)) {
+                        matched = true;
+                    }
+                }
+                else if (!done) {
+                    // a page that matched before failing still contained the term
+                    if (matched || (!chunk.failed && session().finish())) {
+                        LOG.debug("URL {} DID contain search term", url);
+                        result.complete(true);
+                        result.setMatchedTerms(session().getMatchedTerms());
+                    }
+                    else {
+                        LOG.debug("URL {} did NOT contain search term (or couldn't be read)", url);
+                        if (!chunk.failed) {
+                            result.complete(false);
+                            result.setMatchedTerms(session().getMatchedTerms());
+                        }
+                    }
+                    finish();
+                }
+            } catch (RuntimeException | StackOverflowError e) {
+                // e.g. a regex that recurses too deep on this page. Skip the page rather than losing the thread.
+                LOG.error("Error matching url: {}, message: {}", url, e.toString());
+                if (!done) {
+                    result.fail("Error matching: " + e);
+                }
+                finish();
+            } finally {
+                if (chunk.buffer != null) {
+                    feedNanos = Math.max(feedNanos, 0) + System.nanoTime() - start;
+                    buffers.release(chunk.buffer);
+                }
+                else {
+                    // the end of the page comes exactly once
+                    SearchMetrics metrics = SearchMetrics.getInstance();
+                    if (feedNanos >= 0) {
+                        long sessionNanos = feedNanos + System.nanoTime() - start;
+                        metrics.record(SearchMetrics.Phase.DECODE, sessionNanos - session.getMatchNanos());
+                        metrics.record(SearchMetrics.Phase.MATCH, session.getMatchNanos());
+                    }
+                    metrics.urlDone(result);
+                    // not reported if it's to be retried, or if another request for it was reported first
+                    boolean report = queue.done(url, result);
+                    limiter.release(result);
+                    if (report) {
+                        results.accept(result);
+                    }
+                }
+            }
+        }
+
+        private ByteMatchSession session() {
+            if (session == null) {
+                session = matcher.newResponseSession(result.getContentType());
+            }
+            return session;
+        }
+
+        private void finish() {
+            if (!done) {
+                done = true;
+                // stop the fetch thread if it's still reading
+                matched = true;
+            }
+        }
+    }
+
+    /**
+     * A chunk of page content, or the end of the page if <code>buffer</code> is null.
+     */
+    private static class Chunk {
+        private final byte[] buffer;
+        private final int length;
+        private final boolean failed;
+
+        Chunk(byte[] buffer, int length, boolean failed) {
+            this.buffer = buffer;
+            this.length = length;
+            this.failed = failed;
+        }
+    }
+
+    /**
+     * Fixed number of reusable {@link ContentMatcher#CHUNK_SIZE} buffers, allocated as they are first needed.
+     * {@link #take()} blocks while they are all in the pipeline.
+     */
+    static class BufferPool {
+        private final int size;
+        private final Semaphore available;
+        private final BlockingQueue<byte[]> free;
+        /** Most buffers taken at once so far */
+        private final AtomicInteger maxInUse = new AtomicInteger();
+
+        BufferPool(int size) {
+            this.size = size;
+            this.available = new Semaphore(size);
+            this.free = new ArrayBlockingQueue<>(size);
+        }
+
+        byte[] take() throws InterruptedException {
+            available.acquire();
+            maxInUse.accumulateAndGet(getInUse(), Math::max);
+            byte[] buffer = free.poll();
+            return buffer != null ? buffer : new byte[ContentMatcher.CHUNK_SIZE];
+        }
+
+        void release(byte[] buffer) {
+            free.offer(buffer);
+            available.release();
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        /**
+         * @return number of buffers taken and not released yet
+         */
+        int getInUse() {
+            return size - available.availablePermits();
+        }
+
+        int getMaxInUse() {
+            return maxInUse.get();
+        }
+    }
+}
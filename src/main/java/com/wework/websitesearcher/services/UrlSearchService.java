@@ -1,8 +1,20 @@
 package com.wework.websitesearcher.services;
 
+import com.wework.websitesearcher.io.ResultWriter;
+import com.wework.websitesearcher.io.SearchResult;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.matcher.ContentMatcherFactory;
+import com.wework.websitesearcher.matcher.MultiTermMatcher;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 
 /**
  * Service for loading the content from a list of URLs and searching that content for the given search term regex.
@@ -16,7 +28,103 @@ public interface UrlSearchService {
      * @param searchTerm regex to search for in the contents of each URL.
      * @return the list of URLs whose contents matches the given regex, or an empty list of none found
      */
-    List<String> searchUrlsForTerm(List<String> urls, String searchTerm);
+    default List<String> searchUrlsForTerm(List<String> urls, String searchTerm) {
+        return searchUrls(urls, ContentMatcherFactory.getInstance(searchTerm));
+    }
+
+    /**
+     * Run this service once for several named regex search terms: each URL is fetched once and its content matched
+     * against all the terms in the same pass (see {@link MultiTermMatcher}).
+     *
+     * @param urls list of URLs whose content you wish to search
+     * @param namedTerms regexes to search for in the contents of each URL, by name
+     * @return for each name (in the same order), the list of URLs whose contents matches that regex, or an empty list
+     * if none found
+     * @throws IllegalArgumentException if the list is null or empty, or the terms aren't valid (see
+     * {@link ContentMatcherFactory#getInstance(Map)})
+     */
+    default Map<String, List<String>> searchUrlsForTerms(List<String> urls, Map<String, String> namedTerms) {
+        if (urls == null || urls.isEmpty()) {
+            throw new IllegalArgumentException("URLs can not be null or empty.");
+        }
+        MultiTermMatcher matcher = ContentMatcherFactory.getInstance(namedTerms);
+        Map<String, Queue<String>> matched = new LinkedHashMap<>();
+        for (String name : matcher.getNames()) {
+            matched.put(name, new ConcurrentLinkedQueue<>());
+        }
+        searchUrls(urls.iterator(), matcher, result -> {
+            if (result.getMatchedTerms() != null) {
+                for (String name : result.getMatchedTerms()) {
+                    matched.get(name).add(result.getUrl());
+                }
+            }
+        });
+        Map<String, List<String>> results = new LinkedHashMap<>();
+        matched.forEach((name, termUrls) -> results.put(name, new ArrayList<>(termUrls)));
+        return results;
+    }
+
+    /**
+     * Run this service for the given list of URLs and return the URLs whose content is matched by the matcher.
+     *
+     * @param urls list of URLs whose content you wish to search
+     * @param matcher compiled search term (see {@link ContentMatcherFactory})
+     * @return the list of URLs whose contents matched, or an empty list of none found
+     * @throws IllegalArgumentException if the list is null or empty
+     */
+    default List<String> searchUrls(List<String> urls, ContentMatcher matcher) {
+        if (urls == null || urls.isEmpty()) {
+            throw new IllegalArgumentException("URLs can not be null or empty.");
+        }
+        return searchUrls(urls.iterator(), matcher);
+    }
+
+    /**
+     * Run this service for the URLs of an iterator, searching them as they are read, and return the URLs whose content
+     * is matched by the matcher. The iterator is only read as fast as the URLs are searched (from a single thread), so
+     * it can stream a list of any length.
+     *
+     * @param urls URLs whose content you wish to search
+     * @param matcher compiled search term (see {@link ContentMatcherFactory})
+     * @return the list of URLs whose contents matched, or an empty list of none found
+     */
+    default List<String> searchUrls(Iterator<String> urls, ContentMatcher matcher) {
+        Queue<String> matched = new ConcurrentLinkedQueue<>();
+        searchUrls(urls, matcher, result -> {
+            if (result.isMatched()) {
+                matched.add(result.getUrl());
+            }
+        });
+        return new ArrayList<>(matched);
+    }
+
+    /**
+     * Run this service for the URLs of an iterator, handing the result of each URL to a consumer as soon as it has
+     * been searched, so nothing is kept in memory. Returns once all the URLs have been searched.
+     *
+     * @param urls URLs whose content you wish to search, read as they are needed
+     * @param matcher compiled search term (see {@link ContentMatcherFactory})
+     * @param results gets the result of every URL searched, matched or not. Called from the search threads, so it
+     *                must be thread-safe (see {@link ResultWriter}).
+     */
+    default void searchUrls(Iterator<String> urls, ContentMatcher matcher, Consumer<SearchResult> results) {
+        searchUrls(urls, matcher, results, url -> { });
+    }
+
+    /**
+     * Like {@link #searchUrls(Iterator, ContentMatcher, Consumer)}, also telling which URLs were skipped without a
+     * result: their host didn't resolve, or the job deadline passed before they were started. Every URL read from the
+     * iterator then ends up in exactly one of the two consumers.
+     *
+     * @param urls URLs whose content you wish to search, read as they are needed
+     * @param matcher compiled search term (see {@link ContentMatcherFactory})
+     * @param results gets the result of every URL searched, matched or not. Called from the search threads, so it
+     *                must be thread-safe (see {@link ResultWriter}).
+     * @param skipped gets every URL skipped. Called from the search threads while they hold locks, so it must be
+     *                thread-safe and quick.
+     */
+    void searchUrls(Iterator<String> urls, ContentMatcher matcher, Consumer<SearchResult> results,
+                    Consumer<String> skipped);
 
     /**
      * Returns true if the content matches the regex. Returns false if the regex doesn't match or the content or regex
@@ -24,6 +132,9 @@ public interface UrlSearchService {
      * to the beginning of the regex. For example the regex <code>(?s).*(facebook|twitter).*</code> returns true if the
      * multi-line content contains the words 'facebook' or 'twitter' anywhere.
      *
+     * This compiles the regex on every call. To search many documents, compile it once with
+     * {@link ContentMatcherFactory#getInstance(String)} instead.
+     *
      * @param content
      * @param regex
      * @return
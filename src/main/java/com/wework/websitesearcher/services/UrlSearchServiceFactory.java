@@ -1,7 +1,30 @@
 package com.wework.websitesearcher.services;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
 public class UrlSearchServiceFactory {
 
+    /**
+     * How URLs are fetched.
+     */
+    public enum Mode {
+        /** A pool of platform threads, each blocking on one request at a time */
+        THREADS,
+        /** A few selector threads multiplexing non-blocking connections */
+        NIO,
+        /** Many blocking threads fetching pages, handing them to one thread per core for matching */
+        PIPELINED,
+        /** One virtual thread per URL, each blocking on its request (JDK 21+, built by the jdk21 profile) */
+        VIRTUAL
+    }
+
+    /** Default max number of parallel requests to the same host */
+    public static final int DEFAULT_MAX_PER_HOST = 6;
+
+    private static final String VIRTUAL_THREAD_SERVICE =
+            "com.wework.websitesearcher.services.VirtualThreadUrlSearchService";
+
     public static UrlSearchService getInstance(int maxThreads) {
         if (maxThreads <= 0) {
             throw new IllegalArgumentException("Cannot have negative number of threads!");
@@ -14,4 +37,159 @@ public class UrlSearchServiceFactory {
             return new ConcurrentUrlSearchService(maxThreads);
         }
     }
+
+    /**
+     * Returns the service for the given mode.
+     *
+     * @param mode how URLs are fetched
+     * @param concurrency max number of threads ({@link Mode#THREADS}), of fetch threads ({@link Mode#PIPELINED}) or
+     *                    of requests in flight ({@link Mode#NIO}, {@link Mode#VIRTUAL})
+     * @return
+     * @throws IllegalStateException if the mode isn't available in this build/JVM, see {@link #isAvailable(Mode)}
+     */
+    public static UrlSearchService getInstance(Mode mode, int concurrency) {
+        return getInstance(mode, concurrency, DEFAULT_MAX_PER_HOST);
+    }
+
+    /**
+     * Returns the service for the given mode, with at most <code>maxPerHost</code> parallel requests to the same host.
+     *
+     * @param mode how URLs are fetched
+     * @param concurrency see {@link #getInstance(Mode, int)}
+     * @param maxPerHost max number of URLs of the same host searched at once
+     * @return
+     * @throws IllegalStateException if the mode isn't available in this build/JVM, see {@link #isAvailable(Mode)}
+     */
+    public static UrlSearchService getInstance(Mode mode, int concurrency, int maxPerHost) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Cannot have negative concurrency!");
+        }
+
+        switch (mode) {
+            case NIO:
+                return new NioUrlSearchService(concurrency, getIoThreads(), maxPerHost);
+            case PIPELINED:
+                return new PipelinedUrlSearchService(concurrency, Runtime.getRuntime().availableProcessors(),
+                        PipelinedUrlSearchService.DEFAULT_BUFFER_BYTES, maxPerHost);
+            case VIRTUAL:
+                return newVirtualThreadService(concurrency, concurrency, maxPerHost);
+            case THREADS:
+            default:
+                return concurrency == 1 ? new UrlSearchServiceImpl() : new ConcurrentUrlSearchService(concurrency, maxPerHost);
+        }
+    }
+
+    /**
+     * Returns the service for the given mode, with a concurrency that adapts to the network and the servers while URLs
+     * are searched instead of a fixed one: it starts at <code>minConcurrency</code>, goes up while that raises the
+     * throughput, and backs off when requests start timing out, getting throttled or slowing down (see
+     * ConcurrencyLimiter). The changes are logged.
+     *
+     * @param mode how URLs are fetched
+     * @param minConcurrency lowest concurrency (see {@link #getInstance(Mode, int)} for what it is in each mode)
+     * @param maxConcurrency highest concurrency, at most {@link #getMaxConcurrency(Mode)}
+     * @param maxPerHost max number of URLs of the same host searched at once
+     * @return
+     * @throws IllegalArgumentException if the bounds are out of range
+     * @throws IllegalStateException if the mode isn't available in this build/JVM, see {@link #isAvailable(Mode)}
+     */
+    public static UrlSearchService getAdaptiveInstance(Mode mode, int minConcurrency, int maxConcurrency,
+                                                       int maxPerHost) {
+        if (minConcurrency <= 0 || maxConcurrency < minConcurrency) {
+            throw new IllegalArgumentException("Concurrency bounds must be positive with min <= max. Min arg: " +
+                    minConcurrency + ", max arg: " + maxConcurrency);
+        }
+
+        switch (mode) {
+            case NIO:
+                return new NioUrlSearchService(minConcurrency, maxConcurrency, getIoThreads(), maxPerHost);
+            case PIPELINED:
+                return new PipelinedUrlSearchService(minConcurrency, maxConcurrency,
+                        Runtime.getRuntime().availableProcessors(), PipelinedUrlSearchService.DEFAULT_BUFFER_BYTES,
+                        maxPerHost);
+            case VIRTUAL:
+                return newVirtualThreadService(minConcurrency, maxConcurrency, maxPerHost);
+            case THREADS:
+            default:
+                return new ConcurrentUrlSearchService(minConcurrency, maxConcurrency, maxPerHost);
+        }
+    }
+
+    /**
+     * @param mode
+     * @return the highest concurrency the mode supports: threads ({@link Mode#THREADS}), fetch threads
+     * ({@link Mode#PIPELINED}) or requests in flight ({@link Mode#NIO}, {@link Mode#VIRTUAL})
+     */
+    public static int getMaxConcurrency(Mode mode) {
+        switch (mode) {
+            case NIO:
+                return NioUrlSearchService.MAX_IN_FLIGHT;
+            case PIPELINED:
+                return PipelinedUrlSearchService.MAX_FETCH_THREADS;
+            case VIRTUAL:
+                // same as NIO, the virtual thread service may not be there to ask
+                return NioUrlSearchService.MAX_IN_FLIGHT;
+            case THREADS:
+            default:
+                return ConcurrentUrlSearchService.MAX_THREADS;
+        }
+    }
+
+    /**
+     * {@link Mode#VIRTUAL} needs both a JDK 21+ runtime and a build that included <code>src/main/java21</code> (the
+     * jdk21 Maven profile, active by default when building with JDK 21+). The other modes are always available.
+     *
+     * @param mode
+     * @return true if {@link #getInstance(Mode, int)} can create a service for the mode
+     */
+    public static boolean isAvailable(Mode mode) {
+        if (mode != Mode.VIRTUAL) {
+            return true;
+        }
+        try {
+            Class.forName(VIRTUAL_THREAD_SERVICE);
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * The virtual thread service is only compiled by the jdk21 profile, so it's loaded by name.
+     *
+     * @param minInFlight
+     * @param maxInFlight
+     * @param maxPerHost
+     * @return
+     */
+    private static UrlSearchService newVirtualThreadService(int minInFlight, int maxInFlight, int maxPerHost) {
+        Constructor<?> constructor;
+        try {
+            constructor = Class.forName(VIRTUAL_THREAD_SERVICE).getDeclaredConstructor(int.class, int.class,
+                    int.class);
+        } catch (ClassNotFoundException | NoSuchMethodException | LinkageError e) {
+            throw new IllegalStateException("Virtual threads need Java 21+ and a build with the jdk21 profile " +
+                    "(running on Java " + System.getProperty("java.version") + ")", e);
+        }
+        try {
+            constructor.setAccessible(true);
+            return (UrlSearchService) constructor.newInstance(minInFlight, maxInFlight, maxPerHost);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not create the virtual thread service", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create the virtual thread service", e);
+        }
+    }
+
+    /**
+     * Number of selector threads for {@link Mode#NIO}: one per core, up to 4.
+     *
+     * @return
+     */
+    private static int getIoThreads() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
 }
@@ -1,26 +1,62 @@
 package com.wework.websitesearcher.services;
 
+import com.wework.websitesearcher.io.FetchLimits;
+import com.wework.websitesearcher.io.SearchResult;
 import com.wework.websitesearcher.io.UrlReader;
-import org.apache.commons.lang3.StringUtils;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.util.SearchMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Single-threaded implementation of {@link UrlSearchService}
+ *
+ * The job deadline and retries of the {@link FetchLimits} apply (hedging doesn't: there's no second thread to send
+ * the second request): a URL that failed for a transient reason is retried after its backoff, and past the job
+ * deadline the rest of the list isn't searched.
  */
 public class UrlSearchServiceImpl implements UrlSearchService {
     private static final Logger LOG = LoggerFactory.getLogger(UrlSearchServiceImpl.class);
 
     @Override
-    public List<String> searchUrlsForTerm(List<String> urls, String searchTerm) {
-        List<String> results = new ArrayList<>();
-        for (String url : urls) {
-            String urlContents = UrlReader.getUrlContents(url);
-            LOG.trace("read url: {} with content size: {}", url, StringUtils.length(urlContents));
+    public void searchUrls(Iterator<String> urls, ContentMatcher matcher, Consumer<SearchResult> results,
+                           Consumer<String> skipped) {
+        FetchLimits limits = UrlReader.getFetchLimits();
+        while (urls.hasNext() && !limits.isJobOver()) {
+            String url = urls.next();
+            SearchResult result = UrlReader.searchUrl(url, 10, matcher);
+            for (int retry = 1; retry <= limits.getMaxRetries() && isRetryable(result, limits); retry++) {
+                long delay = limits.getRetryDelay(retry);
+                if (limits.hasJobDeadline() && limits.getJobDeadline() - System.nanoTime() - delay <= 0) {
+                    break;
+                }
+                LOG.debug("Retrying url: {} in {}ms ({})", url, TimeUnit.NANOSECONDS.toMillis(delay),
+                        result.getError());
+                SearchMetrics.getInstance().urlRetried();
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                result = UrlReader.searchUrl(url, 10, matcher);
+            }
+            if (result.getError() != null && limits.isJobOver()) {
+                result.setIncomplete(true);
+            }
+            LOG.trace("read url: {} matched: {}", url, result.isMatched());
+            results.accept(result);
         }
-        return results;
+        if (limits.isJobOver() && urls.hasNext()) {
+            LOG.info("Job deadline passed: not searching the rest of the list");
+        }
+    }
+
+    private static boolean isRetryable(SearchResult result, FetchLimits limits) {
+        return result.getError() != null && FetchLimits.isTransient(result) && !limits.isJobOver();
     }
 }
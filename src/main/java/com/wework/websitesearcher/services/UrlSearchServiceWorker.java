@@ -1,13 +1,13 @@
 package com.wework.websitesearcher.services;
 
+import com.wework.websitesearcher.io.SearchResult;
 import com.wework.websitesearcher.io.UrlReader;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.util.SearchMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.net.SocketTimeoutException;
-import java.util.List;
-import java.util.Queue;
+import java.util.function.Consumer;
 
 /**
  * Package-private thread that loads the content from a list of URLs and searches their content for the given search
@@ -16,24 +16,27 @@ import java.util.Queue;
 class UrlSearchServiceWorker extends Thread {
     private static final Logger LOG = LoggerFactory.getLogger(UrlSearchServiceWorker.class);
 
-    private final Queue<String> urlQueue;
-    private final List<String> results;
-    private final String searchTerm;
+    private final HostShardedUrlQueue urlQueue;
+    private final ConcurrencyLimiter limiter;
+    private final Consumer<SearchResult> results;
+    private final ContentMatcher matcher;
 
     /**
      * Constructor.
      *
-     * @param urlQueue Queue containing of URLs to search (assumes the Queue object is thread-safe)
+     * @param urlQueue Queue containing of URLs to search (shared by all workers)
+     * @param limiter how many workers can search at once (shared by all workers)
      * @param name Name of the thread (for debugging purposes mostly)
-     * @param results Results list. If a URL's contents match the regex, they will be added to this list. (assumes the
-     *                List object is thread-safe)
-     * @param searchTerm regex search
+     * @param results Gets the result of each URL searched (shared by all workers, so it must be thread-safe)
+     * @param matcher the compiled search term (shared by all workers)
      */
-    UrlSearchServiceWorker(Queue<String> urlQueue, String name, List<String> results, String searchTerm) {
+    UrlSearchServiceWorker(HostShardedUrlQueue urlQueue, ConcurrencyLimiter limiter, String name,
+                           Consumer<SearchResult> results, ContentMatcher matcher) {
         super(name);
         this.urlQueue = urlQueue;
+        this.limiter = limiter;
         this.results = results;
-        this.searchTerm = searchTerm;
+        this.matcher = matcher;
     }
 
     /**
@@ -43,43 +46,50 @@ class UrlSearchServiceWorker extends Thread {
     @Override
     public void run() {
         LOG.debug("BEGIN Thread: {}", getName());
-        while(!urlQueue.isEmpty()) {
-            String url = urlQueue.poll();
+        while (true) {
+            String url;
+            long start = System.nanoTime();
+            try {
+                url = urlQueue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
             if (url == null) {
+                break;
+            }
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                urlQueue.done(url);
+                Thread.currentThread().interrupt();
                 return;
             }
-            String urlContents = getUrlContents(url);
-            if (urlContents != null) {
-                LOG.debug("content length for url: {} is {}", url, urlContents.length());
-                if (UrlSearchService.contentsMatchRegex(urlContents, searchTerm)) {
-                    LOG.debug("URL {} DID contain search term {}", url, searchTerm);
-                    results.add(url);
-                }
-                else {
-                    LOG.debug("URL {} did NOT contain search term {}", url, searchTerm);
-                }
+            // time spent idle: no URL ready, all their hosts are busy, or the concurrency limit is reached
+            SearchMetrics.getInstance().record(SearchMetrics.Phase.QUEUE, System.nanoTime() - start);
+            SearchResult result = null;
+            boolean report;
+            try {
+                result = UrlReader.searchUrl(url, 10, matcher);
+            } finally {
+                // not reported if it's to be retried, or if another request for it was reported first
+                report = urlQueue.done(url, result);
+                limiter.release(result);
+            }
+            if (!report) {
+                continue;
+            }
+            if (result.getError() != null) {
+                LOG.debug("url: {} couldn't be searched: {}", url, result.getError());
+            }
+            else if (result.isMatched()) {
+                LOG.debug("URL {} DID contain search term {}", url, matcher);
             }
             else {
-                LOG.debug("url: {} timed out or contained no content", url);
+                LOG.debug("URL {} did NOT contain search term {}", url, matcher);
             }
+            results.accept(result);
         }
         LOG.debug("Closing");
     }
-
-    /**
-     * Get the contents of a URL.
-     *
-     * @param url
-     * @return the contents of the URL as a String or null if there was an IOException.
-     */
-    private String getUrlContents(String url) {
-        try {
-            return UrlReader.getUrlContentsWithTimeout(url, 10);
-        } catch (SocketTimeoutException e) {
-            return null;
-        } catch (IOException e) {
-            LOG.error("Error reading url: {}, message: {}", url, e);
-            return null;
-        }
-    }
 }
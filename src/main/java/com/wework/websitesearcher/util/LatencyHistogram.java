@@ -0,0 +1,119 @@
+package com.wework.websitesearcher.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations that many threads can record into at once without locking. Durations are counted in
+ * log-linear buckets of microseconds: {@link #SUB_BUCKETS} buckets per power of two, so a percentile is off by at most
+ * 1/{@link #SUB_BUCKETS} (about 6%) whatever the duration, from 1us to days. Recording is one atomic increment per
+ * bucket plus the count, sum and max, with no allocation.
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    /** Durations of 2^41us (about 25 days) or more all go in the last bucket */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a duration. Thread-safe.
+     *
+     * @param nanos duration in nanoseconds (negative durations count as 0)
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        buckets.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMicros(value)));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return number of durations recorded
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return longest duration recorded (in nanoseconds), or 0 if none were
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return average duration (in nanoseconds), or 0 if none were recorded
+     */
+    public long getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * Returns the duration under which the given percentage of the recorded durations fall. Can be called while
+     * durations are being recorded, the result is then approximate.
+     *
+     * @param percentile between 0 and 100
+     * @return the duration (in nanoseconds), or 0 if none were recorded
+     * @throws IllegalArgumentException if the percentile is out of range
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100. Percentile arg: " + percentile);
+        }
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // middle of the bucket, but never more than the longest duration actually seen
+                long low = lowerBound(i);
+                long middle = low + (lowerBound(i + 1) - low) / 2;
+                return Math.min(TimeUnit.MICROSECONDS.toNanos(middle), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param bucket
+     * @return the smallest duration (in microseconds) counted in a bucket
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,301 @@
+package com.wework.websitesearcher.util;
+
+import com.wework.websitesearcher.io.SearchResult;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time of a search goes: a {@link LatencyHistogram} per phase of fetching and searching a URL, the number of
+ * URLs done per second, and the slowest hosts. Recorded by the readers and services as they go, so a slow run can be
+ * told apart as network (DNS, connect, first byte, download), CPU (decode, match) or threads starved of URLs (queue
+ * wait). Recording never locks, except for the few URLs that are among the slowest seen so far.
+ *
+ * A phase is recorded once per URL (or per host for DNS), with the total time spent in it for that URL. A URL tried
+ * more than once (retried, or hedged with a second request) counts once per try.
+ */
+public class SearchMetrics {
+    /** Number of hosts listed in the report */
+    static final int SLOWEST_HOSTS = 10;
+    /** URLs done after this many seconds are counted in the last second */
+    static final int MAX_SECONDS = 24 * 3600;
+    /** Max number of lines of throughput in the report */
+    private static final int THROUGHPUT_LINES = 20;
+
+    public enum Phase {
+        /** A fetch thread waited for its next URL (none ready, or their hosts are all busy) */
+        QUEUE("queue wait"),
+        /** Host name lookup (not counting cache hits) */
+        DNS("dns"),
+        /** TCP connect. With the blocking readers this also includes the TLS handshake */
+        CONNECT("connect"),
+        /** TLS handshake (non-blocking client only) */
+        TLS("tls"),
+        /** Request sent until the first byte of the response */
+        FIRST_BYTE("first byte"),
+        /** Waiting for and reading the bytes of the body */
+        DOWNLOAD("download"),
+        /** Decoding the body to chars */
+        DECODE("decode"),
+        /** Running the matcher */
+        MATCH("match"),
+        /** The whole search of a URL, including redirects */
+        TOTAL("total");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private static SearchMetrics instance = new SearchMetrics();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Phase.values().length];
+    private final long startNanos = System.nanoTime();
+    private final AtomicLongArray donePerSecond = new AtomicLongArray(MAX_SECONDS);
+    private final LongAdder done = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder hedged = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    /** Slowest hosts: host -> its slowest URL */
+    private final Map<String, Slow> slowest = new HashMap<>();
+    /** A URL faster than this can't be among the slowest */
+    private volatile long slowThreshold;
+
+    SearchMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return the metrics of the current search
+     */
+    public static synchronized SearchMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Start new metrics (and restart the throughput clock). Call before a search starts: whatever is still recorded
+     * into the previous metrics is lost.
+     *
+     * @return the new metrics
+     */
+    public static synchronized SearchMetrics reset() {
+        instance = new SearchMetrics();
+        return instance;
+    }
+
+    /**
+     * Record the time a URL (or host, for DNS) spent in a phase. Thread-safe.
+     *
+     * @param phase
+     * @param nanos
+     */
+    public void record(Phase phase, long nanos) {
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * A URL has been searched (or failed): record its total time, when it was done and whether its host is among the
+     * slowest. Thread-safe.
+     *
+     * @param result
+     */
+    public void urlDone(SearchResult result) {
+        long total = result.getTotalNanos();
+        if (total >= 0) {
+            record(Phase.TOTAL, total);
+        }
+        done.increment();
+        if (result.getError() != null) {
+            failed.increment();
+        }
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+        donePerSecond.incrementAndGet((int) Math.min(second, MAX_SECONDS - 1));
+        if (total > slowThreshold) {
+            slow(host(result.getUrl()), result.getUrl(), total);
+        }
+    }
+
+    /**
+     * A URL that failed for a transient reason will be tried again. Thread-safe.
+     */
+    public void urlRetried() {
+        retried.increment();
+    }
+
+    /**
+     * A URL taking long gets a second request. Thread-safe.
+     */
+    public void urlHedged() {
+        hedged.increment();
+    }
+
+    /**
+     * URLs were left unsearched at the job deadline. Thread-safe.
+     *
+     * @param count
+     */
+    public void urlsExpired(int count) {
+        expired.add(count);
+    }
+
+    private synchronized void slow(String host, String url, long nanos) {
+        Slow previous = slowest.get(host);
+        if (previous != null) {
+            if (previous.nanos < nanos) {
+                slowest.put(host, new Slow(url, nanos));
+            }
+            return;
+        }
+        if (slowest.size() >= SLOWEST_HOSTS) {
+            String fastest = null;
+            for (Map.Entry<String, Slow> entry : slowest.entrySet()) {
+                if (fastest == null || entry.getValue().nanos < slowest.get(fastest).nanos) {
+                    fastest = entry.getKey();
+                }
+            }
+            if (slowest.get(fastest).nanos >= nanos) {
+                return;
+            }
+            slowest.remove(fastest);
+        }
+        slowest.put(host, new Slow(url, nanos));
+        if (slowest.size() >= SLOWEST_HOSTS) {
+            slowThreshold = slowest.values().stream().mapToLong(slow -> slow.nanos).min().orElse(0);
+        }
+    }
+
+    static String host(String url) {
+        if (url == null) {
+            return "";
+        }
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        while (end < url.length() && "/:?#".indexOf(url.charAt(end)) < 0) {
+            end++;
+        }
+        return url.substring(start, end);
+    }
+
+    /**
+     * @param phase
+     * @return the durations recorded for a phase
+     */
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    /**
+     * @return number of URLs done (searched or failed)
+     */
+    public long getUrlsDone() {
+        return done.sum();
+    }
+
+    /**
+     * @return number of retries of URLs that failed for a transient reason
+     */
+    public long getUrlsRetried() {
+        return retried.sum();
+    }
+
+    /**
+     * @return number of URLs that got a second request for taking long
+     */
+    public long getUrlsHedged() {
+        return hedged.sum();
+    }
+
+    /**
+     * @return number of URLs left unsearched at the job deadline
+     */
+    public long getUrlsExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * @return the slowest hosts (by their slowest URL), slowest first
+     */
+    public synchronized List<String> getSlowestHosts() {
+        List<String> hosts = new ArrayList<>(slowest.keySet());
+        hosts.sort((a, b) -> Long.compare(slowest.get(b).nanos, slowest.get(a).nanos));
+        return hosts;
+    }
+
+    /**
+     * @return a multi-line report: percentiles of each phase, URLs done over time and the slowest hosts
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-12s %9s %10s %10s %10s %10s%n", "phase", "count", "p50", "p90", "p99", "max"));
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = getHistogram(phase);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            report.append(String.format("%-12s %9d %10s %10s %10s %10s%n", phase, histogram.getCount(),
+                    Stopwatch.toHuman(histogram.getPercentile(50)), Stopwatch.toHuman(histogram.getPercentile(90)),
+                    Stopwatch.toHuman(histogram.getPercentile(99)), Stopwatch.toHuman(histogram.getMax())));
+        }
+
+        if (retried.sum() > 0 || hedged.sum() > 0) {
+            report.append(String.format("Retries: %d, hedged requests: %d (counted in the urls below)%n",
+                    retried.sum(), hedged.sum()));
+        }
+        if (expired.sum() > 0) {
+            report.append(String.format("Not searched before the job deadline: %d urls%n", expired.sum()));
+        }
+        report.append(String.format("Throughput (%d urls, %d failed):%n", done.sum(), failed.sum()));
+        int seconds = 0;
+        for (int i = MAX_SECONDS - 1; i >= 0; i--) {
+            if (donePerSecond.get(i) > 0) {
+                seconds = i + 1;
+                break;
+            }
+        }
+        int step = Math.max(1, (seconds + THROUGHPUT_LINES - 1) / THROUGHPUT_LINES);
+        for (int from = 0; from < seconds; from += step) {
+            int to = Math.min(from + step, seconds);
+            long count = 0;
+            for (int i = from; i < to; i++) {
+                count += donePerSecond.get(i);
+            }
+            report.append(String.format("  %6ds-%-6s %9d urls %10.1f/s%n", from, to + "s", count,
+                    (double) count / (to - from)));
+        }
+
+        report.append("Slowest hosts:").append(System.lineSeparator());
+        synchronized (this) {
+            for (String host : getSlowestHosts()) {
+                Slow slow = slowest.get(host);
+                report.append(String.format("  %10s  %s (%s)%n", Stopwatch.toHuman(slow.nanos), host, slow.url));
+            }
+        }
+        return report.toString();
+    }
+
+    private static class Slow {
+        private final String url;
+        private final long nanos;
+
+        Slow(String url, long nanos) {
+            this.url = url;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.wework.websitesearcher.services;
+
+import com.wework.websitesearcher.io.DnsResolver;
+import com.wework.websitesearcher.io.SearchResult;
+import com.wework.websitesearcher.io.UrlReader;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Implementation of {@link UrlSearchService} that runs one virtual thread per URL (JDK 21+, only built by the
+ * <code>jdk21</code> Maven profile). The blocking {@link UrlReader} code is used as-is: a virtual thread blocked on a
+ * socket doesn't hold on to a platform thread, so the number of requests in flight is only limited by a
+ * {@link ConcurrencyLimiter} (fixed, or adapting between <code>minInFlight</code> and <code>maxInFlight</code>, up to
+ * {@link #MAX_IN_FLIGHT}) and by the per-host limit of the {@link HostShardedUrlQueue}.
+ *
+ * Created by {@link UrlSearchServiceFactory} through reflection, so the rest of the code still builds on Java 8.
+ */
+class VirtualThreadUrlSearchService implements UrlSearchService {
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadUrlSearchService.class);
+
+    static final int MAX_IN_FLIGHT = 5000;
+    private static final int TIMEOUT_SECS = 10;
+
+    private final int minInFlight;
+    private final int maxInFlight;
+    private final int maxPerHost;
+
+    /**
+     * @param maxInFlight max number of requests in flight at once. Must be (1 <= maxInFlight <= 5000)
+     * @param maxPerHost max number of requests in flight to the same host
+     * @throws IllegalArgumentException if maxInFlight or maxPerHost are out of range
+     */
+    VirtualThreadUrlSearchService(int maxInFlight, int maxPerHost) {
+        this(maxInFlight, maxInFlight, maxPerHost);
+    }
+
+    /**
+     * @param minInFlight number of requests in flight at the start, and at least. Must be
+     *                    (1 <= minInFlight <= maxInFlight)
+     * @param maxInFlight max number of requests in flight at once. Must be (1 <= maxInFlight <= 5000)
+     * @param maxPerHost max number of requests in flight to the same host
+     * @throws IllegalArgumentException if any of the args is out of range
+     */
+    VirtualThreadUrlSearchService(int minInFlight, int maxInFlight, int maxPerHost) {
+        if (maxInFlight < 1 || maxInFlight > MAX_IN_FLIGHT) {
+            throw new IllegalArgumentException("Max in flight should be between 1-" + MAX_IN_FLIGHT +
+                    " (inclusive). Max in flight arg: " + maxInFlight);
+        }
+        if (minInFlight < 1 || minInFlight > maxInFlight) {
+            throw new IllegalArgumentException("Min in flight should be between 1-" + maxInFlight +
+                    " (inclusive). Min in flight arg: " + minInFlight);
+        }
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("Max per host must be positive. Max per host arg: " + maxPerHost);
+        }
+        this.minInFlight = minInFlight;
+        this.maxInFlight = maxInFlight;
+        this.maxPerHost = maxPerHost;
+    }
+
+    @Override
+    public void searchUrls(Iterator<String> urls, ContentMatcher matcher, Consumer<SearchResult> results,
+                           Consumer<String> skipped) {
+        if (urls == null) {
+            throw new IllegalArgumentException("URLs can not be null.");
+        }
+
+        ConcurrencyLimiter inFlight = new ConcurrencyLimiter(minInFlight, maxInFlight);
+
+        LOG.debug("STARTING virtual threads, max [{}] requests in flight, [{}] per host", maxInFlight, maxPerHost);
+        HostShardedUrlQueue queue = HostShardedUrlQueue.feed(urls, maxPerHost, DnsResolver.getInstance(),
+                UrlReader.getFetchLimits(), skipped);
+        // close() waits for all the threads to finish
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            String url;
+            while ((url = queue.take()) != null) {
+                inFlight.acquire();
+                String taken = url;
+                executor.execute(() -> {
+                    SearchResult result = null;
+                    boolean report;
+                    try {
+                        result = UrlReader.searchUrl(taken, TIMEOUT_SECS, matcher);
+                    } finally {
+                        // not reported if it's to be retried, or if another request for it was reported first
+                        report = queue.done(taken, result);
+                        inFlight.release(result);
+                    }
+                    if (report) {
+                        if (result.isMatched()) {
+                            LOG.debug("URL {} DID contain search term {}", taken, matcher);
+                        }
+                        results.accept(result);
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for the requests to complete");
+        }
+        if (inFlight.isAdaptive()) {
+            LOG.info("Concurrency limit at the end: {}", inFlight.getLimit());
+        }
+        queue.logSummary();
+    }
+}
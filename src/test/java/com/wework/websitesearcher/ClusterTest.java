@@ -0,0 +1,135 @@
+package com.wework.websitesearcher;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wework.websitesearcher.cluster.Coordinator;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A {@link Coordinator} sharing a {@link SyntheticWeb} between worker JVMs, and a worker that dies halfway.
+ */
+public class ClusterTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static SyntheticWeb web;
+
+    @BeforeClass
+    public static void startWeb() throws IOException {
+        web = new SyntheticWeb(300, 7);
+        web.setPageSize(8 * 1024, 0.5);
+        web.setLatency(0, 20);
+        web.setMatchRate(0.2);
+        web.setRedirects(0.1, 3);
+        web.setErrorRate(0.1);
+        web.start();
+    }
+
+    @AfterClass
+    public static void stopWeb() {
+        web.close();
+    }
+
+    @Test
+    public void testWorkersShareTheList() throws Exception {
+        Map<String, Integer> reported = new ConcurrentHashMap<>();
+        ConcurrentLinkedQueue<String> matched = new ConcurrentLinkedQueue<>();
+        List<Process> workers = new ArrayList<>();
+        List<File> logs = new ArrayList<>();
+        try (Coordinator coordinator = new Coordinator(0, "(?s).*" + SyntheticWeb.TERM + ".*")) {
+            Thread running = new Thread(() -> coordinator.run(web.getUrls().iterator(), result -> {
+                reported.merge(result.getUrl(), 1, Integer::sum);
+                if (result.isMatched()) {
+                    matched.add(result.getUrl());
+                }
+            }));
+            running.start();
+
+            try (Socket socket = new Socket("localhost", coordinator.getPort())) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.UTF_8));
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                // a worker that takes most of the list...
+                writer.write("HELLO {\"name\":\"greedy\",\"concurrency\":1}\nMORE 250\n");
+                writer.flush();
+                assertTrue(reader.readLine().startsWith("JOB "));
+                List<String> leased = new ArrayList<>();
+                while (leased.size() < 250) {
+                    String line = reader.readLine();
+                    assertTrue(line, line.startsWith("LEASE "));
+                    MAPPER.readTree(line.substring(6)).forEach(url -> leased.add(url.asText()));
+                }
+
+                // ...while two real workers search the rest, and then steal half of it...
+                for (int i = 0; i < 2; i++) {
+                    File log = File.createTempFile("worker", ".log");
+                    logs.add(log);
+                    workers.add(new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                            "-cp", System.getProperty("java.class.path"), WebsiteSearcher.class.getName(),
+                            "--worker", "localhost:" + coordinator.getPort(), "-m", "threads", "4")
+                            .redirectErrorStream(true).redirectOutput(log).start());
+                }
+                String line = reader.readLine();
+                assertTrue(line, line.startsWith("REVOKE "));
+                int count = Integer.parseInt(line.substring(7));
+                assertEquals(125, count);
+                List<String> given = new ArrayList<>(leased.subList(leased.size() - count, leased.size()));
+                writer.write("REVOKED " + MAPPER.writeValueAsString(given) + "\n");
+                writer.flush();
+                // ...and dies with the other half
+            }
+
+            running.join(TimeUnit.SECONDS.toMillis(60));
+            assertFalse("coordinator still running", running.isAlive());
+            assertEquals(125, coordinator.getStolen());
+            assertEquals(125, coordinator.getReassigned());
+            assertEquals(0, coordinator.getSkipped());
+            assertEquals(web.getUrls().size(), coordinator.getReported());
+            for (Process worker : workers) {
+                assertTrue(worker.waitFor(10, TimeUnit.SECONDS));
+                assertEquals(0, worker.exitValue());
+            }
+            for (File log : logs) {
+                String output = new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8);
+                assertTrue(output, output.contains("Worker done: searched "));
+            }
+        } finally {
+            for (Process worker : workers) {
+                worker.destroy();
+            }
+            for (File log : logs) {
+                log.delete();
+            }
+        }
+
+        // every URL once, whichever worker searched it
+        assertEquals(web.getUrls().size(), reported.size());
+        assertTrue(reported.toString(), reported.values().stream().allMatch(count -> count == 1));
+        List<String> expected = new ArrayList<>(web.getExpectedMatches());
+        List<String> results = new ArrayList<>(matched);
+        Collections.sort(expected);
+        Collections.sort(results);
+        assertEquals(expected, results);
+    }
+}
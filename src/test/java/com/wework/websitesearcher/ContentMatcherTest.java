@@ -0,0 +1,274 @@
+package com.wework.websitesearcher;
+
+import com.wework.websitesearcher.matcher.ByteMatchSession;
+import com.wework.websitesearcher.matcher.Charsets;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.matcher.ContentMatcherFactory;
+import com.wework.websitesearcher.matcher.MatchSession;
+import com.wework.websitesearcher.matcher.MultiTermMatcher;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ContentMatcherTest {
+
+    @Test
+    public void testSameResultAsStringMatches() throws IOException {
+        String content = "Hello World Foo\nFoo Bar.";
+        String[] regexes = {"foo", ".*Foo.*", "(?s).*Foo.*", "(?s).*Bar.*", "(?s).*(facebook|twitter).*",
+                ".*(facebook|twitter).*", "(?s).*Foo|Bar.*", "(?s).*^Hello.*", "(?s)Hello.*"};
+        for (String regex : regexes) {
+            ContentMatcher matcher = ContentMatcherFactory.getInstance(regex);
+            assertEquals(regex, content.matches(regex), matcher.matches(new StringReader(content)));
+            assertEquals(regex, content.matches(regex), matcher.matches(content));
+        }
+    }
+
+    @Test
+    public void testMatchAcrossChunkBoundary() throws IOException {
+        ContentMatcher matcher = ContentMatcherFactory.getInstance("(?s).*(facebook|twitter).*");
+        // put the keyword right across the boundary of the first chunk
+        String content = StringUtils.repeat('x', ContentMatcher.CHUNK_SIZE - 4) + "twitter" + StringUtils.repeat('y', 100);
+        assertTrue(matcher.matches(new StringReader(content)));
+        assertFalse(matcher.matches(new StringReader(StringUtils.repeat('x', 3 * ContentMatcher.CHUNK_SIZE))));
+    }
+
+    @Test
+    public void testTermsFurtherApartThanTheChunkOverlap() throws IOException {
+        // far more than the chars carried over from one chunk to the next
+        String gap = StringUtils.repeat("lorem ipsum ", 50_000 / 12);
+        String content = "facebook " + gap + " twitter";
+        String[] regexes = {"(?s).*facebook.*twitter.*", "(?s).*facebook.+twitter.*", "(?s).*facebook[^<]*twitter.*",
+                "(?s).*facebook[\\s\\S]{10,}twitter.*", "(?s).*facebook.{1,10}twitter.*", "(?s).*twit+er.*"};
+        for (String regex : regexes) {
+            ContentMatcher matcher = ContentMatcherFactory.getInstance(regex);
+            assertEquals(regex, content.matches(regex), matcher.matches(new StringReader(content)));
+            assertEquals(regex, content.matches(regex), matcher.matches(content));
+        }
+        // a bounded match is still streamed, an unbounded one is buffered
+        assertTrue(ContentMatcherFactory.getInstance("(?s).*facebook.{1,10}twitter.*").toString()
+                .contains("streaming=true"));
+        assertTrue(ContentMatcherFactory.getInstance("(?s).*tw(?:i|ee)[a-z]{2}er\\b.*").toString()
+                .contains("streaming=true"));
+        assertTrue(ContentMatcherFactory.getInstance("(?s).*facebook.*twitter.*").toString()
+                .contains("streaming=false"));
+        assertTrue(ContentMatcherFactory.getInstance("(?s).*facebook.{1,5000}twitter.*").toString()
+                .contains("streaming=false"));
+    }
+
+    @Test
+    public void testWordBoundariesAcrossChunkBoundary() {
+        // chars carried over from one chunk to the next by a streaming regex
+        int overlap = 1024;
+        String regex = "(?s).*\\bcat\\b.*";
+        assertTrue(ContentMatcherFactory.getInstance(regex).toString().contains("streaming=true"));
+        String[][] chunkedPages = {
+                // "con" just before the carried over chars, "cat" at their start
+                {"con" + "cat" + StringUtils.repeat(' ', overlap - 3), "dog"},
+                // "cat" ending the chunk, before another word char or none
+                {"a cat", "s"},
+                {"a cat", " and a dog"},
+                {"a cat"},
+                {"a con", "cat"},
+                {"a ", "cat"},
+                {"a cat", "", "s"},
+        };
+        for (String[] chunks : chunkedPages) {
+            String page = String.join("", chunks);
+            MatchSession session = ContentMatcherFactory.getInstance(regex).newSession();
+            boolean matched = false;
+            for (int i = 0; i < chunks.length && !matched; i++) {
+                matched = session.feed(chunks[i].toCharArray(), 0, chunks[i].length());
+            }
+            assertEquals(Arrays.toString(chunks), page.matches(regex), matched || session.finish());
+        }
+    }
+
+    @Test
+    public void testEmptyContentDoesNotMatch() throws IOException {
+        ContentMatcher matcher = ContentMatcherFactory.getInstance("(?s).*");
+        assertFalse(matcher.matches(new StringReader("")));
+        assertFalse(matcher.matches(""));
+    }
+
+    @Test
+    public void testKeywordSearchTermsUseKeywordMatcher() {
+        assertTrue(ContentMatcherFactory.getInstance("(?s).*(facebook|twitter).*").toString().startsWith("Keyword"));
+        assertTrue(ContentMatcherFactory.getInstance("(?is).*(?:facebook|t\\.co).*").toString().startsWith("Keyword"));
+        assertTrue(ContentMatcherFactory.getInstance("(?s).*facebook.*").toString().startsWith("Keyword"));
+        assertFalse(ContentMatcherFactory.getInstance("(?s).*(facebook|twit+er).*").toString().startsWith("Keyword"));
+        assertFalse(ContentMatcherFactory.getInstance("(?s).*(facebook|twitter)\\b.*").toString().startsWith("Keyword"));
+    }
+
+    @Test
+    public void testKeywordMatcherSameResultAsRegex() throws IOException {
+        List<String> keywords = Arrays.asList("he", "she", "his", "hers", "a.b", "caf\u00e9", "x|y");
+        String searchTerm = ContentMatcherFactory.toKeywordSearchTerm(keywords);
+        ContentMatcher matcher = ContentMatcherFactory.getInstance(searchTerm);
+        ContentMatcher ignoreCase = ContentMatcherFactory.getInstance("(?i)" + searchTerm);
+        String[] contents = {"ushers", "SHE", "ahishe", "acb", "a.b", "the caf\u00e9", "cafe", "x", "x|y", "hx|ys"};
+        for (String content : contents) {
+            assertEquals(content, content.matches(searchTerm), matcher.matches(new StringReader(content)));
+            assertEquals(content, content.matches("(?i)" + searchTerm), ignoreCase.matches(new StringReader(content)));
+        }
+    }
+
+    @Test
+    public void testPrefilterRejectsPagesWithoutRequiredLiterals() throws IOException {
+        String regex = "(?s).*https?://(www\\.)?(facebook|twitter)\\.com/[a-z]+.*";
+        ContentMatcher matcher = ContentMatcherFactory.getInstance(regex);
+        String[] contents = {"<a href=\"https://www.twitter.com/wework\">", "<a href=\"http://facebook.com/\">",
+                "no social links here", "twitter.com/wework without a scheme", ""};
+        for (String content : contents) {
+            assertEquals(content, content.matches(regex), matcher.matches(new StringReader(content)));
+        }
+        assertEquals(5, matcher.getStats().getDocuments());
+        assertEquals(1, matcher.getStats().getMatched());
+        // "no social links here" and "" never contain facebook or twitter
+        assertEquals(2, matcher.getStats().getPrefilterRejected());
+
+        // a whole-document regex is buffered but still prefiltered
+        ContentMatcher buffered = ContentMatcherFactory.getInstance("(?i)<html>.*facebook.*</html>");
+        assertTrue(buffered.matches(new StringReader("<HTML>FaceBook</HTML>")));
+        assertFalse(buffered.matches(new StringReader("<html>twitter</html>")));
+        assertEquals(1, buffered.getStats().getPrefilterRejected());
+    }
+
+    @Test
+    public void testPrefilterReadsWholeEscapes() throws IOException {
+        // the operand of each escape is part of the escape, never literal text the page must contain
+        String[][] regexesAndPages = {
+                {"(?s).*\\x41BCDE.*", "xxABCDExx"},
+                {"(?s).*\\x{41}BCDE.*", "xxABCDExx"},
+                {"(?s).*\\x{1F600}BCDE.*", "xx\uD83D\uDE00BCDExx"},
+                {"(?s).*\\u0041BCDE.*", "xxABCDExx"},
+                {"(?s).*\\0101BCDE.*", "xxABCDExx"},
+                {"(?s).*\\07BCDE.*", "xx\u0007BCDExx"},
+                {"(?s).*\\cJBCDE.*", "xx\nBCDExx"},
+                {"(?s).*\\pLBCDE.*", "xxABCDExx"},
+                {"(?s).*\\p{Lu}BCDE.*", "xxABCDExx"},
+                {"(?s).*\\P{Lu}bcde.*", "xxabcdexx"},
+                {"(?s).*\\N{LATIN CAPITAL LETTER A}BCDE.*", "xxABCDExx"},
+                {"(?s).*(?<a>A)\\k<a>BCDE.*", "xxAABCDExx"},
+                {"(?is).*\\x41BCDE.*", "xxabcdexx"},
+        };
+        for (String[] regexAndPage : regexesAndPages) {
+            String regex = regexAndPage[0];
+            String page = regexAndPage[1];
+            assertTrue(regex, page.matches(regex));
+            ContentMatcher matcher = ContentMatcherFactory.getInstance(regex);
+            assertTrue(regex, matcher.matches(new StringReader(page)));
+            assertTrue(regex, matcher.matches(page));
+            assertEquals(regex, 0, matcher.getStats().getPrefilterRejected());
+        }
+
+        // the decoded chars are still required
+        ContentMatcher matcher = ContentMatcherFactory.getInstance("(?s).*\\x41BCDE.*");
+        assertFalse(matcher.matches(new StringReader("xxBCDExx")));
+        assertEquals(1, matcher.getStats().getPrefilterRejected());
+    }
+
+    @Test
+    public void testByteSessionsSameResultAsChars() {
+        String[] searchTerms = {"(?s).*(facebook|twitter).*", "(?is).*(facebook|twitter).*", "(?s).*caf\u00e9.*",
+                "(?s).*tw[a-z]{2}ter.*"};
+        // the keyword right across the boundary of the first chunk, or after multi-byte chars
+        String[] contents = {StringUtils.repeat('x', ContentMatcher.CHUNK_SIZE - 4) + "twitter",
+                StringUtils.repeat("\u00e9\u20ac", ContentMatcher.CHUNK_SIZE / 3) + "TWITTER caf\u00e9",
+                "tw\u00e9tter", "caf\u00e9", "cafe", "\u00e9"};
+        for (String searchTerm : searchTerms) {
+            ContentMatcher matcher = ContentMatcherFactory.getInstance(searchTerm);
+            for (String content : contents) {
+                for (Charset charset : Arrays.asList(StandardCharsets.UTF_8, StandardCharsets.UTF_16LE,
+                        Charset.forName("windows-1252"))) {
+                    byte[] bytes = content.getBytes(charset);
+                    ByteMatchSession session = matcher.newByteSession(charset);
+                    boolean matched = false;
+                    for (int i = 0; i < bytes.length && !matched; i += ContentMatcher.CHUNK_SIZE) {
+                        matched = session.feed(bytes, i, Math.min(ContentMatcher.CHUNK_SIZE, bytes.length - i));
+                    }
+                    String message = searchTerm + " " + charset + " " + StringUtils.abbreviate(content, 20);
+                    assertEquals(message, matcher.matches(new String(bytes, charset)), matched || session.finish());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCharsetDetection() {
+        byte[] html = "<html><head><META http-equiv=\"Content-Type\" content=\"text/html; charset=KOI8-R\">"
+                .getBytes(StandardCharsets.US_ASCII);
+        assertEquals(Charset.forName("KOI8-R"), Charsets.detect(null, html, 0, html.length));
+        // the header wins over the meta tag
+        assertEquals(Charset.forName("EUC-JP"), Charsets.detect("text/html; charset=\"euc-jp\"", html, 0, html.length));
+        assertEquals(StandardCharsets.UTF_8, Charsets.detect("text/html; charset=nonsense", new byte[0], 0, 0));
+        // a BOM wins over everything
+        byte[] bom = {(byte) 0xfe, (byte) 0xff, 0, 'a'};
+        assertEquals(StandardCharsets.UTF_16BE, Charsets.detect("text/html; charset=KOI8-R", bom, 0, bom.length));
+        byte[] meta = "<meta charset='iso-8859-1'/><p>".getBytes(StandardCharsets.US_ASCII);
+        // labelled Latin-1, decoded as windows-1252 like browsers do
+        assertEquals(Charset.forName("windows-1252"), Charsets.detect(null, meta, 0, meta.length));
+
+        assertTrue(Charsets.isAsciiCompatible(StandardCharsets.UTF_8));
+        assertTrue(Charsets.isAsciiCompatible(Charset.forName("windows-1252")));
+        assertFalse(Charsets.isAsciiCompatible(StandardCharsets.UTF_16LE));
+        assertFalse(Charsets.isAsciiCompatible(Charset.forName("Shift_JIS")));
+    }
+
+    @Test
+    public void testMultiTermMatcherSameResultAsEachTerm() throws IOException {
+        Map<String, String> terms = new LinkedHashMap<>();
+        terms.put("social", "(?s).*(facebook|twitter).*");
+        terms.put("bird", "(?s).*twitter.*");
+        terms.put("shout", "(?is).*(HELLO|world).*");
+        terms.put("regex", "(?s).*tw[a-z]{2}ter.*");
+        terms.put("whole", "(?s)Hello.*");
+        MultiTermMatcher matcher = ContentMatcherFactory.getInstance(terms);
+        assertEquals(new ArrayList<>(terms.keySet()), matcher.getNames());
+        String[] contents = {"Hello twitter", "hello facebook", StringUtils.repeat('x', ContentMatcher.CHUNK_SIZE - 4) +
+                "twitter WORLD", "nothing", "", "Hello World facebook twitter"};
+        for (String content : contents) {
+            List<String> expected = new ArrayList<>();
+            terms.forEach((name, term) -> {
+                if (ContentMatcherFactory.getInstance(term).matches(content)) {
+                    expected.add(name);
+                }
+            });
+            MatchSession session = matcher.newSession();
+            char[] chars = content.toCharArray();
+            boolean stopped = false;
+            for (int i = 0; i < chars.length && !stopped; i += ContentMatcher.CHUNK_SIZE) {
+                stopped = session.feed(chars, i, Math.min(ContentMatcher.CHUNK_SIZE, chars.length - i));
+            }
+            // only stops early once every term has matched (never here: "whole" is only matched at the end)
+            assertFalse(content, stopped);
+            assertEquals(content, !expected.isEmpty(), stopped || session.finish());
+            assertEquals(content, expected, session.getMatchedTerms());
+        }
+        assertEquals(Long.valueOf(2), matcher.getMatchCounts().get("whole"));
+        assertEquals(contents.length, matcher.getStats().getDocuments());
+        // the same through the bytes
+        assertEquals(Arrays.asList("social", "bird", "regex"), matchedTerms(matcher.newByteSession(StandardCharsets.UTF_8),
+                "a twitter".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<String> matchedTerms(ByteMatchSession session, byte[] bytes) {
+        if (!session.feed(bytes, 0, bytes.length)) {
+            session.finish();
+        }
+        return session.getMatchedTerms();
+    }
+}
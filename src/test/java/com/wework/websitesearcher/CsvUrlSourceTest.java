@@ -0,0 +1,62 @@
+package com.wework.websitesearcher;
+
+import com.wework.websitesearcher.io.CsvUrlSource;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CsvUrlSourceTest {
+
+    private static final String CSV = "\"Rank\",\"URL\",\"Linking Root Domains\"\r\n" +
+            "1,\"facebook.com/\",9616487\r\n" +
+            "2,\"twitter.com/\",6454936\r\n" +
+            "\r\n" +
+            "3,\"example.com/?a=1,2\",\"multi\nline \"\"quoted\"\"\"\r\n" +
+            "4,,0\r\n" +
+            "5,https://google.com/,\"x\"\r\n";
+
+    @Test
+    public void testParsesUrlColumn() {
+        assertEquals(Arrays.asList("http://facebook.com/", "http://twitter.com/", "http://example.com/?a=1,2",
+                "https://google.com/"), read(new CsvUrlSource(new StringReader(CSV), 100)));
+    }
+
+    @Test
+    public void testStopsAtMax() {
+        CsvUrlSource source = new CsvUrlSource(new StringReader(CSV), 2);
+        assertEquals(Arrays.asList("http://facebook.com/", "http://twitter.com/"), read(source));
+        assertEquals(2, source.getCount());
+    }
+
+    @Test
+    public void testUrlColumnFromHeader() {
+        String csv = "\uFEFFurl,rank\nfacebook.com,1\ntwitter.com,2";
+        assertEquals(Arrays.asList("http://facebook.com", "http://twitter.com"),
+                read(new CsvUrlSource(new StringReader(csv), 100)));
+    }
+
+    @Test
+    public void testLocalFile() throws IOException {
+        File file = File.createTempFile("urls", ".csv");
+        file.deleteOnExit();
+        Files.write(file.toPath(), CSV.getBytes(StandardCharsets.UTF_8));
+        try (CsvUrlSource source = CsvUrlSource.open(file.getPath(), 1)) {
+            assertEquals(Arrays.asList("http://facebook.com/"), read(source));
+        }
+    }
+
+    private static List<String> read(CsvUrlSource source) {
+        List<String> urls = new ArrayList<>();
+        source.forEachRemaining(urls::add);
+        return urls;
+    }
+}
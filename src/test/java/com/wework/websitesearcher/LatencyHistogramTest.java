@@ -0,0 +1,42 @@
+package com.wework.websitesearcher;
+
+import com.wework.websitesearcher.util.LatencyHistogram;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), histogram.getMax());
+        assertWithin(TimeUnit.MILLISECONDS.toNanos(500), histogram.getPercentile(50));
+        assertWithin(TimeUnit.MILLISECONDS.toNanos(990), histogram.getPercentile(99));
+        assertWithin(TimeUnit.MILLISECONDS.toNanos(1), histogram.getPercentile(0));
+    }
+
+    @Test
+    public void testSmallAndHugeDurations() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        histogram.record(-5);
+        histogram.record(3000);
+        histogram.record(TimeUnit.DAYS.toNanos(100));
+        assertEquals(TimeUnit.DAYS.toNanos(100), histogram.getMax());
+        assertTrue(histogram.getPercentile(50) <= 4000);
+        assertTrue(histogram.getPercentile(100) <= histogram.getMax());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 16);
+    }
+}
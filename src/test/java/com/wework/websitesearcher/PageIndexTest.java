@@ -0,0 +1,113 @@
+package com.wework.websitesearcher;
+
+import com.wework.websitesearcher.index.PageIndex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pages added to a {@link PageIndex}, queried, refetched and read back from disk.
+ */
+public class PageIndexTest {
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("page-index").toFile();
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testKeywordsAndPhrases() throws IOException {
+        try (PageIndex index = new PageIndex(dir)) {
+            add(index, "http://a/", "<a href=\"https://twitter.com/wework\">Follow us on Twitter</a> in New York");
+            add(index, "http://b/", "<p>new offices in York, then New\nYork</p> twitterbot caf\u00e9");
+            add(index, "http://c/", "nothing to see here");
+
+            assertEquals(Arrays.asList("http://a/"), index.search(Collections.singletonList("twitter")));
+            assertEquals(Arrays.asList("http://a/", "http://b/"), index.search(Collections.singletonList("NEW YORK")));
+            assertEquals(Arrays.asList("http://a/"), index.search(Arrays.asList("follow us on twitter")));
+            assertEquals(Arrays.asList("http://b/"), index.search(Collections.singletonList("caf\u00e9")));
+            assertEquals(Arrays.asList("http://b/", "http://c/"), index.search(Arrays.asList("here", "offices")));
+            assertEquals(Collections.emptyList(), index.search(Arrays.asList("twit", "york new", "!!")));
+        }
+    }
+
+    @Test
+    public void testSegmentsAndRefetchedPages() throws IOException {
+        // a segment every few pages, merged as they pile up
+        try (PageIndex index = new PageIndex(dir, 10)) {
+            for (int i = 0; i < 100; i++) {
+                add(index, "http://host/" + i, "page " + i + (i % 10 == 0 ? " twitter" : " facebook"));
+            }
+            // changed, unchanged, and one that isn't there anymore
+            add(index, "http://host/0", "page 0 facebook");
+            add(index, "http://host/1", "page 1 facebook");
+            InputStream failed = index.index("http://host/2", new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw new IOException("Connection reset");
+                }
+            });
+            try {
+                IOUtils.toByteArray(failed);
+            } catch (IOException e) {
+                failed.close();
+            }
+            assertEquals(9, index.search(Collections.singletonList("twitter")).size());
+            assertTrue(index.toString(), index.toString().contains("unchanged=1"));
+        }
+        String[] segments = dir.list();
+        assertTrue(Arrays.toString(segments), segments.length <= 9);
+
+        try (PageIndex index = new PageIndex(dir)) {
+            assertEquals(100, index.size());
+            List<String> twitter = index.search(Collections.singletonList("twitter"));
+            assertEquals(9, twitter.size());
+            assertFalse(twitter.contains("http://host/0"));
+            assertEquals(Arrays.asList("http://host/0"), index.search(Arrays.asList("page 0")));
+            assertEquals(Arrays.asList("http://host/2"), index.search(Arrays.asList("2")));
+            assertEquals(91, index.search(Collections.singletonList("facebook")).size());
+        }
+    }
+
+    @Test
+    public void testIndexedWhileRead() throws IOException {
+        try (PageIndex index = new PageIndex(dir)) {
+            byte[] page = ("lorem ipsum " + String.join(" ", Collections.nCopies(10000, "dolor")) + " twitter")
+                    .getBytes(StandardCharsets.UTF_8);
+            // closed after a few bytes, like after a match: the rest is still indexed
+            try (InputStream in = index.index("http://a/", new ByteArrayInputStream(page))) {
+                assertEquals('l', in.read());
+            }
+            assertTrue(index.contains("http://a/"));
+            assertEquals(Collections.singletonList("http://a/"), index.search(Arrays.asList("dolor twitter")));
+        }
+    }
+
+    private static void add(PageIndex index, String url, String text) throws IOException {
+        try (InputStream in = index.index(url, new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)))) {
+            IOUtils.toByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.wework.websitesearcher;
+
+import com.wework.websitesearcher.io.ProgressJournal;
+import com.wework.websitesearcher.io.SearchResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writing a {@link ProgressJournal}, and resuming from it after a crash.
+ */
+public class ProgressJournalTest {
+    private static final String JOB = "urls: urls.txt, search term: (?s).*twitter.*";
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("progress", ".journal");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        try (ProgressJournal journal = new ProgressJournal(file, JOB)) {
+            journal.accept(result("http://a.com/", 200, true));
+            journal.skipped("http://unknown.invalid/");
+            journal.accept(result("http://b.com/", 404, false));
+            journal.accept(result("http://a.com/", 200, true));
+        }
+
+        List<SearchResult> results = new ArrayList<>();
+        ProgressJournal.Progress progress = ProgressJournal.replay(file, JOB, results::add);
+        assertEquals(4, progress.getDone());
+        assertEquals(3, progress.getResults());
+        assertEquals(1, progress.getSkipped());
+        assertEquals(3, results.size());
+        assertEquals("http://b.com/", results.get(1).getUrl());
+        assertEquals(404, results.get(1).getStatus());
+        assertTrue(results.get(2).isMatched());
+        assertFalse(results.get(1).isMatched());
+
+        // a URL listed 3 times and done twice is searched once more
+        List<String> urls = Arrays.asList("http://a.com/", "http://c.com/", "http://a.com/", "http://b.com/",
+                "http://unknown.invalid/", "http://a.com/", "http://d.com/");
+        List<String> remaining = new ArrayList<>();
+        progress.remaining(urls.iterator()).forEachRemaining(remaining::add);
+        assertEquals(Arrays.asList("http://c.com/", "http://a.com/", "http://d.com/"), remaining);
+    }
+
+    @Test
+    public void testResumeAfterTornLine() throws IOException {
+        try (ProgressJournal journal = new ProgressJournal(file, JOB)) {
+            journal.accept(result("http://a.com/", 200, true));
+            journal.accept(result("http://b.com/", 200, false));
+        }
+        // a crash in the middle of the last line
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+
+        ProgressJournal.Progress progress = ProgressJournal.replay(file, JOB, result -> { });
+        assertEquals(1, progress.getDone());
+        try (ProgressJournal journal = new ProgressJournal(file, progress)) {
+            journal.accept(result("http://b.com/", 200, false));
+            journal.skipped("http://c.invalid/");
+        }
+
+        List<String> urls = new ArrayList<>();
+        progress = ProgressJournal.replay(file, JOB, result -> urls.add(result.getUrl()));
+        assertEquals(3, progress.getDone());
+        assertEquals(1, progress.getSkipped());
+        assertEquals(Arrays.asList("http://a.com/", "http://b.com/"), urls);
+    }
+
+    @Test
+    public void testOtherJob() throws IOException {
+        new ProgressJournal(file, JOB).close();
+        assertEquals(JOB, ProgressJournal.readJob(file));
+        try {
+            ProgressJournal.replay(file, "urls: urls.txt, search term: other", result -> { });
+            fail("replayed the journal of another search");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("another search"));
+        }
+    }
+
+    private static SearchResult result(String url, int status, boolean matched) {
+        SearchResult result = new SearchResult(url);
+        result.setResponse(url, status);
+        result.complete(matched);
+        return result;
+    }
+}
@@ -0,0 +1,199 @@
+package com.wework.websitesearcher;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wework.websitesearcher.daemon.SearchDaemon;
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Jobs posted to a {@link SearchDaemon}, searching a {@link SyntheticWeb}.
+ */
+public class SearchDaemonTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static SyntheticWeb web;
+    private static SearchDaemon daemon;
+    private static String jobsUrl;
+
+    @BeforeClass
+    public static void start() throws IOException {
+        web = new SyntheticWeb(200, 11);
+        web.setPageSize(8 * 1024, 0.5);
+        web.setLatency(0, 20);
+        web.setMatchRate(0.2);
+        web.setRedirects(0.1, 2);
+        web.setErrorRate(0.1);
+        web.start();
+        daemon = new SearchDaemon(0, 2);
+        daemon.start();
+        jobsUrl = "http://localhost:" + daemon.getPort() + "/jobs";
+    }
+
+    @AfterClass
+    public static void stop() {
+        daemon.close();
+        web.close();
+    }
+
+    @Test
+    public void testJobsOneAfterTheOther() throws IOException {
+        List<String> expected = new ArrayList<>(web.getExpectedMatches());
+        Collections.sort(expected);
+        // the same search from a list and from the URLs themselves, in two modes
+        for (Object urls : new Object[] {web.getCsvUrl(), web.getUrls()}) {
+            for (String mode : new String[] {"threads", "nio"}) {
+                Map<String, Object> spec = new LinkedHashMap<>();
+                spec.put("urls", urls);
+                spec.put("keywords", Collections.singletonList(SyntheticWeb.TERM));
+                spec.put("mode", mode);
+                spec.put("concurrency", 8);
+                JsonNode status = request("POST", jobsUrl, spec, 202);
+                String id = status.get("id").asText();
+
+                // streamed until the job is done
+                List<String> matched = new ArrayList<>();
+                Set<String> reported = new HashSet<>();
+                for (JsonNode result : streamResults(id, 0)) {
+                    assertTrue(result.toString(), reported.add(result.get("url").asText()));
+                    if (result.get("matched").asBoolean()) {
+                        matched.add(result.get("url").asText());
+                    }
+                }
+                Collections.sort(matched);
+                assertEquals(mode, expected, matched);
+                assertEquals(web.getUrls().size(), reported.size());
+
+                status = request("GET", jobsUrl + "/" + id, null, 200);
+                assertEquals("done", status.get("state").asText());
+                assertEquals(expected.size(), status.get("matched").asInt());
+                // from where a client got cut off
+                assertEquals(web.getUrls().size() - 150, streamResults(id, 150).size());
+            }
+        }
+        assertTrue(request("GET", jobsUrl, null, 200).size() >= 4);
+    }
+
+    @Test
+    public void testBadRequests() throws IOException {
+        Map<String, Object> spec = new LinkedHashMap<>();
+        spec.put("urls", web.getUrls());
+        spec.put("term", "(unclosed");
+        assertTrue(request("POST", jobsUrl, spec, 400).get("error").asText().contains("Bad search term"));
+        spec.remove("term");
+        assertTrue(request("POST", jobsUrl, spec, 400).get("error").asText().contains("term"));
+        spec.put("term", "(?s).*twitter.*");
+        spec.put("mode", "carrier-pigeon");
+        assertTrue(request("POST", jobsUrl, spec, 400).get("error").asText().contains("mode"));
+        request("GET", jobsUrl + "/12345", null, 404);
+        request("PUT", jobsUrl, null, 405);
+        request("GET", jobsUrl + "/1/nothing", null, 404);
+    }
+
+    @Test
+    public void testRequestsAWebPageCouldSend() throws IOException {
+        // a cross-site form post
+        HttpURLConnection connection = (HttpURLConnection) new URL(jobsUrl).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "text/plain");
+        try (OutputStream out = connection.getOutputStream()) {
+            String job = "{\"urls\":\"" + web.getCsvUrl() + "\",\"term\":\"twitter\"}";
+            out.write(job.getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(415, connection.getResponseCode());
+
+        // a page served from a name rebound to 127.0.0.1 (the JDK won't send another Host header)
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+            socket.getOutputStream().write(("GET /jobs HTTP/1.1\r\nHost: attacker.example:" + daemon.getPort() +
+                    "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            String statusLine = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.US_ASCII)).readLine();
+            assertTrue(statusLine, statusLine.contains(" 403 "));
+        }
+
+        // local files, only if the daemon was started with them allowed
+        Map<String, Object> spec = new LinkedHashMap<>();
+        spec.put("term", "(?s).*root.*");
+        for (String file : new String[] {"/etc/passwd", "file:///etc/passwd", "jar:file:/tmp/a.jar!/urls.csv"}) {
+            spec.put("urls", file);
+            assertTrue(request("POST", jobsUrl, spec, 400).get("error").asText().contains("local files"));
+        }
+    }
+
+    @Test
+    public void testCancel() throws IOException {
+        // a list that would take a while
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            urls.addAll(web.getUrls());
+        }
+        Map<String, Object> spec = new LinkedHashMap<>();
+        spec.put("urls", urls);
+        spec.put("term", "(?s).*twitter.*");
+        spec.put("concurrency", 2);
+        String id = request("POST", jobsUrl, spec, 202).get("id").asText();
+        JsonNode status = request("DELETE", jobsUrl + "/" + id, null, 200);
+        assertEquals(id, status.get("id").asText());
+        // the stream ends once the URLs in progress are done
+        int results = streamResults(id, 0).size();
+        status = request("GET", jobsUrl + "/" + id, null, 200);
+        assertEquals("cancelled", status.get("state").asText());
+        assertEquals(results, status.get("results").asInt());
+        assertTrue(status.toString(), results < urls.size());
+    }
+
+    private static JsonNode request(String method, String url, Object body, int expectedStatus) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            try (OutputStream out = connection.getOutputStream()) {
+                MAPPER.writeValue(out, body);
+            }
+        }
+        assertEquals(method + " " + url, expectedStatus, connection.getResponseCode());
+        try (InputStream in = expectedStatus < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            return MAPPER.readTree(IOUtils.toByteArray(in));
+        }
+    }
+
+    private static List<JsonNode> streamResults(String id, int from) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(jobsUrl + "/" + id + "/results?from=" + from)
+                .openConnection();
+        assertEquals(200, connection.getResponseCode());
+        List<JsonNode> results = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                results.add(MAPPER.readTree(line));
+            }
+        }
+        return results;
+    }
+}
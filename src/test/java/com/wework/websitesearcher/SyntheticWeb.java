@@ -0,0 +1,426 @@
+package com.wework.websitesearcher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in for the web on localhost, so searches can be load-tested offline and reproducibly: a URL list in the
+ * same CSV format as the real one, at {@link #getCsvUrl()}, and <code>pages</code> synthetic pages. What each page
+ * does is drawn from the seed, so the same seed and settings always give the same web:
+ * <ul>
+ *     <li>body size: log-normal around a median (see {@link #setPageSize(int, double)})</li>
+ *     <li>latency before the response (see {@link #setLatency(int, int)})</li>
+ *     <li>a share of the pages contain {@link #TERM} (see {@link #setMatchRate(double)})</li>
+ *     <li>a share are reached through a chain of redirects (see {@link #setRedirects(double, int)})</li>
+ *     <li>a share answer 404, 500 or 503 (see {@link #setErrorRate(double)})</li>
+ *     <li>a share send their body slowly, 1KB at a time (see {@link #setSlowDrip(double, int)})</li>
+ *     <li>a share don't answer until after the clients' timeout (see {@link #setTimeouts(double, int)})</li>
+ * </ul>
+ * {@link #getExpectedMatches()} lists the URLs a search for {@link #TERM} should find.
+ *
+ * Can also be run on its own, to point the searcher at it:
+ * <code>java -cp ... com.wework.websitesearcher.SyntheticWeb [pages] [seed]</code>
+ */
+public class SyntheticWeb implements Closeable {
+    /** Term a share of the pages contain, nothing else in the pages contains it */
+    public static final String TERM = "twitter";
+    private static final int MAX_PAGE_BYTES = 4 * 1024 * 1024;
+    private static final int DRIP_BYTES = 1024;
+
+    private enum Kind { NORMAL, REDIRECT, ERROR, SLOW_DRIP, TIMEOUT }
+
+    private final int pages;
+    private final long seed;
+    private int medianBytes = 20 * 1024;
+    private double sizeSigma = 1.0;
+    private int latencyMillis;
+    private int jitterMillis;
+    private double matchRate = 0.1;
+    private double redirectRate;
+    private int redirectHops = 2;
+    private double errorRate;
+    private double slowDripRate;
+    private int dripMillis = 50;
+    private double timeoutRate;
+    private int timeoutMillis = 15_000;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private byte[] filler;
+    private String baseUrl;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * @param pages number of pages (and of URLs in the list)
+     * @param seed what the pages do is drawn from it
+     */
+    public SyntheticWeb(int pages, long seed) {
+        if (pages < 1) {
+            throw new IllegalArgumentException("Need at least one page. Pages arg: " + pages);
+        }
+        this.pages = pages;
+        this.seed = seed;
+    }
+
+    /**
+     * @param medianBytes median body size (default 20KB)
+     * @param sigma spread of the log-normal distribution of the sizes, 0 for all the same size (default 1.0: a tenth
+     *              of the pages are over 3.6 times the median). Sizes are capped at 4MB.
+     */
+    public void setPageSize(int medianBytes, double sigma) {
+        this.medianBytes = medianBytes;
+        this.sizeSigma = sigma;
+    }
+
+    /**
+     * @param millis time every request waits before being answered (default 0)
+     * @param jitterMillis plus a random time up to this much
+     */
+    public void setLatency(int millis, int jitterMillis) {
+        this.latencyMillis = millis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * @param rate share of the pages containing {@link #TERM} (default 0.1), at a random position
+     */
+    public void setMatchRate(double rate) {
+        this.matchRate = rate;
+    }
+
+    /**
+     * @param rate share of the URLs that redirect (default 0)
+     * @param hops number of redirects before the page (default 2)
+     * @throws IllegalArgumentException if hops isn't positive
+     */
+    public void setRedirects(double rate, int hops) {
+        if (hops < 1) {
+            throw new IllegalArgumentException("A redirect chain needs at least one hop. Hops arg: " + hops);
+        }
+        this.redirectRate = rate;
+        this.redirectHops = hops;
+    }
+
+    /**
+     * @param rate share of the URLs answering 404, 500 or 503 (default 0)
+     */
+    public void setErrorRate(double rate) {
+        this.errorRate = rate;
+    }
+
+    /**
+     * @param rate share of the pages sent {@link #DRIP_BYTES} at a time (default 0)
+     * @param millis wait between two parts of the body (default 50)
+     */
+    public void setSlowDrip(double rate, int millis) {
+        this.slowDripRate = rate;
+        this.dripMillis = millis;
+    }
+
+    /**
+     * @param rate share of the URLs that don't answer in time (default 0)
+     * @param millis how long they take to answer, longer than the clients' timeout (default 15s)
+     */
+    public void setTimeouts(double rate, int millis) {
+        this.timeoutRate = rate;
+        this.timeoutMillis = millis;
+    }
+
+    /**
+     * Start serving on a free port of the loopback address.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        filler = filler();
+        serverThreads = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "synthetic_web");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1000);
+        server.createContext("/", this::handle);
+        server.setExecutor(serverThreads);
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return URL of the list of page URLs, in the format of the real list
+     */
+    public String getCsvUrl() {
+        return baseUrl + "/urls.csv";
+    }
+
+    /**
+     * @return the URLs of all the pages, in the order of the list
+     */
+    public List<String> getUrls() {
+        List<String> urls = new ArrayList<>(pages);
+        for (int i = 0; i < pages; i++) {
+            urls.add(url(i));
+        }
+        return urls;
+    }
+
+    /**
+     * @return the URLs (as listed) whose page contains {@link #TERM} and can be read
+     */
+    public List<String> getExpectedMatches() {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < pages; i++) {
+            Page page = page(i);
+            if (page.matchAt >= 0 && page.kind != Kind.ERROR && page.kind != Kind.TIMEOUT) {
+                urls.add(url(i));
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * @return number of requests answered so far
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of body bytes sent so far
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    private String url(int page) {
+        return baseUrl + "/" + page;
+    }
+
+    /**
+     * / + page, possibly followed by the number of redirects left: /12/2 -> /12/1 -> /12/0 (the page)
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/urls.csv")) {
+                sendCsv(exchange);
+                return;
+            }
+            String[] parts = path.substring(1).split("/");
+            Page page;
+            int hopsLeft;
+            try {
+                page = page(Integer.parseInt(parts[0]));
+                hopsLeft = parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            sleep(page.latencyMillis);
+            switch (page.kind) {
+                case TIMEOUT:
+                    sleep(timeoutMillis);
+                    break;
+                case ERROR:
+                    exchange.sendResponseHeaders(page.status, -1);
+                    return;
+                case REDIRECT:
+                    if (hopsLeft != 0) {
+                        int next = hopsLeft < 0 ? redirectHops - 1 : hopsLeft - 1;
+                        exchange.getResponseHeaders().add("Location", "/" + page.index + "/" + next);
+                        exchange.sendResponseHeaders(302, -1);
+                        return;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            sendPage(exchange, page);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void sendPage(HttpExchange exchange, Page page) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+        byte[] term = TERM.getBytes(StandardCharsets.US_ASCII);
+        int length = page.size + (page.matchAt >= 0 ? term.length : 0);
+        // slow pages are sent chunked, like a server streaming a page it's still generating
+        exchange.sendResponseHeaders(200, page.kind == Kind.SLOW_DRIP ? 0 : length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (page.kind != Kind.SLOW_DRIP) {
+                // in one write: several small ones would wait on delayed ACKs
+                byte[] body = new byte[length];
+                int termAt = page.matchAt >= 0 ? page.matchAt : page.size;
+                System.arraycopy(filler, page.start, body, 0, termAt);
+                if (page.matchAt >= 0) {
+                    System.arraycopy(term, 0, body, termAt, term.length);
+                    System.arraycopy(filler, page.start + termAt, body, termAt + term.length, page.size - termAt);
+                }
+                out.write(body);
+                bytesSent.addAndGet(length);
+                return;
+            }
+            int offset = page.start;
+            int end = page.start + page.size;
+            int termAt = page.matchAt >= 0 ? page.start + page.matchAt : -1;
+            while (offset < end || termAt >= 0) {
+                if (termAt == offset) {
+                    out.write(term);
+                    bytesSent.addAndGet(term.length);
+                    termAt = -1;
+                    continue;
+                }
+                int stop = Math.min(termAt > offset ? termAt : end, offset + DRIP_BYTES);
+                out.write(filler, offset, stop - offset);
+                bytesSent.addAndGet(stop - offset);
+                offset = stop;
+                if (offset < end) {
+                    out.flush();
+                    sleep(dripMillis);
+                }
+            }
+        }
+    }
+
+    private void sendCsv(HttpExchange exchange) throws IOException {
+        StringBuilder csv = new StringBuilder(pages * 32);
+        csv.append("\"Rank\",\"URL\",\"Linking Root Domains\"\n");
+        String host = baseUrl.substring("http://".length());
+        for (int i = 0; i < pages; i++) {
+            // without the scheme, like the real list
+            csv.append(i + 1).append(",\"").append(host).append('/').append(i).append("\",").append(pages - i)
+                    .append('\n');
+        }
+        byte[] body = csv.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/csv");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private Page page(int index) {
+        if (index < 0 || index >= pages) {
+            throw new IndexOutOfBoundsException("No page " + index);
+        }
+        // the first draws of Randoms with close seeds are close too: scramble the seed first
+        Random random = new Random(new SplittableRandom(seed * 1_000_003 + index).nextLong());
+        Page page = new Page(index);
+        double kind = random.nextDouble();
+        if ((kind -= timeoutRate) < 0) {
+            page.kind = Kind.TIMEOUT;
+        }
+        else if ((kind -= errorRate) < 0) {
+            page.kind = Kind.ERROR;
+            page.status = new int[] {404, 500, 503}[random.nextInt(3)];
+        }
+        else if ((kind -= redirectRate) < 0) {
+            page.kind = Kind.REDIRECT;
+        }
+        else if (kind - slowDripRate < 0) {
+            page.kind = Kind.SLOW_DRIP;
+        }
+        double size = medianBytes * Math.exp(sizeSigma * random.nextGaussian());
+        page.size = (int) Math.max(1, Math.min(size, MAX_PAGE_BYTES - 1));
+        page.start = random.nextInt(MAX_PAGE_BYTES - page.size);
+        page.matchAt = random.nextDouble() < matchRate ? random.nextInt(page.size + 1) : -1;
+        page.latencyMillis = latencyMillis + (jitterMillis > 0 ? random.nextInt(jitterMillis + 1) : 0);
+        return page;
+    }
+
+    /**
+     * HTML-like text the bodies are cut from. Contains neither {@link #TERM} nor "facebook".
+     */
+    private byte[] filler() {
+        Random random = new Random(seed);
+        String[] words = {"lorem", "ipsum", "dolor", "sit", "amet", "tweet", "face", "book", "<p>", "</p>", "<div>",
+                "</div>", "<a href=\"/about\">about</a>", "<a href=\"https://example.com/x\">x</a>", "\n"};
+        StringBuilder text = new StringBuilder(MAX_PAGE_BYTES + 64);
+        while (text.length() < MAX_PAGE_BYTES) {
+            text.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        text.setLength(MAX_PAGE_BYTES);
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void sleep(int millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop serving. Requests in progress are dropped.
+     */
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SyntheticWeb{pages=" + pages + ", seed=" + seed + ", url=" + baseUrl + ", requests=" + requests +
+                ", bytesSent=" + bytesSent + "}";
+    }
+
+    private static class Page {
+        private final int index;
+        private Kind kind = Kind.NORMAL;
+        private int status = 200;
+        /** Body: <code>size</code> bytes of the filler from <code>start</code>, with the term inserted at matchAt */
+        private int start;
+        private int size;
+        private int matchAt;
+        private int latencyMillis;
+
+        Page(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Serve a synthetic web until killed: 5% redirects, 5% errors, 1% slow pages and 1% timeouts.
+     *
+     * @param args [pages (default 10000)] [seed (default 42)]
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        SyntheticWeb web = new SyntheticWeb(args.length > 0 ? Integer.parseInt(args[0]) : 10_000,
+                args.length > 1 ? Long.parseLong(args[1]) : 42);
+        web.setLatency(20, 80);
+        web.setRedirects(0.05, 2);
+        web.setErrorRate(0.05);
+        web.setSlowDrip(0.01, 50);
+        web.setTimeouts(0.01, 15_000);
+        web.start();
+        System.out.println("Serving " + web.pages + " pages. URL list: " + web.getCsvUrl());
+        System.out.println("Pages containing '" + TERM + "': " + web.getExpectedMatches().size());
+        TimeUnit.DAYS.sleep(Long.MAX_VALUE);
+    }
+}
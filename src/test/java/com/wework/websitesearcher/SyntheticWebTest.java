@@ -0,0 +1,90 @@
+package com.wework.websitesearcher;
+
+import com.wework.websitesearcher.io.CsvUrlSource;
+import com.wework.websitesearcher.services.UrlSearchServiceFactory;
+import com.wework.websitesearcher.services.UrlSearchServiceFactory.Mode;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Every {@link Mode} available in this build against a {@link SyntheticWeb} with redirects, errors and slow pages.
+ */
+public class SyntheticWebTest {
+    private static SyntheticWeb web;
+
+    @BeforeClass
+    public static void startWeb() throws IOException {
+        web = newWeb();
+        web.start();
+    }
+
+    private static SyntheticWeb newWeb() {
+        SyntheticWeb synthetic = new SyntheticWeb(300, 7);
+        synthetic.setPageSize(8 * 1024, 0.5);
+        synthetic.setLatency(0, 20);
+        synthetic.setMatchRate(0.2);
+        synthetic.setRedirects(0.1, 3);
+        synthetic.setErrorRate(0.1);
+        synthetic.setSlowDrip(0.02, 10);
+        return synthetic;
+    }
+
+    @AfterClass
+    public static void stopWeb() {
+        web.close();
+    }
+
+    @Test
+    public void testUrlList() throws IOException {
+        List<String> urls = new ArrayList<>();
+        try (CsvUrlSource source = CsvUrlSource.open(web.getCsvUrl(), Integer.MAX_VALUE)) {
+            source.forEachRemaining(urls::add);
+        }
+        assertEquals(web.getUrls(), urls);
+
+        // same seed, same web
+        SyntheticWeb same = newWeb();
+        try {
+            same.start();
+            assertEquals(paths(web.getExpectedMatches()), paths(same.getExpectedMatches()));
+        } finally {
+            same.close();
+        }
+        assertTrue(web.getExpectedMatches().size() > 30);
+    }
+
+    @Test
+    public void testAllModesFindTheExpectedPages() {
+        List<String> expected = new ArrayList<>(web.getExpectedMatches());
+        Collections.sort(expected);
+        for (Mode mode : Mode.values()) {
+            if (!UrlSearchServiceFactory.isAvailable(mode)) {
+                continue;
+            }
+            long requests = web.getRequests();
+            List<String> results = new ArrayList<>(UrlSearchServiceFactory.getInstance(mode, 50, 50)
+                    .searchUrlsForTerm(web.getUrls(), "(?s).*" + SyntheticWeb.TERM + ".*"));
+            Collections.sort(results);
+            assertEquals(mode.toString(), expected, results);
+            // one per URL plus the redirects
+            assertTrue(mode.toString(), web.getRequests() - requests > web.getUrls().size());
+        }
+    }
+
+    private static List<String> paths(List<String> urls) {
+        List<String> paths = new ArrayList<>();
+        for (String url : urls) {
+            paths.add(url.substring(url.lastIndexOf('/')));
+        }
+        return paths;
+    }
+}
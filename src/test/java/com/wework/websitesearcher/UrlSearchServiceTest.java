@@ -0,0 +1,837 @@
+package com.wework.websitesearcher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import com.wework.websitesearcher.index.PageIndex;
+import com.wework.websitesearcher.io.DnsResolver;
+import com.wework.websitesearcher.io.FetchLimits;
+import com.wework.websitesearcher.io.HttpResponseHandler;
+import com.wework.websitesearcher.io.NioHttpClient;
+import com.wework.websitesearcher.io.PageCache;
+import com.wework.websitesearcher.io.RedirectMap;
+import com.wework.websitesearcher.io.ResultWriter;
+import com.wework.websitesearcher.io.SearchResult;
+import com.wework.websitesearcher.io.UrlReader;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.matcher.ContentMatcherFactory;
+import com.wework.websitesearcher.services.UrlSearchService;
+import com.wework.websitesearcher.services.UrlSearchServiceFactory;
+import com.wework.websitesearcher.services.UrlSearchServiceFactory.Mode;
+import com.wework.websitesearcher.util.SearchMetrics;
+import com.wework.websitesearcher.util.SearchMetrics.Phase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs every {@link Mode} available in this build against a local HTTP server and checks they all find the same URLs.
+ */
+public class UrlSearchServiceTest {
+    private static HttpServer server;
+    private static String baseUrl;
+
+    // requests to /slow/...
+    private static final AtomicInteger slowRequests = new AtomicInteger();
+    private static final AtomicInteger slowActive = new AtomicInteger();
+    private static final AtomicInteger slowMaxActive = new AtomicInteger();
+    private static final Set<Integer> slowClientPorts = ConcurrentHashMap.newKeySet();
+    // full responses to /etag/...
+    private static final AtomicInteger etagBodiesSent = new AtomicInteger();
+    // requests to /moved/...
+    private static final AtomicInteger movedRequests = new AtomicInteger();
+    // requests to /flaky/... and /stall/..., by path
+    private static final Map<String, AtomicInteger> requestsByPath = new ConcurrentHashMap<>();
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 50);
+        server.createContext("/", UrlSearchServiceTest::handle);
+        server.setExecutor(Executors.newFixedThreadPool(10));
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(0);
+    }
+
+    /**
+     * /redirect/... redirects to the rest of the path, /missing is a 404, /chunked/... is sent with chunked encoding
+     * and any path containing "twitter" has that word at the end of a 100KB page. /slow/... takes 50ms and keeps track
+     * of how many of them are in progress and of the client connections they came in on. /etag/... has an ETag and
+     * answers 304 when it's sent back. /video/... is sent as video/mp4, /range/... honors a Range header and
+     * /drip/... sends its body over 2s. Paths containing /gzip/, /deflate/ or /rawdeflate/ are compressed that way
+     * when the client accepts it. /latin1/... pages end with "caf&eacute;" in ISO-8859-1, declared in the header
+     * (/latin1/header/...), in a meta tag (/latin1/meta/...) or not at all, and /utf16/... pages in UTF-16 with a
+     * byte order mark. /flaky/... answers 503 to its first request and /stall/... waits 1s before its first response.
+     * /moved/... redirects permanently (301) to the rest of the path and /loop/... redirects to itself, except
+     * /loop/a/... and /loop/b/..., which redirect to each other.
+     */
+    private static void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.startsWith("/video/")) {
+            exchange.getResponseHeaders().add("Content-Type", "video/mp4");
+        }
+        if (path.startsWith("/slow/")) {
+            slowRequests.incrementAndGet();
+            slowClientPorts.add(exchange.getRemoteAddress().getPort());
+            slowMaxActive.accumulateAndGet(slowActive.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                slowActive.decrementAndGet();
+            }
+        }
+        if (path.startsWith("/flaky/") || path.startsWith("/stall/")) {
+            boolean first = requestsByPath.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet() == 1;
+            if (first && path.startsWith("/flaky/")) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            if (first) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        if (path.startsWith("/redirect/")) {
+            exchange.getResponseHeaders().add("Location", path.substring("/redirect".length()));
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+            return;
+        }
+        if (path.startsWith("/moved/")) {
+            movedRequests.incrementAndGet();
+            exchange.getResponseHeaders().add("Location", path.substring("/moved".length()));
+            exchange.sendResponseHeaders(301, -1);
+            exchange.close();
+            return;
+        }
+        if (path.startsWith("/loop/")) {
+            requestsByPath.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+            String location = path.startsWith("/loop/a/") ? "/loop/b/" + path.substring("/loop/a/".length())
+                    : path.startsWith("/loop/b/") ? "/loop/a/" + path.substring("/loop/b/".length()) : path;
+            exchange.getResponseHeaders().add("Location", location);
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+            return;
+        }
+        if (path.startsWith("/etag/")) {
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            etagBodiesSent.incrementAndGet();
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+        }
+        String text = StringUtils.repeat("lorem ipsum ", 8192) + (path.contains("twitter") ? "twitter" : "facebok");
+        Charset charset = StandardCharsets.UTF_8;
+        if (path.startsWith("/latin1/")) {
+            charset = StandardCharsets.ISO_8859_1;
+            text = (path.startsWith("/latin1/meta/") ? "<html><head><meta charset=\"iso-8859-1\"></head>" : "") + text
+                    + " caf\u00e9";
+            exchange.getResponseHeaders().add("Content-Type",
+                    path.startsWith("/latin1/header/") ? "text/html; charset=ISO-8859-1" : "text/html");
+        }
+        else if (path.startsWith("/utf16/")) {
+            charset = StandardCharsets.UTF_16;
+            text += " caf\u00e9";
+        }
+        byte[] body = text.getBytes(charset);
+        int status = path.startsWith("/missing") ? 404 : 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (path.startsWith("/range/") && range != null && range.startsWith("bytes=0-")) {
+            int length = Math.min(body.length, Integer.parseInt(range.substring("bytes=0-".length())) + 1);
+            exchange.getResponseHeaders().add("Content-Range", "bytes 0-" + (length - 1) + "/" + body.length);
+            body = Arrays.copyOf(body, length);
+            status = 206;
+        }
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && (path.contains("/gzip/") || path.contains("deflate/"))) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = path.contains("/gzip/") ? new GZIPOutputStream(compressed)
+                    : new DeflaterOutputStream(compressed, new Deflater(6, path.contains("/rawdeflate/")))) {
+                out.write(body);
+            }
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", path.contains("/gzip/") ? "gzip" : "deflate");
+        }
+        exchange.sendResponseHeaders(status, path.startsWith("/chunked/") ? 0 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (int i = 0; i < body.length; i += 10000) {
+                out.write(body, i, Math.min(10000, body.length - i));
+                if (path.startsWith("/drip/")) {
+                    out.flush();
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // the client gave up
+        }
+    }
+
+    @Test
+    public void testAllModesFindTheSameUrls() {
+        List<String> urls = new ArrayList<>();
+        for (String path : Arrays.asList("/twitter", "/nothing", "/chunked/twitter", "/chunked/nothing",
+                "/redirect/twitter", "/redirect/redirect/nothing", "/missing/twitter")) {
+            urls.add(baseUrl + path);
+        }
+        urls.add("http://localhost:1/twitter");
+        urls.add("http://twitter.invalid/twitter");
+        List<String> expected = Arrays.asList(baseUrl + "/chunked/twitter", baseUrl + "/redirect/twitter",
+                baseUrl + "/twitter");
+
+        for (Mode mode : Mode.values()) {
+            if (!UrlSearchServiceFactory.isAvailable(mode)) {
+                continue;
+            }
+            for (String searchTerm : Arrays.asList("(?s).*(facebook|twitter).*", "(?s).*twit+er.*")) {
+                List<String> results = new ArrayList<>(
+                        UrlSearchServiceFactory.getInstance(mode, 4).searchUrlsForTerm(urls, searchTerm));
+                Collections.sort(results);
+                assertEquals(mode + " " + searchTerm, expected, results);
+            }
+        }
+    }
+
+    @Test
+    public void testPerHostLimitAndConnectionReuse() {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            urls.add(baseUrl + "/slow/twitter" + i);
+        }
+
+        for (Mode mode : Mode.values()) {
+            if (!UrlSearchServiceFactory.isAvailable(mode)) {
+                continue;
+            }
+            slowRequests.set(0);
+            slowMaxActive.set(0);
+            slowClientPorts.clear();
+            List<String> results = UrlSearchServiceFactory.getInstance(mode, 8, 2).searchUrlsForTerm(urls, "(?s).*twitter.*");
+            assertEquals(mode.toString(), urls.size(), results.size());
+            assertTrue(mode + " sent " + slowMaxActive + " requests at once", slowMaxActive.get() <= 2);
+            assertTrue(mode + " used " + slowClientPorts.size() + " connections for " + slowRequests + " requests",
+                    slowClientPorts.size() < slowRequests.get());
+        }
+    }
+
+    @Test
+    public void testAdaptiveConcurrencyStartsAtTheMin() {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            urls.add(baseUrl + "/slow/twitter" + i);
+        }
+
+        for (Mode mode : Mode.values()) {
+            if (!UrlSearchServiceFactory.isAvailable(mode)) {
+                continue;
+            }
+            slowMaxActive.set(0);
+            // done well within the first window, so the limit never goes up from 2
+            List<String> results = UrlSearchServiceFactory.getAdaptiveInstance(mode, 2, 8, 8)
+                    .searchUrlsForTerm(urls, "(?s).*twitter.*");
+            assertEquals(mode.toString(), urls.size(), results.size());
+            assertTrue(mode + " sent " + slowMaxActive + " requests at once", slowMaxActive.get() <= 2);
+        }
+        try {
+            UrlSearchServiceFactory.getAdaptiveInstance(Mode.THREADS, 8, 2, 8);
+            fail("min > max");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testJsonResultsOfEveryUrl() throws IOException {
+        List<String> urls = Arrays.asList(baseUrl + "/nothing", baseUrl + "/redirect/twitter", baseUrl + "/missing",
+                "http://localhost:1/twitter");
+        ObjectMapper mapper = new ObjectMapper();
+
+        for (Mode mode : Mode.values()) {
+            if (!UrlSearchServiceFactory.isAvailable(mode)) {
+                continue;
+            }
+            StringWriter out = new StringWriter();
+            try (ResultWriter results = new ResultWriter(out, ResultWriter.Format.JSON, "twitter")) {
+                UrlSearchServiceFactory.getInstance(mode, 4).searchUrls(urls.iterator(),
+                        ContentMatcherFactory.getInstance("(?s).*twitter.*"), results);
+            }
+            Map<String, JsonNode> byUrl = new HashMap<>();
+            for (String line : out.toString().split("\n")) {
+                JsonNode node = mapper.readTree(line);
+                byUrl.put(node.get("url").asText(), node);
+            }
+            assertEquals(mode.toString(), new HashSet<>(urls), byUrl.keySet());
+
+            JsonNode nothing = byUrl.get(baseUrl + "/nothing");
+            assertEquals(mode.toString(), 200, nothing.get("status").asInt());
+            assertFalse(mode.toString(), nothing.get("matched").asBoolean());
+            assertEquals(mode.toString(), 8192 * 12 + 7, nothing.get("bytes").asLong());
+            assertTrue(mode.toString(), nothing.get("total_ms").asLong() >= nothing.get("headers_ms").asLong());
+
+            JsonNode redirected = byUrl.get(baseUrl + "/redirect/twitter");
+            assertTrue(mode.toString(), redirected.get("matched").asBoolean());
+            assertEquals(mode.toString(), baseUrl + "/twitter", redirected.get("final_url").asText());
+
+            JsonNode missing = byUrl.get(baseUrl + "/missing");
+            assertEquals(mode.toString(), 404, missing.get("status").asInt());
+            assertTrue(mode.toString(), missing.has("error"));
+
+            JsonNode unreachable = byUrl.get("http://localhost:1/twitter");
+            assertEquals(mode.toString(), 0, unreachable.get("status").asInt());
+            assertTrue(mode.toString(), unreachable.has("error"));
+        }
+    }
+
+    @Test
+    public void testPageCacheRevalidation() throws IOException {
+        File dir = Files.createTempDirectory("page-cache").toFile();
+        List<String> urls = Arrays.asList(baseUrl + "/etag/twitter", baseUrl + "/etag/nothing", baseUrl + "/twitter");
+        try {
+            for (Mode mode : Arrays.asList(Mode.THREADS, Mode.PIPELINED)) {
+                FileUtils.cleanDirectory(dir);
+                UrlReader.setPageCache(new PageCache(dir, PageCache.DEFAULT_MAX_BYTES));
+                etagBodiesSent.set(0);
+                UrlSearchService service = UrlSearchServiceFactory.getInstance(mode, 4);
+                assertEquals(mode.toString(), 2, service.searchUrlsForTerm(urls, "(?s).*twitter.*").size());
+                assertEquals(mode.toString(), 2, etagBodiesSent.get());
+
+                // a new search term runs on the cached pages: only the page without an ETag is downloaded again
+                Queue<SearchResult> results = new ConcurrentLinkedQueue<>();
+                service.searchUrls(urls.iterator(), ContentMatcherFactory.getInstance("(?s).*lorem.*"), results::add);
+                assertEquals(mode.toString(), 2, etagBodiesSent.get());
+                assertEquals(mode.toString(), 3, results.size());
+                for (SearchResult result : results) {
+                    assertTrue(mode + " " + result, result.isMatched());
+                    boolean etag = result.getUrl().contains("/etag/");
+                    assertEquals(mode + " " + result, etag, result.isCached());
+                    assertEquals(mode + " " + result, etag ? 304 : 200, result.getStatus());
+                    assertEquals(mode + " " + result, etag, result.getBytes() == 0);
+                }
+            }
+        } finally {
+            UrlReader.setPageCache(null);
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testPageIndex() throws IOException {
+        File cacheDir = Files.createTempDirectory("page-cache").toFile();
+        File indexDir = Files.createTempDirectory("page-index").toFile();
+        List<String> urls = new ArrayList<>();
+        for (String path : Arrays.asList("/twitter", "/gzip/twitter", "/etag/twitter", "/etag/nothing", "/missing",
+                "/redirect/twitter")) {
+            urls.add(baseUrl + path);
+        }
+        try {
+            UrlReader.setPageCache(new PageCache(cacheDir, PageCache.DEFAULT_MAX_BYTES));
+            PageIndex index = new PageIndex(indexDir);
+            UrlReader.setPageIndex(index);
+            // matches at the start of each page: the rest is read for the index, the term is at the end
+            UrlSearchService service = UrlSearchServiceFactory.getInstance(Mode.THREADS, 4);
+            assertEquals(5, service.searchUrlsForTerm(urls, "(?s).*lorem.*").size());
+            List<String> expected = Arrays.asList(baseUrl + "/etag/twitter", baseUrl + "/gzip/twitter",
+                    baseUrl + "/redirect/twitter", baseUrl + "/twitter");
+            List<String> found = new ArrayList<>(index.search(Collections.singletonList("Twitter")));
+            Collections.sort(found);
+            assertEquals(expected, found);
+            assertEquals(5, index.search(Collections.singletonList("ipsum lorem")).size());
+            assertEquals(4, index.search(Collections.singletonList("ipsum twitter")).size());
+            index.close();
+
+            // the cached pages aren't indexed again
+            PageIndex reopened = new PageIndex(indexDir);
+            UrlReader.setPageIndex(reopened);
+            assertEquals(1, service.searchUrlsForTerm(urls, "(?s).*facebok.*").size());
+            assertTrue(reopened.toString(), reopened.toString().contains("unchanged=3"));
+            assertEquals(4, reopened.search(Collections.singletonList("twitter")).size());
+
+            // the regex path on the cached copies
+            ContentMatcher matcher = ContentMatcherFactory.getInstance("(?s).*Twitter.*");
+            assertEquals(false, UrlReader.searchCachedPage(baseUrl + "/etag/twitter", matcher,
+                    new SearchResult(baseUrl + "/etag/twitter")));
+            matcher = ContentMatcherFactory.getInstance("(?s).*ipsum twitter.*");
+            assertEquals(true, UrlReader.searchCachedPage(baseUrl + "/etag/twitter", matcher,
+                    new SearchResult(baseUrl + "/etag/twitter")));
+            assertEquals(null, UrlReader.searchCachedPage(baseUrl + "/twitter", matcher,
+                    new SearchResult(baseUrl + "/twitter")));
+        } finally {
+            UrlReader.setPageCache(null);
+            UrlReader.setPageIndex(null);
+            FileUtils.deleteDirectory(cacheDir);
+            FileUtils.deleteDirectory(indexDir);
+        }
+    }
+
+    @Test
+    public void testRedirectMap() throws IOException {
+        File file = File.createTempFile("redirects", ".txt");
+        file.delete();
+        String moved = baseUrl + "/moved/moved/redirect/twitter";
+        String loop = baseUrl + "/loop/twitter";
+        List<String> urls = Arrays.asList(moved, loop);
+        try {
+            for (Mode mode : Arrays.asList(Mode.THREADS, Mode.PIPELINED)) {
+                file.delete();
+                UrlReader.setRedirectMap(new RedirectMap(file));
+                movedRequests.set(0);
+                Map<String, SearchResult> results = search(mode, urls);
+                assertTrue(mode + " " + results, results.get(moved).isMatched());
+                assertEquals(mode.toString(), baseUrl + "/twitter", results.get(moved).getFinalUrl());
+                assertEquals(mode.toString(), 2, movedRequests.get());
+                assertTrue(mode + " " + results, results.get(loop).getError().contains("Redirect loop"));
+                UrlReader.getRedirectMap().save();
+
+                // the next run goes straight past the permanent redirects, but still through the temporary one
+                RedirectMap redirects = new RedirectMap(file);
+                assertEquals(mode.toString(), 1, redirects.size());
+                UrlReader.setRedirectMap(redirects);
+                results = search(mode, urls);
+                assertTrue(mode + " " + results, results.get(moved).isMatched());
+                assertEquals(mode.toString(), baseUrl + "/twitter", results.get(moved).getFinalUrl());
+                assertEquals(mode.toString(), 2, movedRequests.get());
+
+                // a target that doesn't work anymore is forgotten, and the URL is requested again
+                redirects.put(moved, baseUrl + "/missing");
+                results = search(mode, urls);
+                assertTrue(mode + " " + results, results.get(moved).isMatched());
+                assertEquals(mode.toString(), 4, movedRequests.get());
+                assertEquals(mode.toString(), baseUrl + "/redirect/twitter", redirects.get(moved));
+
+                // a target that redirects back to the URL is a loop: forgotten too, and the URL isn't its own target
+                String page = baseUrl + "/twitter";
+                redirects.put(page, baseUrl + "/moved/twitter");
+                results = search(mode, Collections.singletonList(page));
+                assertTrue(mode + " " + results, results.get(page).isMatched());
+                assertEquals(mode.toString(), null, redirects.get(page));
+            }
+        } finally {
+            UrlReader.setRedirectMap(null);
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRedirectLoops() {
+        for (Mode mode : Mode.values()) {
+            if (!UrlSearchServiceFactory.isAvailable(mode)) {
+                continue;
+            }
+            String self = "/loop/" + mode + "/twitter";
+            String pingPong = "/loop/a/" + mode + "/twitter";
+            Map<String, SearchResult> results = search(mode, Arrays.asList(baseUrl + self, baseUrl + pingPong));
+            for (SearchResult result : results.values()) {
+                assertTrue(mode + " " + result, result.getError().contains("Redirect loop"));
+            }
+            // failed on the first redirect back, rather than after the max number of redirects
+            assertEquals(mode.toString(), 1, requestsByPath.get(self).get());
+            assertEquals(mode.toString(), 1, requestsByPath.get(pingPong).get());
+            assertEquals(mode.toString(), 1, requestsByPath.get("/loop/b/" + mode + "/twitter").get());
+        }
+    }
+
+    @Test
+    public void testCompressedPages() {
+        List<String> urls = new ArrayList<>();
+        for (String encoding : Arrays.asList("gzip", "deflate", "rawdeflate")) {
+            for (String path : Arrays.asList("/", "/chunked/")) {
+                urls.add(baseUrl + path + encoding + "/twitter");
+                urls.add(baseUrl + path + encoding + "/nothing");
+            }
+        }
+        // the term is at the end of a 100KB page of "lorem ipsum", which compresses to well under 1KB
+        for (Mode mode : Mode.values()) {
+            if (!UrlSearchServiceFactory.isAvailable(mode)) {
+                continue;
+            }
+            Map<String, SearchResult> results = search(mode, urls);
+            assertEquals(mode.toString(), urls.size(), results.size());
+            for (SearchResult result : results.values()) {
+                assertEquals(mode + " " + result, null, result.getError());
+                assertEquals(mode + " " + result, result.getUrl().endsWith("/twitter"), result.isMatched());
+                assertTrue(mode + " " + result, result.getBytes() > 0 && result.getBytes() < 2048);
+            }
+        }
+    }
+
+    @Test
+    public void testFetchLimits() {
+        List<String> urls = Arrays.asList(baseUrl + "/twitter", baseUrl + "/video/twitter", baseUrl + "/drip/twitter",
+                baseUrl + "/range/nothing", baseUrl + "/chunked/nothing");
+        FetchLimits limits = new FetchLimits();
+        limits.setMaxBodyBytes(64 * 1024);
+        limits.setDeadlineSecs(1);
+        try {
+            for (Mode mode : Mode.values()) {
+                if (!UrlSearchServiceFactory.isAvailable(mode)) {
+                    continue;
+                }
+                limits.setRangeBytes(0);
+                UrlReader.setFetchLimits(limits);
+                Map<String, SearchResult> results = search(mode, urls);
+
+                // the term is past the limit
+                SearchResult big = results.get(baseUrl + "/twitter");
+                assertFalse(mode + " " + big, big.isMatched());
+                assertTrue(mode + " " + big, big.isTruncated());
+                assertEquals(mode + " " + big, 64 * 1024, big.getBytes());
+                assertEquals(mode + " " + big, null, big.getError());
+
+                SearchResult video = results.get(baseUrl + "/video/twitter");
+                assertEquals(mode + " " + video, 0, video.getBytes());
+                assertTrue(mode + " " + video, video.getError().contains("video/mp4"));
+
+                // each read is quick, the whole body isn't
+                SearchResult drip = results.get(baseUrl + "/drip/twitter");
+                assertTrue(mode + " " + drip, drip.getError().contains("Deadline"));
+                assertTrue(mode + " " + drip, drip.getTotalMillis() < 1900);
+
+                limits.setRangeBytes(1024);
+                UrlReader.setFetchLimits(limits);
+                results = search(mode, urls);
+                // honored by the server...
+                SearchResult range = results.get(baseUrl + "/range/nothing");
+                assertEquals(mode + " " + range, 206, range.getStatus());
+                assertEquals(mode + " " + range, 1024, range.getBytes());
+                assertTrue(mode + " " + range, range.isTruncated());
+                // ...or not
+                SearchResult ignored = results.get(baseUrl + "/chunked/nothing");
+                assertEquals(mode + " " + ignored, 200, ignored.getStatus());
+                assertEquals(mode + " " + ignored, 1024, ignored.getBytes());
+                assertTrue(mode + " " + ignored, ignored.isTruncated());
+            }
+        } finally {
+            UrlReader.setFetchLimits(new FetchLimits());
+        }
+    }
+
+    @Test
+    public void testRetriesAndHedging() {
+        FetchLimits limits = new FetchLimits();
+        limits.setMaxRetries(2);
+        limits.setRetryBackoffMillis(10);
+        limits.setHedgePercentile(90);
+        try {
+            UrlReader.setFetchLimits(limits);
+            for (Mode mode : Mode.values()) {
+                if (!UrlSearchServiceFactory.isAvailable(mode)) {
+                    continue;
+                }
+                String flaky = baseUrl + "/flaky/" + mode + "/twitter";
+                String stall = baseUrl + "/stall/" + mode + "/twitter";
+                List<String> urls = new ArrayList<>(Arrays.asList(flaky, baseUrl + "/missing/" + mode));
+                for (int i = 0; i < 100; i++) {
+                    urls.add(baseUrl + "/nothing/" + mode + i);
+                }
+                // last, once there are enough times to tell it's slow
+                urls.add(stall);
+                SearchMetrics metrics = SearchMetrics.reset();
+                Queue<SearchResult> results = new ConcurrentLinkedQueue<>();
+                UrlSearchServiceFactory.getInstance(mode, 8).searchUrls(urls.iterator(),
+                        ContentMatcherFactory.getInstance("(?s).*twitter.*"), results::add);
+
+                // each URL reported once, whatever the number of requests
+                Map<String, SearchResult> byUrl = new HashMap<>();
+                for (SearchResult result : results) {
+                    assertEquals(mode + " " + result, null, byUrl.put(result.getUrl(), result));
+                }
+                assertEquals(mode.toString(), new HashSet<>(urls), byUrl.keySet());
+                // the 503 is retried, the 404 isn't
+                assertTrue(mode + " " + byUrl.get(flaky), byUrl.get(flaky).isMatched());
+                assertEquals(mode.toString(), 2, requestsByPath.get("/flaky/" + mode + "/twitter").get());
+                assertEquals(mode.toString(), 404, byUrl.get(baseUrl + "/missing/" + mode).getStatus());
+                assertEquals(mode.toString(), 1, metrics.getUrlsRetried());
+                // the second request for the stalled URL answers long before the first one
+                assertTrue(mode + " " + byUrl.get(stall), byUrl.get(stall).isMatched());
+                assertTrue(mode + " " + byUrl.get(stall), byUrl.get(stall).getTotalMillis() < 500);
+                assertEquals(mode.toString(), 2, requestsByPath.get("/stall/" + mode + "/twitter").get());
+                // at most 5% of the URLs
+                long hedged = metrics.getUrlsHedged();
+                assertTrue(mode + " " + hedged, hedged >= 1 && hedged <= 5);
+            }
+        } finally {
+            UrlReader.setFetchLimits(new FetchLimits());
+        }
+    }
+
+    @Test
+    public void testFailureKinds() throws IOException {
+        ContentMatcher matcher = ContentMatcherFactory.getInstance("(?s).*twitter.*");
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        SearchResult refused = UrlReader.searchUrl("http://localhost:" + closedPort + "/", 5, matcher);
+        assertEquals(refused.toString(), SearchResult.Failure.CONNECTION, refused.getFailure());
+        assertTrue(refused.toString(), FetchLimits.isTransient(refused));
+
+        // whatever the message says, these won't work any better the next time
+        SearchResult unknownHost = UrlReader.searchUrl("http://unknown-host.invalid/", 5, matcher);
+        assertEquals(unknownHost.toString(), SearchResult.Failure.UNKNOWN_HOST, unknownHost.getFailure());
+        assertFalse(unknownHost.toString(), FetchLimits.isTransient(unknownHost));
+        // a server answering in plain text to the TLS handshake
+        try (ServerSocket plain = new ServerSocket(0)) {
+            Thread answer = new Thread(() -> {
+                try (Socket socket = plain.accept()) {
+                    socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n"
+                            .getBytes(StandardCharsets.US_ASCII));
+                } catch (IOException e) {
+                    // the test fails
+                }
+            });
+            answer.start();
+            SearchResult badTls = UrlReader.searchUrl("https://localhost:" + plain.getLocalPort() + "/", 5, matcher);
+            assertEquals(badTls.toString(), SearchResult.Failure.TLS, badTls.getFailure());
+            assertFalse(badTls.toString(), FetchLimits.isTransient(badTls));
+        }
+        SearchResult missing = UrlReader.searchUrl(baseUrl + "/missing/kinds", 5, matcher);
+        assertEquals(missing.toString(), SearchResult.Failure.HTTP_STATUS, missing.getFailure());
+        assertFalse(missing.toString(), FetchLimits.isTransient(missing));
+    }
+
+    @Test
+    public void testMalformedResponses() throws IOException {
+        Map<String, String> errorsByResponse = new LinkedHashMap<>();
+        errorsByResponse.put("HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\ntwitter", "Invalid Content-Length");
+        errorsByResponse.put("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n-5\r\ntwitter\r\n0\r\n\r\n",
+                "Invalid chunk size");
+        for (Map.Entry<String, String> response : errorsByResponse.entrySet()) {
+            try (ServerSocket raw = new ServerSocket(0)) {
+                Thread answer = new Thread(() -> {
+                    while (true) {
+                        try (Socket socket = raw.accept()) {
+                            BufferedReader request = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                                    StandardCharsets.US_ASCII));
+                            String line;
+                            while ((line = request.readLine()) != null && !line.isEmpty()) {
+                                // the request headers
+                            }
+                            socket.getOutputStream().write(response.getKey().getBytes(StandardCharsets.US_ASCII));
+                        } catch (IOException e) {
+                            // closed
+                            return;
+                        }
+                    }
+                });
+                answer.setDaemon(true);
+                answer.start();
+                String url = "http://localhost:" + raw.getLocalPort() + "/twitter";
+                SearchResult result = search(Mode.NIO, Collections.singletonList(url)).get(url);
+                assertTrue(String.valueOf(result), result.getError().contains(response.getValue()));
+            }
+        }
+    }
+
+    @Test
+    public void testNioRequestsStartedAfterClose() throws Exception {
+        try (DnsResolver resolver = new DnsResolver(1, 10, 0, 0)) {
+            NioHttpClient client = new NioHttpClient(1, resolver, 5);
+            client.close();
+            // the host is looked up after the I/O thread is gone
+            CompletableFuture<Exception> failure = new CompletableFuture<>();
+            client.get(baseUrl + "/twitter", new HttpResponseHandler() {
+                @Override
+                public boolean onBody(byte[] bytes, int offset, int length) {
+                    return false;
+                }
+
+                @Override
+                public void onComplete(boolean stoppedEarly) {
+                    failure.complete(null);
+                }
+
+                @Override
+                public void onFailure(String url, Exception e) {
+                    failure.complete(e);
+                }
+            });
+            Exception e = failure.get(10, TimeUnit.SECONDS);
+            assertTrue(String.valueOf(e), e != null && "Client closed".equals(e.getMessage()));
+        }
+    }
+
+    @Test
+    public void testJobDeadline() {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            urls.add(baseUrl + "/drip/twitter" + i);
+        }
+        // held back by the limit per host until the deadline
+        for (int i = 0; i < 10; i++) {
+            urls.add(baseUrl + "/nothing" + i);
+        }
+        try {
+            for (Mode mode : Mode.values()) {
+                if (!UrlSearchServiceFactory.isAvailable(mode)) {
+                    continue;
+                }
+                FetchLimits limits = new FetchLimits();
+                limits.setJobDeadline(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+                UrlReader.setFetchLimits(limits);
+                SearchMetrics metrics = SearchMetrics.reset();
+                long start = System.nanoTime();
+                Map<String, SearchResult> results = search(mode, urls);
+
+                assertTrue(mode.toString(), System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1900));
+                assertEquals(mode + " " + results.keySet(), 6, results.size());
+                for (SearchResult result : results.values()) {
+                    assertTrue(mode + " " + result, result.getUrl().contains("/drip/"));
+                    assertTrue(mode + " " + result, result.isIncomplete());
+                    assertTrue(mode + " " + result, result.getError().contains("Job deadline exceeded"));
+                }
+                assertEquals(mode.toString(), 10, metrics.getUrlsExpired());
+            }
+        } finally {
+            UrlReader.setFetchLimits(new FetchLimits());
+        }
+    }
+
+    @Test
+    public void testPageCharsets() {
+        String header = baseUrl + "/latin1/header/twitter";
+        String meta = baseUrl + "/latin1/meta/twitter";
+        String none = baseUrl + "/latin1/none/twitter";
+        String utf16 = baseUrl + "/utf16/twitter";
+        String utf16Nothing = baseUrl + "/utf16/nothing";
+        List<String> urls = Arrays.asList(header, meta, none, utf16, utf16Nothing);
+        for (Mode mode : Mode.values()) {
+            if (!UrlSearchServiceFactory.isAvailable(mode)) {
+                continue;
+            }
+            // only found if the page is decoded in its charset; without any charset info it's taken as UTF-8
+            Map<String, SearchResult> results = search(mode, urls, "(?s).*caf\u00e9.*");
+            assertTrue(mode + " " + results.get(header), results.get(header).isMatched());
+            assertTrue(mode + " " + results.get(meta), results.get(meta).isMatched());
+            assertFalse(mode + " " + results.get(none), results.get(none).isMatched());
+            assertTrue(mode + " " + results.get(utf16), results.get(utf16).isMatched());
+            assertEquals(mode + " " + results.get(header), "text/html; charset=ISO-8859-1",
+                    results.get(header).getContentType());
+
+            // an ASCII keyword is matched on the bytes of the ISO-8859-1 pages, not on those of the UTF-16 ones
+            results = search(mode, urls, "(?s).*twitter.*");
+            for (String url : Arrays.asList(header, meta, none, utf16)) {
+                assertTrue(mode + " " + results.get(url), results.get(url).isMatched());
+            }
+            assertFalse(mode + " " + results.get(utf16Nothing), results.get(utf16Nothing).isMatched());
+        }
+    }
+
+    @Test
+    public void testSeveralTermsInOneSearch() {
+        List<String> urls = Arrays.asList(baseUrl + "/slow/twitter", baseUrl + "/slow/nothing",
+                baseUrl + "/missing/twitter");
+        Map<String, String> terms = new LinkedHashMap<>();
+        terms.put("twitter", "(?s).*twitter.*");
+        terms.put("typo", "(?s).*(facebok|fcebook).*");
+        terms.put("lorem", "(?is).*LOREM.*");
+        terms.put("regex", "(?s).*face[a-z]ok.*");
+        terms.put("never", "(?s).*zebra.*");
+        Map<String, List<String>> expected = new LinkedHashMap<>();
+        expected.put("twitter", Collections.singletonList(baseUrl + "/slow/twitter"));
+        expected.put("typo", Collections.singletonList(baseUrl + "/slow/nothing"));
+        expected.put("lorem", Arrays.asList(baseUrl + "/slow/nothing", baseUrl + "/slow/twitter"));
+        expected.put("regex", Collections.singletonList(baseUrl + "/slow/nothing"));
+        expected.put("never", Collections.emptyList());
+        for (Mode mode : Mode.values()) {
+            if (!UrlSearchServiceFactory.isAvailable(mode)) {
+                continue;
+            }
+            int requests = slowRequests.get();
+            Map<String, List<String>> results = UrlSearchServiceFactory.getInstance(mode, 4)
+                    .searchUrlsForTerms(urls, terms);
+            results.values().forEach(Collections::sort);
+            assertEquals(mode.toString(), expected, results);
+            // each page fetched once for all the terms
+            assertEquals(mode.toString(), requests + 2, slowRequests.get());
+        }
+    }
+
+    private static Map<String, SearchResult> search(Mode mode, List<String> urls) {
+        return search(mode, urls, "(?s).*twitter.*");
+    }
+
+    private static Map<String, SearchResult> search(Mode mode, List<String> urls, String searchTerm) {
+        Map<String, SearchResult> results = new ConcurrentHashMap<>();
+        UrlSearchServiceFactory.getInstance(mode, 8).searchUrls(urls.iterator(),
+                ContentMatcherFactory.getInstance(searchTerm), result -> results.put(result.getUrl(), result));
+        return results;
+    }
+
+    @Test
+    public void testPhaseTimings() {
+        List<String> urls = Arrays.asList(baseUrl + "/twitter", baseUrl + "/nothing", baseUrl + "/slow/nothing",
+                baseUrl + "/missing");
+        for (Mode mode : Mode.values()) {
+            if (!UrlSearchServiceFactory.isAvailable(mode)) {
+                continue;
+            }
+            SearchMetrics metrics = SearchMetrics.reset();
+            UrlSearchServiceFactory.getInstance(mode, 4).searchUrlsForTerm(urls, "(?s).*twitter.*");
+            assertEquals(mode.toString(), 4, metrics.getUrlsDone());
+            assertEquals(mode.toString(), 4, metrics.getHistogram(Phase.TOTAL).getCount());
+            assertTrue(mode.toString(), metrics.getHistogram(Phase.FIRST_BYTE).getCount() >= 4);
+            // the 404 has no body to search
+            assertEquals(mode.toString(), 3, metrics.getHistogram(Phase.MATCH).getCount());
+            assertEquals(mode.toString(), 3, metrics.getHistogram(Phase.DECODE).getCount());
+            assertTrue(mode.toString(), metrics.getHistogram(Phase.TOTAL).getMax() >= 50_000_000L);
+            assertEquals(mode.toString(), Collections.singletonList("localhost"), metrics.getSlowestHosts());
+            assertTrue(metrics.report(), metrics.report().contains("first byte"));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.wework.websitesearcher.io;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the cache of {@link DnsResolver} against a fake lookup and clock: hosts ending in ".dead" don't resolve.
+ */
+public class DnsResolverTest {
+    private static final long TTL_MILLIS = 5000;
+    private static final long NEGATIVE_TTL_MILLIS = 1000;
+
+    private final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toNanos(1));
+    /** Lookups done so far, by host */
+    private final Map<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+    private DnsResolver resolver;
+
+    private DnsResolver newResolver(int maxEntries) {
+        resolver = new DnsResolver(1, maxEntries, TTL_MILLIS, NEGATIVE_TTL_MILLIS, host -> {
+            lookups.computeIfAbsent(host, key -> new AtomicInteger()).incrementAndGet();
+            if (host.endsWith(".dead")) {
+                throw new UnknownHostException(host);
+            }
+            return InetAddress.getByAddress(host, new byte[] {127, 0, 0, 1});
+        }, now::get);
+        return resolver;
+    }
+
+    @After
+    public void closeResolver() {
+        resolver.close();
+    }
+
+    private void advanceMillis(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private int lookupsOf(String host) {
+        AtomicInteger count = lookups.get(host);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return the error message, or fails if the host resolved
+     */
+    private String resolveFailure(String host) {
+        try {
+            resolver.resolve(host).join();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof UnknownHostException);
+            return e.getCause().getMessage();
+        }
+        fail("Resolved: " + host);
+        return null;
+    }
+
+    @Test
+    public void testNegativeCaching() {
+        newResolver(10);
+        assertEquals("gone.dead", resolveFailure("gone.dead"));
+        assertEquals("Gone.dead (cached)", resolveFailure("Gone.dead"));
+        assertEquals(1, lookupsOf("gone.dead"));
+        assertEquals("DnsResolver{cached=1, hits=1, lookups=1, failed=1}", resolver.toString());
+
+        // kept for less time than the hosts that did resolve
+        resolver.resolve("live.test").join();
+        advanceMillis(NEGATIVE_TTL_MILLIS);
+        assertEquals("gone.dead (cached)", resolveFailure("gone.dead"));
+        advanceMillis(1);
+        assertEquals("gone.dead", resolveFailure("gone.dead"));
+        assertEquals(2, lookupsOf("gone.dead"));
+        resolver.resolve("live.test").join();
+        assertEquals(1, lookupsOf("live.test"));
+        assertEquals("DnsResolver{cached=2, hits=3, lookups=3, failed=2}", resolver.toString());
+    }
+
+    @Test
+    public void testTtlExpiry() {
+        newResolver(10);
+        InetAddress address = resolver.resolve("live.test").join();
+        assertEquals("live.test", address.getHostName());
+        advanceMillis(TTL_MILLIS);
+        assertEquals(address, resolver.resolve("LIVE.test").join());
+        assertEquals(1, lookupsOf("live.test"));
+
+        advanceMillis(1);
+        assertEquals(address, resolver.resolve("live.test").join());
+        assertEquals(2, lookupsOf("live.test"));
+        // cached again from the new lookup
+        advanceMillis(TTL_MILLIS);
+        resolver.resolve("live.test").join();
+        assertEquals(2, lookupsOf("live.test"));
+        assertEquals("DnsResolver{cached=1, hits=2, lookups=2, failed=0}", resolver.toString());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        newResolver(2);
+        resolver.resolve("a.test").join();
+        resolver.resolve("b.test").join();
+        // a is now used more recently than b
+        resolver.resolve("a.test").join();
+        assertEquals("c.dead", resolveFailure("c.dead"));
+        assertEquals("DnsResolver{cached=2, hits=1, lookups=3, failed=1}", resolver.toString());
+
+        assertEquals("a.test", resolver.resolve("a.test").join().getHostName());
+        assertEquals("c.dead (cached)", resolveFailure("c.dead"));
+        assertEquals(1, lookupsOf("a.test"));
+        assertEquals(1, lookupsOf("c.dead"));
+        resolver.resolve("b.test").join();
+        assertEquals(2, lookupsOf("b.test"));
+        // b took the place of a, the least recently used by then
+        assertEquals("c.dead (cached)", resolveFailure("c.dead"));
+        resolver.resolve("a.test").join();
+        assertEquals(2, lookupsOf("a.test"));
+        assertEquals(1, lookupsOf("c.dead"));
+        assertEquals("DnsResolver{cached=2, hits=4, lookups=5, failed=1}", resolver.toString());
+    }
+}
@@ -0,0 +1,213 @@
+package com.wework.websitesearcher.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.wework.websitesearcher.io.SearchResult;
+import com.wework.websitesearcher.matcher.ContentMatcher;
+import com.wework.websitesearcher.matcher.ContentMatcherFactory;
+import com.wework.websitesearcher.matcher.MatchSession;
+import com.wework.websitesearcher.matcher.MatchStats;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the buffer pool of {@link PipelinedUrlSearchService} holds back the fetch threads when the match stage
+ * falls behind, and that every buffer comes back whatever happens to the page.
+ */
+public class PipelinedUrlSearchServiceTest {
+    private static final int POOL_CHUNKS = 4;
+    /** Much more than the pool holds, for each page */
+    private static final int PAGE_BYTES = 10 * ContentMatcher.CHUNK_SIZE;
+
+    private static HttpServer server;
+    private static String baseUrl;
+    /** Starts sending pages and hangs up halfway */
+    private static ServerSocket cutServer;
+    private static String cutUrl;
+    /** Number of sessions of {@link SlowMatcher} finished so far */
+    private static final AtomicInteger finished = new AtomicInteger();
+    /** {@link #finished} when each request to /serial/... arrived */
+    private static final List<Integer> finishedBySerialRequest = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 50);
+        server.createContext("/", PipelinedUrlSearchServiceTest::handle);
+        server.setExecutor(Executors.newFixedThreadPool(10));
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+
+        cutServer = new ServerSocket(0);
+        Thread answer = new Thread(() -> {
+            while (!cutServer.isClosed()) {
+                try (Socket socket = cutServer.accept()) {
+                    BufferedReader request = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                    String line;
+                    while ((line = request.readLine()) != null && !line.isEmpty()) {
+                        // skip the request headers
+                    }
+                    OutputStream out = socket.getOutputStream();
+                    // a short body with a Content-Length just looks like the end of the page: cut a chunk instead
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                            Integer.toHexString(PAGE_BYTES) + "\r\n" + StringUtils.repeat('x', PAGE_BYTES / 3))
+                            .getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                } catch (IOException e) {
+                    // closed at the end of the tests
+                }
+            }
+        });
+        answer.setDaemon(true);
+        answer.start();
+        cutUrl = "http://localhost:" + cutServer.getLocalPort();
+    }
+
+    @AfterClass
+    public static void stopServer() throws IOException {
+        server.stop(0);
+        cutServer.close();
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.startsWith("/serial/")) {
+            finishedBySerialRequest.add(finished.get());
+        }
+        byte[] body = (path.startsWith("/boom") ? "boom" : StringUtils.repeat('x', PAGE_BYTES))
+                .getBytes(StandardCharsets.US_ASCII);
+        exchange.getResponseHeaders().add("Content-Type", "text/html; charset=US-ASCII");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Test
+    public void testBufferPoolHoldsBackFetchThreads() throws IOException {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            urls.add(baseUrl + "/page/" + i);
+        }
+        urls.add(baseUrl + "/boom");
+        urls.add(cutUrl + "/cut/1");
+        urls.add(cutUrl + "/cut/2");
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        String refusedUrl = "http://localhost:" + closedPort + "/refused";
+        urls.add(refusedUrl);
+
+        PipelinedUrlSearchService.BufferPool[] pool = new PipelinedUrlSearchService.BufferPool[1];
+        PipelinedUrlSearchService service = new PipelinedUrlSearchService(8, 1,
+                POOL_CHUNKS * ContentMatcher.CHUNK_SIZE, urls.size()) {
+            @Override
+            BufferPool newBufferPool() {
+                pool[0] = super.newBufferPool();
+                return pool[0];
+            }
+        };
+        Map<String, SearchResult> results = new ConcurrentHashMap<>();
+        service.searchUrls(urls.iterator(), new SlowMatcher("(?s).*facebook.*"),
+                result -> assertNull("Reported twice: " + result.getUrl(), results.put(result.getUrl(), result)),
+                url -> { throw new AssertionError("Skipped: " + url); });
+
+        assertEquals(POOL_CHUNKS, pool[0].getSize());
+        // eight fetch threads reading big pages for one slow match thread: the pool ran dry, and never over
+        assertEquals(POOL_CHUNKS, pool[0].getMaxInUse());
+        assertEquals("Buffers not given back", 0, pool[0].getInUse());
+
+        assertEquals(urls.size(), results.size());
+        for (int i = 0; i < 6; i++) {
+            SearchResult result = results.get(baseUrl + "/page/" + i);
+            assertNull(result.getError());
+            assertFalse(result.isMatched());
+            assertEquals(PAGE_BYTES, result.getBytes());
+        }
+        assertTrue(results.get(baseUrl + "/boom").getError().contains("Error matching"));
+        assertNotNull(results.get(cutUrl + "/cut/1").getError());
+        assertNotNull(results.get(cutUrl + "/cut/2").getError());
+        assertNotNull(results.get(refusedUrl).getError());
+    }
+
+    @Test
+    public void testUrlDoneOnceMatched() {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            urls.add(baseUrl + "/serial/" + i);
+        }
+        finished.set(0);
+        finishedBySerialRequest.clear();
+        // one URL of the host at a time, and it's not done until the match stage is through with it
+        new PipelinedUrlSearchService(4, 1, POOL_CHUNKS * ContentMatcher.CHUNK_SIZE, 1)
+                .searchUrls(urls.iterator(), new SlowMatcher("(?s).*facebook.*"), result -> { }, url -> { });
+        assertEquals(Arrays.asList(0, 1, 2, 3), finishedBySerialRequest);
+    }
+
+    /**
+     * Takes a while over each chunk, so the match stage is the bottleneck, and fails on pages containing "boom".
+     */
+    private static class SlowMatcher implements ContentMatcher {
+        private final ContentMatcher matcher;
+
+        SlowMatcher(String regex) {
+            this.matcher = ContentMatcherFactory.getInstance(regex);
+        }
+
+        @Override
+        public MatchSession newSession() {
+            MatchSession session = matcher.newSession();
+            return new MatchSession() {
+                @Override
+                public boolean feed(char[] chars, int offset, int length) {
+                    if (new String(chars, offset, length).contains("boom")) {
+                        throw new IllegalStateException("boom");
+                    }
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return session.feed(chars, offset, length);
+                }
+
+                @Override
+                public boolean finish() {
+                    finished.incrementAndGet();
+                    return session.finish();
+                }
+            };
+        }
+
+        @Override
+        public MatchStats getStats() {
+            return matcher.getStats();
+        }
+    }
+}